@@ -0,0 +1,64 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Retrieval of an archive through the path of getArchive: a retrieval job,
+ * completing at once, then a ranged download of its output, against a local
+ * stand-in answering every call after a latency
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GetArchiveBenchmark {
+
+  @Param({"256"})
+  public int sizeMB;
+
+  @Param({"1", "8", "32"})
+  public int partSizeMB;
+
+  @Param({"1", "4", "16"})
+  public int threads;
+
+  @Param({"0", "20"})
+  public long latencyMs;
+
+  @Param({"false"})
+  public boolean adaptive;
+
+  private TransferFixture fixture;
+  private String archiveId;
+  private File target;
+
+  @Setup
+  public void setUp() throws IOException {
+    fixture = new TransferFixture(sizeMB, partSizeMB, threads, latencyMs, adaptive, true);
+    archiveId = GlacierOperations.uploadArchive(TransferFixture.VAULT, "bench", fixture.source).getArchiveId();
+    target = new File(fixture.directory, "retrieved.bin");
+  }
+
+  @TearDown
+  public void tearDown() {
+    fixture.close();
+  }
+
+  @Benchmark
+  public long get() throws IOException, InterruptedException {
+    target.delete();
+    GlacierOperations.retrieveArchive(TransferFixture.VAULT, archiveId, target);
+    return target.length();
+  }
+}
@@ -0,0 +1,76 @@
+package org.bg.amazon.glacier;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Parsing of an inventory job output, alone and while building the catalog
+ * of the vault as downloadJobOutput does
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class InventoryBenchmark {
+
+  @Param({"1000", "100000"})
+  public int archives;
+
+  private byte[] inventory;
+  private File catalog;
+
+  @Setup
+  public void setUp() throws IOException {
+    List<Map<String, Object>> list = new ArrayList<Map<String, Object>>();
+    for (int i = 0; i < archives; i++) {
+      Map<String, Object> archive = new LinkedHashMap<String, Object>();
+      archive.put("ArchiveId", String.format("%0138d", i));
+      archive.put("ArchiveDescription", "backup/file" + i + ".tar" + "Mon Jan 07 10:00:00 CET 2013");
+      archive.put("CreationDate", "2013-01-07T09:00:00Z");
+      archive.put("Size", 1024L * i);
+      archive.put("SHA256TreeHash", String.format("%064x", i));
+      list.add(archive);
+    }
+    Map<String, Object> root = new LinkedHashMap<String, Object>();
+    root.put("VaultARN", "arn:aws:glacier:us-east-1:000000000000:vaults/bench");
+    root.put("InventoryDate", "2013-01-08T09:00:00Z");
+    root.put("ArchiveList", list);
+    inventory = new ObjectMapper().writeValueAsBytes(root);
+    catalog = File.createTempFile("bench", ".catalog");
+  }
+
+  @TearDown
+  public void tearDown() {
+    catalog.delete();
+  }
+
+  @Benchmark
+  public long parse() throws IOException {
+    return InventoryParser.parse(new ByteArrayInputStream(inventory), new InventoryParser.Handler() {
+      @Override
+      public void archive(CatalogEntry pEntry) {
+      }
+    });
+  }
+
+  @Benchmark
+  public long buildCatalog() throws IOException {
+    return ArchiveCatalog.build(catalog, new ByteArrayInputStream(inventory)).size();
+  }
+}
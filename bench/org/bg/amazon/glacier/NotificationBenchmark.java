@@ -0,0 +1,55 @@
+package org.bg.amazon.glacier;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Extraction of the job id of a job notification, an SNS envelope whose
+ * Message is itself JSON and is parsed a second time
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NotificationBenchmark {
+
+  private String body;
+
+  @Setup
+  public void setUp() throws Exception {
+    ObjectMapper mapper = new ObjectMapper();
+    Map<String, Object> job = new LinkedHashMap<String, Object>();
+    job.put("Action", "ArchiveRetrieval");
+    job.put("ArchiveId", String.format("%0138d", 7));
+    job.put("ArchiveSizeInBytes", 1073741824L);
+    job.put("Completed", true);
+    job.put("CompletionDate", "2013-01-08T13:00:00.000Z");
+    job.put("CreationDate", "2013-01-08T09:00:00.000Z");
+    job.put("JobId", "HkF9p6o7yjhFx-K3CGl6fuSm6VzW9T7esGQfco8nUXVYwS0jlb5gq1JZ55yHgt5vP54ZShjoQzQVVh7vEXAMPLEjobID");
+    job.put("SHA256TreeHash", String.format("%064x", 7));
+    job.put("StatusCode", "Succeeded");
+    job.put("VaultARN", "arn:aws:glacier:us-east-1:000000000000:vaults/bench");
+    Map<String, Object> envelope = new LinkedHashMap<String, Object>();
+    envelope.put("Type", "Notification");
+    envelope.put("MessageId", "d4e8c5a2-0000-0000-0000-000000000000");
+    envelope.put("TopicArn", "arn:aws:sns:us-east-1:000000000000:GlacierNS4ListOperations");
+    envelope.put("Message", mapper.writeValueAsString(job));
+    envelope.put("Timestamp", "2013-01-08T13:00:01.000Z");
+    envelope.put("SignatureVersion", "1");
+    body = mapper.writeValueAsString(envelope);
+  }
+
+  @Benchmark
+  public String jobId() {
+    return JobTracker.getJobId(body);
+  }
+}
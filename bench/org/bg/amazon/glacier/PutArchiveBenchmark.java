@@ -0,0 +1,57 @@
+package org.bg.amazon.glacier;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Upload of an archive through the path of putArchive, against a local
+ * stand-in answering every call after a latency. Archive contents are not
+ * kept, so iterations do not fill the heap.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PutArchiveBenchmark {
+
+  @Param({"256"})
+  public int sizeMB;
+
+  @Param({"1", "8", "32"})
+  public int partSizeMB;
+
+  @Param({"1", "4", "16"})
+  public int threads;
+
+  @Param({"0", "20"})
+  public long latencyMs;
+
+  @Param({"false"})
+  public boolean adaptive;
+
+  private TransferFixture fixture;
+
+  @Setup
+  public void setUp() throws IOException {
+    fixture = new TransferFixture(sizeMB, partSizeMB, threads, latencyMs, adaptive, false);
+  }
+
+  @TearDown
+  public void tearDown() {
+    fixture.close();
+  }
+
+  @Benchmark
+  public UploadedArchive put() throws IOException {
+    return GlacierOperations.uploadArchive(TransferFixture.VAULT, "bench", fixture.source);
+  }
+}
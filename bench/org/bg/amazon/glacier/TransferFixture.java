@@ -0,0 +1,78 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Points GlacierOperations at a local stand-in and writes the archive moved by
+ * the transfer benchmarks
+ */
+class TransferFixture {
+
+  static final String VAULT = "bench";
+
+  final File directory;
+  final File source;
+  final LocalGlacierService service;
+
+  /**
+   * Constructor for the TransferFixture class
+   * @param pSizeMB size of the archive
+   * @param pPartSizeMB part and range size
+   * @param pThreads upload and download threads
+   * @param pLatency milliseconds every call takes
+   * @param pAdaptive whether the transfer controllers adapt the parts in flight
+   * @param pRetainData whether the stand-in keeps archive contents, needed to retrieve them
+   * @throws IOException
+   */
+  TransferFixture(int pSizeMB, int pPartSizeMB, int pThreads, long pLatency, boolean pAdaptive, boolean pRetainData)
+      throws IOException {
+    directory = Files.createTempDirectory("glacier-bench").toFile();
+    source = new File(directory, "archive.bin");
+    byte[] block = new byte[1024 * 1024];
+    Random random = new Random(1);
+    OutputStream out = new FileOutputStream(source);
+    try {
+      for (int i = 0; i < pSizeMB; i++) {
+        random.nextBytes(block);
+        out.write(block);
+      }
+    } finally {
+      out.close();
+    }
+
+    GlacierOperations.partSize = pPartSizeMB * 1024L * 1024;
+    GlacierOperations.rangeSize = pPartSizeMB * 1024L * 1024;
+    GlacierOperations.multipartThreshold = GlacierOperations.partSize;
+    GlacierOperations.uploadThreads = pThreads;
+    GlacierOperations.downloadThreads = pThreads;
+    GlacierOperations.adaptiveTransfers = pAdaptive;
+    GlacierOperations.fingerprintFile = null;
+    GlacierOperations.journalDirectory = new File(directory, "journal");
+    GlacierOperations.jobStateFile = new File(directory, "jobs");
+    GlacierOperations.chunkDirectory = new File(directory, "chunks");
+    GlacierOperations.sleepTime = 1;
+    service = new LocalGlacierService(pRetainData);
+    service.setLatency(pLatency);
+    GlacierOperations.setService(service);
+  }
+
+  /**
+   * Deletes the files of the fixture and stops tracking jobs
+   */
+  void close() {
+    GlacierOperations.shutdown();
+    delete(directory);
+  }
+
+  private static void delete(File pFile) {
+    File[] children = pFile.listFiles();
+    for (File child : children == null ? new File[0] : children)
+      delete(child);
+    pFile.delete();
+  }
+}
@@ -0,0 +1,48 @@
+package org.bg.amazon.glacier;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Tree hash of a buffer, on the calling thread and on all processors
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TreeHashBenchmark {
+
+  @Param({"1", "64", "256"})
+  public int sizeMB;
+
+  private ByteBuffer data;
+  private TreeHashCalculator calculator;
+
+  @Setup
+  public void setUp() {
+    byte[] bytes = new byte[sizeMB * 1024 * 1024];
+    new Random(1).nextBytes(bytes);
+    data = ByteBuffer.allocateDirect(bytes.length);
+    data.put(bytes).flip();
+    calculator = new TreeHashCalculator();
+  }
+
+  @Benchmark
+  public byte[] sequential() {
+    return TreeHash.compute(data.duplicate());
+  }
+
+  @Benchmark
+  public byte[] parallel() {
+    return calculator.compute(data.duplicate());
+  }
+}
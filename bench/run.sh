@@ -0,0 +1,27 @@
+#!/bin/sh
+# Builds and runs the JMH benchmarks of bench/, e.g.
+#   bench/run.sh TreeHash -p sizeMB=64
+#   bench/run.sh PutArchive -p threads=4,8 -p latencyMs=50 -f 1 -wi 2 -i 3
+# JMH is not part of lib/, its jars are fetched once from Maven Central into bench/lib.
+set -e
+cd "$(dirname "$0")/.."
+JMH_VERSION=1.37
+LIB=bench/lib
+mkdir -p $LIB
+
+fetch() {
+  if [ ! -f "$LIB/$2-$3.jar" ]; then
+    curl -fsSL -o "$LIB/$2-$3.jar.tmp" "https://repo1.maven.org/maven2/$1/$2/$3/$2-$3.jar"
+    mv "$LIB/$2-$3.jar.tmp" "$LIB/$2-$3.jar"
+  fi
+}
+fetch org/openjdk/jmh jmh-core $JMH_VERSION
+fetch org/openjdk/jmh jmh-generator-annprocess $JMH_VERSION
+fetch net/sf/jopt-simple jopt-simple 5.0.4
+fetch org/apache/commons commons-math3 3.6.1
+
+CP="$(ls lib/*.jar $LIB/*.jar | tr '\n' ':')"
+rm -rf bench/classes
+mkdir -p bench/classes
+javac -nowarn -cp "$CP" -d bench/classes $(find src bench -name "*.java")
+exec java -cp "bench/classes:$CP" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,204 @@
+package org.bg.amazon.glacier;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.glacier.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.glacier.model.CreateVaultRequest;
+import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
+import com.amazonaws.services.glacier.model.DeleteVaultRequest;
+import com.amazonaws.services.glacier.model.DescribeJobRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultRequest;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputRequest;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.services.glacier.model.InitiateJobRequest;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.glacier.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.glacier.model.JobParameters;
+import com.amazonaws.services.glacier.model.UploadArchiveRequest;
+import com.amazonaws.services.glacier.model.UploadArchiveResult;
+import com.amazonaws.services.glacier.model.UploadMultipartPartRequest;
+import com.amazonaws.services.glacier.model.UploadMultipartPartResult;
+
+/**
+ * GlacierService backed by the Amazon Glacier client
+ */
+public class AmazonGlacierService implements GlacierService {
+
+  /**
+   * Object containing AmazonGlacier client
+   */
+  private final AmazonGlacierClient client;
+
+  /**
+   * Constructor for the AmazonGlacierService class
+   * @param pClient client already pointing to the right endpoint
+   */
+  public AmazonGlacierService(AmazonGlacierClient pClient) {
+    client = pClient;
+  }
+
+  @Override
+  public String initiateMultipartUpload(String pVaultName, String pDescription, long pPartSize) {
+    InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest()
+        .withVaultName(pVaultName)
+        .withArchiveDescription(pDescription)
+        .withPartSize(String.valueOf(pPartSize));
+    InitiateMultipartUploadResult result = client.initiateMultipartUpload(request);
+    return result.getUploadId();
+  }
+
+  @Override
+  public String uploadPart(String pVaultName, String pUploadId, long pOffset, ByteBuffer pBody, String pChecksum) {
+    long end = pOffset + pBody.remaining() - 1;
+    UploadMultipartPartRequest request = new UploadMultipartPartRequest()
+        .withVaultName(pVaultName)
+        .withUploadId(pUploadId)
+        .withChecksum(pChecksum)
+        .withRange("bytes " + pOffset + "-" + end + "/*")
+        .withBody(ControlledGlacierService.paced(new ByteBufferInputStream(pBody.duplicate())));
+    UploadMultipartPartResult result = client.uploadMultipartPart(request);
+    return result.getChecksum();
+  }
+
+  @Override
+  public String completeMultipartUpload(String pVaultName, String pUploadId, long pArchiveSize, String pChecksum) {
+    CompleteMultipartUploadRequest request = new CompleteMultipartUploadRequest()
+        .withVaultName(pVaultName)
+        .withUploadId(pUploadId)
+        .withArchiveSize(String.valueOf(pArchiveSize))
+        .withChecksum(pChecksum);
+    CompleteMultipartUploadResult result = client.completeMultipartUpload(request);
+    return result.getArchiveId();
+  }
+
+  @Override
+  public void abortMultipartUpload(String pVaultName, String pUploadId) {
+    client.abortMultipartUpload(new AbortMultipartUploadRequest()
+        .withVaultName(pVaultName)
+        .withUploadId(pUploadId));
+  }
+
+  @Override
+  public String uploadArchive(String pVaultName, String pDescription, ByteBuffer pBody, String pChecksum) {
+    UploadArchiveRequest request = new UploadArchiveRequest()
+        .withVaultName(pVaultName)
+        .withArchiveDescription(pDescription)
+        .withChecksum(pChecksum)
+        .withContentLength((long) pBody.remaining())
+        .withBody(ControlledGlacierService.paced(new ByteBufferInputStream(pBody.duplicate())));
+    UploadArchiveResult result = client.uploadArchive(request);
+    return result.getArchiveId();
+  }
+
+  @Override
+  public void createVault(String pVaultName) {
+    client.createVault(new CreateVaultRequest().withVaultName(pVaultName));
+  }
+
+  @Override
+  public void deleteVault(String pVaultName) {
+    client.deleteVault(new DeleteVaultRequest().withVaultName(pVaultName));
+  }
+
+  @Override
+  public DescribeVaultResult describeVault(String pVaultName) {
+    return client.describeVault(new DescribeVaultRequest().withVaultName(pVaultName));
+  }
+
+  @Override
+  public void deleteArchive(String pVaultName, String pArchiveId) {
+    client.deleteArchive(new DeleteArchiveRequest()
+        .withVaultName(pVaultName)
+        .withArchiveId(pArchiveId));
+  }
+
+  @Override
+  public String initiateArchiveRetrieval(String pVaultName, String pArchiveId, String pSnsTopic) {
+    JobParameters jobParameters = new JobParameters()
+        .withType("archive-retrieval")
+        .withArchiveId(pArchiveId)
+        .withSNSTopic(pSnsTopic);
+    return client.initiateJob(new InitiateJobRequest()
+        .withVaultName(pVaultName)
+        .withJobParameters(jobParameters)).getJobId();
+  }
+
+  @Override
+  public String initiateInventoryRetrieval(String pVaultName, String pSnsTopic) {
+    JobParameters jobParameters = new JobParameters()
+        .withType("inventory-retrieval")
+        .withSNSTopic(pSnsTopic);
+    return client.initiateJob(new InitiateJobRequest()
+        .withVaultName(pVaultName)
+        .withJobParameters(jobParameters)).getJobId();
+  }
+
+  @Override
+  public DescribeJobResult describeJob(String pVaultName, String pJobId) {
+    return client.describeJob(new DescribeJobRequest(pVaultName, pJobId));
+  }
+
+  @Override
+  public GetJobOutputResult getJobOutput(String pVaultName, String pJobId, long pStart, long pEnd) {
+    return client.getJobOutput(new GetJobOutputRequest()
+        .withVaultName(pVaultName)
+        .withJobId(pJobId)
+        .withRange("bytes=" + pStart + "-" + pEnd));
+  }
+
+  /**
+   * InputStream reading the remaining bytes of a buffer without copying them
+   */
+  static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer pBuffer) {
+      buffer = pBuffer;
+      buffer.mark();
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] pDest, int pOffset, int pLength) {
+      if (!buffer.hasRemaining())
+        return -1;
+      int count = Math.min(pLength, buffer.remaining());
+      buffer.get(pDest, pOffset, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+
+    /**
+     * The signer reads the body to hash it and resets it before it is sent
+     */
+    @Override
+    public boolean markSupported() {
+      return true;
+    }
+
+    @Override
+    public synchronized void mark(int pReadLimit) {
+      buffer.mark();
+    }
+
+    @Override
+    public synchronized void reset() {
+      buffer.reset();
+    }
+  }
+}
@@ -0,0 +1,126 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line oriented file whose appends are forced to the storage device before
+ * returning. A line torn by a crash is dropped when the log is opened again.
+ */
+public class AppendLog implements Closeable {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /**
+   * File holding the log
+   */
+  private final File file;
+
+  /**
+   * Channel positioned at the end of the log
+   */
+  private final FileChannel channel;
+
+  /**
+   * Opens a log, creating it if needed
+   * @param pFile
+   * @throws IOException
+   */
+  public AppendLog(File pFile) throws IOException {
+    file = pFile;
+    channel = new RandomAccessFile(pFile, "rw").getChannel();
+    channel.truncate(completeLength(channel));
+    channel.position(channel.size());
+  }
+
+  /**
+   * Reads the complete lines of a log, an absent log has no lines
+   * @param pFile
+   * @return
+   * @throws IOException
+   */
+  public static List<String> readLines(File pFile) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    if (!pFile.exists())
+      return lines;
+    BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(pFile), UTF8));
+    try {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) != -1) {
+        if (c == '\n') {
+          lines.add(line.toString());
+          line.setLength(0);
+        } else
+          line.append((char) c);
+      }
+    } finally {
+      in.close();
+    }
+    return lines;
+  }
+
+  /**
+   * Appends a line and waits until it is on the storage device
+   * @param pLine line without line separators
+   * @throws IOException
+   */
+  public synchronized void append(String pLine) throws IOException {
+    ByteBuffer data = ByteBuffer.wrap((pLine + "\n").getBytes(UTF8));
+    while (data.hasRemaining())
+      channel.write(data);
+    channel.force(false);
+  }
+
+  /**
+   * Returns the file holding the log
+   * @return
+   */
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Closes and removes the log
+   * @throws IOException
+   */
+  public void delete() throws IOException {
+    close();
+    if (file.exists() && !file.delete())
+      throw new IOException("Unable to delete " + file);
+  }
+
+  /**
+   * Returns the length of the log up to its last line separator
+   * @param pChannel
+   * @return
+   * @throws IOException
+   */
+  private static long completeLength(FileChannel pChannel) throws IOException {
+    long position = pChannel.size();
+    ByteBuffer b = ByteBuffer.allocate(1);
+    while (position > 0) {
+      b.clear();
+      pChannel.read(b, position - 1);
+      if (b.get(0) == '\n')
+        break;
+      position--;
+    }
+    return position;
+  }
+}
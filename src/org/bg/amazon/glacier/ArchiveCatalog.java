@@ -0,0 +1,447 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Local catalog of the archives of a vault, built from an inventory and
+ * persisted as a sorted file that is memory-mapped when reopened. Archives
+ * can be looked up by description, id, size and creation date without
+ * reading the whole catalog.
+ *
+ * The file starts with a header holding the number of archives and the
+ * position of four indexes. The archive records follow, each one being its
+ * size, creation date, id, description and tree hash. Every index is the
+ * list of record positions sorted by one of the keys.
+ */
+public class ArchiveCatalog {
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final long MAGIC = 0x474c434154303031L; // GLCAT001
+
+  private static final int HEADER_SIZE = 64;
+
+  /**
+   * Indexes stored in the catalog
+   */
+  private static final int BY_DESCRIPTION = 0;
+  private static final int BY_ID = 1;
+  private static final int BY_SIZE = 2;
+  private static final int BY_DATE = 3;
+
+  private final File file;
+  private final Segments data;
+  private final long count;
+  private final long[] indexes;
+
+  private ArchiveCatalog(File pFile, Segments pData, long pCount, long[] pIndexes) {
+    file = pFile;
+    data = pData;
+    count = pCount;
+    indexes = pIndexes;
+  }
+
+  /**
+   * Builds a catalog from an inventory, replacing any previous catalog atomically
+   * @param pFile file receiving the catalog
+   * @param pInventory inventory in JSON format
+   * @return the catalog, opened
+   * @throws IOException
+   */
+  public static ArchiveCatalog build(File pFile, InputStream pInventory) throws IOException {
+    File tmp = new File(pFile.getPath() + ".tmp");
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+    final LongList positions = new LongList();
+    final long[] position = {HEADER_SIZE};
+    try {
+      out.write(new byte[HEADER_SIZE]);
+      InventoryParser.parse(pInventory, new InventoryParser.Handler() {
+        @Override
+        public void archive(CatalogEntry pEntry) throws IOException {
+          positions.add(position[0]);
+          position[0] += writeRecord(out, pEntry);
+        }
+      });
+    } finally {
+      out.close();
+    }
+
+    RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+    try {
+      FileChannel channel = raf.getChannel();
+      Segments records = new Segments(channel, position[0]);
+      long[] sorted = positions.toArray();
+      long[] header = new long[8];
+      header[0] = MAGIC;
+      header[1] = sorted.length;
+      long indexPosition = position[0];
+      for (int index = 0; index < 4; index++) {
+        sort(records, sorted, index);
+        header[4 + index] = indexPosition;
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        for (long p : sorted) {
+          if (!buffer.hasRemaining())
+            indexPosition += flush(channel, buffer, indexPosition);
+          buffer.putLong(p);
+        }
+        indexPosition += flush(channel, buffer, indexPosition);
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+      buffer.asLongBuffer().put(header);
+      channel.write(buffer, 0);
+      channel.force(true);
+    } finally {
+      raf.close();
+    }
+    Files.move(tmp.toPath(), pFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return open(pFile);
+  }
+
+  /**
+   * Opens a catalog built before
+   * @param pFile
+   * @return
+   * @throws IOException
+   */
+  public static ArchiveCatalog open(File pFile) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(pFile, "r");
+    try {
+      Segments data = new Segments(raf.getChannel(), raf.length());
+      if (raf.length() < HEADER_SIZE || data.getLong(0) != MAGIC)
+        throw new IOException(pFile + " is not an archive catalog");
+      long[] indexes = new long[4];
+      for (int i = 0; i < 4; i++)
+        indexes[i] = data.getLong(32 + 8 * i);
+      return new ArchiveCatalog(pFile, data, data.getLong(8), indexes);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns the number of archives in the catalog
+   * @return
+   */
+  public long size() {
+    return count;
+  }
+
+  /**
+   * Returns the file holding the catalog
+   * @return
+   */
+  public File getFile() {
+    return file;
+  }
+
+  /**
+   * Returns the archive with an id, or null
+   * @param pArchiveId
+   * @return
+   */
+  public CatalogEntry findById(String pArchiveId) {
+    byte[] key = pArchiveId.getBytes(UTF8);
+    long i = lowerBound(BY_ID, key);
+    if (i < count && compareBytes(idOf(recordAt(BY_ID, i)), key) == 0)
+      return read(recordAt(BY_ID, i));
+    return null;
+  }
+
+  /**
+   * Returns the archives with exactly a description
+   * @param pDescription
+   * @return
+   */
+  public List<CatalogEntry> findByDescription(String pDescription) {
+    byte[] key = pDescription.getBytes(UTF8);
+    List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+    for (long i = lowerBound(BY_DESCRIPTION, key); i < count; i++) {
+      long record = recordAt(BY_DESCRIPTION, i);
+      if (compareBytes(descriptionOf(record), key) != 0)
+        break;
+      entries.add(read(record));
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the archives whose description starts with a prefix, sorted by description
+   * @param pPrefix
+   * @return
+   */
+  public List<CatalogEntry> findByDescriptionPrefix(String pPrefix) {
+    byte[] key = pPrefix.getBytes(UTF8);
+    List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+    for (long i = lowerBound(BY_DESCRIPTION, key); i < count; i++) {
+      long record = recordAt(BY_DESCRIPTION, i);
+      byte[] description = descriptionOf(record);
+      if (description.length < key.length || compareBytes(Arrays.copyOf(description, key.length), key) != 0)
+        break;
+      entries.add(read(record));
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the archives whose size is within a range, sorted by size
+   * @param pMin smallest size, inclusive
+   * @param pMax biggest size, inclusive
+   * @return
+   */
+  public List<CatalogEntry> findBySize(long pMin, long pMax) {
+    List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+    for (long i = lowerBound(BY_SIZE, pMin); i < count; i++) {
+      long record = recordAt(BY_SIZE, i);
+      if (data.getLong(record) > pMax)
+        break;
+      entries.add(read(record));
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the archives created within a period, sorted by creation date
+   * @param pFrom earliest date in milliseconds since the epoch, inclusive
+   * @param pTo latest date in milliseconds since the epoch, inclusive
+   * @return
+   */
+  public List<CatalogEntry> findByCreationDate(long pFrom, long pTo) {
+    List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+    for (long i = lowerBound(BY_DATE, pFrom); i < count; i++) {
+      long record = recordAt(BY_DATE, i);
+      if (data.getLong(record + 8) > pTo)
+        break;
+      entries.add(read(record));
+    }
+    return entries;
+  }
+
+  /**
+   * Returns the archive at a position of the creation date order, oldest first
+   * @param pIndex
+   * @return
+   */
+  public CatalogEntry getByCreationOrder(long pIndex) {
+    return read(recordAt(BY_DATE, pIndex));
+  }
+
+  private long recordAt(int pIndex, long pPosition) {
+    return data.getLong(indexes[pIndex] + 8 * pPosition);
+  }
+
+  /**
+   * Returns the first position of a string index whose key is not smaller than a key
+   */
+  private long lowerBound(int pIndex, byte[] pKey) {
+    long low = 0;
+    long high = count;
+    while (low < high) {
+      long middle = (low + high) >>> 1;
+      long record = recordAt(pIndex, middle);
+      byte[] key = pIndex == BY_ID ? idOf(record) : descriptionOf(record);
+      if (compareBytes(key, pKey) < 0)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  /**
+   * Returns the first position of a numeric index whose key is not smaller than a key
+   */
+  private long lowerBound(int pIndex, long pKey) {
+    long low = 0;
+    long high = count;
+    while (low < high) {
+      long middle = (low + high) >>> 1;
+      long record = recordAt(pIndex, middle);
+      if (data.getLong(pIndex == BY_SIZE ? record : record + 8) < pKey)
+        low = middle + 1;
+      else
+        high = middle;
+    }
+    return low;
+  }
+
+  private byte[] idOf(long pRecord) {
+    return data.getString(pRecord + 16);
+  }
+
+  private byte[] descriptionOf(long pRecord) {
+    long position = pRecord + 16;
+    return data.getString(position + 2 + data.getShort(position));
+  }
+
+  private CatalogEntry read(long pRecord) {
+    return readRecord(data, pRecord);
+  }
+
+  private static CatalogEntry readRecord(Segments pData, long pRecord) {
+    long size = pData.getLong(pRecord);
+    long creationDate = pData.getLong(pRecord + 8);
+    long position = pRecord + 16;
+    byte[] id = pData.getString(position);
+    position += 2 + id.length;
+    byte[] description = pData.getString(position);
+    position += 2 + description.length;
+    byte[] treeHash = pData.getString(position);
+    return new CatalogEntry(new String(id, UTF8), new String(description, UTF8), creationDate, size, new String(treeHash, UTF8));
+  }
+
+  private static int writeRecord(DataOutputStream pOut, CatalogEntry pEntry) throws IOException {
+    byte[] id = pEntry.getArchiveId().getBytes(UTF8);
+    byte[] description = pEntry.getDescription().getBytes(UTF8);
+    byte[] treeHash = pEntry.getTreeHash().getBytes(UTF8);
+    if (id.length > 0xffff || description.length > 0xffff || treeHash.length > 0xffff)
+      throw new IOException("Archive " + pEntry.getArchiveId() + " has fields too long to be cataloged");
+    pOut.writeLong(pEntry.getSize());
+    pOut.writeLong(pEntry.getCreationDate());
+    pOut.writeShort(id.length);
+    pOut.write(id);
+    pOut.writeShort(description.length);
+    pOut.write(description);
+    pOut.writeShort(treeHash.length);
+    pOut.write(treeHash);
+    return 22 + id.length + description.length + treeHash.length;
+  }
+
+  private static int flush(FileChannel pChannel, ByteBuffer pBuffer, long pPosition) throws IOException {
+    pBuffer.flip();
+    int length = pBuffer.remaining();
+    while (pBuffer.hasRemaining())
+      pChannel.write(pBuffer, pPosition + pBuffer.position());
+    pBuffer.clear();
+    return length;
+  }
+
+  /**
+   * Compares two keys as unsigned bytes, which is also the code point order of UTF-8 strings
+   */
+  private static int compareBytes(byte[] pA, byte[] pB) {
+    int length = Math.min(pA.length, pB.length);
+    for (int i = 0; i < length; i++) {
+      int diff = (pA[i] & 0xff) - (pB[i] & 0xff);
+      if (diff != 0)
+        return diff;
+    }
+    return pA.length - pB.length;
+  }
+
+  /**
+   * Sorts record positions by one of the keys with a merge sort
+   */
+  private static void sort(final Segments pRecords, long[] pPositions, final int pIndex) {
+    long[] buffer = new long[pPositions.length];
+    mergeSort(pRecords, pPositions, buffer, 0, pPositions.length, pIndex);
+  }
+
+  private static void mergeSort(Segments pRecords, long[] pPositions, long[] pBuffer, int pFrom, int pTo, int pIndex) {
+    if (pTo - pFrom < 2)
+      return;
+    int middle = (pFrom + pTo) >>> 1;
+    mergeSort(pRecords, pPositions, pBuffer, pFrom, middle, pIndex);
+    mergeSort(pRecords, pPositions, pBuffer, middle, pTo, pIndex);
+    if (compare(pRecords, pPositions[middle - 1], pPositions[middle], pIndex) <= 0)
+      return;
+    System.arraycopy(pPositions, pFrom, pBuffer, pFrom, pTo - pFrom);
+    int left = pFrom;
+    int right = middle;
+    for (int i = pFrom; i < pTo; i++) {
+      if (right >= pTo || (left < middle && compare(pRecords, pBuffer[left], pBuffer[right], pIndex) <= 0))
+        pPositions[i] = pBuffer[left++];
+      else
+        pPositions[i] = pBuffer[right++];
+    }
+  }
+
+  private static int compare(Segments pRecords, long pA, long pB, int pIndex) {
+    switch (pIndex) {
+      case BY_SIZE:
+        return Long.compare(pRecords.getLong(pA), pRecords.getLong(pB));
+      case BY_DATE:
+        return Long.compare(pRecords.getLong(pA + 8), pRecords.getLong(pB + 8));
+      case BY_ID:
+        return compareBytes(pRecords.getString(pA + 16), pRecords.getString(pB + 16));
+      default:
+        long a = pA + 16;
+        long b = pB + 16;
+        return compareBytes(pRecords.getString(a + 2 + pRecords.getShort(a)), pRecords.getString(b + 2 + pRecords.getShort(b)));
+    }
+  }
+
+  /**
+   * Read-only mapping of a file of any size, made of segments that overlap
+   * by more than the biggest record so a record never spans two of them
+   */
+  private static class Segments {
+
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final long OVERLAP = 1L << 18;
+
+    private final ByteBuffer[] segments;
+
+    Segments(FileChannel pChannel, long pLength) throws IOException {
+      int count = (int) Math.max(1, (pLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+      segments = new ByteBuffer[count];
+      for (int i = 0; i < count; i++) {
+        long start = i * SEGMENT_SIZE;
+        segments[i] = pChannel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE + OVERLAP, pLength - start));
+      }
+    }
+
+    long getLong(long pPosition) {
+      return segment(pPosition).getLong((int) (pPosition % SEGMENT_SIZE));
+    }
+
+    int getShort(long pPosition) {
+      return segment(pPosition).getShort((int) (pPosition % SEGMENT_SIZE)) & 0xffff;
+    }
+
+    byte[] getString(long pPosition) {
+      ByteBuffer segment = segment(pPosition).duplicate();
+      int offset = (int) (pPosition % SEGMENT_SIZE);
+      byte[] value = new byte[segment.getShort(offset) & 0xffff];
+      segment.position(offset + 2);
+      segment.get(value);
+      return value;
+    }
+
+    private ByteBuffer segment(long pPosition) {
+      return segments[(int) (pPosition / SEGMENT_SIZE)];
+    }
+  }
+
+  /**
+   * Growable list of primitive longs
+   */
+  private static class LongList {
+
+    private long[] values = new long[1024];
+    private int size;
+
+    void add(long pValue) {
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = pValue;
+    }
+
+    long[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
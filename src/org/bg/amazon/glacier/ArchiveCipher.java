@@ -0,0 +1,305 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Client-side AES-GCM encryption of archives, one frame per Glacier part so
+ * that parts are encrypted, uploaded and retried independently and any frame
+ * can be decrypted on its own.
+ *
+ * An encrypted archive starts with a header made of MAGIC, the part size, a
+ * random salt and a key check value. Every part of the archive holds exactly
+ * one frame, the ciphertext of the next plaintext bytes followed by the GCM
+ * tag, so the first part carries HEADER_SIZE fewer plaintext bytes. Each
+ * archive is encrypted with its own key, derived from the master key and the
+ * salt, and frame k uses k as its nonce. The header, the frame index and
+ * whether the frame is the last one are authenticated with every frame, so
+ * reordered, mixed or truncated frames are detected.
+ */
+public class ArchiveCipher {
+
+  /**
+   * First bytes of an encrypted archive
+   */
+  public static final byte[] MAGIC = {'G', 'B', 'E', '1'};
+
+  private static final int SALT_SIZE = 16;
+  private static final int CHECK_SIZE = 8;
+  public static final int HEADER_SIZE = MAGIC.length + 4 + SALT_SIZE + CHECK_SIZE;
+  public static final int TAG_SIZE = 16;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private final byte[] masterKey;
+  private final int partSize;
+
+  /**
+   * Constructor for the ArchiveCipher class
+   * @param pMasterKey AES key of 16 or 32 bytes
+   * @param pPartSize size of every part of the archives, a power of two number of megabytes
+   */
+  public ArchiveCipher(byte[] pMasterKey, long pPartSize) {
+    if (pMasterKey.length != 16 && pMasterKey.length != 32)
+      throw new GlacierException("Invalid encryption key, it must be 16 or 32 bytes long.");
+    if (pPartSize < TreeHash.CHUNK_SIZE || pPartSize > MultipartUploader.MAX_PART_SIZE || Long.bitCount(pPartSize) != 1)
+      throw new GlacierException("Invalid part size " + pPartSize + ", it must be a power of two between 1MB and 1GB.");
+    masterKey = pMasterKey.clone();
+    partSize = (int) pPartSize;
+  }
+
+  /**
+   * Reads a master key written as hexadecimal digits
+   * @param pKeyFile
+   * @return
+   * @throws IOException
+   */
+  public static byte[] readKey(File pKeyFile) throws IOException {
+    String hex = new String(Files.readAllBytes(pKeyFile.toPath()), UTF8).trim();
+    try {
+      return TreeHash.fromHex(hex);
+    } catch (RuntimeException e) {
+      throw new IOException("Invalid key file " + pKeyFile + ", it must hold the key as hexadecimal digits");
+    }
+  }
+
+  public int getPartSize() {
+    return partSize;
+  }
+
+  /**
+   * Returns a random salt. A resumed upload must reuse the salt of its first
+   * attempt, so the salt is recorded with the upload
+   * @return
+   */
+  public static byte[] randomSalt() {
+    byte[] salt = new byte[SALT_SIZE];
+    RANDOM.nextBytes(salt);
+    return salt;
+  }
+
+  /**
+   * Number of plaintext bytes carried by a part
+   * @param pIndex
+   * @return
+   */
+  public int plainCapacity(int pIndex) {
+    return partSize - TAG_SIZE - (pIndex == 0 ? HEADER_SIZE : 0);
+  }
+
+  /**
+   * Offset in the plaintext of the first byte carried by a part
+   * @param pIndex
+   * @return
+   */
+  public long plainOffset(int pIndex) {
+    return pIndex == 0 ? 0 : plainCapacity(0) + (long) (pIndex - 1) * plainCapacity(1);
+  }
+
+  /**
+   * Number of parts, hence frames, of the archive of a plaintext
+   * @param pPlainSize
+   * @return
+   */
+  public int partCount(long pPlainSize) {
+    if (pPlainSize <= plainCapacity(0))
+      return 1;
+    return (int) (1 + (pPlainSize - plainCapacity(0) + plainCapacity(1) - 1) / plainCapacity(1));
+  }
+
+  /**
+   * Size of the archive of a plaintext
+   * @param pPlainSize
+   * @return
+   */
+  public long archiveSize(long pPlainSize) {
+    return HEADER_SIZE + pPlainSize + (long) partCount(pPlainSize) * TAG_SIZE;
+  }
+
+  /**
+   * Builds the header of a new archive
+   * @param pSalt
+   * @return
+   */
+  public byte[] header(byte[] pSalt) {
+    byte[] archiveKey = deriveKey(masterKey, pSalt);
+    return ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).putInt(partSize).put(pSalt).put(keyCheck(archiveKey)).array();
+  }
+
+  /**
+   * Encrypts the plaintext of a part into the part
+   * @param pHeader header of the archive
+   * @param pIndex index of the part
+   * @param pLast whether it is the last part
+   * @param pPlain plaintext carried by the part, at most plainCapacity(pIndex) bytes
+   * @return the part, prefixed with the header for the first one
+   */
+  public ByteBuffer encryptPart(byte[] pHeader, int pIndex, boolean pLast, ByteBuffer pPlain) {
+    if (pPlain.remaining() > plainCapacity(pIndex))
+      throw new GlacierException("Part " + pIndex + " cannot carry " + pPlain.remaining() + " bytes");
+    ByteBuffer part = ByteBuffer.allocate((pIndex == 0 ? HEADER_SIZE : 0) + pPlain.remaining() + TAG_SIZE);
+    if (pIndex == 0)
+      part.put(pHeader);
+    try {
+      Cipher cipher = frameCipher(Cipher.ENCRYPT_MODE, pHeader, deriveKey(masterKey, Arrays.copyOfRange(pHeader, 8, 8 + SALT_SIZE)),
+                                  pIndex, pLast);
+      cipher.doFinal(pPlain.duplicate(), part);
+    } catch (GeneralSecurityException e) {
+      throw new GlacierException("Unable to encrypt part " + pIndex + ": " + e.getMessage());
+    }
+    part.flip();
+    return part;
+  }
+
+  /**
+   * Encrypts a whole plaintext held in memory, for archives uploaded in a single request
+   * @param pPlain
+   * @return
+   */
+  public ByteBuffer encrypt(ByteBuffer pPlain) {
+    byte[] header = header(randomSalt());
+    int parts = partCount(pPlain.remaining());
+    ByteBuffer archive = ByteBuffer.allocate((int) archiveSize(pPlain.remaining()));
+    ByteBuffer plain = pPlain.duplicate();
+    for (int i = 0; i < parts; i++) {
+      ByteBuffer slice = plain.duplicate();
+      slice.limit(slice.position() + Math.min(plainCapacity(i), plain.remaining()));
+      plain.position(slice.limit());
+      archive.put(encryptPart(header, i, i == parts - 1, slice));
+    }
+    archive.flip();
+    return archive;
+  }
+
+  /**
+   * Decrypts an encrypted archive file
+   * @param pMasterKey
+   * @param pInput
+   * @param pOutput
+   * @throws IOException
+   */
+  public static void decrypt(byte[] pMasterKey, File pInput, File pOutput) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(pInput), 1 << 20);
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(pOutput), 1 << 20);
+    try {
+      decrypt(pMasterKey, in, out);
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+
+  /**
+   * Decrypts an encrypted archive as it is read, one frame at a time
+   * @param pMasterKey
+   * @param pInput encrypted archive
+   * @param pOutput receives the plaintext
+   * @throws IOException if the key is wrong or the archive was altered or truncated
+   */
+  public static void decrypt(byte[] pMasterKey, InputStream pInput, OutputStream pOutput) throws IOException {
+    PushbackInputStream in = new PushbackInputStream(pInput, 1);
+    DataInputStream data = new DataInputStream(in);
+    byte[] header = new byte[HEADER_SIZE];
+    try {
+      data.readFully(header);
+    } catch (EOFException e) {
+      throw new IOException("Truncated encrypted archive");
+    }
+    if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC))
+      throw new IOException("Not an encrypted archive");
+    ArchiveCipher cipher = new ArchiveCipher(pMasterKey, ByteBuffer.wrap(header, MAGIC.length, 4).getInt());
+    byte[] frame = new byte[cipher.partSize];
+    for (int index = 0; ; index++) {
+      int frameSize = cipher.plainCapacity(index) + TAG_SIZE;
+      int length = 0, read;
+      while (length < frameSize && (read = in.read(frame, length, frameSize - length)) > 0)
+        length += read;
+      boolean last = length < frameSize;
+      if (!last) {
+        int next = in.read();
+        if (next < 0)
+          last = true;
+        else
+          in.unread(next);
+      }
+      pOutput.write(cipher.decryptFrame(header, index, last, frame, length));
+      if (last)
+        return;
+    }
+  }
+
+  /**
+   * Decrypts a single frame of an archive
+   * @param pHeader header of the archive
+   * @param pIndex index of the frame
+   * @param pLast whether it is the last frame
+   * @param pFrame frame content, ciphertext and tag
+   * @param pLength frame length
+   * @return the plaintext
+   * @throws IOException if the key is wrong or the frame was altered
+   */
+  public byte[] decryptFrame(byte[] pHeader, int pIndex, boolean pLast, byte[] pFrame, int pLength) throws IOException {
+    byte[] archiveKey = deriveKey(masterKey, Arrays.copyOfRange(pHeader, 8, 8 + SALT_SIZE));
+    if (!MessageDigest.isEqual(keyCheck(archiveKey), Arrays.copyOfRange(pHeader, 8 + SALT_SIZE, HEADER_SIZE)))
+      throw new IOException("The archive was encrypted with another key or its header was altered");
+    if (pLength < TAG_SIZE)
+      throw new IOException("Truncated frame " + pIndex);
+    try {
+      return frameCipher(Cipher.DECRYPT_MODE, pHeader, archiveKey, pIndex, pLast).doFinal(pFrame, 0, pLength);
+    } catch (GeneralSecurityException e) {
+      throw new IOException("Frame " + pIndex + " failed authentication, the archive was altered or truncated");
+    }
+  }
+
+  private static Cipher frameCipher(int pMode, byte[] pHeader, byte[] pArchiveKey, int pIndex, boolean pLast)
+      throws GeneralSecurityException {
+    byte[] nonce = ByteBuffer.allocate(12).putInt(0).putLong(pIndex).array();
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(pMode, new SecretKeySpec(pArchiveKey, "AES"), new GCMParameterSpec(TAG_SIZE * 8, nonce));
+    cipher.updateAAD(pHeader);
+    cipher.updateAAD(ByteBuffer.allocate(9).putLong(pIndex).put((byte) (pLast ? 1 : 0)).array());
+    return cipher;
+  }
+
+  private static byte[] deriveKey(byte[] pMasterKey, byte[] pSalt) {
+    byte[] key = hmac(pMasterKey, "archive-key", pSalt);
+    return Arrays.copyOf(key, pMasterKey.length);
+  }
+
+  private static byte[] keyCheck(byte[] pArchiveKey) {
+    return Arrays.copyOf(hmac(pArchiveKey, "key-check", new byte[0]), CHECK_SIZE);
+  }
+
+  private static byte[] hmac(byte[] pKey, String pLabel, byte[] pData) {
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(pKey, "HmacSHA256"));
+      mac.update(pLabel.getBytes(UTF8));
+      return mac.doFinal(pData);
+    } catch (GeneralSecurityException e) {
+      throw new GlacierException("HmacSHA256 is not available: " + e.getMessage());
+    }
+  }
+}
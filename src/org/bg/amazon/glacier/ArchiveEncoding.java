@@ -0,0 +1,71 @@
+package org.bg.amazon.glacier;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Helpers recording how an archive is encoded at the end of its description,
+ * e.g. "db.dump Sat Oct 17 13:27:46 UTC 2026 [compressed,encrypted]", so that
+ * a retrieval decodes it from what its upload said rather than from its first
+ * bytes. An archive whose description records no encoding is kept as it is.
+ */
+public final class ArchiveEncoding {
+
+  /**
+   * Encoding recorded at the end of a description
+   */
+  private static final Pattern SUFFIX = Pattern.compile(" \\[(compressed|encrypted|compressed,encrypted)\\]$");
+
+  private ArchiveEncoding() {
+  }
+
+  /**
+   * Returns the description of an archive recording its encoding
+   * @param pDescription description given to the upload
+   * @param pCompressed
+   * @param pEncrypted
+   * @return
+   */
+  public static String describe(String pDescription, boolean pCompressed, boolean pEncrypted) {
+    if (!pCompressed && !pEncrypted)
+      return pDescription;
+    return pDescription + " [" + (pCompressed ? pEncrypted ? "compressed,encrypted" : "compressed" : "encrypted") + "]";
+  }
+
+  /**
+   * Tells whether a description records a compressed archive
+   * @param pDescription null if unknown
+   * @return
+   */
+  public static boolean isCompressed(String pDescription) {
+    String encoding = getEncoding(pDescription);
+    return encoding != null && encoding.startsWith("compressed");
+  }
+
+  /**
+   * Tells whether a description records an encrypted archive
+   * @param pDescription null if unknown
+   * @return
+   */
+  public static boolean isEncrypted(String pDescription) {
+    String encoding = getEncoding(pDescription);
+    return encoding != null && encoding.endsWith("encrypted");
+  }
+
+  /**
+   * Returns a description without the encoding it records
+   * @param pDescription
+   * @return
+   */
+  public static String strip(String pDescription) {
+    Matcher suffix = SUFFIX.matcher(pDescription);
+    return suffix.find() ? pDescription.substring(0, suffix.start()) : pDescription;
+  }
+
+  private static String getEncoding(String pDescription) {
+    if (pDescription == null)
+      return null;
+    Matcher suffix = SUFFIX.matcher(pDescription);
+    return suffix.find() ? suffix.group(1) : null;
+  }
+}
@@ -0,0 +1,98 @@
+package org.bg.amazon.glacier;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks archives of a vault catalog by age, description prefix and size, for
+ * the operations working on many archives at once.
+ */
+public class ArchiveFilter {
+
+  private long createdBefore = Long.MAX_VALUE;
+  private String descriptionPrefix = "";
+  private long minSize = 0;
+  private long maxSize = Long.MAX_VALUE;
+
+  /**
+   * Parses a filter
+   * @param pSpec comma separated conditions, all of which must hold:
+   * olderThanDays=N, before=yyyy-MM-dd, prefix=description prefix,
+   * minSize=bytes, maxSize=bytes. An empty spec matches every archive
+   * @return
+   */
+  public static ArchiveFilter parse(String pSpec) {
+    ArchiveFilter filter = new ArchiveFilter();
+    for (String condition : pSpec.split(",")) {
+      if (condition.trim().isEmpty())
+        continue;
+      int equals = condition.indexOf('=');
+      if (equals < 0)
+        throw new GlacierException("Invalid condition " + condition + ", expected name=value");
+      String name = condition.substring(0, equals).trim();
+      String value = condition.substring(equals + 1).trim();
+      try {
+        if (name.equals("olderThanDays"))
+          filter.createdBefore = Math.min(filter.createdBefore,
+              System.currentTimeMillis() - TimeUnit.DAYS.toMillis(Long.parseLong(value)));
+        else if (name.equals("before")) {
+          SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+          format.setTimeZone(TimeZone.getTimeZone("UTC"));
+          filter.createdBefore = Math.min(filter.createdBefore, format.parse(value).getTime());
+        } else if (name.equals("prefix"))
+          filter.descriptionPrefix = value;
+        else if (name.equals("minSize"))
+          filter.minSize = Long.parseLong(value);
+        else if (name.equals("maxSize"))
+          filter.maxSize = Long.parseLong(value);
+        else
+          throw new GlacierException("Unknown condition " + name
+                                     + ", expected olderThanDays, before, prefix, minSize or maxSize");
+      } catch (NumberFormatException e) {
+        throw new GlacierException("Invalid value of " + name + ": " + value);
+      } catch (ParseException e) {
+        throw new GlacierException("Invalid date " + value + ", expected yyyy-MM-dd");
+      }
+    }
+    return filter;
+  }
+
+  /**
+   * Returns the creation date every matching archive precedes
+   * @return
+   */
+  public long getCreatedBefore() {
+    return createdBefore;
+  }
+
+  public boolean matches(CatalogEntry pEntry) {
+    return pEntry.getCreationDate() < createdBefore && pEntry.getDescription().startsWith(descriptionPrefix)
+        && pEntry.getSize() >= minSize && pEntry.getSize() <= maxSize;
+  }
+
+  /**
+   * Returns the matching archives of a catalog, oldest first
+   * @param pCatalog
+   * @return
+   */
+  public List<CatalogEntry> select(ArchiveCatalog pCatalog) {
+    List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+    for (long i = 0; i < pCatalog.size(); i++) {
+      CatalogEntry entry = pCatalog.getByCreationOrder(i);
+      if (entry.getCreationDate() >= createdBefore)
+        break;
+      if (matches(entry))
+        entries.add(entry);
+    }
+    return entries;
+  }
+
+  @Override
+  public String toString() {
+    return "before " + createdBefore + ", prefix " + descriptionPrefix + ", size " + minSize + "-" + maxSize;
+  }
+}
@@ -0,0 +1,180 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+
+/**
+ * Streams a retrieved archive to a channel, such as the standard output or a
+ * named pipe, without staging it on disk. Ranges are downloaded and checked
+ * against their tree hash ahead of the sink, and archives whose description
+ * records an encoding are decoded on the way, each stage on its own thread
+ * connected to the next by a pipe.
+ */
+public class ArchiveStreamer {
+
+  /**
+   * Bytes buffered between two stages
+   */
+  private static final int PIPE_SIZE = 1 << 20;
+
+  private final RangedDownloader downloader;
+  private final byte[] encryptionKey;
+  private final boolean decompress;
+
+  /**
+   * Constructor for the ArchiveStreamer class
+   * @param pDownloader
+   * @param pKey key decrypting encrypted archives, null if none is configured
+   * @param pDecompress false to stream compressed archives as they are
+   */
+  public ArchiveStreamer(RangedDownloader pDownloader, byte[] pKey, boolean pDecompress) {
+    downloader = pDownloader;
+    encryptionKey = pKey;
+    decompress = pDecompress;
+  }
+
+  /**
+   * Streams the output of a completed retrieval job
+   * @param pVaultName
+   * @param pJob completed retrieval job
+   * @param pSink receives the original content of the archive, it is not closed
+   * @throws IOException if the archive cannot be decoded or the sink fails
+   */
+  public void stream(final String pVaultName, final DescribeJobResult pJob, final WritableByteChannel pSink)
+      throws IOException {
+    final AtomicInteger count = new AtomicInteger();
+    ExecutorService stages = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-stream-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final AtomicBoolean aborted = new AtomicBoolean();
+    PipedInputStream archive = new PipedInputStream(PIPE_SIZE);
+    PipedInputStream plain = null;
+    Future<Void> download = stages.submit(new Stage(archive, aborted) {
+      @Override
+      void run(OutputStream pOut) throws IOException {
+        downloader.stream(pVaultName, pJob.getJobId(), pJob.getArchiveSizeInBytes(), pJob.getSHA256TreeHash(),
+                          Channels.newChannel(pOut));
+      }
+    });
+    Future<Void> decrypt = null;
+    try {
+      InputStream in = new BufferedInputStream(archive, PIPE_SIZE);
+      /** The description telling how the archive is encoded comes with its first range */
+      in.mark(1);
+      in.read();
+      in.reset();
+      String description = downloader.getArchiveDescription();
+      if (ArchiveEncoding.isEncrypted(description)) {
+        if (encryptionKey == null)
+          throw new GlacierException("The archive is encrypted, set glacier.encryption.keyFile to decrypt it.");
+        final InputStream encrypted = in;
+        plain = new PipedInputStream(PIPE_SIZE);
+        decrypt = stages.submit(new Stage(plain, aborted) {
+          @Override
+          void run(OutputStream pOut) throws IOException {
+            ArchiveCipher.decrypt(encryptionKey, encrypted, pOut);
+          }
+        });
+        in = new BufferedInputStream(plain, PIPE_SIZE);
+      }
+      OutputStream out = Channels.newOutputStream(pSink);
+      if (decompress && ArchiveEncoding.isCompressed(description))
+        StreamingUploadPipeline.decompress(in, out);
+      else {
+        byte[] buffer = new byte[PIPE_SIZE];
+        int read;
+        while ((read = in.read(buffer)) > 0)
+          out.write(buffer, 0, read);
+      }
+      out.flush();
+      await(download);
+      await(decrypt);
+    } catch (IOException | RuntimeException e) {
+      /** Closing the pipes stops the stages, but a stage which failed first tells more */
+      aborted.set(true);
+      archive.close();
+      if (plain != null)
+        plain.close();
+      await(download);
+      await(decrypt);
+      throw e;
+    } finally {
+      archive.close();
+      if (plain != null)
+        plain.close();
+      stages.shutdownNow();
+    }
+  }
+
+  /**
+   * Step feeding a pipe, closed once it is done so that the next step sees the
+   * end of the data. Errors raised once the stream is aborted are ignored
+   */
+  private abstract static class Stage implements Callable<Void> {
+    private final PipedOutputStream out;
+    private final AtomicBoolean aborted;
+
+    Stage(PipedInputStream pPipe, AtomicBoolean pAborted) throws IOException {
+      out = new PipedOutputStream(pPipe);
+      aborted = pAborted;
+    }
+
+    abstract void run(OutputStream pOut) throws IOException;
+
+    @Override
+    public Void call() throws IOException {
+      try {
+        run(out);
+      } catch (IOException | RuntimeException e) {
+        if (!aborted.get())
+          throw e;
+      } finally {
+        out.close();
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Waits for a stage, reporting its error
+   * @param pStage null if the stage was not needed
+   * @throws IOException
+   */
+  private static void await(Future<Void> pStage) throws IOException {
+    if (pStage == null)
+      return;
+    try {
+      pStage.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlacierException("Interrupted while streaming", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new GlacierException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+}
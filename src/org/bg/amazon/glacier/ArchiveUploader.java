@@ -0,0 +1,192 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads a file to an existing vault the way the configuration asks for:
+ * compressed in memory when it is small or while streaming its parts
+ * otherwise, in parts resumed from the upload journal when it is big, or in
+ * a single request otherwise. Encrypted files follow the same paths.
+ * Shared by GlacierOperations and AsyncGlacierOperations.
+ */
+public class ArchiveUploader {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(ArchiveUploader.class);
+
+  /**
+   * Service receiving the uploads
+   */
+  private final GlacierService service;
+
+  /**
+   * Size of every part but the last one
+   */
+  private final long partSize;
+
+  /**
+   * Number of parts being uploaded at the same time
+   */
+  private final int uploadThreads;
+
+  /**
+   * Object hashing the files and the parts
+   */
+  private final TreeHashCalculator hashCalculator;
+
+  /**
+   * Directory of the journals letting interrupted multipart uploads resume
+   */
+  private final File journalDirectory;
+
+  /**
+   * Files at least this big are uploaded in parts
+   */
+  private long multipartThreshold = Long.MAX_VALUE;
+
+  /**
+   * Number of threads compressing the parts, 0 to upload files as they are
+   */
+  private int compressThreads;
+
+  /**
+   * Deflate level of the compressed uploads
+   */
+  private int compressLevel;
+
+  /**
+   * Object encrypting the uploads, null to upload them in clear
+   */
+  private ArchiveCipher cipher;
+
+  /**
+   * Constructor for the ArchiveUploader class
+   * @param pService service receiving the uploads
+   * @param pPartSize size of every part but the last one
+   * @param pUploadThreads number of parts being uploaded at the same time
+   * @param pHashCalculator object hashing the files and the parts
+   * @param pJournalDirectory directory of the upload journals
+   */
+  public ArchiveUploader(GlacierService pService, long pPartSize, int pUploadThreads, TreeHashCalculator pHashCalculator,
+                         File pJournalDirectory) {
+    service = pService;
+    partSize = pPartSize;
+    uploadThreads = pUploadThreads;
+    hashCalculator = pHashCalculator;
+    journalDirectory = pJournalDirectory;
+  }
+
+  /**
+   * Uploads the files at least this big in parts
+   * @param pThreshold
+   */
+  public void setMultipartThreshold(long pThreshold) {
+    multipartThreshold = pThreshold;
+  }
+
+  /**
+   * Compresses the following uploads while sending them
+   * @param pThreads number of threads compressing the parts, 0 to stop compressing
+   * @param pLevel deflate level
+   */
+  public void setCompression(int pThreads, int pLevel) {
+    compressThreads = pThreads;
+    compressLevel = pLevel;
+  }
+
+  /**
+   * Encrypts the following uploads
+   * @param pCipher cipher using the part size of the uploader, null to stop encrypting
+   */
+  public void setCipher(ArchiveCipher pCipher) {
+    cipher = pCipher;
+  }
+
+  /**
+   * Uploads a file as a new archive
+   * @param pVaultName existing vault receiving the archive
+   * @param pDescription archive description, followed by the encoding of the archive if any
+   * @param pFile file to upload
+   * @return the new archive
+   * @throws IOException
+   */
+  public UploadedArchive upload(String pVaultName, String pDescription, File pFile) throws IOException {
+    String description = ArchiveEncoding.describe(pDescription, compressThreads > 0, cipher != null);
+    /** Compressed or encrypted, a file held in memory may grow a little */
+    boolean single = pFile.length() < multipartThreshold && pFile.length() < Integer.MAX_VALUE / 2;
+    if (compressThreads > 0) {
+      StreamingUploadPipeline pipeline = new StreamingUploadPipeline(service, partSize, compressThreads, uploadThreads, compressLevel);
+      pipeline.setCipher(cipher);
+      if (single) {
+        LOG.info("Compressing " + pFile.getName() + " in memory and uploading it in a single operation");
+        RandomAccessFile raf = new RandomAccessFile(pFile, "r");
+        try {
+          ByteBuffer content = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+          ByteBuffer body = pipeline.compress(content);
+          return uploadSingle(pVaultName, description, cipher == null ? body : cipher.encrypt(body),
+                              TreeHash.toHex(hashCalculator.compute(content)));
+        } finally {
+          raf.close();
+        }
+      }
+      LOG.info("Compressing " + pFile.getName() + " on " + compressThreads + " threads while uploading it in parts of " + partSize + " bytes");
+      InputStream in = new FileInputStream(pFile);
+      try {
+        return pipeline.upload(pVaultName, description, in, pFile.length());
+      } finally {
+        in.close();
+      }
+    }
+    if (!single) {
+      LOG.info("Uploading " + pFile.getName() + " in parts of " + partSize + " bytes using " + uploadThreads + " threads"
+               + (cipher == null ? "" : ", encrypting every part"));
+      MultipartUploader uploader = new MultipartUploader(service, partSize, uploadThreads, hashCalculator);
+      uploader.setCipher(cipher);
+      /** The tree hash of encrypted parts tells nothing of the file */
+      String contentHash = cipher == null ? null : hashCalculator.calculate(pFile, partSize).getRootChecksum();
+      UploadJournal journal = UploadJournal.open(journalDirectory, pVaultName, pFile);
+      try {
+        UploadedArchive archive = uploader.upload(pVaultName, description, pFile, journal);
+        return contentHash == null ? archive
+            : new UploadedArchive(archive.getArchiveId(), archive.getTreeHash(), archive.getSize(), contentHash);
+      } finally {
+        journal.close();
+      }
+    }
+    LOG.info("Uploading " + pFile.getName() + " in a single operation" + (cipher == null ? "" : ", encrypting it"));
+    RandomAccessFile raf = new RandomAccessFile(pFile, "r");
+    try {
+      ByteBuffer content = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+      if (cipher == null)
+        return uploadSingle(pVaultName, description, content, null);
+      return uploadSingle(pVaultName, description, cipher.encrypt(content), TreeHash.toHex(hashCalculator.compute(content)));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Uploads an archive held in memory in a single request
+   * @param pVaultName
+   * @param pDescription
+   * @param pBody
+   * @param pContentHash tree hash of the content the archive encodes, null if it is the archive itself
+   * @return
+   */
+  private UploadedArchive uploadSingle(String pVaultName, String pDescription, ByteBuffer pBody, String pContentHash) {
+    String checksum = TreeHash.toHex(hashCalculator.compute(pBody));
+    return new UploadedArchive(service.uploadArchive(pVaultName, pDescription, pBody, checksum), checksum, pBody.remaining(),
+                               pContentHash == null ? checksum : pContentHash);
+  }
+}
@@ -0,0 +1,365 @@
+package org.bg.amazon.glacier;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+
+/**
+ * Non-blocking counterpart of GlacierOperations, for embedding backups and
+ * restores in other services. Every instance holds its own service, job
+ * tracker, vault cache and settings, read once from a configuration with the
+ * keys of conf/glacier.properties, so instances driving different vaults or
+ * accounts can run side by side. Operations run on an executor and return
+ * futures; waiting for a retrieval or inventory job holds no thread, the job
+ * tracker completes it when the job is notified or polled. The default
+ * executor runs every operation on a virtual thread where the runtime has
+ * them, from Java 21 on, and on a cached pool of daemon threads otherwise.
+ * Each instance needs its own glacier.jobs.stateFile.
+ */
+public class AsyncGlacierOperations implements Closeable {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncGlacierOperations.class);
+
+  private final GlacierService service;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final JobTracker jobTracker;
+  private final VaultCache vaultCache;
+  private final TreeHashCalculator hashCalculator = new TreeHashCalculator();
+
+  private final long multipartThreshold;
+  private final long partSize;
+  private final int uploadThreads;
+  private final File journalDirectory;
+  private final boolean compressUploads;
+  private final int compressThreads;
+  private final int compressLevel;
+  private final byte[] encryptionKey;
+  private final long rangeSize;
+  private final int downloadThreads;
+  private final boolean decompressDownloads;
+  private final RetryPolicy retryPolicy;
+
+  /**
+   * Constructor for the AsyncGlacierOperations class
+   * @param pService service making the calls, paced and retried by this instance
+   * @param pConf configuration, see conf/glacier.properties
+   * @param pExecutor executor running the operations, null for the default one, which close shuts down
+   * @throws IOException if the job state or the encryption key cannot be read
+   */
+  public AsyncGlacierOperations(GlacierService pService, Properties pConf, Executor pExecutor) throws IOException {
+    multipartThreshold = 1024L * 1024 * Long.parseLong(pConf.getProperty("glacier.upload.multipartThresholdMB", "100"));
+    partSize = 1024L * 1024 * Long.parseLong(pConf.getProperty("glacier.upload.partSizeMB",
+                                                               String.valueOf(MultipartUploader.DEFAULT_PART_SIZE >> 20)));
+    uploadThreads = Integer.parseInt(pConf.getProperty("glacier.upload.threads", "4"));
+    journalDirectory = new File(pConf.getProperty("glacier.journal.dir", ".glacier-journal"));
+    compressUploads = Boolean.parseBoolean(pConf.getProperty("glacier.upload.compress", "false"));
+    compressThreads = Integer.parseInt(pConf.getProperty("glacier.upload.compressThreads",
+                                                         String.valueOf(Runtime.getRuntime().availableProcessors())));
+    compressLevel = Integer.parseInt(pConf.getProperty("glacier.upload.compressLevel", "6"));
+    String keyFile = pConf.getProperty("glacier.encryption.keyFile", "").trim();
+    encryptionKey = keyFile.isEmpty() ? null : ArchiveCipher.readKey(new File(keyFile));
+    rangeSize = 1024L * 1024 * Long.parseLong(pConf.getProperty("glacier.download.rangeSizeMB",
+                                                                String.valueOf(RangedDownloader.DEFAULT_RANGE_SIZE >> 20)));
+    downloadThreads = Integer.parseInt(pConf.getProperty("glacier.download.threads", "4"));
+    decompressDownloads = Boolean.parseBoolean(pConf.getProperty("glacier.download.decompress", "true"));
+    retryPolicy = new RetryPolicy(
+        Integer.parseInt(pConf.getProperty("glacier.retry.maxAttempts", String.valueOf(RetryPolicy.DEFAULT_MAX_ATTEMPTS))),
+        Long.parseLong(pConf.getProperty("glacier.retry.baseDelayMs", String.valueOf(RetryPolicy.DEFAULT_BASE_DELAY))),
+        Long.parseLong(pConf.getProperty("glacier.retry.maxDelayMs", String.valueOf(RetryPolicy.DEFAULT_MAX_DELAY))));
+
+    boolean adaptive = Boolean.parseBoolean(pConf.getProperty("glacier.transfer.adaptive", "true"));
+    long bytesPerSecond = 1024 * Long.parseLong(pConf.getProperty("glacier.transfer.maxKBps", "0"));
+    TransferController uploads = new TransferController("uploads", uploadThreads, adaptive);
+    uploads.setRateLimit(bytesPerSecond);
+    TransferController downloads = new TransferController("downloads", downloadThreads, adaptive);
+    downloads.setRateLimit(bytesPerSecond);
+    service = new CacheInvalidatingGlacierService(new RetryingGlacierService(new ControlledGlacierService(
+        new InstrumentedGlacierService(pService, MetricsRegistry.DEFAULT), uploads, downloads), retryPolicy),
+        this::forgetVault);
+
+    jobTracker = new JobTracker(service, new File(pConf.getProperty("glacier.jobs.stateFile", ".glacier-jobs")),
+                                1000 * Long.parseLong(pConf.getProperty("glacier.jobs.pollSeconds", "600")));
+    jobTracker.setRetryPolicy(retryPolicy);
+    String vaultCacheFile = pConf.getProperty("glacier.vaultCache.file", "").trim();
+    vaultCache = new VaultCache(pVaultName -> {
+      try {
+        return service.describeVault(pVaultName);
+      } catch (ResourceNotFoundException e) {
+        return null;
+      }
+    }, 1000 * Long.parseLong(pConf.getProperty("glacier.vaultCache.ttlSeconds", String.valueOf(VaultCache.DEFAULT_TTL / 1000))),
+       vaultCacheFile.isEmpty() ? null : new File(vaultCacheFile));
+
+    ownedExecutor = pExecutor == null ? newDefaultExecutor() : null;
+    executor = pExecutor == null ? ownedExecutor : pExecutor;
+  }
+
+  /**
+   * Drops a vault found missing from the vault cache
+   * @param pVaultName
+   */
+  private void forgetVault(String pVaultName) {
+    vaultCache.invalidate(pVaultName);
+  }
+
+  /**
+   * Creates the operations of the Amazon clients, notified of completed jobs
+   * through the topic and queue named in the configuration
+   * @param pClients
+   * @param pConf
+   * @param pExecutor executor running the operations, null for the default one
+   * @return
+   * @throws IOException
+   */
+  public static AsyncGlacierOperations create(GlacierClients pClients, Properties pConf, Executor pExecutor)
+      throws IOException {
+    AsyncGlacierOperations operations =
+        new AsyncGlacierOperations(new AmazonGlacierService(pClients.getGlacierClient()), pConf, pExecutor);
+    try {
+      operations.jobTracker.enableNotifications(pClients.getSqsClient(), pClients.getSnsClient(),
+                                                pConf.getProperty("glacier.jobs.topic", "GlacierNS4ListOperations"),
+                                                pConf.getProperty("glacier.jobs.queuePrefix", "GlacierQueue4ListOperations"));
+    } catch (AmazonClientException e) {
+      LOG.warn("Job notifications unavailable, polling jobs instead: " + e.getMessage());
+    }
+    return operations;
+  }
+
+  /**
+   * Returns an executor running every task on a new virtual thread if the
+   * runtime has them, and on a cached pool of daemon threads otherwise
+   * @return
+   */
+  public static ExecutorService newDefaultExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      final AtomicInteger count = new AtomicInteger();
+      return Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable pRunnable) {
+          Thread thread = new Thread(pRunnable, "glacier-async-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+  }
+
+  /**
+   * Call run by an operation, which may fail with an IOException
+   */
+  private interface Task<T> {
+    T run() throws IOException, InterruptedException;
+  }
+
+  /**
+   * Runs a call on the executor
+   * @param pTask
+   * @return
+   */
+  private <T> CompletableFuture<T> submit(final Task<T> pTask) {
+    return CompletableFuture.supplyAsync(() -> call(pTask), executor);
+  }
+
+  /**
+   * Runs a call, wrapping its checked errors so that they complete the future of the operation
+   */
+  private static <T> T call(Task<T> pTask) {
+    try {
+      return pTask.run();
+    } catch (IOException e) {
+      throw new CompletionException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CompletionException(e);
+    }
+  }
+
+  /**
+   * Creates a vault, nothing is done if it already exists
+   * @param pVaultName
+   * @return
+   */
+  public CompletableFuture<Void> createVault(final String pVaultName) {
+    return submit(() -> {
+      service.createVault(pVaultName);
+      vaultCache.invalidate(pVaultName);
+      return null;
+    });
+  }
+
+  /**
+   * Deletes an empty vault
+   * @param pVaultName
+   * @return
+   */
+  public CompletableFuture<Void> deleteVault(final String pVaultName) {
+    return submit(() -> {
+      service.deleteVault(pVaultName);
+      vaultCache.invalidate(pVaultName);
+      return null;
+    });
+  }
+
+  /**
+   * Describes a vault, from the vault cache while it is recent enough
+   * @param pVaultName
+   * @return null if the vault does not exist
+   */
+  public CompletableFuture<DescribeVaultResult> describeVault(final String pVaultName) {
+    return submit(() -> vaultCache.get(pVaultName));
+  }
+
+  /**
+   * Uploads a file as a new archive, creating the vault if needed. Big files
+   * are uploaded in parts, and an interrupted upload resumes from the journal
+   * @param pVaultName
+   * @param pDescription
+   * @param pFile
+   * @return the new archive
+   */
+  public CompletableFuture<UploadedArchive> putArchive(final String pVaultName, final String pDescription, final File pFile) {
+    return submit(() -> {
+      if (!vaultCache.exists(pVaultName)) {
+        service.createVault(pVaultName);
+        vaultCache.invalidate(pVaultName);
+      }
+      return upload(pVaultName, pDescription, pFile);
+    });
+  }
+
+  /**
+   * Uploads a file to an existing vault, the way GlacierOperations.uploadArchive does
+   */
+  private UploadedArchive upload(String pVaultName, String pDescription, File pFile) throws IOException {
+    ArchiveUploader uploader = new ArchiveUploader(service, partSize, uploadThreads, hashCalculator, journalDirectory);
+    uploader.setMultipartThreshold(multipartThreshold);
+    if (compressUploads)
+      uploader.setCompression(compressThreads, compressLevel);
+    uploader.setCipher(encryptionKey == null ? null : new ArchiveCipher(encryptionKey, partSize));
+    return uploader.upload(pVaultName, pDescription, pFile);
+  }
+
+  /**
+   * Retrieves an archive into a local file, decrypting and decompressing it.
+   * A retrieval interrupted by a restart reuses its job and the ranges already
+   * downloaded. No thread is held while the job runs
+   * @param pVaultName
+   * @param pArchiveId
+   * @param pTarget
+   * @return the target file
+   */
+  public CompletableFuture<File> getArchive(final String pVaultName, final String pArchiveId, final File pTarget) {
+    final RetrievalState state;
+    try {
+      state = RetrievalState.open(pTarget);
+    } catch (IOException e) {
+      CompletableFuture<File> failed = new CompletableFuture<File>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+    CompletableFuture<File> result = submit(() -> {
+      String jobId = state.getJobId(pArchiveId);
+      if (jobId != null) {
+        try {
+          DescribeJobResult job = service.describeJob(pVaultName, jobId);
+          if (!"Failed".equals(job.getStatusCode()))
+            return jobId;
+        } catch (ResourceNotFoundException e) {
+          LOG.info("Retrieval job " + jobId + " has expired.");
+        }
+      }
+      jobId = jobTracker.initiateArchiveRetrieval(pVaultName, pArchiveId);
+      state.recordJob(pArchiveId, jobId);
+      return jobId;
+    }).thenCompose(pJobId -> jobTracker.track(pVaultName, pJobId))
+      .thenApplyAsync(pJob -> call(() -> {
+        if (!"Succeeded".equals(pJob.getStatusCode()))
+          throw new GlacierException("Retrieval job " + pJob.getJobId() + " did not complete successfully.");
+        RangedDownloader downloader = new RangedDownloader(service, rangeSize, downloadThreads);
+        downloader.setRetryPolicy(retryPolicy);
+        String description = downloader.download(pVaultName, pJob.getJobId(), pJob.getArchiveSizeInBytes(),
+                                                 pJob.getSHA256TreeHash(), pTarget, state);
+        state.delete();
+        GlacierOperations.decodeArchive(pTarget, description, encryptionKey, decompressDownloads);
+        return pTarget;
+      }), executor);
+    result.whenComplete((pFile, pError) -> {
+      try {
+        state.close();
+      } catch (IOException e) {
+        LOG.warn("Unable to close retrieval state of " + pTarget + ": " + e.getMessage());
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Deletes an archive
+   * @param pVaultName
+   * @param pArchiveId
+   * @return
+   */
+  public CompletableFuture<Void> deleteArchive(final String pVaultName, final String pArchiveId) {
+    return submit(() -> {
+      service.deleteArchive(pVaultName, pArchiveId);
+      return null;
+    });
+  }
+
+  /**
+   * Retrieves the inventory of a vault into a local catalog. No thread is held while the job runs
+   * @param pVaultName
+   * @param pCatalogFile file receiving the catalog, replaced if it exists
+   * @return
+   */
+  public CompletableFuture<ArchiveCatalog> list(final String pVaultName, final File pCatalogFile) {
+    return submit(() -> jobTracker.initiateInventoryRetrieval(pVaultName))
+      .thenCompose(pJobId -> jobTracker.track(pVaultName, pJobId))
+      .thenApplyAsync(pJob -> call(() -> {
+        if (!"Succeeded".equals(pJob.getStatusCode()))
+          throw new GlacierException("Inventory job " + pJob.getJobId() + " did not complete successfully.");
+        GetJobOutputResult output = service.getJobOutput(pVaultName, pJob.getJobId(), 0, pJob.getInventorySizeInBytes() - 1);
+        InputStream in = output.getBody();
+        try {
+          return ArchiveCatalog.build(pCatalogFile, in);
+        } finally {
+          in.close();
+        }
+      }), executor);
+  }
+
+  /**
+   * Stops tracking jobs and shuts the default executor down. Jobs still
+   * pending are picked up by the next instance using the same state file
+   */
+  @Override
+  public void close() {
+    jobTracker.close();
+    if (ownedExecutor != null)
+      ownedExecutor.shutdown();
+  }
+}
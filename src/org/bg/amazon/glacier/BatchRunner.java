@@ -0,0 +1,236 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a manifest of operations in one process. The manifest has one
+ * operation per line, "op_name vault_name [file_name]" as in daemon mode,
+ * and blank lines or lines starting with # are ignored. Operations run
+ * concurrently unless they conflict, conflicting operations running in
+ * manifest order:
+ * <ul>
+ * <li>operations on the same vault and file conflict</li>
+ * <li>operations on a whole vault, such as create, deleteVault or
+ * deleteArchives, conflict with every operation on the vault</li>
+ * </ul>
+ * An operation whose dependency did not succeed is skipped. The result of
+ * every operation is written to the report as a line of JSON.
+ */
+public class BatchRunner {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(BatchRunner.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * Operations on the whole of a vault rather than on one of its files
+   */
+  private static final Set<String> VAULT_OPERATIONS = new HashSet<String>(Arrays.asList(
+      "create", "deleteVault", "listVault", "deleteArchives", "restoreArchives"));
+
+  private final int threads;
+
+  /**
+   * Operation of the manifest and its result
+   */
+  private static class Item {
+    final int line;
+    final String text;
+    final String opName;
+    final String vaultName;
+    final String fileName;
+    String status;
+    long millis;
+
+    Item(int pLine, String pText, String pOpName, String pVaultName, String pFileName) {
+      line = pLine;
+      text = pText;
+      opName = pOpName;
+      vaultName = pVaultName;
+      fileName = pFileName;
+    }
+  }
+
+  /**
+   * Constructor for the BatchRunner class
+   * @param pThreads operations run at the same time
+   */
+  public BatchRunner(int pThreads) {
+    threads = pThreads;
+  }
+
+  /**
+   * Runs every operation of a manifest and writes the report
+   * @param pManifest
+   * @param pReport file receiving one JSON line per operation
+   * @return true if every operation succeeded
+   * @throws IOException
+   */
+  public boolean run(File pManifest, File pReport) throws IOException {
+    List<Item> items = read(pManifest);
+    final AtomicInteger count = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-batch-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final OutputStream report = new FileOutputStream(pReport);
+    try {
+      /** Last operation on the whole of each vault, and the last one on each file since then */
+      Map<String, CompletableFuture<Item>> lastOnVault = new HashMap<String, CompletableFuture<Item>>();
+      Map<String, Map<String, CompletableFuture<Item>>> lastOnFile = new HashMap<String, Map<String, CompletableFuture<Item>>>();
+      List<CompletableFuture<Item>> all = new ArrayList<CompletableFuture<Item>>();
+
+      for (Item item : items) {
+        if (!lastOnFile.containsKey(item.vaultName))
+          lastOnFile.put(item.vaultName, new HashMap<String, CompletableFuture<Item>>());
+        Map<String, CompletableFuture<Item>> files = lastOnFile.get(item.vaultName);
+        List<CompletableFuture<Item>> dependencies = new ArrayList<CompletableFuture<Item>>();
+        if (VAULT_OPERATIONS.contains(item.opName)) {
+          if (lastOnVault.containsKey(item.vaultName))
+            dependencies.add(lastOnVault.get(item.vaultName));
+          dependencies.addAll(files.values());
+          CompletableFuture<Item> future = schedule(item, dependencies, executor, report);
+          lastOnVault.put(item.vaultName, future);
+          files.clear();
+          all.add(future);
+        } else {
+          if (files.containsKey(item.fileName))
+            dependencies.add(files.get(item.fileName));
+          else if (lastOnVault.containsKey(item.vaultName))
+            dependencies.add(lastOnVault.get(item.vaultName));
+          CompletableFuture<Item> future = schedule(item, dependencies, executor, report);
+          files.put(item.fileName, future);
+          all.add(future);
+        }
+      }
+
+      CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[all.size()])).join();
+      int succeeded = 0, failed = 0, skipped = 0;
+      for (Item item : items) {
+        if (item.status.equals("OK"))
+          succeeded++;
+        else if (item.status.equals("SKIPPED"))
+          skipped++;
+        else
+          failed++;
+      }
+      LOG.info("Batch " + pManifest + ": " + succeeded + " succeeded, " + failed + " failed, " + skipped
+               + " skipped. Report written to " + pReport);
+      return failed == 0 && skipped == 0;
+    } finally {
+      executor.shutdown();
+      report.close();
+    }
+  }
+
+  /**
+   * Runs an operation once its dependencies are done, or skips it if one of them did not succeed
+   * @param pItem
+   * @param pDependencies
+   * @param pExecutor
+   * @param pReport
+   * @return
+   */
+  private CompletableFuture<Item> schedule(final Item pItem, final List<CompletableFuture<Item>> pDependencies,
+                                           ExecutorService pExecutor, final OutputStream pReport) {
+    return CompletableFuture.allOf(pDependencies.toArray(new CompletableFuture<?>[pDependencies.size()]))
+        .thenApplyAsync(unused -> {
+          String blocker = null;
+          for (CompletableFuture<Item> dependency : pDependencies) {
+            Item done = dependency.join();
+            if (!done.status.equals("OK"))
+              blocker = "line " + done.line + " " + done.status;
+          }
+          long start = System.currentTimeMillis();
+          String result = blocker == null ? GlacierDaemon.run(pItem.text) : "SKIPPED after " + blocker;
+          pItem.millis = System.currentTimeMillis() - start;
+          pItem.status = result.split(" ")[0];
+          report(pItem, result.equals(pItem.status) ? null : result.substring(pItem.status.length() + 1), pReport);
+          return pItem;
+        }, pExecutor);
+  }
+
+  /**
+   * Appends the result of an operation to the report
+   * @param pItem
+   * @param pMessage
+   * @param pReport
+   */
+  private static void report(Item pItem, String pMessage, OutputStream pReport) {
+    Map<String, Object> entry = new LinkedHashMap<String, Object>();
+    entry.put("line", pItem.line);
+    entry.put("op", pItem.opName);
+    entry.put("vault", pItem.vaultName);
+    entry.put("file", pItem.fileName);
+    entry.put("status", pItem.status);
+    entry.put("message", pMessage);
+    entry.put("millis", pItem.millis);
+    try {
+      byte[] line = MAPPER.writeValueAsBytes(entry);
+      synchronized (pReport) {
+        pReport.write(line);
+        pReport.write('\n');
+        pReport.flush();
+      }
+    } catch (IOException e) {
+      LOG.error("Unable to write report entry for line " + pItem.line + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads the operations of a manifest
+   * @param pManifest
+   * @return
+   * @throws IOException
+   */
+  private static List<Item> read(File pManifest) throws IOException {
+    List<Item> items = new ArrayList<Item>();
+    BufferedReader in = new BufferedReader(new FileReader(pManifest));
+    try {
+      String line;
+      int number = 0;
+      while ((line = in.readLine()) != null) {
+        number++;
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+          continue;
+        String[] fields = line.split("\\s+", 3);
+        if (fields.length < 2)
+          throw new GlacierException("Line " + number + " of " + pManifest + ": expected op_name vault_name [file_name]");
+        items.add(new Item(number, line, fields[0], fields[1], fields.length > 2 ? fields[2] : ""));
+      }
+    } finally {
+      in.close();
+    }
+    return items;
+  }
+}
@@ -0,0 +1,365 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+
+/**
+ * Deletes the archives of a vault picked from its catalog by an ArchiveFilter, or
+ * listed in a file, on several threads and at a capped rate. Archives are
+ * taken in a fixed order, creation date for a catalog, and the journal
+ * records how far every archive before a position is done, so a run that
+ * stops resumes there. Deletes are idempotent: an archive already gone when
+ * it is deleted again counts as deleted. Archives failing to be deleted are
+ * listed in a file which can be given to a later run.
+ */
+public class BulkDeleter {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(BulkDeleter.class);
+
+  /**
+   * Deletes done between two checkpoints of the journal
+   */
+  private static final int CHECKPOINT_INTERVAL = 1000;
+
+  private final GlacierService service;
+  private final String vaultName;
+  private final int threads;
+  private final TransferController controller;
+  private final File journalFile;
+  private boolean dryRun;
+
+  /**
+   * Set once no more deletes should start, those queued are then left pending
+   */
+  private volatile boolean stopped;
+
+  /**
+   * Outcome of a run
+   */
+  public static class Summary {
+    final AtomicLong scanned = new AtomicLong();
+    final AtomicLong matched = new AtomicLong();
+    final AtomicLong deleted = new AtomicLong();
+    final AtomicLong alreadyGone = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    long resumedAt;
+    long millis;
+
+    public long getMatched() {
+      return matched.get();
+    }
+
+    public long getDeleted() {
+      return deleted.get();
+    }
+
+    public long getFailed() {
+      return failed.get();
+    }
+
+    public long getBytes() {
+      return bytes.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d archives scanned from position %d, %d matched (%.1f GB), %d deleted, %d already gone,"
+                           + " %d failed in %d s (%.0f deletes/s)", scanned.get(), resumedAt, matched.get(),
+                           bytes.get() / (1024.0 * 1024 * 1024), deleted.get(), alreadyGone.get(), failed.get(),
+                           millis / 1000, (deleted.get() + alreadyGone.get()) * 1000.0 / Math.max(millis, 1));
+    }
+  }
+
+  /**
+   * Constructor for the BulkDeleter class
+   * @param pService service doing the deletes, retrying them as it sees fit
+   * @param pVaultName
+   * @param pThreads deletes in flight
+   * @param pRatePerSecond most deletes per second, 0 for no cap
+   * @param pJournalFile checkpoints of the run, removed once it completes
+   */
+  public BulkDeleter(GlacierService pService, String pVaultName, int pThreads, long pRatePerSecond, File pJournalFile) {
+    service = pService;
+    vaultName = pVaultName;
+    threads = pThreads;
+    /** Every delete is charged as one byte, so the rate cap is in deletes per second */
+    controller = new TransferController("deletes", pThreads, false);
+    controller.setRateLimit(pRatePerSecond);
+    journalFile = pJournalFile;
+  }
+
+  /**
+   * Counts the archives which would be deleted, and their size, without deleting them
+   * @param pDryRun
+   */
+  public void setDryRun(boolean pDryRun) {
+    dryRun = pDryRun;
+  }
+
+  /**
+   * Deletes the archives of a catalog matching a filter, oldest first
+   * @param pCatalog
+   * @param pFilter
+   * @return
+   * @throws IOException
+   */
+  public Summary delete(final ArchiveCatalog pCatalog, final ArchiveFilter pFilter) throws IOException {
+    Iterator<CatalogEntry> entries = new Iterator<CatalogEntry>() {
+      long next = 0;
+
+      @Override
+      public boolean hasNext() {
+        /** The catalog is in creation order, nothing is left once an archive is too recent */
+        return next < pCatalog.size() && pCatalog.getByCreationOrder(next).getCreationDate() < pFilter.getCreatedBefore();
+      }
+
+      @Override
+      public CatalogEntry next() {
+        if (!hasNext())
+          throw new NoSuchElementException();
+        return pCatalog.getByCreationOrder(next++);
+      }
+    };
+    return run(entries, pFilter, pCatalog.getFile().getCanonicalPath() + " " + pCatalog.size() + " " + pFilter);
+  }
+
+  /**
+   * Deletes the archives listed in a file, one id per line
+   * @param pIdFile
+   * @return
+   * @throws IOException
+   */
+  public Summary delete(File pIdFile) throws IOException {
+    final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(pIdFile), "UTF-8"));
+    try {
+      Iterator<CatalogEntry> entries = new Iterator<CatalogEntry>() {
+        String line;
+
+        @Override
+        public boolean hasNext() {
+          try {
+            while (line == null || line.trim().isEmpty()) {
+              if ((line = in.readLine()) == null)
+                return false;
+            }
+            return true;
+          } catch (IOException e) {
+            throw new GlacierException("Unable to read archive ids: " + e.getMessage(), e);
+          }
+        }
+
+        @Override
+        public CatalogEntry next() {
+          if (!hasNext())
+            throw new NoSuchElementException();
+          String archiveId = line.trim();
+          line = null;
+          return new CatalogEntry(archiveId, "", 0, 0, "");
+        }
+      };
+      return run(entries, new ArchiveFilter(), pIdFile.getCanonicalPath() + " " + pIdFile.length());
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Deletes the matching archives, resuming after the last checkpoint of the same source
+   * @param pEntries archives in a fixed order
+   * @param pFilter
+   * @param pSource identifies the archives and their order
+   * @return
+   * @throws IOException
+   */
+  private Summary run(Iterator<CatalogEntry> pEntries, ArchiveFilter pFilter, String pSource) throws IOException {
+    final Summary summary = new Summary();
+    stopped = false;
+    long start = System.currentTimeMillis();
+    File directory = journalFile.getAbsoluteFile().getParentFile();
+    if (!dryRun && !directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Unable to create " + directory);
+    long resumeAt = dryRun ? 0 : readCheckpoint(pSource);
+    summary.resumedAt = resumeAt;
+    if (resumeAt > 0)
+      LOG.info("Resuming deletes from " + vaultName + " at position " + resumeAt);
+
+    File failuresFile = new File(journalFile.getPath() + ".failed");
+    if (!dryRun) {
+      /** A resumed run keeps the ids which failed before it stopped, a new one retries them */
+      if (journalFile.exists())
+        summary.failed.addAndGet(AppendLog.readLines(failuresFile).size());
+      else
+        failuresFile.delete();
+    }
+    final AppendLog journal = dryRun ? null : new AppendLog(journalFile);
+    final AppendLog failures = dryRun ? null : new AppendLog(failuresFile);
+    if (journal != null && resumeAt == 0)
+      journal.append("source " + pSource);
+    final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<Long>();
+    final AtomicLong completed = new AtomicLong();
+    final Semaphore queued = new Semaphore(threads * 4);
+    final AtomicInteger count = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-delete-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    long position = 0;
+    try {
+      for (; pEntries.hasNext(); position++) {
+        final CatalogEntry entry = pEntries.next();
+        if (position < resumeAt)
+          continue;
+        summary.scanned.incrementAndGet();
+        if (!pFilter.matches(entry))
+          continue;
+        summary.matched.incrementAndGet();
+        summary.bytes.addAndGet(entry.getSize());
+        if (dryRun)
+          continue;
+        final long current = position;
+        pending.add(current);
+        queued.acquire();
+        executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              if (delete(entry, summary, failures))
+                pending.remove(current);
+            } finally {
+              queued.release();
+              if (completed.incrementAndGet() % CHECKPOINT_INTERVAL == 0)
+                checkpoint(journal, pending, current, summary);
+            }
+          }
+        });
+      }
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlacierException("Interrupted while deleting from " + vaultName, e);
+    } finally {
+      /** Lets the deletes in flight complete, with the interrupt cleared as it would close the journal */
+      stopped = true;
+      executor.shutdown();
+      boolean interrupted = Thread.interrupted();
+      try {
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+      if (journal != null)
+        checkpoint(journal, pending, position, summary);
+      if (interrupted)
+        Thread.currentThread().interrupt();
+      if (journal != null) {
+        journal.close();
+        failures.close();
+      }
+    }
+    summary.millis = System.currentTimeMillis() - start;
+    if (journal != null) {
+      journal.delete();
+      if (summary.failed.get() == 0)
+        failures.delete();
+      else
+        LOG.warn(summary.failed.get() + " archives were not deleted, their ids are listed in " + failures.getFile());
+    }
+    LOG.info((dryRun ? "Dry run of deletes from " : "Deletes from ") + vaultName + ": " + summary);
+    return summary;
+  }
+
+  /**
+   * Deletes an archive once the rate cap lets it through
+   * @return false if the run stopped before the archive was done
+   */
+  private boolean delete(CatalogEntry pEntry, Summary pSummary, AppendLog pFailures) {
+    try {
+      controller.throttle(1);
+      if (stopped)
+        return false;
+      service.deleteArchive(vaultName, pEntry.getArchiveId());
+      pSummary.deleted.incrementAndGet();
+    } catch (ResourceNotFoundException e) {
+      pSummary.alreadyGone.incrementAndGet();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (RuntimeException e) {
+      pSummary.failed.incrementAndGet();
+      LOG.error("Unable to delete archive " + pEntry.getArchiveId() + ": " + e.getMessage());
+      try {
+        pFailures.append(pEntry.getArchiveId());
+      } catch (IOException ioe) {
+        LOG.error("Unable to record failed archive " + pEntry.getArchiveId() + ": " + ioe.getMessage());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Records the position before which every archive is done
+   * @param pJournal
+   * @param pPending positions of the deletes in flight
+   * @param pNext position following the last one handed out
+   * @param pSummary
+   */
+  private static void checkpoint(AppendLog pJournal, ConcurrentSkipListSet<Long> pPending, long pNext, Summary pSummary) {
+    Long first = pPending.isEmpty() ? null : pPending.first();
+    try {
+      pJournal.append("done " + (first == null ? pNext : Math.min(first, pNext)) + " " + pSummary.deleted.get());
+    } catch (IOException e) {
+      LOG.warn("Unable to checkpoint deletes: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the position to resume at, 0 if the journal is of another source
+   * @param pSource
+   * @return
+   * @throws IOException
+   */
+  private long readCheckpoint(String pSource) throws IOException {
+    List<String> lines = AppendLog.readLines(journalFile);
+    if (lines.isEmpty())
+      return 0;
+    if (!lines.get(0).equals("source " + pSource)) {
+      LOG.warn("Discarding the journal of deletes from another source: " + lines.get(0));
+      journalFile.delete();
+      return 0;
+    }
+    long position = 0;
+    for (String line : lines) {
+      if (line.startsWith("done "))
+        position = Long.parseLong(line.split(" ")[1]);
+    }
+    return position;
+  }
+}
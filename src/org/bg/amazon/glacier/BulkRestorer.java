@@ -0,0 +1,330 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+
+/**
+ * Restores many archives of a vault at once. The retrieval jobs of all the
+ * archives are initiated first, at a capped rate, and the output of every job
+ * is downloaded as soon as it completes, a few archives at a time, so the
+ * restore takes about the time of one job plus the transfers. Every archive
+ * resumes on its own through its RetrievalState, and the journal lists the
+ * archives already restored, so a run that stops neither initiates their jobs
+ * again nor downloads them again.
+ */
+public class BulkRestorer {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(BulkRestorer.class);
+
+  private final GlacierService service;
+  private final JobTracker jobTracker;
+  private final String vaultName;
+  private final File targetDirectory;
+  private final int threads;
+  private final TransferController initiations;
+  private final File journalFile;
+
+  private long rangeSize = RangedDownloader.DEFAULT_RANGE_SIZE;
+  private int rangeThreads = 4;
+  private RetryPolicy retryPolicy = RetryPolicy.NONE;
+  private byte[] encryptionKey;
+  private boolean decompress = true;
+
+  /**
+   * Outcome of a run
+   */
+  public static class Summary {
+    final AtomicLong selected = new AtomicLong();
+    final AtomicLong alreadyRestored = new AtomicLong();
+    final AtomicLong initiated = new AtomicLong();
+    final AtomicLong reused = new AtomicLong();
+    final AtomicLong restored = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    long millis;
+
+    public long getRestored() {
+      return restored.get();
+    }
+
+    public long getFailed() {
+      return failed.get();
+    }
+
+    public long getBytes() {
+      return bytes.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d archives selected, %d already restored, %d jobs initiated and %d reused, %d restored"
+                           + " (%.1f GB), %d failed in %d s", selected.get(), alreadyRestored.get(), initiated.get(),
+                           reused.get(), restored.get(), bytes.get() / (1024.0 * 1024 * 1024), failed.get(), millis / 1000);
+    }
+  }
+
+  /**
+   * Constructor for the BulkRestorer class
+   * @param pService service retrieving the archives
+   * @param pJobTracker tracker notified of the completed jobs
+   * @param pVaultName
+   * @param pTargetDirectory directory receiving the archives
+   * @param pThreads archives downloaded at the same time
+   * @param pJobsPerSecond most jobs initiated per second, 0 for no cap
+   * @param pJournalFile archives already restored, removed once every archive is
+   */
+  public BulkRestorer(GlacierService pService, JobTracker pJobTracker, String pVaultName, File pTargetDirectory,
+                      int pThreads, long pJobsPerSecond, File pJournalFile) {
+    service = pService;
+    jobTracker = pJobTracker;
+    vaultName = pVaultName;
+    targetDirectory = pTargetDirectory;
+    threads = pThreads;
+    /** Every job is charged as one byte, so the rate cap is in jobs per second */
+    initiations = new TransferController("retrievals", 1, false);
+    initiations.setRateLimit(pJobsPerSecond);
+    journalFile = pJournalFile;
+  }
+
+  /**
+   * Sets how every archive is downloaded
+   * @param pRangeSize
+   * @param pRangeThreads ranges of one archive downloaded at the same time
+   */
+  public void setRanges(long pRangeSize, int pRangeThreads) {
+    rangeSize = pRangeSize;
+    rangeThreads = pRangeThreads;
+  }
+
+  public void setRetryPolicy(RetryPolicy pPolicy) {
+    retryPolicy = pPolicy;
+  }
+
+  /**
+   * Sets how the restored archives are decoded
+   * @param pKey key decrypting encrypted archives, null if none is configured
+   * @param pDecompress false to keep compressed archives as they are
+   */
+  public void setDecoding(byte[] pKey, boolean pDecompress) {
+    encryptionKey = pKey;
+    decompress = pDecompress;
+  }
+
+  /**
+   * Restores archives into the target directory, named after their description
+   * or, when it has none, their id
+   * @param pEntries
+   * @return
+   * @throws IOException
+   */
+  public Summary restore(List<CatalogEntry> pEntries) throws IOException {
+    final Summary summary = new Summary();
+    long start = System.currentTimeMillis();
+    File directory = journalFile.getAbsoluteFile().getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Unable to create " + directory);
+    Set<String> done = new HashSet<String>();
+    for (String line : AppendLog.readLines(journalFile)) {
+      if (line.startsWith("done "))
+        done.add(line.substring(5));
+    }
+    final AppendLog journal = new AppendLog(journalFile);
+    final AtomicInteger count = new AtomicInteger();
+    ExecutorService downloads = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-restore-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final int total = pEntries.size();
+    List<CompletableFuture<Void>> restores = new ArrayList<CompletableFuture<Void>>();
+    Map<String, File> targets = getTargets(pEntries);
+    try {
+      for (final CatalogEntry entry : pEntries) {
+        summary.selected.incrementAndGet();
+        final File target = targets.get(entry.getArchiveId());
+        if (done.contains(entry.getArchiveId())) {
+          summary.alreadyRestored.incrementAndGet();
+          continue;
+        }
+        String jobId;
+        try {
+          jobId = startJob(entry, target, summary);
+        } catch (IOException | RuntimeException e) {
+          summary.failed.incrementAndGet();
+          LOG.error("Unable to initiate retrieval of archive " + entry.getArchiveId() + ": " + e.getMessage());
+          continue;
+        }
+        restores.add(jobTracker.track(vaultName, jobId)
+            .thenAcceptAsync(pJob -> download(entry, pJob, target, journal, summary), downloads)
+            .whenComplete((pResult, pError) -> {
+              if (pError == null) {
+                LOG.info("Restored " + (summary.restored.get() + summary.alreadyRestored.get()) + " of " + total
+                         + " archives, " + target + " last");
+                return;
+              }
+              summary.failed.incrementAndGet();
+              Throwable cause = pError.getCause() == null ? pError : pError.getCause();
+              LOG.error("Unable to restore archive " + entry.getArchiveId() + ": " + cause.getMessage());
+            }));
+      }
+      LOG.info(summary.initiated.get() + " retrieval jobs initiated and " + summary.reused.get()
+               + " reused, downloading their output as they complete");
+      for (CompletableFuture<Void> restore : restores) {
+        try {
+          restore.get();
+        } catch (ExecutionException e) {
+          /** Counted and logged as the restore completed */
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlacierException("Interrupted while restoring from " + vaultName, e);
+    } finally {
+      downloads.shutdownNow();
+      journal.close();
+    }
+    summary.millis = System.currentTimeMillis() - start;
+    if (summary.failed.get() == 0)
+      journal.delete();
+    LOG.info("Restore from " + vaultName + " to " + targetDirectory + ": " + summary);
+    return summary;
+  }
+
+  /**
+   * Returns the job retrieving an archive, reusing the one recorded by a
+   * previous run while it is still available
+   */
+  private String startJob(CatalogEntry pEntry, File pTarget, Summary pSummary) throws IOException {
+    File directory = pTarget.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Unable to create " + directory);
+    RetrievalState state = RetrievalState.open(pTarget);
+    try {
+      String jobId = state.getJobId(pEntry.getArchiveId());
+      if (jobId != null) {
+        try {
+          DescribeJobResult job = service.describeJob(vaultName, jobId);
+          if (!"Failed".equals(job.getStatusCode())) {
+            pSummary.reused.incrementAndGet();
+            return jobId;
+          }
+        } catch (ResourceNotFoundException e) {
+          LOG.info("Retrieval job " + jobId + " has expired.");
+        }
+      }
+      try {
+        initiations.throttle(1);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new GlacierException("Interrupted while initiating retrievals from " + vaultName, e);
+      }
+      jobId = jobTracker.initiateArchiveRetrieval(vaultName, pEntry.getArchiveId());
+      state.recordJob(pEntry.getArchiveId(), jobId);
+      pSummary.initiated.incrementAndGet();
+      return jobId;
+    } finally {
+      state.close();
+    }
+  }
+
+  /**
+   * Downloads the output of a completed job and decodes it
+   */
+  private void download(CatalogEntry pEntry, DescribeJobResult pJob, File pTarget, AppendLog pJournal, Summary pSummary) {
+    if (!"Succeeded".equals(pJob.getStatusCode()))
+      throw new GlacierException("Retrieval job " + pJob.getJobId() + " did not complete successfully.");
+    try {
+      RetrievalState state = RetrievalState.open(pTarget);
+      String description;
+      try {
+        RangedDownloader downloader = new RangedDownloader(service, rangeSize, rangeThreads);
+        downloader.setRetryPolicy(retryPolicy);
+        description = downloader.download(vaultName, pJob.getJobId(), pJob.getArchiveSizeInBytes(), pJob.getSHA256TreeHash(),
+                                          pTarget, state);
+        state.delete();
+        state = null;
+      } finally {
+        if (state != null)
+          state.close();
+      }
+      GlacierOperations.decodeArchive(pTarget, description, encryptionKey, decompress);
+      pJournal.append("done " + pEntry.getArchiveId());
+    } catch (IOException e) {
+      throw new GlacierException("Unable to restore " + pTarget + ": " + e.getMessage(), e);
+    }
+    pSummary.restored.incrementAndGet();
+    pSummary.bytes.addAndGet(pJob.getArchiveSizeInBytes());
+  }
+
+  /**
+   * Returns the files receiving the archives by archive id. The newest archive
+   * of a name gets it, the older ones are suffixed with their id
+   * @param pEntries
+   * @return
+   */
+  private Map<String, File> getTargets(List<CatalogEntry> pEntries) {
+    List<CatalogEntry> newestFirst = new ArrayList<CatalogEntry>(pEntries);
+    Collections.sort(newestFirst, new Comparator<CatalogEntry>() {
+      @Override
+      public int compare(CatalogEntry pFirst, CatalogEntry pSecond) {
+        return Long.compare(pSecond.getCreationDate(), pFirst.getCreationDate());
+      }
+    });
+    Map<String, File> targets = new HashMap<String, File>();
+    Set<String> names = new HashSet<String>();
+    for (CatalogEntry entry : newestFirst)
+      targets.put(entry.getArchiveId(), getTarget(entry, names));
+    return targets;
+  }
+
+  /**
+   * Returns the file receiving an archive. Descriptions lose their upload date
+   * and are kept to their letters, digits and . _ - / characters, and an
+   * archive whose name is taken is suffixed with its id
+   * @param pEntry
+   * @param pNames names already given
+   * @return
+   */
+  private File getTarget(CatalogEntry pEntry, Set<String> pNames) {
+    StringBuilder name = new StringBuilder();
+    for (String segment : GlacierOperations.getArchiveName(pEntry.getDescription()).replaceAll("[^A-Za-z0-9._/-]", "_").split("/")) {
+      if (segment.isEmpty() || segment.equals(".") || segment.equals(".."))
+        continue;
+      if (name.length() > 0)
+        name.append('/');
+      name.append(segment);
+    }
+    if (name.length() == 0)
+      name.append(pEntry.getArchiveId());
+    else if (!pNames.add(name.toString()))
+      name.append('.').append(pEntry.getArchiveId());
+    return new File(targetDirectory, name.toString());
+  }
+}
@@ -0,0 +1,121 @@
+package org.bg.amazon.glacier;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+
+/**
+ * GlacierService telling a VaultCache to forget a vault whenever a call on it
+ * fails with ResourceNotFoundException, so that a vault deleted by another
+ * process or host is described again on the next lookup instead of looking
+ * present until its description expires. DescribeVault is left alone, as the
+ * cache records the vaults it finds missing.
+ */
+public class CacheInvalidatingGlacierService implements GlacierService {
+
+  private final GlacierService service;
+  private final Consumer<String> invalidate;
+
+  /**
+   * Constructor for the CacheInvalidatingGlacierService class
+   * @param pService service doing the calls
+   * @param pInvalidate called with the name of a vault to forget, e.g. VaultCache.invalidate
+   */
+  public CacheInvalidatingGlacierService(GlacierService pService, Consumer<String> pInvalidate) {
+    service = pService;
+    invalidate = pInvalidate;
+  }
+
+  /**
+   * Runs a call, forgetting its vault if it is not found
+   * @param pVaultName
+   * @param pAttempt
+   * @return
+   */
+  private <T> T call(String pVaultName, RetryPolicy.Attempt<T, RuntimeException> pAttempt) {
+    try {
+      return pAttempt.run();
+    } catch (ResourceNotFoundException e) {
+      invalidate.accept(pVaultName);
+      throw e;
+    }
+  }
+
+  @Override
+  public String initiateMultipartUpload(String pVaultName, String pDescription, long pPartSize) {
+    return call(pVaultName, () -> service.initiateMultipartUpload(pVaultName, pDescription, pPartSize));
+  }
+
+  @Override
+  public String uploadPart(String pVaultName, String pUploadId, long pOffset, ByteBuffer pBody, String pChecksum) {
+    return call(pVaultName, () -> service.uploadPart(pVaultName, pUploadId, pOffset, pBody, pChecksum));
+  }
+
+  @Override
+  public String completeMultipartUpload(String pVaultName, String pUploadId, long pArchiveSize, String pChecksum) {
+    return call(pVaultName, () -> service.completeMultipartUpload(pVaultName, pUploadId, pArchiveSize, pChecksum));
+  }
+
+  @Override
+  public void abortMultipartUpload(String pVaultName, String pUploadId) {
+    call(pVaultName, () -> {
+      service.abortMultipartUpload(pVaultName, pUploadId);
+      return null;
+    });
+  }
+
+  @Override
+  public String uploadArchive(String pVaultName, String pDescription, ByteBuffer pBody, String pChecksum) {
+    return call(pVaultName, () -> service.uploadArchive(pVaultName, pDescription, pBody, pChecksum));
+  }
+
+  @Override
+  public void createVault(String pVaultName) {
+    service.createVault(pVaultName);
+  }
+
+  @Override
+  public void deleteVault(String pVaultName) {
+    call(pVaultName, () -> {
+      service.deleteVault(pVaultName);
+      return null;
+    });
+  }
+
+  @Override
+  public DescribeVaultResult describeVault(String pVaultName) {
+    return service.describeVault(pVaultName);
+  }
+
+  @Override
+  public void deleteArchive(String pVaultName, String pArchiveId) {
+    call(pVaultName, () -> {
+      service.deleteArchive(pVaultName, pArchiveId);
+      return null;
+    });
+  }
+
+  @Override
+  public String initiateArchiveRetrieval(String pVaultName, String pArchiveId, String pSnsTopic) {
+    return call(pVaultName, () -> service.initiateArchiveRetrieval(pVaultName, pArchiveId, pSnsTopic));
+  }
+
+  @Override
+  public String initiateInventoryRetrieval(String pVaultName, String pSnsTopic) {
+    return call(pVaultName, () -> service.initiateInventoryRetrieval(pVaultName, pSnsTopic));
+  }
+
+  @Override
+  public DescribeJobResult describeJob(String pVaultName, String pJobId) {
+    return call(pVaultName, () -> service.describeJob(pVaultName, pJobId));
+  }
+
+  @Override
+  public GetJobOutputResult getJobOutput(String pVaultName, String pJobId, long pStart, long pEnd) {
+    return call(pVaultName, () -> service.getJobOutput(pVaultName, pJobId, pStart, pEnd));
+  }
+}
@@ -0,0 +1,54 @@
+package org.bg.amazon.glacier;
+
+/**
+ * Archive as described by a vault inventory
+ */
+public class CatalogEntry {
+
+  private final String archiveId;
+  private final String description;
+  private final long creationDate;
+  private final long size;
+  private final String treeHash;
+
+  /**
+   * Constructor for the CatalogEntry class
+   * @param pArchiveId
+   * @param pDescription
+   * @param pCreationDate creation date in milliseconds since the epoch
+   * @param pSize size in bytes
+   * @param pTreeHash hex encoded tree hash
+   */
+  public CatalogEntry(String pArchiveId, String pDescription, long pCreationDate, long pSize, String pTreeHash) {
+    archiveId = pArchiveId;
+    description = pDescription;
+    creationDate = pCreationDate;
+    size = pSize;
+    treeHash = pTreeHash;
+  }
+
+  public String getArchiveId() {
+    return archiveId;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public long getCreationDate() {
+    return creationDate;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public String getTreeHash() {
+    return treeHash;
+  }
+
+  @Override
+  public String toString() {
+    return archiveId + " " + description + " " + size;
+  }
+}
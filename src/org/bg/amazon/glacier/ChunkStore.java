@@ -0,0 +1,308 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deduplicating store of content-defined chunks. Files are split by a
+ * ContentChunker, chunks already stored in the vault are referenced
+ * instead of uploaded, and new chunks are packed into pack archives. Every
+ * file version is described by a small manifest listing its chunks and
+ * where they are, kept locally and uploaded as an archive of its own.
+ */
+public class ChunkStore {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(ChunkStore.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * Suffix of the manifest files
+   */
+  public static final String MANIFEST_SUFFIX = ".manifest";
+
+  private final GlacierService service;
+  private final String vaultName;
+  private final File directory;
+  private final ContentChunker chunker;
+  private final int packSize;
+
+  /**
+   * Object encrypting packs and manifests, null to upload them as they are
+   */
+  private ArchiveCipher cipher;
+
+  /**
+   * Chunks already stored in the vault, by SHA-256
+   */
+  private final Map<String, ChunkLocation> chunks = new HashMap<String, ChunkLocation>();
+
+  /**
+   * Log persisting the chunk index
+   */
+  private final AppendLog log;
+
+  /**
+   * Pack being filled and the chunks it holds, by SHA-256
+   */
+  private final ByteArrayOutputStream pack = new ByteArrayOutputStream();
+  private final Map<String, Long> packChunks = new LinkedHashMap<String, Long>();
+
+  /**
+   * Location of a chunk in a pack archive
+   */
+  private static class ChunkLocation {
+    final String archiveId;
+    final long offset;
+    final long length;
+
+    ChunkLocation(String pArchiveId, long pOffset, long pLength) {
+      archiveId = pArchiveId;
+      offset = pOffset;
+      length = pLength;
+    }
+  }
+
+  /**
+   * Opens the chunk store of a vault
+   * @param pService service receiving the packs
+   * @param pVaultName vault holding the packs
+   * @param pDirectory directory holding the chunk index and the manifests
+   * @param pAverageChunkSize expected chunk size, a power of two
+   * @param pPackSize size at which a pack is uploaded
+   * @throws IOException
+   */
+  public ChunkStore(GlacierService pService, String pVaultName, File pDirectory, int pAverageChunkSize, int pPackSize)
+      throws IOException {
+    service = pService;
+    vaultName = pVaultName;
+    directory = pDirectory;
+    chunker = new ContentChunker(pAverageChunkSize);
+    packSize = pPackSize;
+    File manifests = new File(pDirectory, "manifests");
+    if (!manifests.isDirectory() && !manifests.mkdirs())
+      throw new IOException("Unable to create chunk store directory " + manifests);
+    File index = new File(pDirectory, pVaultName + ".chunks");
+    for (String line : AppendLog.readLines(index)) {
+      String[] fields = line.split(" ");
+      chunks.put(fields[0], new ChunkLocation(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+    }
+    log = new AppendLog(index);
+  }
+
+  /**
+   * Encrypts the packs and manifests uploaded from now on
+   * @param pCipher
+   */
+  public void setCipher(ArchiveCipher pCipher) {
+    cipher = pCipher;
+  }
+
+  /**
+   * Stores a new version of a file, uploading only the chunks the vault does not hold yet
+   * @param pFile file to store
+   * @return manifest of the stored version
+   * @throws IOException
+   */
+  public File put(File pFile) throws IOException {
+    final List<String> hashes = new ArrayList<String>();
+    final long[] counters = new long[2];
+    final MessageDigest digest = TreeHash.digest();
+    long lastModified = pFile.lastModified();
+    InputStream in = new BufferedInputStream(new FileInputStream(pFile), 1 << 20);
+    try {
+      chunker.split(in, new ContentChunker.Handler() {
+        @Override
+        public void chunk(byte[] pData, int pOffset, int pLength) throws IOException {
+          digest.update(pData, pOffset, pLength);
+          String hash = TreeHash.toHex(digest.digest());
+          hashes.add(hash);
+          counters[0] += pLength;
+          if (!chunks.containsKey(hash) && !packChunks.containsKey(hash)) {
+            packChunks.put(hash, Long.valueOf(pack.size()));
+            pack.write(pData, pOffset, pLength);
+            counters[1] += pLength;
+            if (pack.size() >= packSize)
+              flush();
+          }
+        }
+      });
+    } finally {
+      in.close();
+    }
+    flush();
+
+    List<Map<String, Object>> chunkList = new ArrayList<Map<String, Object>>(hashes.size());
+    for (String hash : hashes) {
+      ChunkLocation location = chunks.get(hash);
+      Map<String, Object> chunk = new LinkedHashMap<String, Object>();
+      chunk.put("sha256", hash);
+      chunk.put("archiveId", location.archiveId);
+      chunk.put("offset", location.offset);
+      chunk.put("length", location.length);
+      chunkList.add(chunk);
+    }
+    Map<String, Object> manifest = new LinkedHashMap<String, Object>();
+    manifest.put("vault", vaultName);
+    manifest.put("path", pFile.getCanonicalPath());
+    manifest.put("size", counters[0]);
+    manifest.put("lastModified", lastModified);
+    manifest.put("created", System.currentTimeMillis());
+    manifest.put("chunks", chunkList);
+    byte[] content = MAPPER.writeValueAsBytes(manifest);
+
+    File manifestFile = new File(new File(directory, "manifests"), pFile.getName() + "." + System.currentTimeMillis() + MANIFEST_SUFFIX);
+    OutputStream out = new FileOutputStream(manifestFile);
+    try {
+      out.write(content);
+    } finally {
+      out.close();
+    }
+    ByteBuffer body = cipher == null ? ByteBuffer.wrap(content) : cipher.encrypt(ByteBuffer.wrap(content));
+    String description = ArchiveEncoding.describe("manifest-" + pFile.getName() + (new Date()), false, cipher != null);
+    String manifestId = service.uploadArchive(vaultName, description, body, TreeHash.toHex(TreeHash.compute(body)));
+    LOG.info("Stored " + pFile + " as " + hashes.size() + " chunks, uploading " + counters[1] + " of " + counters[0]
+             + " bytes. Manifest " + manifestFile + " uploaded as archive " + manifestId);
+    return manifestFile;
+  }
+
+  /**
+   * Uploads the pack being filled, if any, and indexes its chunks
+   * @throws IOException
+   */
+  private void flush() throws IOException {
+    if (packChunks.isEmpty())
+      return;
+    byte[] content = pack.toByteArray();
+    ByteBuffer body = cipher == null ? ByteBuffer.wrap(content) : cipher.encrypt(ByteBuffer.wrap(content));
+    String archiveId = service.uploadArchive(vaultName, ArchiveEncoding.describe("chunk-pack-" + (new Date()), false, cipher != null),
+                                             body, TreeHash.toHex(TreeHash.compute(body)));
+    List<String> hashes = new ArrayList<String>(packChunks.keySet());
+    for (int i = 0; i < hashes.size(); i++) {
+      long offset = packChunks.get(hashes.get(i));
+      long end = i + 1 < hashes.size() ? packChunks.get(hashes.get(i + 1)) : content.length;
+      log.append(hashes.get(i) + " " + archiveId + " " + offset + " " + (end - offset));
+      chunks.put(hashes.get(i), new ChunkLocation(archiveId, offset, end - offset));
+    }
+    LOG.info("Uploaded pack of " + hashes.size() + " chunks as archive " + archiveId);
+    pack.reset();
+    packChunks.clear();
+  }
+
+  /**
+   * Rebuilds a file version from its manifest. The retrieval of every pack it
+   * references is started at once, so that their jobs run at the same time,
+   * then the chunks are copied out of the packs and checked against their
+   * SHA-256.
+   * @param pManifest manifest of the version
+   * @param pTarget file receiving the version
+   * @param pRetriever object fetching a pack archive into a local file
+   * @throws IOException
+   */
+  public static void restore(File pManifest, File pTarget, PackRetriever pRetriever) throws IOException {
+    JsonNode manifest;
+    InputStream in = new FileInputStream(pManifest);
+    try {
+      manifest = MAPPER.readTree(in);
+    } finally {
+      in.close();
+    }
+    String vaultName = manifest.get("vault").getTextValue();
+    Map<String, CompletableFuture<File>> retrievals = new LinkedHashMap<String, CompletableFuture<File>>();
+    for (JsonNode chunk : manifest.get("chunks")) {
+      String archiveId = chunk.get("archiveId").getTextValue();
+      if (!retrievals.containsKey(archiveId))
+        retrievals.put(archiveId, pRetriever.retrieve(vaultName, archiveId));
+    }
+    LOG.info("Retrieving " + retrievals.size() + " packs of " + pTarget);
+    Map<String, File> packs = new HashMap<String, File>();
+    try {
+      for (Map.Entry<String, CompletableFuture<File>> retrieval : retrievals.entrySet())
+        packs.put(retrieval.getKey(), retrieval.getValue().get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while retrieving the packs of " + pTarget);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new GlacierException(e.getCause().getMessage(), e.getCause());
+    } finally {
+      for (CompletableFuture<File> retrieval : retrievals.values())
+        retrieval.cancel(false);
+    }
+
+    MessageDigest digest = TreeHash.digest();
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(pTarget), 1 << 20);
+    Map<String, RandomAccessFile> open = new HashMap<String, RandomAccessFile>();
+    try {
+      byte[] buffer = new byte[0];
+      for (JsonNode chunk : manifest.get("chunks")) {
+        String archiveId = chunk.get("archiveId").getTextValue();
+        RandomAccessFile pack = open.get(archiveId);
+        if (pack == null) {
+          pack = new RandomAccessFile(packs.get(archiveId), "r");
+          open.put(archiveId, pack);
+        }
+        int length = (int) chunk.get("length").getLongValue();
+        if (buffer.length < length)
+          buffer = new byte[length];
+        pack.seek(chunk.get("offset").getLongValue());
+        pack.readFully(buffer, 0, length);
+        digest.update(buffer, 0, length);
+        if (!Arrays.equals(digest.digest(), TreeHash.fromHex(chunk.get("sha256").getTextValue())))
+          throw new IOException("Chunk " + chunk.get("sha256").getTextValue() + " of pack " + archiveId + " is corrupted");
+        out.write(buffer, 0, length);
+      }
+    } finally {
+      out.close();
+      for (RandomAccessFile pack : open.values())
+        try {pack.close();}  catch (IOException e) {}
+    }
+    LOG.info("Restored " + pTarget + " from " + manifest.get("chunks").size() + " chunks in " + packs.size() + " packs");
+  }
+
+  /**
+   * Fetches pack archives into local files. The retrieval is started before
+   * retrieve returns, and the future completes once the pack is local
+   */
+  public interface PackRetriever {
+    CompletableFuture<File> retrieve(String pVaultName, String pArchiveId) throws IOException;
+  }
+
+  /**
+   * Releases the chunk index
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    log.close();
+  }
+}
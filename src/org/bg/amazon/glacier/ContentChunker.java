@@ -0,0 +1,98 @@
+package org.bg.amazon.glacier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks using a gear rolling hash.
+ * Boundaries depend only on the bytes around them, so an insertion or a
+ * deletion in a file only changes the chunks around it and the rest of
+ * the chunks can be deduplicated against a previous version.
+ */
+public class ContentChunker {
+
+  /**
+   * Receives the chunks of a stream
+   */
+  public interface Handler {
+    void chunk(byte[] pData, int pOffset, int pLength) throws IOException;
+  }
+
+  /**
+   * Random values mixed in for every byte, fixed so boundaries are stable across runs
+   */
+  private static final long[] GEAR = new long[256];
+  static {
+    Random random = new Random(0x476c6163696572L);
+    for (int i = 0; i < GEAR.length; i++)
+      GEAR[i] = random.nextLong();
+  }
+
+  private final int minSize;
+  private final int maxSize;
+  private final long mask;
+
+  /**
+   * Constructor for the ContentChunker class
+   * @param pAverageSize expected chunk size, a power of two; chunks are between a quarter and four times that size
+   */
+  public ContentChunker(int pAverageSize) {
+    if (pAverageSize < 1024 || Integer.bitCount(pAverageSize) != 1)
+      throw new GlacierException("Invalid average chunk size " + pAverageSize + ", it must be a power of two of at least 1KB.");
+    minSize = pAverageSize / 4;
+    maxSize = pAverageSize * 4;
+    // Matching on the top bits of the hash, the ones influenced by the most bytes
+    mask = -1L << (64 - Integer.numberOfTrailingZeros(pAverageSize));
+  }
+
+  /**
+   * Reads a stream to its end and hands its chunks to a handler
+   * @param pIn
+   * @param pHandler
+   * @throws IOException
+   */
+  public void split(InputStream pIn, Handler pHandler) throws IOException {
+    byte[] buffer = new byte[maxSize * 2];
+    int start = 0;
+    int end = 0;
+    boolean eof = false;
+    while (true) {
+      if (!eof && end - start < maxSize) {
+        System.arraycopy(buffer, start, buffer, 0, end - start);
+        end -= start;
+        start = 0;
+        while (end < buffer.length) {
+          int count = pIn.read(buffer, end, buffer.length - end);
+          if (count < 0) {
+            eof = true;
+            break;
+          }
+          end += count;
+        }
+      }
+      if (start == end)
+        return;
+      int length = boundary(buffer, start, end);
+      pHandler.chunk(buffer, start, length);
+      start += length;
+    }
+  }
+
+  /**
+   * Returns the length of the chunk starting at an offset
+   */
+  private int boundary(byte[] pBuffer, int pStart, int pEnd) {
+    int available = pEnd - pStart;
+    if (available <= minSize)
+      return available;
+    int limit = Math.min(available, maxSize);
+    long hash = 0;
+    for (int i = minSize; i < limit; i++) {
+      hash = (hash << 1) + GEAR[pBuffer[pStart + i] & 0xff];
+      if ((hash & mask) == 0)
+        return i + 1;
+    }
+    return limit;
+  }
+}
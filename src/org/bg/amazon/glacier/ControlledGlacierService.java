@@ -0,0 +1,317 @@
+package org.bg.amazon.glacier;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+
+/**
+ * GlacierService whose transfers go through a TransferController for each
+ * direction. Part and archive uploads hold a slot of the upload controller
+ * while they are sent, job outputs hold a slot of the download controller
+ * until their body is closed. Bodies are paced by their controller as they
+ * are read. Throttling and timeouts reduce the limit, and
+ * the failed transfer is left to a RetryingGlacierService wrapping this one,
+ * so that it waits for a slot again.
+ */
+public class ControlledGlacierService implements GlacierService {
+
+  /**
+   * Largest read charged at once, so that a capped rate stays smooth
+   */
+  private static final int MAX_READ = 64 * 1024;
+
+  /**
+   * Upload sent by each thread, the SDK sending the body on the calling thread
+   */
+  private static final ThreadLocal<PacedUpload> SENDING = new ThreadLocal<PacedUpload>();
+
+  private final GlacierService service;
+  private final TransferController uploads;
+  private final TransferController downloads;
+
+  /**
+   * Constructor for the ControlledGlacierService class
+   * @param pService service doing the calls
+   * @param pUploads controller of the part and archive uploads
+   * @param pDownloads controller of the job outputs
+   */
+  public ControlledGlacierService(GlacierService pService, TransferController pUploads, TransferController pDownloads) {
+    service = pService;
+    uploads = pUploads;
+    downloads = pDownloads;
+  }
+
+  /**
+   * Call sending a body through the upload controller
+   */
+  private interface Upload {
+    String send();
+  }
+
+  /**
+   * Sends a body once the upload controller gives it a slot, pacing it as it
+   * is read
+   * @param pBytes
+   * @param pUpload
+   * @return
+   */
+  private String upload(long pBytes, Upload pUpload) {
+    long waitStart = System.nanoTime();
+    try {
+      uploads.acquire();
+      recordWait("uploads", waitStart);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlacierException("Interrupted while waiting to upload", e);
+    }
+    PacedUpload upload = new PacedUpload();
+    SENDING.set(upload);
+    long start = System.nanoTime();
+    try {
+      String result = pUpload.send();
+      /** Services reading the buffer itself, like the local stand-in, are charged once done */
+      upload.charge(pBytes - upload.charged);
+      uploads.succeeded(pBytes, System.nanoTime() - start);
+      return result;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      GlacierException error = new GlacierException("Interrupted while uploading", e);
+      uploads.failed(error);
+      throw error;
+    } catch (RuntimeException e) {
+      uploads.failed(e);
+      throw e;
+    } finally {
+      SENDING.remove();
+    }
+  }
+
+  /**
+   * Wraps the stream of a body so that it is paced by the upload controller of
+   * the ControlledGlacierService sending it on this thread, if any
+   * @param pBody
+   * @return
+   */
+  static InputStream paced(InputStream pBody) {
+    PacedUpload upload = SENDING.get();
+    return upload == null ? pBody : new PacedInputStream(pBody, upload);
+  }
+
+  /**
+   * Bytes of an upload charged to the upload controller so far
+   */
+  private class PacedUpload {
+
+    private long charged;
+
+    void charge(long pBytes) throws InterruptedException {
+      if (pBytes <= 0)
+        return;
+      charged += pBytes;
+      uploads.throttle(pBytes);
+    }
+  }
+
+  /**
+   * Body of an upload, paced by the upload controller. The signer reads the
+   * body to hash it and resets it before it is sent, so only the reads
+   * following a reset go on the wire and are charged.
+   */
+  private static class PacedInputStream extends FilterInputStream {
+
+    private final PacedUpload upload;
+    private boolean sending;
+
+    PacedInputStream(InputStream pIn, PacedUpload pUpload) {
+      super(pIn);
+      upload = pUpload;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+      int count = super.read(pBuffer, pOffset, sending ? Math.min(pLength, MAX_READ) : pLength);
+      if (sending && count > 0) {
+        try {
+          upload.charge(count);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while uploading");
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+      super.reset();
+      sending = true;
+    }
+  }
+
+  private static void recordWait(String pDirection, long pStart) {
+    MetricsRegistry.DEFAULT.histogram("glacier_transfer_wait_seconds",
+        "Time transfers wait for a slot or for the rate cap", "direction", pDirection).recordSince(pStart);
+  }
+
+  @Override
+  public String uploadPart(final String pVaultName, final String pUploadId, final long pOffset, final ByteBuffer pBody,
+                           final String pChecksum) {
+    return upload(pBody.remaining(), new Upload() {
+      @Override
+      public String send() {
+        return service.uploadPart(pVaultName, pUploadId, pOffset, pBody, pChecksum);
+      }
+    });
+  }
+
+  @Override
+  public String uploadArchive(final String pVaultName, final String pDescription, final ByteBuffer pBody,
+                              final String pChecksum) {
+    return upload(pBody.remaining(), new Upload() {
+      @Override
+      public String send() {
+        return service.uploadArchive(pVaultName, pDescription, pBody, pChecksum);
+      }
+    });
+  }
+
+  @Override
+  public GetJobOutputResult getJobOutput(String pVaultName, String pJobId, long pStart, long pEnd) {
+    long waitStart = System.nanoTime();
+    try {
+      downloads.acquire();
+      recordWait("downloads", waitStart);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlacierException("Interrupted while waiting to download", e);
+    }
+    try {
+      GetJobOutputResult result = service.getJobOutput(pVaultName, pJobId, pStart, pEnd);
+      result.setBody(new ControlledInputStream(result.getBody(), System.nanoTime()));
+      return result;
+    } catch (RuntimeException e) {
+      downloads.failed(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Body of a job output, paced by the download controller and holding its
+   * slot until closed
+   */
+  private class ControlledInputStream extends FilterInputStream {
+
+    private final long start;
+    private long bytes;
+    private IOException error;
+    private boolean closed;
+
+    ControlledInputStream(InputStream pIn, long pStart) {
+      super(pIn);
+      start = pStart;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+      int count;
+      try {
+        count = super.read(pBuffer, pOffset, Math.min(pLength, MAX_READ));
+      } catch (IOException e) {
+        error = e;
+        throw e;
+      }
+      if (count > 0) {
+        bytes += count;
+        try {
+          downloads.throttle(count);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while downloading");
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed)
+        return;
+      closed = true;
+      try {
+        super.close();
+      } finally {
+        if (error == null)
+          downloads.succeeded(bytes, System.nanoTime() - start);
+        else
+          downloads.failed(error);
+      }
+    }
+  }
+
+  @Override
+  public String initiateMultipartUpload(String pVaultName, String pDescription, long pPartSize) {
+    return service.initiateMultipartUpload(pVaultName, pDescription, pPartSize);
+  }
+
+  @Override
+  public String completeMultipartUpload(String pVaultName, String pUploadId, long pArchiveSize, String pChecksum) {
+    return service.completeMultipartUpload(pVaultName, pUploadId, pArchiveSize, pChecksum);
+  }
+
+  @Override
+  public void abortMultipartUpload(String pVaultName, String pUploadId) {
+    service.abortMultipartUpload(pVaultName, pUploadId);
+  }
+
+  @Override
+  public void createVault(String pVaultName) {
+    service.createVault(pVaultName);
+  }
+
+  @Override
+  public void deleteVault(String pVaultName) {
+    service.deleteVault(pVaultName);
+  }
+
+  @Override
+  public DescribeVaultResult describeVault(String pVaultName) {
+    return service.describeVault(pVaultName);
+  }
+
+  @Override
+  public void deleteArchive(String pVaultName, String pArchiveId) {
+    service.deleteArchive(pVaultName, pArchiveId);
+  }
+
+  @Override
+  public String initiateArchiveRetrieval(String pVaultName, String pArchiveId, String pSnsTopic) {
+    return service.initiateArchiveRetrieval(pVaultName, pArchiveId, pSnsTopic);
+  }
+
+  @Override
+  public String initiateInventoryRetrieval(String pVaultName, String pSnsTopic) {
+    return service.initiateInventoryRetrieval(pVaultName, pSnsTopic);
+  }
+
+  @Override
+  public DescribeJobResult describeJob(String pVaultName, String pJobId) {
+    return service.describeJob(pVaultName, pJobId);
+  }
+}
@@ -0,0 +1,410 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Backs up a directory tree in a single process. Files are uploaded
+ * concurrently with bounded parallelism while the tree is still being
+ * walked, and small files are packed into bundle archives so millions of
+ * tiny files do not cost one request and one archive each. Files that did
+ * not change since their last upload are skipped.
+ *
+ * A bundle is the concatenation of its files followed by a JSON array
+ * describing them (path, offset and length) and the length of that array
+ * as an 8 byte big-endian number. Every file, bundled or not, is also
+ * written as one JSON line to a local index.
+ */
+public class DirectoryBackup {
+
+  /**
+   * Default size below which files are bundled
+   */
+  public static final long DEFAULT_SMALL_FILE_SIZE = 1024L * 1024;
+
+  /**
+   * Default size at which a bundle is uploaded
+   */
+  public static final long DEFAULT_BUNDLE_SIZE = 64L * 1024 * 1024;
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(DirectoryBackup.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  private final String vaultName;
+  private final int threads;
+  private final long smallFileSize;
+  private final long bundleSize;
+
+  /**
+   * Counters reported at the end of the backup
+   */
+  private final AtomicInteger uploaded = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicInteger bundles = new AtomicInteger();
+  private final AtomicInteger skipped = new AtomicInteger();
+
+  /**
+   * Local index of the uploaded files
+   */
+  private BufferedWriter index;
+
+  /**
+   * Lines of the index of the previous backup by path, copied forward for the
+   * files which are not uploaded again
+   */
+  private Map<String, String> previous;
+
+  /**
+   * Constructor for the DirectoryBackup class
+   * @param pVaultName vault receiving the files, it must exist
+   * @param pThreads number of files or bundles uploaded at the same time
+   * @param pSmallFileSize files smaller than this are bundled
+   * @param pBundleSize size at which a bundle is uploaded
+   */
+  public DirectoryBackup(String pVaultName, int pThreads, long pSmallFileSize, long pBundleSize) {
+    if (pThreads < 1)
+      throw new GlacierException("Invalid number of backup threads " + pThreads);
+    vaultName = pVaultName;
+    threads = pThreads;
+    smallFileSize = pSmallFileSize;
+    bundleSize = pBundleSize;
+  }
+
+  /**
+   * Uploads every regular file below a directory
+   * @param pRoot directory to back up
+   * @param pIndexFile local index receiving one JSON line per file
+   * @return true if every file was uploaded
+   * @throws IOException
+   */
+  public boolean backup(File pRoot, File pIndexFile) throws IOException {
+    return backup(pRoot, null, pIndexFile);
+  }
+
+  /**
+   * Uploads some files below a directory, e.g. the files found changed since
+   * the last backup, without walking the rest of the tree. Files which no
+   * longer exist are ignored
+   * @param pRoot directory being backed up
+   * @param pFiles files to upload, null for every regular file below pRoot
+   * @param pIndexFile local index, rewritten when the whole tree is backed up and appended to otherwise. The
+   *                   entries of the files which are unchanged or fail to upload are kept
+   * @return true if every file was uploaded
+   * @throws IOException
+   */
+  public boolean backup(File pRoot, Collection<Path> pFiles, File pIndexFile) throws IOException {
+    final Path root = pRoot.toPath();
+    final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(threads), new ThreadPoolExecutor.CallerRunsPolicy());
+    /** Appended entries replace the previous ones, so only a rewrite has to copy them */
+    previous = pFiles == null ? readIndex(pIndexFile) : new HashMap<String, String>();
+    File indexFile = pFiles == null ? new File(pIndexFile.getPath() + ".tmp") : pIndexFile;
+    index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, pFiles != null), "UTF-8"));
+    long start = System.currentTimeMillis();
+    try {
+      final Bundle[] bundle = {null};
+      SimpleFileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path pFile, BasicFileAttributes pAttrs) {
+          if (!pAttrs.isRegularFile())
+            return FileVisitResult.CONTINUE;
+          final String path = root.relativize(pFile).toString();
+          try {
+            if (GlacierOperations.findUnchanged(vaultName, pFile.toFile()) != null) {
+              keep(path);
+              skipped.incrementAndGet();
+              return FileVisitResult.CONTINUE;
+            }
+          } catch (IOException e) {
+            LOG.warn("Unable to check whether " + path + " changed: " + e.getMessage());
+          }
+          if (pAttrs.size() >= smallFileSize) {
+            final File file = pFile.toFile();
+            pool.execute(new Runnable() {
+              @Override
+              public void run() {
+                uploadFile(file, path);
+              }
+            });
+            return FileVisitResult.CONTINUE;
+          }
+          try {
+            if (bundle[0] == null)
+              bundle[0] = new Bundle();
+            bundle[0].add(pFile, path);
+            if (bundle[0].size() >= bundleSize) {
+              final Bundle full = bundle[0];
+              bundle[0] = null;
+              pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                  uploadBundle(full);
+                }
+              });
+            }
+          } catch (IOException e) {
+            LOG.error("Error bundling " + path + ": " + e.getMessage());
+            keepQuietly(path);
+            failed.incrementAndGet();
+          }
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path pFile, IOException pError) {
+          LOG.error("Error reading " + pFile + ": " + pError.getMessage());
+          keepQuietly(root.relativize(pFile).toString());
+          failed.incrementAndGet();
+          return FileVisitResult.CONTINUE;
+        }
+      };
+      if (pFiles == null)
+        Files.walkFileTree(root, visitor);
+      else {
+        for (Path file : pFiles) {
+          BasicFileAttributes attrs;
+          try {
+            attrs = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+          } catch (NoSuchFileException e) {
+            continue;
+          } catch (IOException e) {
+            visitor.visitFileFailed(file, e);
+            continue;
+          }
+          visitor.visitFile(file, attrs);
+        }
+      }
+      if (bundle[0] != null)
+        uploadBundle(bundle[0]);
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlacierException("Backup of " + pRoot + " was interrupted.");
+    } finally {
+      pool.shutdownNow();
+      index.close();
+    }
+    if (pFiles == null)
+      Files.move(indexFile.toPath(), pIndexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+    LOG.info("Backed up " + uploaded.get() + " files of " + pRoot + " using " + bundles.get() + " bundles in "
+             + (System.currentTimeMillis() - start) / 1000 + " seconds, " + skipped.get() + " unchanged, "
+             + failed.get() + " failed. Index: " + pIndexFile);
+    return failed.get() == 0;
+  }
+
+  /**
+   * Uploads a file as its own archive
+   * @param pFile
+   * @param pPath path relative to the backed up directory
+   */
+  private void uploadFile(File pFile, String pPath) {
+    try {
+      long size = pFile.length();
+      long lastModified = pFile.lastModified();
+      UploadedArchive archive = GlacierOperations.uploadArchive(vaultName, pPath + (new Date()), pFile);
+      record(pPath, size, lastModified, archive.getArchiveId(), 0, size, false);
+      GlacierOperations.recordFingerprint(vaultName, pFile, size, lastModified, archive.getContentTreeHash(), archive.getArchiveId());
+      uploaded.incrementAndGet();
+    } catch (Exception e) {
+      LOG.error("Error uploading " + pPath + ": " + e.getMessage());
+      keepQuietly(pPath);
+      failed.incrementAndGet();
+    }
+  }
+
+  /**
+   * Uploads a bundle and indexes the files it contains
+   * @param pBundle
+   */
+  private void uploadBundle(Bundle pBundle) {
+    try {
+      File file = pBundle.finish();
+      String archiveId = GlacierOperations.uploadArchive(vaultName, "bundle-" + bundles.incrementAndGet() + "-" + (new Date()), file)
+          .getArchiveId();
+      for (int i = 0; i < pBundle.entries.size(); i++) {
+        Map<String, Object> entry = pBundle.entries.get(i);
+        long length = (Long) entry.get("length");
+        long lastModified = (Long) entry.get("lastModified");
+        record((String) entry.get("path"), length, lastModified, archiveId, (Long) entry.get("offset"), length, true);
+        GlacierOperations.recordFingerprint(vaultName, pBundle.files.get(i), length, lastModified, pBundle.hashes.get(i), archiveId);
+        uploaded.incrementAndGet();
+      }
+    } catch (Exception e) {
+      LOG.error("Error uploading a bundle of " + pBundle.entries.size() + " files: " + e.getMessage());
+      for (Map<String, Object> entry : pBundle.entries)
+        keepQuietly((String) entry.get("path"));
+      failed.addAndGet(pBundle.entries.size());
+    } finally {
+      pBundle.delete();
+    }
+  }
+
+  /**
+   * Writes a file to the local index
+   */
+  private void record(String pPath, long pSize, long pLastModified, String pArchiveId, long pOffset, long pLength,
+                      boolean pBundled) throws IOException {
+    Map<String, Object> entry = new LinkedHashMap<String, Object>();
+    entry.put("path", pPath);
+    entry.put("size", pSize);
+    entry.put("lastModified", pLastModified);
+    entry.put("archiveId", pArchiveId);
+    entry.put("offset", pOffset);
+    entry.put("length", pLength);
+    entry.put("bundled", pBundled);
+    String line = MAPPER.writeValueAsString(entry);
+    synchronized (index) {
+      index.write(line);
+      index.newLine();
+    }
+  }
+
+  /**
+   * Copies the entry of the previous backup of a file which is not uploaded
+   * again, as nothing else records where a bundled file is
+   * @param pPath path relative to the backed up directory
+   * @throws IOException
+   */
+  private void keep(String pPath) throws IOException {
+    String line = previous.get(pPath);
+    if (line == null)
+      return;
+    synchronized (index) {
+      index.write(line);
+      index.newLine();
+    }
+  }
+
+  private void keepQuietly(String pPath) {
+    try {
+      keep(pPath);
+    } catch (IOException e) {
+      LOG.error("Unable to keep the index entry of " + pPath + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Reads an index, the last entry of a path replacing the earlier ones
+   * @param pIndexFile
+   * @return lines by path, empty if there is no index yet
+   * @throws IOException
+   */
+  private static Map<String, String> readIndex(File pIndexFile) throws IOException {
+    Map<String, String> lines = new HashMap<String, String>();
+    if (!pIndexFile.isFile())
+      return lines;
+    for (String line : Files.readAllLines(pIndexFile.toPath(), StandardCharsets.UTF_8)) {
+      if (line.trim().isEmpty())
+        continue;
+      try {
+        lines.put(MAPPER.readTree(line).get("path").getTextValue(), line);
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Ignoring an invalid line of " + pIndexFile + ": " + e.getMessage());
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Returns the local index of a directory backed up to a vault. Directories
+   * with the same name get different indexes
+   * @param pDirectory directory holding the indexes
+   * @param pVaultName
+   * @param pRoot backed up directory
+   * @return
+   */
+  public static File getIndexFile(File pDirectory, String pVaultName, File pRoot) {
+    Path root = pRoot.getAbsoluteFile().toPath().normalize();
+    return new File(pDirectory, pVaultName + "-" + root.getFileName() + "-"
+                                + Integer.toHexString(root.toString().hashCode()) + ".index");
+  }
+
+  /**
+   * Bundle being filled in a temporary file
+   */
+  private static class Bundle {
+
+    private final File file;
+    private final DataOutputStream out;
+    private final List<Map<String, Object>> entries = new ArrayList<Map<String, Object>>();
+    private final List<File> files = new ArrayList<File>();
+    private final List<String> hashes = new ArrayList<String>();
+    private long size;
+
+    Bundle() throws IOException {
+      file = File.createTempFile("glacier-bundle", ".tmp");
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    }
+
+    void add(Path pFile, String pPath) throws IOException {
+      long offset = size;
+      long lastModified = Files.getLastModifiedTime(pFile).toMillis();
+      byte[] content = Files.readAllBytes(pFile);
+      out.write(content);
+      long length = content.length;
+      size += length;
+      files.add(pFile.toFile());
+      hashes.add(TreeHash.toHex(TreeHash.compute(ByteBuffer.wrap(content))));
+      Map<String, Object> entry = new LinkedHashMap<String, Object>();
+      entry.put("path", pPath);
+      entry.put("offset", offset);
+      entry.put("length", length);
+      entry.put("lastModified", lastModified);
+      entries.add(entry);
+    }
+
+    long size() {
+      return size;
+    }
+
+    File finish() throws IOException {
+      byte[] bundleIndex = MAPPER.writeValueAsBytes(entries);
+      out.write(bundleIndex);
+      out.writeLong(bundleIndex.length);
+      out.close();
+      return file;
+    }
+
+    void delete() {
+      try {out.close();}  catch (IOException e) {}
+      if (!file.delete())
+        LOG.warn("Unable to delete bundle " + file);
+    }
+  }
+}
@@ -0,0 +1,408 @@
+package org.bg.amazon.glacier;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Backs up directory trees continuously. Changes are reported by a
+ * WatchService instead of walking the trees, files changed several times are
+ * uploaded once, and a batch is uploaded once no change came for the quiet
+ * period, once its oldest change waited the maximum delay, or once its files
+ * reach the batch size. Files still being written are thus uploaded once they
+ * settle, and fingerprints skip the files whose content is back to what was
+ * uploaded. A batch is uploaded by DirectoryBackup while the next one is
+ * collected, and is collected again if some of its files failed.
+ *
+ * Changes made while the watcher is not running, and changes the WatchService
+ * drops when it overflows, are only found by walking the tree again, which
+ * the watcher does for the root that overflowed. The WatchService registers
+ * every directory, so the number of directories is bound by the inotify
+ * limits on Linux.
+ */
+public class DirectoryWatcher {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+  private final String vaultName;
+  private final List<Path> roots = new ArrayList<Path>();
+  private final long quietPeriod;
+  private final long maxDelay;
+  private final long batchSize;
+  private final int threads;
+  private final long smallFileSize;
+  private final long bundleSize;
+  private final File indexDirectory;
+
+  private boolean initialWalk;
+
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+  private volatile boolean running = true;
+
+  /**
+   * Changed files by root, with their size when last seen
+   */
+  private final Map<Path, Map<Path, Long>> pending = new LinkedHashMap<Path, Map<Path, Long>>();
+
+  /**
+   * Roots to walk again because the WatchService dropped some of their changes
+   */
+  private final Set<Path> rescans = new HashSet<Path>();
+  private long pendingBytes;
+  private long firstChange;
+  private long lastChange;
+
+  /**
+   * Files of the batches which failed by root, and roots whose walk failed,
+   * handed back by the upload thread
+   */
+  private final Map<Path, Map<Path, Long>> failedFiles = new HashMap<Path, Map<Path, Long>>();
+  private final Set<Path> failedWalks = new HashSet<Path>();
+
+  private final MetricsRegistry.Counter events;
+  private final MetricsRegistry.Counter batches;
+
+  /**
+   * Constructor for the DirectoryWatcher class
+   * @param pVaultName vault receiving the files, it must exist
+   * @param pRoots directories to watch
+   * @param pQuietPeriod milliseconds without changes after which a batch is uploaded
+   * @param pMaxDelay milliseconds after which a change is uploaded even if others keep coming
+   * @param pBatchSize bytes of changed files at which a batch is uploaded
+   * @param pIndexDirectory directory holding the local index of every root
+   * @throws IOException
+   */
+  public DirectoryWatcher(String pVaultName, List<File> pRoots, long pQuietPeriod, long pMaxDelay, long pBatchSize,
+                          File pIndexDirectory) throws IOException {
+    if (pRoots.isEmpty())
+      throw new GlacierException("No directory to watch.");
+    vaultName = pVaultName;
+    for (File root : pRoots) {
+      if (!root.isDirectory())
+        throw new GlacierException(root + " is not a directory.");
+      roots.add(root.toPath().toAbsolutePath().normalize());
+    }
+    quietPeriod = pQuietPeriod;
+    maxDelay = pMaxDelay;
+    batchSize = pBatchSize;
+    threads = GlacierOperations.dirThreads;
+    smallFileSize = GlacierOperations.smallFileSize;
+    bundleSize = GlacierOperations.bundleSize;
+    indexDirectory = pIndexDirectory;
+    watchService = roots.get(0).getFileSystem().newWatchService();
+    events = MetricsRegistry.DEFAULT.counter("glacier_watch_events_total", "File changes reported by the watcher");
+    batches = MetricsRegistry.DEFAULT.counter("glacier_watch_batches_total", "Batches of changed files uploaded");
+  }
+
+  /**
+   * Sets whether the trees are walked once the directories are watched, to
+   * upload the changes made while the watcher was not running
+   * @param pInitialWalk
+   */
+  public void setInitialWalk(boolean pInitialWalk) {
+    initialWalk = pInitialWalk;
+  }
+
+  /**
+   * Watches the directories and uploads their changes until stop is called
+   * @throws IOException
+   */
+  public void run() throws IOException {
+    for (Path root : roots)
+      register(root, null);
+    LOG.info("Watching " + directories.size() + " directories below " + roots + " for vault " + vaultName);
+    if (initialWalk) {
+      rescans.addAll(roots);
+      touch();
+    }
+    ExecutorService uploads = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-watch-upload");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      while (running) {
+        long now = System.currentTimeMillis();
+        long wait = pending.isEmpty() && rescans.isEmpty() ? quietPeriod
+            : Math.max(1, Math.min(lastChange + quietPeriod, firstChange + maxDelay) - now);
+        WatchKey key;
+        try {
+          key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        if (key != null)
+          drain(key);
+        requeue();
+        now = System.currentTimeMillis();
+        if ((!pending.isEmpty() || !rescans.isEmpty())
+            && (now - lastChange >= quietPeriod || now - firstChange >= maxDelay || pendingBytes >= batchSize))
+          uploads.execute(batch());
+      }
+    } catch (ClosedWatchServiceException e) {
+      /** Closed by stop */
+    } finally {
+      LOG.info("Stopped watching " + roots + ", uploading the last changes.");
+      if (!pending.isEmpty() || !rescans.isEmpty())
+        uploads.execute(batch());
+      uploads.shutdown();
+      try {
+        uploads.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      try {watchService.close();}  catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Stops watching, the changes already seen are still uploaded
+   */
+  public void stop() {
+    running = false;
+    try {watchService.close();}  catch (IOException e) {}
+  }
+
+  /**
+   * Records the changes reported for a directory and those of the other directories ready
+   * @param pKey
+   */
+  private void drain(WatchKey pKey) {
+    for (WatchKey key = pKey; key != null; key = watchService.poll()) {
+      Path directory = directories.get(key);
+      for (WatchEvent<?> event : key.pollEvents()) {
+        events.increment();
+        if (event.kind() == OVERFLOW) {
+          Path root = rootOf(directory == null ? roots.get(0) : directory);
+          if (rescans.add(root))
+            LOG.warn("Changes below " + root + " were dropped, walking it again");
+          touch();
+          continue;
+        }
+        if (directory == null)
+          continue;
+        Path path = directory.resolve((Path) event.context());
+        if (event.kind() == ENTRY_DELETE)
+          forget(path);
+        else if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+          /** Files may be created in a new directory before it is registered */
+          if (event.kind() == ENTRY_CREATE)
+            register(path, rootOf(path));
+        } else
+          change(rootOf(path), path);
+      }
+      if (!key.reset())
+        directories.remove(key);
+    }
+  }
+
+  /**
+   * Watches a directory and the directories below it
+   * @param pDirectory
+   * @param pRoot root whose batch receives the files found, null to only register
+   */
+  private void register(Path pDirectory, final Path pRoot) {
+    try {
+      Files.walkFileTree(pDirectory, new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult preVisitDirectory(Path pDir, BasicFileAttributes pAttrs) throws IOException {
+          directories.put(pDir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), pDir);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFile(Path pFile, BasicFileAttributes pAttrs) {
+          if (pRoot != null && pAttrs.isRegularFile())
+            change(pRoot, pFile);
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path pFile, IOException pError) {
+          if (!(pError instanceof NoSuchFileException))
+            LOG.warn("Unable to watch " + pFile + ": " + pError.getMessage());
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    } catch (IOException e) {
+      LOG.warn("Unable to watch " + pDirectory + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Adds a changed file to the batch of its root
+   */
+  private void change(Path pRoot, Path pFile) {
+    Map<Path, Long> files = pending.get(pRoot);
+    if (files == null)
+      pending.put(pRoot, files = new LinkedHashMap<Path, Long>());
+    long size = pFile.toFile().length();
+    Long previous = files.put(pFile, size);
+    pendingBytes += size - (previous == null ? 0 : previous);
+    touch();
+  }
+
+  /**
+   * Drops a deleted file, or the files below a deleted directory, from the batch
+   */
+  private void forget(Path pPath) {
+    for (Iterator<Map<Path, Long>> roots = pending.values().iterator(); roots.hasNext();) {
+      Map<Path, Long> files = roots.next();
+      for (Iterator<Map.Entry<Path, Long>> i = files.entrySet().iterator(); i.hasNext();) {
+        Map.Entry<Path, Long> entry = i.next();
+        if (entry.getKey().startsWith(pPath)) {
+          pendingBytes -= entry.getValue();
+          i.remove();
+        }
+      }
+      if (files.isEmpty())
+        roots.remove();
+    }
+  }
+
+  private void touch() {
+    long now = System.currentTimeMillis();
+    if (firstChange == 0)
+      firstChange = now;
+    lastChange = now;
+  }
+
+  /**
+   * Returns the watched root holding a path
+   */
+  private Path rootOf(Path pPath) {
+    for (Path root : roots) {
+      if (pPath.startsWith(root))
+        return root;
+    }
+    return roots.get(0);
+  }
+
+  /**
+   * Takes the changes collected so far as a batch to upload
+   * @return
+   */
+  private Runnable batch() {
+    final Map<Path, Map<Path, Long>> files = new LinkedHashMap<Path, Map<Path, Long>>(pending);
+    final Set<Path> walks = new HashSet<Path>(rescans);
+    final long bytes = pendingBytes;
+    pending.clear();
+    rescans.clear();
+    pendingBytes = 0;
+    firstChange = 0;
+    return new Runnable() {
+      @Override
+      public void run() {
+        upload(files, walks, bytes);
+      }
+    };
+  }
+
+  /**
+   * Uploads a batch, root after root, collecting again the files of the roots which failed
+   */
+  private void upload(Map<Path, Map<Path, Long>> pFiles, Set<Path> pWalks, long pBytes) {
+    int count = 0;
+    for (Map<Path, Long> files : pFiles.values())
+      count += files.size();
+    LOG.info("Uploading " + count + " changed files (" + pBytes / 1024 + " KB)"
+             + (pWalks.isEmpty() ? "" : " and walking " + pWalks));
+    batches.increment();
+    Set<Path> batchRoots = new HashSet<Path>(pFiles.keySet());
+    batchRoots.addAll(pWalks);
+    for (Path root : batchRoots) {
+      Map<Path, Long> files = pFiles.get(root);
+      boolean walk = pWalks.contains(root);
+      boolean success;
+      try {
+        DirectoryBackup backup = new DirectoryBackup(vaultName, threads, smallFileSize, bundleSize);
+        success = backup.backup(root.toFile(), walk ? null : files.keySet(), getIndexFile(root));
+      } catch (IOException | RuntimeException e) {
+        LOG.error("Error uploading the changes below " + root + ": " + e.getMessage());
+        success = false;
+      }
+      if (!success)
+        retry(root, walk ? null : files);
+    }
+  }
+
+  /**
+   * Collects again the files of a failed batch, the ones uploaded meanwhile are
+   * skipped by their fingerprint
+   */
+  private void retry(Path pRoot, Map<Path, Long> pFiles) {
+    LOG.warn("Collecting the changes below " + pRoot + " again, some of them were not uploaded");
+    synchronized (failedFiles) {
+      if (pFiles == null)
+        failedWalks.add(pRoot);
+      else
+        failedFiles.put(pRoot, pFiles);
+    }
+  }
+
+  /**
+   * Adds the files of the failed batches to the one being collected, they
+   * wait for the quiet period like any change
+   */
+  private void requeue() {
+    synchronized (failedFiles) {
+      if (failedFiles.isEmpty() && failedWalks.isEmpty())
+        return;
+      for (Map.Entry<Path, Map<Path, Long>> files : failedFiles.entrySet()) {
+        for (Map.Entry<Path, Long> file : files.getValue().entrySet()) {
+          if (!pending.containsKey(files.getKey()) || !pending.get(files.getKey()).containsKey(file.getKey()))
+            change(files.getKey(), file.getKey());
+        }
+      }
+      rescans.addAll(failedWalks);
+      failedFiles.clear();
+      failedWalks.clear();
+    }
+    touch();
+  }
+
+  /**
+   * Returns the local index of a root, appended to by every batch
+   */
+  private File getIndexFile(Path pRoot) {
+    return DirectoryBackup.getIndexFile(indexDirectory, vaultName, pRoot.toFile());
+  }
+}
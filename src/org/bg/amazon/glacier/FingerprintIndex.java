@@ -0,0 +1,167 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+
+/**
+ * Local index of the files already backed up, mapping a vault and a path
+ * to the size, modification time and tree hash the file had when it was
+ * uploaded, and to the archive holding it.
+ *
+ * The index is kept in memory for fast lookups and persisted as a log of
+ * JSON lines, one per update, each one forced to disk before the update is
+ * visible. The log is rewritten atomically when it has grown much bigger
+ * than the index.
+ */
+public class FingerprintIndex {
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * State of a file when it was uploaded
+   */
+  public static class Fingerprint {
+
+    private final long size;
+    private final long lastModified;
+    private final String treeHash;
+    private final String archiveId;
+
+    public Fingerprint(long pSize, long pLastModified, String pTreeHash, String pArchiveId) {
+      size = pSize;
+      lastModified = pLastModified;
+      treeHash = pTreeHash;
+      archiveId = pArchiveId;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public String getTreeHash() {
+      return treeHash;
+    }
+
+    public String getArchiveId() {
+      return archiveId;
+    }
+  }
+
+  private final File file;
+  private final Map<String, Fingerprint> entries = new ConcurrentHashMap<String, Fingerprint>();
+  private AppendLog log;
+  private long logLines;
+
+  private FingerprintIndex(File pFile) {
+    file = pFile;
+  }
+
+  /**
+   * Loads an index, creating it if needed
+   * @param pFile
+   * @return
+   * @throws IOException
+   */
+  public static FingerprintIndex open(File pFile) throws IOException {
+    FingerprintIndex index = new FingerprintIndex(pFile);
+    List<String> lines = AppendLog.readLines(pFile);
+    for (String line : lines) {
+      JsonNode node = MAPPER.readTree(line);
+      index.entries.put(node.get("key").getTextValue(), new Fingerprint(node.get("size").getLongValue(),
+          node.get("lastModified").getLongValue(), node.get("treeHash").getTextValue(), node.get("archiveId").getTextValue()));
+    }
+    index.logLines = lines.size();
+    if (index.logLines > 2 * index.entries.size() + 1000)
+      index.compact();
+    index.log = new AppendLog(pFile);
+    return index;
+  }
+
+  /**
+   * Returns the key of a file backed up to a vault
+   * @param pVaultName
+   * @param pFile
+   * @return
+   * @throws IOException
+   */
+  public static String key(String pVaultName, File pFile) throws IOException {
+    return pVaultName + ":" + pFile.getCanonicalPath();
+  }
+
+  /**
+   * Returns the fingerprint recorded for a key, or null
+   * @param pKey
+   * @return
+   */
+  public Fingerprint get(String pKey) {
+    return entries.get(pKey);
+  }
+
+  /**
+   * Records a fingerprint, durably, before making it visible
+   * @param pKey
+   * @param pFingerprint
+   * @throws IOException
+   */
+  public synchronized void put(String pKey, Fingerprint pFingerprint) throws IOException {
+    log.append(toJson(pKey, pFingerprint));
+    entries.put(pKey, pFingerprint);
+    logLines++;
+  }
+
+  /**
+   * Returns the number of files in the index
+   * @return
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Rewrites the log with one line per file, replacing it atomically
+   * @throws IOException
+   */
+  private void compact() throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    FileOutputStream stream = new FileOutputStream(tmp);
+    BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+    try {
+      for (Map.Entry<String, Fingerprint> entry : entries.entrySet()) {
+        out.write(toJson(entry.getKey(), entry.getValue()));
+        out.write('\n');
+      }
+      out.flush();
+      stream.getFD().sync();
+    } finally {
+      out.close();
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    logLines = entries.size();
+  }
+
+  private static String toJson(String pKey, Fingerprint pFingerprint) throws IOException {
+    Map<String, Object> line = new LinkedHashMap<String, Object>();
+    line.put("key", pKey);
+    line.put("size", pFingerprint.getSize());
+    line.put("lastModified", pFingerprint.getLastModified());
+    line.put("treeHash", pFingerprint.getTreeHash());
+    line.put("archiveId", pFingerprint.getArchiveId());
+    return MAPPER.writeValueAsString(line);
+  }
+}
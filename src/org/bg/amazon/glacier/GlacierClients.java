@@ -0,0 +1,159 @@
+package org.bg.amazon.glacier;
+
+import java.util.Properties;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Protocol;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.glacier.AmazonGlacierClient;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+
+/**
+ * Holds the Amazon clients of a region. The clients are thread safe and keep
+ * their connections pooled, so they are created once and shared by every
+ * operation instead of paying the connection and TLS setup on each call.
+ */
+public class GlacierClients {
+
+  /**
+   * Default size of the connection pool of each client
+   */
+  public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+  private final AWSCredentials credentials;
+  private final String region;
+  private final ClientConfiguration configuration;
+  private String glacierEndpoint;
+  private String sqsEndpoint;
+  private String snsEndpoint;
+
+  private AmazonGlacierClient glacierClient;
+  private AmazonSQSClient sqsClient;
+  private AmazonSNSClient snsClient;
+
+  /**
+   * Constructor for the GlacierClients class
+   * @param pCredentials
+   * @param pRegion region name, e.g. us-east-1
+   * @param pConfiguration connection settings shared by the clients
+   */
+  public GlacierClients(AWSCredentials pCredentials, String pRegion, ClientConfiguration pConfiguration) {
+    credentials = pCredentials;
+    region = pRegion;
+    configuration = pConfiguration;
+    setEndpoints(null, null, null);
+  }
+
+  /**
+   * Creates the clients of the region, and the endpoints if any, named in the configuration file
+   * @param pCredentials
+   * @param pConf
+   * @return
+   */
+  public static GlacierClients create(AWSCredentials pCredentials, Properties pConf) {
+    String region = pConf.getProperty("amazon.glacier.region", "us-east-1").trim();
+    if (region.contains("://"))
+      throw new GlacierException("Invalid region " + region + ", expected a name such as us-east-1;"
+                                 + " endpoints are set with amazon.glacier.endpoint");
+    GlacierClients clients = new GlacierClients(pCredentials, region, createConfiguration(pConf));
+    clients.setEndpoints(pConf.getProperty("amazon.glacier.endpoint"), pConf.getProperty("amazon.sqs.endpoint"),
+                         pConf.getProperty("amazon.sns.endpoint"));
+    return clients;
+  }
+
+  /**
+   * Points the clients to other endpoints than the ones of the region, such
+   * as a LocalGlacierServer. Clients already created are not changed
+   * @param pGlacier null or empty for the endpoint of the region
+   * @param pSqs null or empty for the endpoint of the region
+   * @param pSns null or empty for the endpoint of the region
+   */
+  public synchronized void setEndpoints(String pGlacier, String pSqs, String pSns) {
+    glacierEndpoint = getEndpoint(pGlacier, "glacier");
+    sqsEndpoint = getEndpoint(pSqs, "sqs");
+    snsEndpoint = getEndpoint(pSns, "sns");
+  }
+
+  /**
+   * Returns clients of another region with the same credentials and settings.
+   * Endpoints set explicitly, such as a LocalGlacierServer, are kept
+   * @param pRegion region name, e.g. eu-west-1
+   * @return
+   */
+  public synchronized GlacierClients forRegion(String pRegion) {
+    if (pRegion.equals(region))
+      return this;
+    GlacierClients clients = new GlacierClients(credentials, pRegion, configuration);
+    clients.setEndpoints(glacierEndpoint.equals(getEndpoint(null, "glacier")) ? null : glacierEndpoint,
+                         sqsEndpoint.equals(getEndpoint(null, "sqs")) ? null : sqsEndpoint,
+                         snsEndpoint.equals(getEndpoint(null, "sns")) ? null : snsEndpoint);
+    return clients;
+  }
+
+  public String getRegion() {
+    return region;
+  }
+
+  private String getEndpoint(String pEndpoint, String pService) {
+    if (pEndpoint == null || pEndpoint.trim().isEmpty())
+      return "https://" + pService + "." + region + ".amazonaws.com";
+    return pEndpoint.trim();
+  }
+
+  /**
+   * Creates the connection settings from the configuration file. The clients
+   * do not retry failed requests themselves, the RetryingGlacierService and the
+   * JobTracker using them do, so that retries are not nested
+   * @param pConf
+   * @return
+   */
+  public static ClientConfiguration createConfiguration(Properties pConf) {
+    return new ClientConfiguration()
+        .withProtocol(Protocol.HTTPS)
+        .withMaxConnections(Integer.parseInt(pConf.getProperty("glacier.http.maxConnections",
+            String.valueOf(DEFAULT_MAX_CONNECTIONS))))
+        .withConnectionTimeout(Integer.parseInt(pConf.getProperty("glacier.http.connectionTimeoutMs", "10000")))
+        .withSocketTimeout(Integer.parseInt(pConf.getProperty("glacier.http.socketTimeoutMs", "120000")))
+        .withMaxErrorRetry(0);
+  }
+
+  public synchronized AmazonGlacierClient getGlacierClient() {
+    if (glacierClient == null) {
+      glacierClient = new AmazonGlacierClient(credentials, configuration);
+      glacierClient.setEndpoint(glacierEndpoint);
+    }
+    return glacierClient;
+  }
+
+  public synchronized AmazonSQSClient getSqsClient() {
+    if (sqsClient == null) {
+      sqsClient = new AmazonSQSClient(credentials, configuration);
+      sqsClient.setEndpoint(sqsEndpoint);
+    }
+    return sqsClient;
+  }
+
+  public synchronized AmazonSNSClient getSnsClient() {
+    if (snsClient == null) {
+      snsClient = new AmazonSNSClient(credentials, configuration);
+      snsClient.setEndpoint(snsEndpoint);
+    }
+    return snsClient;
+  }
+
+  /**
+   * Releases the connections of the clients created so far
+   */
+  public synchronized void shutdown() {
+    if (glacierClient != null)
+      glacierClient.shutdown();
+    if (sqsClient != null)
+      sqsClient.shutdown();
+    if (snsClient != null)
+      snsClient.shutdown();
+    glacierClient = null;
+    sqsClient = null;
+    snsClient = null;
+  }
+}
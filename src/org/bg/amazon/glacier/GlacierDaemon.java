@@ -0,0 +1,399 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-running process accepting operations, so that repeated invocations
+ * share one JVM and the pooled clients of GlacierOperations. Operations are
+ * lines of the form "op_name vault_name [file_name]" and are accepted from
+ * two sources:
+ * <ul>
+ * <li>a socket bound to the loopback interface, answering every line with
+ * "OK", "FAILED" or "ERROR message". The first line of a connection must be
+ * the token of the token file, readable by the owner of the daemon only, so
+ * that other local users cannot run operations with its credentials; it is
+ * answered with "OK" too. "quit" closes the connection and "shutdown" stops
+ * the daemon.</li>
+ * <li>a spool directory, writable by the owner of the daemon only, where
+ * every *.op file is claimed, its lines are run in order and the results are
+ * written to a *.done file.</li>
+ * </ul>
+ * streamFile and watchDir are only run from the command line.
+ * The daemon may also back up directories as they change, see DirectoryWatcher.
+ */
+public class GlacierDaemon {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(GlacierDaemon.class);
+
+  public static final int DEFAULT_PORT = 7711;
+
+  /**
+   * Milliseconds a new connection has to send the token
+   */
+  private static final int AUTHENTICATION_TIMEOUT = 10 * 1000;
+
+  private final int port;
+  private final File tokenFile;
+  private byte[] token;
+  private final File spoolDirectory;
+  private final long spoolInterval;
+  private final ExecutorService workers;
+  private final ExecutorService connections;
+  private volatile boolean running = true;
+  private ServerSocket serverSocket;
+  private final String watchVault;
+  private final String watchDirs;
+  private DirectoryWatcher watcher;
+  private Thread watcherThread;
+
+  /**
+   * Constructor for the GlacierDaemon class
+   * @param pConf configuration file, read for the glacier.daemon.* keys
+   */
+  public GlacierDaemon(Properties pConf) {
+    port = Integer.parseInt(pConf.getProperty("glacier.daemon.port", String.valueOf(DEFAULT_PORT)));
+    tokenFile = new File(pConf.getProperty("glacier.daemon.tokenFile", ".glacier-daemon.token").trim());
+    String spoolPath = pConf.getProperty("glacier.daemon.spoolDir", ".glacier-spool").trim();
+    spoolDirectory = spoolPath.isEmpty() ? null : new File(spoolPath);
+    spoolInterval = Long.parseLong(pConf.getProperty("glacier.daemon.spoolIntervalSeconds", "5")) * 1000;
+    watchVault = pConf.getProperty("glacier.daemon.watchVault", "").trim();
+    watchDirs = pConf.getProperty("glacier.daemon.watchDirs", "").trim();
+    final AtomicInteger count = new AtomicInteger();
+    workers = Executors.newFixedThreadPool(Integer.parseInt(pConf.getProperty("glacier.daemon.threads", "4")),
+        new ThreadFactory() {
+          @Override
+          public Thread newThread(Runnable pRunnable) {
+            Thread thread = new Thread(pRunnable, "glacier-daemon-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    /** Connections stay open between operations, so they do not hold the threads of the spool */
+    final AtomicInteger connectionCount = new AtomicInteger();
+    connections = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-daemon-connection-" + connectionCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Accepts operations until shutdown is requested
+   * @throws IOException
+   */
+  public void run() throws IOException {
+    token = readToken(tokenFile);
+    if (spoolDirectory != null) {
+      if (!spoolDirectory.isDirectory() && !spoolDirectory.mkdirs())
+        throw new IOException("Unable to create spool directory " + spoolDirectory);
+      restrict(spoolDirectory, "rwx------");
+      recoverSpool();
+      Thread spooler = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          pollSpool();
+        }
+      }, "glacier-daemon-spool");
+      spooler.setDaemon(true);
+      spooler.start();
+    }
+
+    if (!watchVault.isEmpty() && !watchDirs.isEmpty()) {
+      watcher = GlacierOperations.createWatcher(watchVault, watchDirs);
+      watcherThread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            watcher.run();
+          } catch (IOException e) {
+            LOG.error("Stopped watching " + watchDirs + ": " + e.getMessage());
+          }
+        }
+      }, "glacier-daemon-watch");
+      watcherThread.setDaemon(true);
+      watcherThread.start();
+    }
+
+    serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+    LOG.info("Accepting operations on 127.0.0.1:" + serverSocket.getLocalPort() + " with the token of " + tokenFile
+             + (spoolDirectory == null ? "" : " and in " + spoolDirectory));
+    try {
+      while (running) {
+        final Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (SocketException e) {
+          if (!running)
+            break;
+          throw e;
+        }
+        connections.execute(new Runnable() {
+          @Override
+          public void run() {
+            serve(socket);
+          }
+        });
+      }
+    } finally {
+      stop();
+    }
+  }
+
+  /**
+   * Stops accepting operations and releases the shared clients. Operations in
+   * progress are given some time to finish.
+   */
+  public synchronized void stop() {
+    running = false;
+    try {if (serverSocket != null) serverSocket.close();}  catch (IOException e) {}
+    workers.shutdown();
+    connections.shutdown();
+    if (watcher != null)
+      watcher.stop();
+    try {
+      if (!workers.awaitTermination(1, TimeUnit.MINUTES))
+        LOG.warn("Operations still running at shutdown");
+      if (!connections.awaitTermination(1, TimeUnit.SECONDS))
+        connections.shutdownNow();
+      if (watcherThread != null)
+        watcherThread.join(TimeUnit.MINUTES.toMillis(1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    GlacierOperations.shutdown();
+  }
+
+  /**
+   * Runs the operations received on a connection, one per line
+   * @param pSocket
+   */
+  private void serve(Socket pSocket) {
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(pSocket.getInputStream(), "UTF-8"));
+      PrintWriter out = new PrintWriter(new OutputStreamWriter(pSocket.getOutputStream(), "UTF-8"), true);
+      pSocket.setSoTimeout(AUTHENTICATION_TIMEOUT);
+      String line = in.readLine();
+      if (line == null || !MessageDigest.isEqual(token, line.trim().getBytes("UTF-8"))) {
+        LOG.warn("Rejected a connection from " + pSocket.getRemoteSocketAddress() + " without the token");
+        out.println("ERROR invalid token");
+        return;
+      }
+      pSocket.setSoTimeout(0);
+      out.println("OK");
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty())
+          continue;
+        if (line.equals("quit"))
+          break;
+        if (line.equals("shutdown")) {
+          out.println("OK");
+          running = false;
+          try {serverSocket.close();}  catch (IOException e) {}
+          break;
+        }
+        out.println(run(line));
+      }
+    } catch (IOException e) {
+      LOG.warn("Connection closed: " + e.getMessage());
+    } finally {
+      try {pSocket.close();}  catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Reads the token clients authenticate with, creating the token file with a
+   * random token if it does not exist
+   * @param pFile
+   * @return
+   * @throws IOException if the token file may be read by other users
+   */
+  static byte[] readToken(File pFile) throws IOException {
+    Path path = pFile.toPath();
+    if (!pFile.exists()) {
+      byte[] random = new byte[32];
+      new SecureRandom().nextBytes(random);
+      Path temp = new File(pFile.getPath() + ".tmp").toPath();
+      Files.deleteIfExists(temp);
+      Files.createFile(temp);
+      restrict(temp.toFile(), "rw-------");
+      Files.write(temp, (TreeHash.toHex(random) + "\n").getBytes("UTF-8"));
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+      LOG.info("Created the daemon token file " + pFile);
+    }
+    try {
+      Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(path);
+      permissions.removeAll(PosixFilePermissions.fromString("rw-------"));
+      if (!permissions.isEmpty())
+        throw new GlacierException("The daemon token file " + pFile + " may be read by other users, chmod 600 it.");
+    } catch (UnsupportedOperationException e) {
+      LOG.warn("Unable to check the permissions of " + pFile);
+    }
+    List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+    if (lines.isEmpty() || lines.get(0).trim().isEmpty())
+      throw new GlacierException("The daemon token file " + pFile + " is empty.");
+    return lines.get(0).trim().getBytes("UTF-8");
+  }
+
+  /**
+   * Restricts a file to its owner, where the file system has POSIX permissions
+   * @param pFile
+   * @param pPermissions e.g. rw-------
+   * @throws IOException
+   */
+  private static void restrict(File pFile, String pPermissions) throws IOException {
+    try {
+      Files.setPosixFilePermissions(pFile.toPath(), PosixFilePermissions.fromString(pPermissions));
+    } catch (UnsupportedOperationException e) {
+      LOG.warn("Unable to restrict the permissions of " + pFile);
+    }
+  }
+
+  /**
+   * Runs one operation line. streamFile is refused, as the standard output of
+   * the daemon is nobody's, and so is watchDir, which would never return.
+   * @param pLine "op_name vault_name [file_name]"
+   * @return "OK", "FAILED" or "ERROR message"
+   */
+  static String run(String pLine) {
+    String[] fields = pLine.trim().split("\\s+", 3);
+    if (fields.length < 2)
+      return "ERROR expected: op_name vault_name [file_name]";
+    if (fields[0].equals("streamFile"))
+      return "ERROR streamFile writes to the standard output, use getFile";
+    if (fields[0].equals("watchDir"))
+      return "ERROR watchDir never returns, set glacier.daemon.watchDirs";
+    try {
+      return GlacierEntry.execute(fields[0], fields[1], fields.length > 2 ? fields[2] : "") ? "OK" : "FAILED";
+    } catch (RuntimeException e) {
+      LOG.error("Operation " + pLine + " failed: " + e.getMessage());
+      return "ERROR " + e.getMessage();
+    }
+  }
+
+  /**
+   * Requeues the spool files claimed by a previous run that stopped before finishing them
+   */
+  private void recoverSpool() {
+    File[] claimed = spoolDirectory.listFiles();
+    for (File file : claimed == null ? new File[0] : claimed) {
+      if (file.getName().endsWith(".working")) {
+        String name = file.getName().substring(0, file.getName().length() - ".working".length());
+        LOG.info("Requeuing interrupted spool file " + name);
+        file.renameTo(new File(spoolDirectory, name + ".op"));
+      }
+    }
+  }
+
+  /**
+   * Looks for new spool files until the daemon stops
+   */
+  private void pollSpool() {
+    while (running) {
+      File[] files = spoolDirectory.listFiles();
+      if (files != null) {
+        Arrays.sort(files);
+        for (File file : files) {
+          if (file.getName().endsWith(".op"))
+            claim(file);
+        }
+      }
+      try {
+        Thread.sleep(spoolInterval);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Claims a spool file by renaming it and hands it to the workers
+   * @param pFile
+   */
+  private void claim(File pFile) {
+    final String name = pFile.getName().substring(0, pFile.getName().length() - ".op".length());
+    final File working = new File(spoolDirectory, name + ".working");
+    if (!pFile.renameTo(working))
+      return;
+    workers.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          processSpoolFile(working, new File(spoolDirectory, name + ".done"));
+        } catch (IOException e) {
+          LOG.error("Unable to process spool file " + name + ": " + e.getMessage());
+        }
+      }
+    });
+  }
+
+  /**
+   * Runs the operations of a spool file in order and writes their results
+   * @param pWorking claimed spool file
+   * @param pDone file receiving one result line per operation
+   * @throws IOException
+   */
+  private void processSpoolFile(File pWorking, File pDone) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    BufferedReader in = new BufferedReader(new FileReader(pWorking));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (!line.trim().isEmpty() && !line.trim().startsWith("#"))
+          lines.add(line.trim());
+      }
+    } finally {
+      in.close();
+    }
+    File temp = new File(pDone.getPath() + ".tmp");
+    Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+    try {
+      for (String line : lines)
+        out.write(run(line) + " " + line + "\n");
+    } finally {
+      out.close();
+    }
+    if (!temp.renameTo(pDone))
+      throw new IOException("Unable to write " + pDone);
+    pWorking.delete();
+  }
+}
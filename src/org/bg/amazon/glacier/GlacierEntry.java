@@ -1,7 +1,10 @@
 package org.bg.amazon.glacier;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.util.Properties;
 
 import org.slf4j.Logger;
@@ -40,36 +43,106 @@ public class GlacierEntry {
       CommandLineParser parser = new PosixParser();
       CommandLine cmd = parser.parse(options, args);
 
-      initialize(cmd.getOptionValue("conf_file"));
+      if (cmd.hasOption("local")) {
+        serveLocal(createProps(cmd.getOptionValue("conf_file")));
+        return;
+      }
+      Properties conf = initialize(cmd.getOptionValue("conf_file"));
 
-      execute(cmd.getOptionValue("op_name"), cmd.getOptionValue("vault_name"), cmd.getOptionValue("file_name", ""));
+      if (cmd.hasOption("daemon"))
+        new GlacierDaemon(conf).run();
+      else if (cmd.hasOption("batch")) {
+        File manifest = new File(cmd.getOptionValue("batch"));
+        File report = new File(cmd.getOptionValue("report", manifest.getPath() + ".report"));
+        BatchRunner runner = new BatchRunner(Integer.parseInt(conf.getProperty("glacier.batch.threads", "4")));
+        if (!runner.run(manifest, report))
+          System.exit(1);
+      }
+      else if (!execute(cmd.getOptionValue("op_name"), cmd.getOptionValue("vault_name"), cmd.getOptionValue("file_name", "")))
+        System.exit(1);
       
     } catch (ParseException e) {
       e.printStackTrace();
+    } catch (IOException e) {
+      LOG.error("Daemon stopped: " + e.getMessage());
+      System.exit(1);
+    } catch (InterruptedException e) {
+      LOG.info("Local stand-in stopped.");
     }
   }
 
+  /**
+   * Serves a local stand-in of Glacier, SNS and SQS until the process is stopped
+   * @param pConf configuration file, read for the glacier.local.* keys
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static void serveLocal(Properties pConf) throws IOException, InterruptedException {
+    LocalGlacierServer server = LocalGlacierServer.create(pConf);
+    server.start(pConf.getProperty("glacier.local.address", "127.0.0.1").trim(),
+                 Integer.parseInt(pConf.getProperty("glacier.local.port", String.valueOf(LocalGlacierServer.DEFAULT_PORT))));
+    server.awaitTermination();
+  }
+
   /**
    * Executes the selected command
    * @param pOpName
    * @param pVaultName
    * @param pFileName
    */
-  private static void execute(String pOpName, String pVaultName, String pFileName){
+  static boolean execute(String pOpName, String pVaultName, String pFileName){
+    long start = System.nanoTime();
+    String outcome = "error";
+    try {
+      boolean success = run(pOpName, pVaultName, pFileName);
+      outcome = success ? "ok" : "failed";
+      return success;
+    } finally {
+      MetricsRegistry.DEFAULT.histogram("glacier_operation_seconds", "Duration of the operations",
+                                        "op", pOpName, "outcome", outcome).recordSince(start);
+    }
+  }
+
+  /**
+   * Runs the selected command
+   * @param pOpName
+   * @param pVaultName
+   * @param pFileName
+   * @return
+   */
+  private static boolean run(String pOpName, String pVaultName, String pFileName){
+    boolean success;
     if (pOpName.equals("create"))
-      LOG.info("Vault " + pVaultName + (GlacierOperations.createVault(pVaultName)?" successfully created.":" not created."));
+      LOG.info("Vault " + pVaultName + ((success = GlacierOperations.createVault(pVaultName))?" successfully created.":" not created."));
     else if (pOpName.equals("put"))
-      LOG.info(pFileName + (GlacierOperations.putArchive(pVaultName, pFileName)?" uploaded successfully.":" not uploaded."));
+      LOG.info(pFileName + ((success = GlacierOperations.putArchive(pVaultName, pFileName))?" uploaded successfully.":" not uploaded."));
+    else if (pOpName.equals("putDir"))
+      LOG.info(pFileName + ((success = GlacierOperations.putDir(pVaultName, pFileName))?" uploaded successfully.":" not completely uploaded."));
+    else if (pOpName.equals("watchDir"))
+      LOG.info(pFileName + ((success = GlacierOperations.watchDirs(pVaultName, pFileName))?" no longer watched.":" not watched."));
+    else if (pOpName.equals("putChunked"))
+      LOG.info(pFileName + ((success = GlacierOperations.putChunked(pVaultName, pFileName))?" stored successfully.":" not stored."));
+    else if (pOpName.equals("putStriped"))
+      LOG.info(pFileName + ((success = GlacierOperations.putStriped(pVaultName, pFileName))?" stored successfully.":" not stored."));
     else if (pOpName.equals("listVault"))
-      LOG.info("Vault " + pVaultName + (GlacierOperations.list(pVaultName)?" listed successfully.":" not listed."));
+      LOG.info("Vault " + pVaultName + ((success = GlacierOperations.list(pVaultName))?" listed successfully.":" not listed."));
     else if (pOpName.equals("deleteVault"))
-      LOG.info("Vault " + pVaultName + (GlacierOperations.deleteVault(pVaultName)?" delete successfully.":" not deleted."));
+      LOG.info("Vault " + pVaultName + ((success = GlacierOperations.deleteVault(pVaultName))?" delete successfully.":" not deleted."));
     else if (pOpName.equals("getFile"))
-      LOG.info("File " + pFileName + (GlacierOperations.getArchive(pVaultName, pFileName)?" retrieved successfully":" not retrieved"));
+      LOG.info("File " + pFileName + ((success = GlacierOperations.getArchive(pVaultName, pFileName))?" retrieved successfully":" not retrieved"));
+    else if (pOpName.equals("streamFile"))
+      LOG.info("File " + pFileName + ((success = GlacierOperations.streamArchive(pVaultName, pFileName, Channels.newChannel(System.out)))?" streamed successfully":" not streamed"));
     else if (pOpName.equals("deleteFile"))
-      LOG.info("File " + pFileName + (GlacierOperations.deleteArchive(pVaultName, pFileName)?" deleted successfully":" not deleted"));
-    else 
+      LOG.info("File " + pFileName + ((success = GlacierOperations.deleteArchive(pVaultName, pFileName))?" deleted successfully":" not deleted"));
+    else if (pOpName.equals("deleteArchives"))
+      LOG.info("Archives " + pFileName + ((success = GlacierOperations.deleteArchives(pVaultName, pFileName))?" deleted successfully":" not all deleted"));
+    else if (pOpName.equals("restoreArchives"))
+      LOG.info("Archives " + pFileName + ((success = GlacierOperations.restoreArchives(pVaultName, pFileName))?" restored successfully":" not all restored"));
+    else {
       LOG.info("Command not supported.");
+      success = false;
+    }
+    return success;
   }
 
   /**
@@ -78,22 +151,44 @@ public class GlacierEntry {
   private static void printUsage(){
     System.out.println("Parameters needed are:");
     System.out.println("-conf_file <PathToConfFile>");
-    System.out.println("-op_name <create|put|listVault|deleteVault|getFile|deleteFile>");
+    System.out.println("-op_name <create|put|putDir|watchDir|putChunked|putStriped|listVault|deleteVault|getFile|streamFile|deleteFile|deleteArchives|restoreArchives>");
     System.out.println("-vault_name <VaultName>");
-    System.out.println("-file_name <FileName>");
+    System.out.println("-file_name <FileName>, for deleteArchives and restoreArchives a filter such as olderThanDays=365,prefix=logs/ or @<ArchiveIdFile>");
+    System.out.println("watchDir backs up the comma separated directories of file_name as they change, until the process is stopped");
+    System.out.println("streamFile writes the archive to the standard output, redirect it to a file or a named pipe");
+    System.out.println("or, to keep running and accept operations on a local socket and a spool directory:");
+    System.out.println("-conf_file <PathToConfFile> -daemon");
+    System.out.println("or, to run a manifest with one \"op_name vault_name [file_name]\" operation per line:");
+    System.out.println("-conf_file <PathToConfFile> -batch <Manifest> [-report <ReportFile>]");
+    System.out.println("or, to serve a local stand-in of Glacier, SNS and SQS for the glacier.local.* keys:");
+    System.out.println("-conf_file <PathToConfFile> -local");
   }
 
   /**
    * Initializes the necessary objects to perform actions
    * @param pArgs
+   * @return the loaded configuration
    */
-  private static void initialize(String pConfFile){
+  private static Properties initialize(String pConfFile){
     LOG.info("Loading properties file.");
     Properties confFile = createProps(pConfFile);
     if (confFile == null)
         throw new GlacierException("Invalid properties file given: " + pConfFile);
-    GlacierOperations.initialize(createAWSCredentials(confFile.getProperty("amazon.accessKey"), confFile.getProperty("amazon.secretKey")),
-                                 confFile.getProperty("amazon.glacier.region"));
+    GlacierClients clients = GlacierClients.create(createAWSCredentials(confFile.getProperty("amazon.accessKey"),
+                                                   confFile.getProperty("amazon.secretKey")), confFile);
+    /** Runs every operation against a stand-in started in this process, jobs do not outlive it */
+    if ("local".equals(confFile.getProperty("amazon.glacier.endpoint", "").trim())) {
+      LocalGlacierServer server = LocalGlacierServer.create(confFile);
+      try {
+        server.start("127.0.0.1", 0);
+      } catch (IOException e) {
+        throw new GlacierException("Unable to start the local stand-in: " + e.getMessage(), e);
+      }
+      clients.setEndpoints(server.getEndpoint(), server.getEndpoint(), server.getEndpoint());
+    }
+    GlacierOperations.initialize(clients);
+    GlacierOperations.configure(confFile);
+    return confFile;
   }
 
   /**
@@ -158,6 +253,22 @@ public class GlacierEntry {
                 .withDescription("File to save/retrieve from an specific vault.").create("file_name");
         options.addOption(fileName);
 
+        Option daemon = OptionBuilder
+                .withDescription("Keep running and accept operations on a local socket and a spool directory").create("daemon");
+        options.addOption(daemon);
+
+        Option batch = OptionBuilder.withArgName("batch").hasArg()
+                .withDescription("Run the operations of a manifest, one per line").create("batch");
+        options.addOption(batch);
+
+        Option report = OptionBuilder.withArgName("report").hasArg()
+                .withDescription("File receiving the result of every operation of the manifest").create("report");
+        options.addOption(report);
+
+        Option local = OptionBuilder
+                .withDescription("Serve a local stand-in of Glacier, SNS and SQS to run and load test operations").create("local");
+        options.addOption(local);
+
         return options;
     }
 }
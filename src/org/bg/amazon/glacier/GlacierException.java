@@ -18,4 +18,13 @@ public class GlacierException extends RuntimeException {
   public GlacierException(String message) {
     super(message);
   }
+
+  /**
+   * Constructor for the GlacierException class
+   * @param message
+   * @param cause
+   */
+  public GlacierException(String message, Throwable cause) {
+    super(message, cause);
+  }
 }
@@ -1,102 +1,181 @@
 package org.bg.amazon.glacier;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-import org.codehaus.jackson.JsonFactory;
-import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.JsonParseException;
-import org.codehaus.jackson.JsonParser;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.AmazonClientException;
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentials;
-import com.amazonaws.auth.policy.Policy;
-import com.amazonaws.auth.policy.Principal;
-import com.amazonaws.auth.policy.Resource;
-import com.amazonaws.auth.policy.Statement;
-import com.amazonaws.auth.policy.Statement.Effect;
-import com.amazonaws.auth.policy.actions.SQSActions;
-import com.amazonaws.services.glacier.AmazonGlacierClient;
-import com.amazonaws.services.glacier.model.CreateVaultRequest;
-import com.amazonaws.services.glacier.model.CreateVaultResult;
-import com.amazonaws.services.glacier.model.DeleteArchiveRequest;
-import com.amazonaws.services.glacier.model.DeleteVaultRequest;
-import com.amazonaws.services.glacier.model.DescribeVaultRequest;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
 import com.amazonaws.services.glacier.model.DescribeVaultResult;
-import com.amazonaws.services.glacier.model.GetJobOutputRequest;
 import com.amazonaws.services.glacier.model.GetJobOutputResult;
-import com.amazonaws.services.glacier.model.InitiateJobRequest;
-import com.amazonaws.services.glacier.model.InitiateJobResult;
-import com.amazonaws.services.glacier.model.JobParameters;
 import com.amazonaws.services.glacier.model.ResourceNotFoundException;
-import com.amazonaws.services.glacier.transfer.ArchiveTransferManager;
-import com.amazonaws.services.glacier.transfer.UploadResult;
-import com.amazonaws.services.sns.AmazonSNSClient;
-import com.amazonaws.services.sns.model.CreateTopicRequest;
-import com.amazonaws.services.sns.model.CreateTopicResult;
-import com.amazonaws.services.sns.model.DeleteTopicRequest;
-import com.amazonaws.services.sns.model.SubscribeRequest;
-import com.amazonaws.services.sns.model.SubscribeResult;
-import com.amazonaws.services.sns.model.UnsubscribeRequest;
-import com.amazonaws.services.sqs.AmazonSQSClient;
-import com.amazonaws.services.sqs.model.CreateQueueRequest;
-import com.amazonaws.services.sqs.model.CreateQueueResult;
-import com.amazonaws.services.sqs.model.DeleteQueueRequest;
-import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
-import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
-import com.amazonaws.services.sqs.model.Message;
-import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
-import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
 
 public class GlacierOperations {
 
   /**
-   * Object containing AmazonGlacier client
+   * Objects used to be notified of completed jobs. The topic is shared, the
+   * queue name is completed with the id of the installation
    */
-  private static AmazonGlacierClient client;
+  public static String sqsQueueName = "GlacierQueue4ListOperations";
+  public static String snsTopicName = "GlacierNS4ListOperations";
+  public static File jobStateFile = new File(".glacier-jobs");
+  private static JobTracker jobTracker;
 
   /**
-   * Objects to handle Amazon SQS
+   * Objects used while inventoring vaults, fileName being the suffix of the local catalogs
+   * and sleepTime the seconds between two checks of a job that was not notified
    */
-  public static AmazonSQSClient sqsClient;
-  public static String sqsQueueName = "GlacierQueue4ListOperations";
-  public static String sqsQueueARN;
-  public static String sqsQueueURL;
+  public static String fileName = ".catalog";
+  public static long sleepTime = 600; 
 
   /**
-   * Object containing Amazon SNS client
+   * Objects used while uploading archives in several parts
    */
-  public static AmazonSNSClient snsClient;
-  public static String snsTopicName = "GlacierNS4ListOperations";
-  public static String snsTopicARN;
-  public static String snsSubscriptionARN;
+  public static long multipartThreshold = 100L * 1024 * 1024;
+  public static long partSize = MultipartUploader.DEFAULT_PART_SIZE;
+  public static int uploadThreads = 4;
+  public static File journalDirectory = new File(".glacier-journal");
 
   /**
-   * Objects used while inventoring vaults
+   * Objects used to compress archives while they are uploaded, and to restore
+   * the original content of compressed archives once they are retrieved
    */
-  public static String fileName = "-inventory";
-  public static long sleepTime = 600; 
+  public static boolean compressUploads = false;
+  public static int compressThreads = Runtime.getRuntime().availableProcessors();
+  public static int compressLevel = 6;
+  public static boolean decompressDownloads = true;
+
+  /**
+   * Key encrypting the archives on the client, null to upload them as they are
+   */
+  private static byte[] encryptionKey;
+
+  /**
+   * Objects used to skip files that did not change since their last upload
+   */
+  public static File fingerprintFile = new File(".glacier-fingerprints");
+  private static FingerprintIndex fingerprints;
+
+  /**
+   * Objects used to avoid describing a vault before every upload, vaultCacheFile
+   * being null to keep the descriptions in memory only
+   */
+  public static long vaultCacheTtl = VaultCache.DEFAULT_TTL;
+  public static File vaultCacheFile = new File(".glacier-vaults");
+  private static VaultCache vaultCache;
+
+  /**
+   * Objects used while backing up directories
+   */
+  public static int dirThreads = 4;
+  public static long smallFileSize = DirectoryBackup.DEFAULT_SMALL_FILE_SIZE;
+  public static long bundleSize = DirectoryBackup.DEFAULT_BUNDLE_SIZE;
+
+  /**
+   * Objects used while watching directories, see DirectoryWatcher
+   */
+  public static long watchQuietPeriod = 10 * 1000;
+  public static long watchMaxDelay = 300 * 1000;
+  public static long watchBatchSize = 256L * 1024 * 1024;
+  public static boolean watchInitialWalk = false;
 
   /**
-   * Object containing Amazon Credentials
+   * Objects used by the deduplicating chunk store
    */
-  private static AWSCredentials credentials;
+  public static File chunkDirectory = new File(".glacier-chunks");
+  public static int averageChunkSize = 1024 * 1024;
+  public static int packSize = 64 * 1024 * 1024;
 
   /**
-   * String containing region where operations will be performed
+   * Objects used while striping files over several vaults, see StripedBackup.
+   * Targets are comma separated region:vault pairs, a region alone standing
+   * for the vault given to the operation
    */
-  private static String region = "us-east-1";
+  public static String stripeTargets = "";
+  public static long stripeSize = StripedBackup.DEFAULT_STRIPE_SIZE;
+  public static int stripeCopies = 1;
+  public static File stripeDirectory = new File(".glacier-stripes");
+
+  /**
+   * Configuration read last, given to the operations of the other regions
+   */
+  private static Properties configuration = new Properties();
+
+  /**
+   * Objects used while retrieving archives in several ranges
+   */
+  public static long rangeSize = RangedDownloader.DEFAULT_RANGE_SIZE;
+  public static int downloadThreads = 4;
+
+  /**
+   * Objects used while deleting archives in bulk, see BulkDeleter
+   */
+  public static int deleteThreads = 16;
+  public static long deletesPerSecond = 0;
+  public static boolean deleteDryRun = false;
+
+  /**
+   * Objects used while restoring archives in bulk, see BulkRestorer
+   */
+  public static File restoreDirectory = new File("restore");
+  public static int restoreThreads = 4;
+  public static long restoreJobsPerSecond = 0;
+
+  /**
+   * Objects pacing the transfers, see TransferController. Rates are in bytes
+   * per second, 0 meaning no cap, and apply to each direction
+   */
+  public static boolean adaptiveTransfers = true;
+  public static long maxBytesPerSecond = 0;
+  public static String officeHours = "";
+  public static String officeDays = "MON-FRI";
+  public static long officeBytesPerSecond = 0;
+
+  /**
+   * Object retrying the calls failing with transient errors
+   */
+  public static RetryPolicy retryPolicy = new RetryPolicy(RetryPolicy.DEFAULT_MAX_ATTEMPTS,
+      RetryPolicy.DEFAULT_BASE_DELAY, RetryPolicy.DEFAULT_MAX_DELAY);
+
+  /**
+   * Object implementing the Glacier calls used by the transfer engines, and
+   * the service it decorates
+   */
+  private static GlacierService service;
+  private static GlacierService baseService;
+
+  /**
+   * Object computing tree hashes on all available processors
+   */
+  private static TreeHashCalculator hashCalculator = new TreeHashCalculator();
+
+  /**
+   * Object holding the Amazon clients shared by all operations
+   */
+  private static GlacierClients clients;
 
   /**
    * Object in charged of performing all logging operations
@@ -113,19 +192,178 @@ public class GlacierOperations {
    * @param pArgs
    */
   public static void initialize(AWSCredentials pAWSCredentials, String pAWSRegion){
+    initialize(pAWSCredentials, pAWSRegion, new ClientConfiguration());
+  }
+
+  /**
+   * Initializes the necessary objects to perform operations, sharing one set
+   * of pooled clients between all of them
+   * @param pAWSCredentials
+   * @param pAWSRegion
+   * @param pConfiguration connection settings of the clients
+   */
+  public static void initialize(AWSCredentials pAWSCredentials, String pAWSRegion, ClientConfiguration pConfiguration){
     LOG.info("Setting AmazonWebServices credentials up.");
-    credentials = pAWSCredentials;
-    region = pAWSRegion;
+    initialize(new GlacierClients(pAWSCredentials, pAWSRegion, pConfiguration));
+  }
+
+  /**
+   * Initializes the necessary objects to perform operations with clients
+   * already set up, e.g. pointing to other endpoints
+   * @param pClients
+   */
+  public static void initialize(GlacierClients pClients){
+    if (clients != null)
+      clients.shutdown();
+    clients = pClients;
     LOG.info("Creating AmazonGlacierClient.");
-    client = new AmazonGlacierClient(credentials);
-    if (client == null)
-      throw new GlacierException("Error while creating client with \nAccessKey: " + credentials.getAWSAccessKeyId()
-                                  + "\nSecretKey: " + credentials.getAWSSecretKey());
-    client.setEndpoint("https://glacier." + region + ".amazonaws.com");
+    setService(new AmazonGlacierService(clients.getGlacierClient()));
+    vaultCache = null;
+  }
+
+  /**
+   * Releases the connections of the shared clients and stops tracking jobs
+   */
+  public static synchronized void shutdown(){
+    if (jobTracker != null)
+      jobTracker.close();
+    jobTracker = null;
+    if (clients != null)
+      clients.shutdown();
+    clients = null;
+  }
+
+  /**
+   * Reads the optional tuning parameters from the configuration file
+   * @param pConf
+   */
+  public static void configure(Properties pConf){
+    multipartThreshold = Long.parseLong(pConf.getProperty("glacier.upload.multipartThresholdMB",
+        String.valueOf(multipartThreshold / (1024 * 1024)))) * 1024 * 1024;
+    partSize = Long.parseLong(pConf.getProperty("glacier.upload.partSizeMB",
+        String.valueOf(partSize / (1024 * 1024)))) * 1024 * 1024;
+    uploadThreads = Integer.parseInt(pConf.getProperty("glacier.upload.threads", String.valueOf(uploadThreads)));
+    journalDirectory = new File(pConf.getProperty("glacier.journal.dir", journalDirectory.getPath()));
+    String fingerprintPath = pConf.getProperty("glacier.fingerprint.file", fingerprintFile == null ? "" : fingerprintFile.getPath()).trim();
+    fingerprintFile = fingerprintPath.isEmpty() ? null : new File(fingerprintPath);
+    dirThreads = Integer.parseInt(pConf.getProperty("glacier.putDir.threads", String.valueOf(dirThreads)));
+    smallFileSize = Long.parseLong(pConf.getProperty("glacier.putDir.smallFileKB",
+        String.valueOf(smallFileSize / 1024))) * 1024;
+    bundleSize = Long.parseLong(pConf.getProperty("glacier.putDir.bundleSizeMB",
+        String.valueOf(bundleSize / (1024 * 1024)))) * 1024 * 1024;
+    watchQuietPeriod = 1000 * Long.parseLong(pConf.getProperty("glacier.watch.quietSeconds", String.valueOf(watchQuietPeriod / 1000)));
+    watchMaxDelay = 1000 * Long.parseLong(pConf.getProperty("glacier.watch.maxDelaySeconds", String.valueOf(watchMaxDelay / 1000)));
+    watchBatchSize = Long.parseLong(pConf.getProperty("glacier.watch.batchSizeMB",
+        String.valueOf(watchBatchSize / (1024 * 1024)))) * 1024 * 1024;
+    watchInitialWalk = Boolean.parseBoolean(pConf.getProperty("glacier.watch.initialWalk", String.valueOf(watchInitialWalk)));
+    rangeSize = Long.parseLong(pConf.getProperty("glacier.download.rangeSizeMB",
+        String.valueOf(rangeSize / (1024 * 1024)))) * 1024 * 1024;
+    downloadThreads = Integer.parseInt(pConf.getProperty("glacier.download.threads", String.valueOf(downloadThreads)));
+    chunkDirectory = new File(pConf.getProperty("glacier.chunks.dir", chunkDirectory.getPath()));
+    stripeTargets = pConf.getProperty("glacier.stripe.targets", stripeTargets).trim();
+    stripeSize = Long.parseLong(pConf.getProperty("glacier.stripe.sizeMB", String.valueOf(stripeSize / (1024 * 1024)))) * 1024 * 1024;
+    stripeCopies = Integer.parseInt(pConf.getProperty("glacier.stripe.copies", String.valueOf(stripeCopies)));
+    stripeDirectory = new File(pConf.getProperty("glacier.stripe.dir", stripeDirectory.getPath()));
+    configuration = pConf;
+    averageChunkSize = Integer.parseInt(pConf.getProperty("glacier.chunks.avgSizeKB",
+        String.valueOf(averageChunkSize / 1024))) * 1024;
+    packSize = Integer.parseInt(pConf.getProperty("glacier.chunks.packSizeMB",
+        String.valueOf(packSize / (1024 * 1024)))) * 1024 * 1024;
+    jobStateFile = new File(pConf.getProperty("glacier.jobs.stateFile", jobStateFile.getPath()));
+    vaultCacheTtl = 1000 * Long.parseLong(pConf.getProperty("glacier.vaultCache.ttlSeconds", String.valueOf(vaultCacheTtl / 1000)));
+    String vaultCachePath = pConf.getProperty("glacier.vaultCache.file", vaultCacheFile == null ? "" : vaultCacheFile.getPath()).trim();
+    vaultCacheFile = vaultCachePath.isEmpty() ? null : new File(vaultCachePath);
+    vaultCache = null;
+    snsTopicName = pConf.getProperty("glacier.jobs.topic", snsTopicName);
+    sqsQueueName = pConf.getProperty("glacier.jobs.queuePrefix", sqsQueueName);
+    sleepTime = Long.parseLong(pConf.getProperty("glacier.jobs.pollSeconds", String.valueOf(sleepTime)));
+    compressUploads = Boolean.parseBoolean(pConf.getProperty("glacier.upload.compress", String.valueOf(compressUploads)));
+    compressThreads = Integer.parseInt(pConf.getProperty("glacier.upload.compressThreads", String.valueOf(compressThreads)));
+    compressLevel = Integer.parseInt(pConf.getProperty("glacier.upload.compressLevel", String.valueOf(compressLevel)));
+    decompressDownloads = Boolean.parseBoolean(pConf.getProperty("glacier.download.decompress", String.valueOf(decompressDownloads)));
+    String keyFile = pConf.getProperty("glacier.encryption.keyFile", "").trim();
+    try {
+      encryptionKey = keyFile.isEmpty() ? null : ArchiveCipher.readKey(new File(keyFile));
+    } catch (IOException e) {
+      throw new GlacierException("Unable to read encryption key: " + e.getMessage());
+    }
+    /** Rejects a key of the wrong length now rather than on the first upload */
+    if (encryptionKey != null)
+      getCipher();
+    String hashThreads = pConf.getProperty("glacier.hash.threads");
+    if (hashThreads != null)
+      hashCalculator = new TreeHashCalculator(new ForkJoinPool(Integer.parseInt(hashThreads)));
+    deleteThreads = Integer.parseInt(pConf.getProperty("glacier.delete.threads", String.valueOf(deleteThreads)));
+    deletesPerSecond = Long.parseLong(pConf.getProperty("glacier.delete.ratePerSecond", String.valueOf(deletesPerSecond)));
+    deleteDryRun = Boolean.parseBoolean(pConf.getProperty("glacier.delete.dryRun", String.valueOf(deleteDryRun)));
+    restoreDirectory = new File(pConf.getProperty("glacier.restore.dir", restoreDirectory.getPath()));
+    restoreThreads = Integer.parseInt(pConf.getProperty("glacier.restore.threads", String.valueOf(restoreThreads)));
+    restoreJobsPerSecond = Long.parseLong(pConf.getProperty("glacier.restore.jobsPerSecond", String.valueOf(restoreJobsPerSecond)));
+    adaptiveTransfers = Boolean.parseBoolean(pConf.getProperty("glacier.transfer.adaptive", String.valueOf(adaptiveTransfers)));
+    maxBytesPerSecond = Long.parseLong(pConf.getProperty("glacier.transfer.maxKBps",
+        String.valueOf(maxBytesPerSecond / 1024))) * 1024;
+    officeHours = pConf.getProperty("glacier.transfer.officeHours", officeHours).trim();
+    officeDays = pConf.getProperty("glacier.transfer.officeDays", officeDays).trim();
+    officeBytesPerSecond = Long.parseLong(pConf.getProperty("glacier.transfer.officeMaxKBps",
+        String.valueOf(officeBytesPerSecond / 1024))) * 1024;
+    retryPolicy = new RetryPolicy(
+        Integer.parseInt(pConf.getProperty("glacier.retry.maxAttempts", String.valueOf(retryPolicy.getMaxAttempts()))),
+        Long.parseLong(pConf.getProperty("glacier.retry.baseDelayMs", String.valueOf(RetryPolicy.DEFAULT_BASE_DELAY))),
+        Long.parseLong(pConf.getProperty("glacier.retry.maxDelayMs", String.valueOf(RetryPolicy.DEFAULT_MAX_DELAY))));
+    if (Boolean.parseBoolean(pConf.getProperty("glacier.metrics.jmx", "true")))
+      MetricsRegistry.DEFAULT.enableJmx();
+    String metricsFile = pConf.getProperty("glacier.metrics.file", "").trim();
+    if (!metricsFile.isEmpty())
+      MetricsRegistry.DEFAULT.startTextFile(new File(metricsFile),
+                                            Long.parseLong(pConf.getProperty("glacier.metrics.periodSeconds", "15")));
+    if (baseService != null)
+      setService(baseService);
+  }
+
+  /**
+   * Replaces the service used by the transfer engines, e.g. with a local stand-in.
+   * Its transfers are paced by one TransferController per direction, and its
+   * calls failing with transient errors are retried. A vault found missing is
+   * dropped from the vault cache
+   * @param pService
+   */
+  public static void setService(GlacierService pService){
+    baseService = pService;
+    GlacierService instrumented = new InstrumentedGlacierService(pService, MetricsRegistry.DEFAULT);
+    service = new CacheInvalidatingGlacierService(
+        new RetryingGlacierService(new ControlledGlacierService(instrumented, createController("uploads", uploadThreads),
+                                                                createController("downloads", downloadThreads)),
+                                   retryPolicy),
+        pVaultName -> getVaultCache().invalidate(pVaultName));
+  }
+
+  /**
+   * Creates the controller pacing the transfers of one direction
+   * @param pName
+   * @param pThreads threads transferring parts, the most parts in flight
+   * @return
+   */
+  private static TransferController createController(String pName, int pThreads){
+    final TransferController controller = new TransferController(pName, pThreads, adaptiveTransfers);
+    controller.setRateLimit(maxBytesPerSecond);
+    if (!officeHours.isEmpty())
+      controller.setOfficeHours(officeHours, officeDays, officeBytesPerSecond);
+    MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+    metrics.gauge("glacier_transfer_limit", "Parts allowed in flight", () -> controller.getLimit(), "direction", pName);
+    metrics.gauge("glacier_transfer_in_flight", "Parts in flight", () -> controller.getInFlight(), "direction", pName);
+    metrics.gauge("glacier_transfer_bytes_per_second", "Average throughput of the parts", () -> controller.getThroughput(),
+                  "direction", pName);
+    metrics.gauge("glacier_transfer_rate_limit_bytes_per_second", "Rate cap in force, 0 for none",
+                  () -> controller.getRateLimit(), "direction", pName);
+    metrics.gauge("glacier_transfer_throttled", "Parts throttled since the service was set", () -> controller.getThrottled(),
+                  "direction", pName);
+    return controller;
   }
 
   /**
-   * Method for getting a single archive from Amazon Glacier
+   * Method for getting a single archive from Amazon Glacier. The archive is
+   * downloaded in ranges and an interrupted retrieval resumes where it stopped.
+   * A chunk store manifest is restored from the packs it references.
    * @param pVaultName
    * @param pFileName
    * @return
@@ -134,8 +372,33 @@ public class GlacierOperations {
     LOG.info("Getting file " + pFileName);
     Boolean success = false;
     try {
-      ArchiveTransferManager atm = new ArchiveTransferManager(client, credentials);
-      atm.download(pVaultName, pFileName, new File(LOCAL_DIRECTORY + pFileName));
+      File manifest = new File(pFileName);
+      if (pFileName.endsWith(ChunkStore.MANIFEST_SUFFIX) && manifest.isFile()) {
+        String name = manifest.getName().substring(0, manifest.getName().length() - ChunkStore.MANIFEST_SUFFIX.length());
+        File target = new File(LOCAL_DIRECTORY + name.substring(0, name.lastIndexOf('.')));
+        final ExecutorService downloads = Executors.newFixedThreadPool(restoreThreads);
+        try {
+          ChunkStore.restore(manifest, target, new ChunkStore.PackRetriever() {
+            @Override
+            public CompletableFuture<File> retrieve(String pPackVault, String pArchiveId) throws IOException {
+              return retrievePack(pPackVault, pArchiveId, downloads);
+            }
+          });
+        } finally {
+          downloads.shutdownNow();
+        }
+        LOG.info("Restored file " + pFileName + " to " + target);
+      } else if (pFileName.endsWith(StripedBackup.MANIFEST_SUFFIX) && manifest.isFile()) {
+        File target = new File(LOCAL_DIRECTORY + manifest.getName().substring(0, manifest.getName().lastIndexOf('.',
+            manifest.getName().length() - StripedBackup.MANIFEST_SUFFIX.length() - 1)));
+        restoreStriped(manifest, target);
+        LOG.info("Restored file " + pFileName + " to " + target);
+      } else {
+        File target = new File(LOCAL_DIRECTORY + pFileName);
+        decodeArchive(target, retrieveArchive(pVaultName, resolveArchiveId(pVaultName, pFileName), target));
+        LOG.info("Retrieved file " + pFileName + " to " + target);
+      }
+      success = true;
     } catch (Exception e)
     {
       LOG.error("Error retrieving file " + pFileName + ".");
@@ -144,6 +407,221 @@ public class GlacierOperations {
     return success;
   }
 
+  /**
+   * Retrieves an archive into a local file, resuming an interrupted retrieval
+   * @param pVaultName
+   * @param pArchiveId
+   * @param pTarget
+   * @return description of the archive, which tells how to decode it
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static String retrieveArchive(String pVaultName, String pArchiveId, File pTarget)
+      throws IOException, InterruptedException {
+    RetrievalState state = RetrievalState.open(pTarget);
+    try {
+      DescribeJobResult job = waitForRetrieval(pVaultName, pArchiveId, state);
+      String description = download(pVaultName, job, pTarget, state);
+      state = null;
+      return description;
+    } finally {
+      try {if (state != null) state.close();}  catch (Exception e) {}
+    }
+  }
+
+  /**
+   * Downloads the output of a completed retrieval job, deleting its state once done
+   * @param pVaultName
+   * @param pJob
+   * @param pTarget
+   * @param pState
+   * @return description of the archive
+   * @throws IOException
+   */
+  private static String download(String pVaultName, DescribeJobResult pJob, File pTarget, RetrievalState pState)
+      throws IOException {
+    RangedDownloader downloader = new RangedDownloader(service, rangeSize, downloadThreads);
+    downloader.setRetryPolicy(retryPolicy);
+    String description = downloader.download(pVaultName, pJob.getJobId(), pJob.getArchiveSizeInBytes(),
+                                             pJob.getSHA256TreeHash(), pTarget, pState);
+    pState.delete();
+    return description;
+  }
+
+  /**
+   * Method for streaming a single archive, e.g. to the standard output or a
+   * named pipe, without writing it to disk. Every range is checked against its
+   * tree hash before it reaches the channel, and the archive is decrypted and
+   * decompressed on the way. A stream that stops starts over, but reuses the
+   * retrieval job.
+   * @param pVaultName
+   * @param pFileName
+   * @param pSink
+   * @return
+   */
+  public static boolean streamArchive(String pVaultName, String pFileName, WritableByteChannel pSink){
+    LOG.info("Streaming file " + pFileName);
+    Boolean success = false;
+    try {
+      String archiveId = resolveArchiveId(pVaultName, pFileName);
+      if (!journalDirectory.isDirectory() && !journalDirectory.mkdirs())
+        throw new IOException("Unable to create " + journalDirectory);
+      File stateTarget = new File(journalDirectory, "stream-" + archiveId);
+      RetrievalState state = RetrievalState.open(stateTarget);
+      DescribeJobResult job;
+      try {
+        job = waitForRetrieval(pVaultName, archiveId, state);
+      } finally {
+        state.close();
+      }
+      RangedDownloader downloader = new RangedDownloader(service, rangeSize, downloadThreads);
+      downloader.setRetryPolicy(retryPolicy);
+      new ArchiveStreamer(downloader, encryptionKey, decompressDownloads).stream(pVaultName, job, pSink);
+      RetrievalState.open(stateTarget).delete();
+      success = true;
+    } catch (Exception e)
+    {
+      LOG.error("Error streaming file " + pFileName + ".");
+      LOG.error(e.getMessage());
+    }
+    return success;
+  }
+
+  /**
+   * Returns a local copy of a chunk pack, retrieving it unless a previous restore already did.
+   * The retrieval job is initiated before returning
+   * @param pVaultName
+   * @param pArchiveId
+   * @param pDownloads executor downloading the packs whose job completed
+   * @return future completed once the pack is local
+   * @throws IOException
+   */
+  private static CompletableFuture<File> retrievePack(final String pVaultName, String pArchiveId, Executor pDownloads)
+      throws IOException {
+    File packs = new File(chunkDirectory, "packs");
+    if (!packs.isDirectory() && !packs.mkdirs())
+      throw new IOException("Unable to create pack cache " + packs);
+    final File pack = new File(packs, pArchiveId);
+    if (pack.isFile() && !new File(pack.getPath() + ".retrieval").exists())
+      return CompletableFuture.completedFuture(pack);
+    String jobId;
+    RetrievalState state = RetrievalState.open(pack);
+    try {
+      jobId = startRetrieval(pVaultName, pArchiveId, state);
+    } finally {
+      state.close();
+    }
+    return getJobTracker().track(pVaultName, jobId).thenApplyAsync(pJob -> {
+      if (!"Succeeded".equals(pJob.getStatusCode()))
+        throw new GlacierException("Retrieval job " + pJob.getJobId() + " did not complete successfully.");
+      try {
+        RetrievalState packState = RetrievalState.open(pack);
+        String description;
+        try {
+          description = download(pVaultName, pJob, pack, packState);
+          packState = null;
+        } finally {
+          if (packState != null)
+            packState.close();
+        }
+        decodeArchive(pack, description);
+      } catch (IOException e) {
+        throw new GlacierException("Unable to retrieve pack " + pack + ": " + e.getMessage(), e);
+      }
+      return pack;
+    }, pDownloads);
+  }
+
+  /**
+   * Restores the original content of a retrieved archive in place, decrypting
+   * and then decompressing it as its description tells
+   * @param pFile
+   * @param pDescription
+   * @throws IOException
+   */
+  private static void decodeArchive(File pFile, String pDescription) throws IOException {
+    decodeArchive(pFile, pDescription, encryptionKey, decompressDownloads);
+  }
+
+  /**
+   * Restores the original content of a retrieved archive in place
+   * @param pFile
+   * @param pDescription description of the archive, recording its encoding, null if unknown
+   * @param pKey key decrypting the archive, null if none is configured
+   * @param pDecompress false to keep a compressed archive as it is
+   * @throws IOException
+   */
+  static void decodeArchive(File pFile, String pDescription, byte[] pKey, boolean pDecompress) throws IOException {
+    if (ArchiveEncoding.isEncrypted(pDescription)) {
+      if (pKey == null)
+        throw new GlacierException(pFile + " is encrypted, set glacier.encryption.keyFile to decrypt it.");
+      File encrypted = new File(pFile.getPath() + ".encrypted");
+      Files.move(pFile.toPath(), encrypted.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      ArchiveCipher.decrypt(pKey, encrypted, pFile);
+      encrypted.delete();
+    }
+    if (pDecompress && ArchiveEncoding.isCompressed(pDescription)) {
+      File compressed = new File(pFile.getPath() + ".compressed");
+      Files.move(pFile.toPath(), compressed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      StreamingUploadPipeline.decompress(compressed, pFile);
+      compressed.delete();
+    }
+  }
+
+  /**
+   * Returns the cipher encrypting the archives, or null when no key is configured
+   * @return
+   */
+  public static ArchiveCipher getCipher() {
+    return encryptionKey == null ? null : new ArchiveCipher(encryptionKey, partSize);
+  }
+
+  /**
+   * Waits for the job retrieving an archive, reusing the job recorded by a
+   * previous attempt while it is still available
+   * @param pVaultName
+   * @param pArchiveId
+   * @param pState
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static DescribeJobResult waitForRetrieval(String pVaultName, String pArchiveId, RetrievalState pState)
+      throws IOException, InterruptedException {
+    String jobId = startRetrieval(pVaultName, pArchiveId, pState);
+    DescribeJobResult job = getJobTracker().await(pVaultName, jobId);
+    if (!"Succeeded".equals(job.getStatusCode()))
+      throw new GlacierException("Retrieval job " + jobId + " did not complete successfully.");
+    return job;
+  }
+
+  /**
+   * Returns the job retrieving an archive, reusing the one recorded in the
+   * state of the retrieval while it is still available
+   * @param pVaultName
+   * @param pArchiveId
+   * @param pState
+   * @return job id
+   * @throws IOException
+   */
+  private static String startRetrieval(String pVaultName, String pArchiveId, RetrievalState pState)
+      throws IOException {
+    String jobId = pState.getJobId(pArchiveId);
+    if (jobId != null) {
+      try {
+        if (!"Failed".equals(service.describeJob(pVaultName, jobId).getStatusCode())) {
+          LOG.info("Resuming retrieval with Jobid = " + jobId);
+          return jobId;
+        }
+      } catch (ResourceNotFoundException e) {
+        LOG.info("Retrieval job " + jobId + " has expired.");
+      }
+    }
+    jobId = getJobTracker().initiateArchiveRetrieval(pVaultName, pArchiveId);
+    pState.recordJob(pArchiveId, jobId);
+    return jobId;
+  }
+
   /**
    * Method used for deleting a file from a specific vault
    * @param pVaultName
@@ -151,18 +629,85 @@ public class GlacierOperations {
    * @return
    */
   public static boolean deleteArchive(String pVaultName, String pFileName){
-    LOG.info("Getting file " + pFileName);
+    LOG.info("Deleting file " + pFileName);
     Boolean success = false;
     try {
       // Delete the archive.
-      client.deleteArchive(new DeleteArchiveRequest()
-          .withVaultName(pVaultName)
-          .withArchiveId(pFileName));
+      service.deleteArchive(pVaultName, resolveArchiveId(pVaultName, pFileName));
       LOG.info("Deleted archive successfully.");
       success = true;
     } catch (Exception e)
     {
-      LOG.error("Error retrieving file " + pFileName + ".");
+      LOG.error("Error deleting file " + pFileName + ".");
+      LOG.error(e.getMessage());
+    }
+    return success;
+  }
+
+  /**
+   * Method used for deleting the archives of a vault matching a filter, see
+   * BulkDeleter. The local catalog is retrieved first if there is none.
+   * @param pVaultName
+   * @param pSpec filter, e.g. olderThanDays=365,prefix=logs/, or @file listing archive ids
+   * @return
+   */
+  public static boolean deleteArchives(String pVaultName, String pSpec){
+    Boolean success = false;
+    try {
+      BulkDeleter deleter = new BulkDeleter(service, pVaultName, deleteThreads, deletesPerSecond,
+                                            new File(journalDirectory, "delete-" + pVaultName + ".log"));
+      deleter.setDryRun(deleteDryRun);
+      BulkDeleter.Summary summary;
+      if (pSpec.startsWith("@")) {
+        summary = deleter.delete(new File(pSpec.substring(1)));
+      } else {
+        ArchiveFilter filter = ArchiveFilter.parse(pSpec);
+        File catalogFile = getCatalogFile(pVaultName);
+        if (!catalogFile.exists() && !list(pVaultName))
+          throw new GlacierException("No catalog of vault " + pVaultName);
+        summary = deleter.delete(ArchiveCatalog.open(catalogFile), filter);
+      }
+      success = summary.getFailed() == 0;
+    } catch (Exception e) {
+      LOG.error("Error deleting archives from " + pVaultName + ".");
+      LOG.error(e.getMessage());
+    }
+    return success;
+  }
+
+  /**
+   * Method used for restoring the archives of a vault matching a filter into
+   * restoreDirectory, see BulkRestorer. All their retrieval jobs are initiated
+   * at once. The local catalog is retrieved first if there is none.
+   * @param pVaultName
+   * @param pSpec filter, e.g. prefix=photos/, or @file listing archive ids
+   * @return
+   */
+  public static boolean restoreArchives(String pVaultName, String pSpec){
+    Boolean success = false;
+    try {
+      List<CatalogEntry> entries;
+      if (pSpec.startsWith("@")) {
+        entries = new ArrayList<CatalogEntry>();
+        for (String line : Files.readAllLines(Paths.get(pSpec.substring(1)), StandardCharsets.UTF_8)) {
+          if (!line.trim().isEmpty())
+            entries.add(new CatalogEntry(line.trim(), "", 0, 0, ""));
+        }
+      } else {
+        ArchiveFilter filter = ArchiveFilter.parse(pSpec);
+        File catalogFile = getCatalogFile(pVaultName);
+        if (!catalogFile.exists() && !list(pVaultName))
+          throw new GlacierException("No catalog of vault " + pVaultName);
+        entries = filter.select(ArchiveCatalog.open(catalogFile));
+      }
+      BulkRestorer restorer = new BulkRestorer(service, getJobTracker(), pVaultName, restoreDirectory, restoreThreads,
+                                               restoreJobsPerSecond, new File(journalDirectory, "restore-" + pVaultName + ".log"));
+      restorer.setRanges(rangeSize, downloadThreads);
+      restorer.setRetryPolicy(retryPolicy);
+      restorer.setDecoding(encryptionKey, decompressDownloads);
+      success = restorer.restore(entries).getFailed() == 0;
+    } catch (Exception e) {
+      LOG.error("Error restoring archives from " + pVaultName + ".");
       LOG.error(e.getMessage());
     }
     return success;
@@ -175,31 +720,15 @@ public class GlacierOperations {
    */
   public static boolean list(String pVaultName){
     Boolean success = false;
-    client = new AmazonGlacierClient(credentials);
-    client.setEndpoint("https://glacier." + region + ".amazonaws.com");
-    sqsClient = new AmazonSQSClient(credentials);
-    sqsClient.setEndpoint("https://sqs." + region + ".amazonaws.com");
-    snsClient = new AmazonSNSClient(credentials);
-    snsClient.setEndpoint("https://sns." + region + ".amazonaws.com");
-    
     try {
-        LOG.info("Setting AmazonSQS service up.");
-        setupSQS();
-
-        LOG.info("Setting AmazonSNS service up.");
-        setupSNS();
-
-        String jobId = initiateJobRequest(pVaultName);
-        LOG.info("Job has initiated with Jobid = " + jobId);
-        
-        success = waitForJobToComplete(jobId, sqsQueueURL);
-        if (!success) { throw new Exception("Job did not complete successfully."); }
-        
-        LOG.info("Starting download of inventory file from vault " + pVaultName + ".");
-        downloadJobOutput(jobId, pVaultName);
+        JobTracker tracker = getJobTracker();
+        String jobId = tracker.initiateInventoryRetrieval(pVaultName);
+        DescribeJobResult job = tracker.await(pVaultName, jobId);
+        if (!"Succeeded".equals(job.getStatusCode())) { throw new Exception("Job did not complete successfully."); }
 
-        LOG.info("Unsubscribing from created services.");
-        cleanUp();
+        LOG.info("Starting download of inventory file from vault " + pVaultName + ".");
+        downloadJobOutput(job, pVaultName);
+        success = true;
 
     } catch (Exception e) {
         LOG.error("Inventory retrieval failed while listing valut " + pVaultName + ".");
@@ -209,190 +738,406 @@ public class GlacierOperations {
   }
 
   /**
-   * Method used to download the inventory obtained from a specific vault
-   * @param jobId
+   * Returns the tracker of the jobs initiated by this installation, creating it
+   * on first use. Jobs are only polled when notifications cannot be set up.
+   * @return
+   * @throws IOException
+   */
+  public static synchronized JobTracker getJobTracker() throws IOException {
+    if (jobTracker == null) {
+      jobTracker = new JobTracker(service, jobStateFile, sleepTime * 1000);
+      jobTracker.setRetryPolicy(retryPolicy);
+      if (clients != null) {
+        try {
+          jobTracker.enableNotifications(clients.getSqsClient(), clients.getSnsClient(), snsTopicName, sqsQueueName);
+        } catch (AmazonClientException e) {
+          LOG.warn("Job notifications unavailable, polling jobs every " + sleepTime + " seconds: " + e.getMessage());
+        }
+      }
+    }
+    return jobTracker;
+  }
+
+  /**
+   * Method used to download the inventory obtained from a specific vault and
+   * to parse it, as it arrives, into the local catalog of the vault
+   * @param pJob
    * @param pVaultName
    * @throws IOException
    */
-  private static void downloadJobOutput(String jobId, String pVaultName) throws IOException {
+  private static void downloadJobOutput(DescribeJobResult pJob, String pVaultName) throws IOException {
     
-    GetJobOutputRequest getJobOutputRequest = new GetJobOutputRequest()
-        .withVaultName(pVaultName)
-        .withJobId(jobId);
-    GetJobOutputResult getJobOutputResult = client.getJobOutput(getJobOutputRequest);
-
-    LOG.info("Downloading inventory to " + pVaultName + fileName);
-    FileWriter fstream = new FileWriter(pVaultName + fileName);
-    BufferedWriter out = new BufferedWriter(fstream);
-    BufferedReader in = new BufferedReader(new InputStreamReader(getJobOutputResult.getBody()));            
-    String inputLine;
+    GetJobOutputResult getJobOutputResult = service.getJobOutput(pVaultName, pJob.getJobId(), 0,
+                                                                 pJob.getInventorySizeInBytes() - 1);
+
+    File catalogFile = getCatalogFile(pVaultName);
+    LOG.info("Downloading inventory to " + catalogFile);
+    InputStream in = getJobOutputResult.getBody();
     try {
-        while ((inputLine = in.readLine()) != null) {
-            out.write(inputLine);
-        }
-    }catch(IOException e) {
-        LOG.error("Error downloading inventory file from " + pVaultName);
-        throw new AmazonClientException("Unable to save archive", e);
-    }finally{
-        try {in.close();}  catch (Exception e) {}
-        try {out.close();}  catch (Exception e) {}             
+      ArchiveCatalog catalog = ArchiveCatalog.build(catalogFile, in);
+      LOG.info("Retrieved inventory of " + catalog.size() + " archives to " + catalogFile);
+    } catch(IOException e) {
+      LOG.error("Error downloading inventory file from " + pVaultName);
+      throw new AmazonClientException("Unable to save inventory", e);
+    } finally {
+      try {in.close();}  catch (Exception e) {}
     }
-    LOG.info("Retrieved inventory to " + pVaultName + fileName);
-}
+  }
+
+  /**
+   * Date appended to the file name in archive descriptions, as written by Date.toString()
+   */
+  private static final Pattern UPLOAD_DATE = Pattern.compile("[A-Z][a-z]{2} [A-Z][a-z]{2} \\d{2} \\d{2}:\\d{2}:\\d{2} \\S+ \\d{4}");
 
   /**
-   * Cleans subscriptions up
+   * Returns the name an archive description was made of, without the upload
+   * date and the encoding appended to it
+   * @param pDescription
+   * @return
    */
-  private static void cleanUp() {
-    snsClient.unsubscribe(new UnsubscribeRequest(snsSubscriptionARN));
-    snsClient.deleteTopic(new DeleteTopicRequest(snsTopicARN));
-    sqsClient.deleteQueue(new DeleteQueueRequest(sqsQueueURL));
+  public static String getArchiveName(String pDescription) {
+    String name = ArchiveEncoding.strip(pDescription);
+    Matcher date = UPLOAD_DATE.matcher(name);
+    for (int start = 0; start < name.length(); start++) {
+      if (date.region(start, name.length()).matches())
+        return name.substring(0, start);
+    }
+    return name;
   }
 
   /**
-   * Method which helps us waiting for the job to be completed.
-   * @param jobId
-   * @param sqsQueueUrl
+   * Returns the file holding the local catalog of a vault
+   * @param pVaultName
    * @return
-   * @throws InterruptedException
-   * @throws JsonParseException
-   * @throws IOException
    */
-  private static Boolean waitForJobToComplete(String jobId, String sqsQueueUrl) throws InterruptedException, JsonParseException, IOException {
-    
-    Boolean messageFound = false;
-    Boolean jobSuccessful = false;
-    ObjectMapper mapper = new ObjectMapper();
-    JsonFactory factory = mapper.getJsonFactory();
-    
-    while (!messageFound) {
-        List<Message> msgs = sqsClient.receiveMessage(
-           new ReceiveMessageRequest(sqsQueueUrl).withMaxNumberOfMessages(10)).getMessages();
-
-        if (msgs.size() > 0) {
-            for (Message m : msgs) {
-                JsonParser jpMessage = factory.createJsonParser(m.getBody());
-                JsonNode jobMessageNode = mapper.readTree(jpMessage);
-                String jobMessage = jobMessageNode.get("Message").getTextValue();
-
-                JsonParser jpDesc = factory.createJsonParser(jobMessage);
-                JsonNode jobDescNode = mapper.readTree(jpDesc);
-                String retrievedJobId = jobDescNode.get("JobId").getTextValue();
-                String statusCode = jobDescNode.get("StatusCode").getTextValue();
-                if (retrievedJobId.equals(jobId)) {
-                    messageFound = true;
-                    if (statusCode.equals("Succeeded")) {
-                        jobSuccessful = true;
-                    }
-                }
-            }
-        } else {
-          Thread.sleep(sleepTime * 1000);
-          LOG.info("Waiting for another " + sleepTime/60 + " extra minutes");
-        }
+  public static File getCatalogFile(String pVaultName) {
+    return new File(LOCAL_DIRECTORY + pVaultName + fileName);
+  }
+
+  /**
+   * Resolves a name into an archive id using the local catalog of the vault.
+   * Ids are returned as they are, names match the descriptions made of the
+   * name followed by the upload date and the encoding if any, so that foo does
+   * not match foo2, and the most recent archive wins.
+   * @param pVaultName
+   * @param pName archive id or file name
+   * @return
+   */
+  public static String resolveArchiveId(String pVaultName, String pName) {
+    File catalogFile = getCatalogFile(pVaultName);
+    if (!catalogFile.exists())
+      return pName;
+    try {
+      ArchiveCatalog catalog = ArchiveCatalog.open(catalogFile);
+      if (catalog.findById(pName) != null)
+        return pName;
+      CatalogEntry latest = null;
+      for (CatalogEntry entry : catalog.findByDescriptionPrefix(pName)) {
+        String described = ArchiveEncoding.strip(entry.getDescription());
+        if (described.length() < pName.length() || !UPLOAD_DATE.matcher(described.substring(pName.length())).matches())
+          continue;
+        if (latest == null || entry.getCreationDate() > latest.getCreationDate())
+          latest = entry;
       }
-    return (messageFound && jobSuccessful);
+      if (latest == null)
+        return pName;
+      LOG.info("Resolved " + pName + " to archive " + latest.getArchiveId() + " (" + latest.getDescription() + ")");
+      return latest.getArchiveId();
+    } catch (IOException e) {
+      LOG.warn("Unable to read catalog " + catalogFile + ": " + e.getMessage());
+      return pName;
+    }
   }
 
   /**
-   * Method that initiates the inventory job
+   * Method which puts an archive, in several parts when it is big enough
    * @param pVaultName
+   * @param pFilePath
    * @return
    */
-  private static String initiateJobRequest(String pVaultName) {
-    /** Setting parameters for inventory retrieval using the notification service */
-    JobParameters jobParameters = new JobParameters()
-        .withType("inventory-retrieval")
-        .withSNSTopic(snsTopicARN);
+  public static boolean putArchive(String pVaultName, String pFilePath){
+    String pFileName = pFilePath.substring(pFilePath.lastIndexOf("/")+1, pFilePath.length());
+    boolean uploadResult = false;
+    File file = new File(pFilePath);
+
+    try {
+      String unchanged = findUnchanged(pVaultName, file);
+      if (unchanged != null) {
+        LOG.info(pFileName + " is unchanged since archive " + unchanged + ", skipping upload.");
+        return true;
+      }
+
+      if (getVaultDescription(pVaultName) == null)
+        createVault(pVaultName);
+
+      long size = file.length();
+      long lastModified = file.lastModified();
+      UploadedArchive archive = uploadArchive(pVaultName, pFileName + (new Date()), file);
+      LOG.info("Archive ID: " + archive.getArchiveId());
+      recordFingerprint(pVaultName, file, size, lastModified, archive.getContentTreeHash(), archive.getArchiveId());
+      uploadResult = true;
+    } catch (Exception e){
+      throw new GlacierException("Upload of " + pFileName + " failed: " + e.getMessage(), e);
+    }
+
+    return uploadResult;
+  }
+
+  /**
+   * Uploads a file to an existing vault, in several parts when it is big enough
+   * @param pVaultName
+   * @param pDescription
+   * @param pFile
+   * @return the new archive
+   * @throws IOException
+   */
+  public static UploadedArchive uploadArchive(String pVaultName, String pDescription, File pFile) throws IOException {
+    ArchiveUploader uploader = new ArchiveUploader(service, partSize, uploadThreads, hashCalculator, journalDirectory);
+    uploader.setMultipartThreshold(multipartThreshold);
+    if (compressUploads)
+      uploader.setCompression(compressThreads, compressLevel);
+    uploader.setCipher(getCipher());
+    return uploader.upload(pVaultName, pDescription, pFile);
+  }
 
-    /** Creating job initiator request */
-    InitiateJobRequest request = new InitiateJobRequest()
-        .withVaultName(pVaultName)
-        .withJobParameters(jobParameters);
+  /**
+   * Returns the archive already holding the current content of a file, or
+   * null if the file is new or has changed since it was last uploaded. Files
+   * whose modification time changed but not their size are hashed to tell.
+   * @param pVaultName
+   * @param pFile
+   * @return
+   * @throws IOException
+   */
+  public static String findUnchanged(String pVaultName, File pFile) throws IOException {
+    FingerprintIndex index = getFingerprints();
+    if (index == null)
+      return null;
+    String key = FingerprintIndex.key(pVaultName, pFile);
+    FingerprintIndex.Fingerprint fingerprint = index.get(key);
+    long size = pFile.length();
+    long lastModified = pFile.lastModified();
+    if (fingerprint == null || fingerprint.getSize() != size)
+      return null;
+    if (fingerprint.getLastModified() == lastModified)
+      return fingerprint.getArchiveId();
+    if (fingerprint.getTreeHash() == null
+        || !fingerprint.getTreeHash().equals(hashCalculator.calculate(pFile, partSize).getRootChecksum()))
+      return null;
+    index.put(key, new FingerprintIndex.Fingerprint(size, lastModified, fingerprint.getTreeHash(), fingerprint.getArchiveId()));
+    return fingerprint.getArchiveId();
+  }
 
-    /** Obtaining job response */
-    InitiateJobResult response = client.initiateJob(request);
+  /**
+   * Records the state a file had when it was uploaded
+   * @param pVaultName
+   * @param pFile
+   * @param pSize size before the upload started
+   * @param pLastModified modification time before the upload started
+   * @param pTreeHash
+   * @param pArchiveId
+   * @throws IOException
+   */
+  public static void recordFingerprint(String pVaultName, File pFile, long pSize, long pLastModified,
+                                       String pTreeHash, String pArchiveId) throws IOException {
+    FingerprintIndex index = getFingerprints();
+    if (index != null)
+      index.put(FingerprintIndex.key(pVaultName, pFile), new FingerprintIndex.Fingerprint(pSize, pLastModified, pTreeHash, pArchiveId));
+  }
 
-    /** Returns job response id */
-    return response.getJobId();
+  /**
+   * Opens the fingerprint index on first use, it is disabled when no file is configured
+   * @return
+   * @throws IOException
+   */
+  private static synchronized FingerprintIndex getFingerprints() throws IOException {
+    if (fingerprints == null && fingerprintFile != null)
+      fingerprints = FingerprintIndex.open(fingerprintFile);
+    return fingerprints;
   }
 
   /**
-   * Method for setting up Amazon SNS
+   * Method which puts every file below a directory, packing small files into bundles
+   * @param pVaultName
+   * @param pDirPath
+   * @return
    */
-  private static void setupSNS() {
-    /** Creating notification create request */
-    CreateTopicRequest request = new CreateTopicRequest().withName(snsTopicName);
-    CreateTopicResult result = snsClient.createTopic(request);
-    snsTopicARN = result.getTopicArn();
+  public static boolean putDir(String pVaultName, String pDirPath){
+    File root = new File(pDirPath);
+    if (!root.isDirectory())
+      throw new GlacierException(pDirPath + " is not a directory.");
 
-    /** Creating a subscription request for the notification service */
-    SubscribeRequest request2 = new SubscribeRequest()
-        .withTopicArn(snsTopicARN)
-        .withEndpoint(sqsQueueARN)
-        .withProtocol("sqs");
-    SubscribeResult result2 = snsClient.subscribe(request2);
+    if (getVaultDescription(pVaultName) == null)
+      createVault(pVaultName);
 
-    /** Obtaining the subscription result */
-    snsSubscriptionARN = result2.getSubscriptionArn();
+    File index = DirectoryBackup.getIndexFile(new File(LOCAL_DIRECTORY), pVaultName, root);
+    DirectoryBackup backup = new DirectoryBackup(pVaultName, dirThreads, smallFileSize, bundleSize);
+    try {
+      return backup.backup(root, index);
+    } catch (IOException e) {
+      throw new GlacierException("Backup of " + pDirPath + " failed: " + e.getMessage());
+    }
   }
 
   /**
-   * Method to setup Amazon SQS service
+   * Method which backs up directories continuously, uploading the files that
+   * change until the process is stopped
+   * @param pVaultName
+   * @param pDirPaths comma separated directories
+   * @return
    */
-  private static void setupSQS() {
-    /** Creating request for starting the queue */
-    CreateQueueRequest request = new CreateQueueRequest().withQueueName(sqsQueueName);
-    CreateQueueResult result = sqsClient.createQueue(request);  
-    sqsQueueURL = result.getQueueUrl();
+  public static boolean watchDirs(String pVaultName, String pDirPaths){
+    Boolean success = false;
+    try {
+      final DirectoryWatcher watcher = createWatcher(pVaultName, pDirPaths);
+      final Thread main = Thread.currentThread();
+      Thread hook = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          watcher.stop();
+          try {
+            main.join(60 * 1000);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }, "glacier-watch-stop");
+      Runtime.getRuntime().addShutdownHook(hook);
+      watcher.run();
+      success = true;
+    } catch (Exception e) {
+      LOG.error("Error watching " + pDirPaths + ".");
+      LOG.error(e.getMessage());
+    }
+    return success;
+  }
 
-    /** Getting request attributes from createdqueue */
-    GetQueueAttributesRequest qRequest = new GetQueueAttributesRequest()
-        .withQueueUrl(sqsQueueURL)
-        .withAttributeNames("QueueArn");
-    
-    GetQueueAttributesResult qResult = sqsClient.getQueueAttributes(qRequest);
-    sqsQueueARN = qResult.getAttributes().get("QueueArn");
+  /**
+   * Creates a watcher of directories, creating the vault if needed
+   * @param pVaultName
+   * @param pDirPaths comma separated directories
+   * @return
+   * @throws IOException
+   */
+  public static DirectoryWatcher createWatcher(String pVaultName, String pDirPaths) throws IOException {
+    List<File> roots = new ArrayList<File>();
+    for (String path : pDirPaths.split(",")) {
+      if (!path.trim().isEmpty())
+        roots.add(new File(path.trim()));
+    }
+    if (getVaultDescription(pVaultName) == null)
+      createVault(pVaultName);
+    DirectoryWatcher watcher = new DirectoryWatcher(pVaultName, roots, watchQuietPeriod, watchMaxDelay, watchBatchSize,
+                                                    new File(LOCAL_DIRECTORY));
+    watcher.setInitialWalk(watchInitialWalk);
+    return watcher;
+  }
+
+  /**
+   * Method which puts a file in stripes spread over the vaults of
+   * glacier.stripe.targets, uploaded to all of them at the same time
+   * @param pVaultName vault of the targets naming a region only
+   * @param pFilePath
+   * @return
+   */
+  public static boolean putStriped(String pVaultName, String pFilePath){
+    File file = new File(pFilePath);
+    if (!file.isFile())
+      throw new GlacierException(pFilePath + " is not a file.");
+    if (stripeTargets.isEmpty())
+      throw new GlacierException("Set glacier.stripe.targets to the vaults to stripe over.");
+
+    List<StripedBackup.Target> targets = new ArrayList<StripedBackup.Target>();
+    Map<String, AsyncGlacierOperations> regions = new LinkedHashMap<String, AsyncGlacierOperations>();
+    try {
+      for (String spec : stripeTargets.split(",")) {
+        if (spec.trim().isEmpty())
+          continue;
+        String[] fields = spec.trim().split(":", 2);
+        String vault = fields.length > 1 && !fields[1].trim().isEmpty() ? fields[1].trim() : pVaultName;
+        targets.add(new StripedBackup.Target(fields[0].trim(), vault, getRegion(fields[0].trim(), regions)));
+      }
+      File manifest = new StripedBackup(targets, stripeSize, stripeCopies).backup(file, stripeDirectory);
+      LOG.info("Manifest: " + manifest);
+      return true;
+    } catch (Exception e) {
+      LOG.error("Error striping " + pFilePath + ": " + e.getMessage());
+      return false;
+    } finally {
+      for (AsyncGlacierOperations operations : regions.values())
+        operations.close();
+    }
+  }
 
-    /** Setting policies for performing actions inside the queue */
-    Policy sqsPolicy = 
-        new Policy().withStatements(
-                new Statement(Effect.Allow)
-                .withPrincipals(Principal.AllUsers)
-                .withActions(SQSActions.SendMessage)
-                .withResources(new Resource(sqsQueueARN)));
-    Map<String, String> queueAttributes = new HashMap<String, String>();
-    queueAttributes.put("Policy", sqsPolicy.toJson());
+  /**
+   * Rebuilds a striped file, retrieving its stripes from all their regions at the same time
+   * @param pManifest
+   * @param pTarget
+   * @throws IOException
+   */
+  private static void restoreStriped(File pManifest, File pTarget) throws IOException {
+    Map<String, AsyncGlacierOperations> regions = new LinkedHashMap<String, AsyncGlacierOperations>();
+    try {
+      for (String region : StripedBackup.getRegions(pManifest))
+        getRegion(region, regions);
+      StripedBackup.restore(pManifest, pTarget, regions);
+    } finally {
+      for (AsyncGlacierOperations operations : regions.values())
+        operations.close();
+    }
+  }
 
-    /** Setting queue with the configured attributes */
-    sqsClient.setQueueAttributes(new SetQueueAttributesRequest(sqsQueueURL, queueAttributes)); 
+  /**
+   * Returns the operations of a region, creating them on first use. Every
+   * region tracks its jobs in a state file of its own
+   * @param pRegion
+   * @param pRegions operations already created, by region
+   * @return
+   * @throws IOException
+   */
+  private static AsyncGlacierOperations getRegion(String pRegion, Map<String, AsyncGlacierOperations> pRegions)
+      throws IOException {
+    AsyncGlacierOperations operations = pRegions.get(pRegion);
+    if (operations != null)
+      return operations;
+    Properties conf = new Properties();
+    conf.putAll(configuration);
+    conf.setProperty("glacier.jobs.stateFile", jobStateFile.getPath() + "-" + pRegion);
+    /** The service given instead of clients, e.g. a LocalGlacierService, serves every region */
+    operations = clients == null ? new AsyncGlacierOperations(baseService, conf, null)
+        : AsyncGlacierOperations.create(clients.forRegion(pRegion), conf, null);
+    pRegions.put(pRegion, operations);
+    return operations;
   }
 
   /**
-   * Method which puts an archive in a single operation
-   * TODO A multi-part upload should be created
+   * Method which puts a new version of a file into the chunk store of a vault,
+   * uploading only the chunks the vault does not hold yet
    * @param pVaultName
    * @param pFilePath
    * @return
    */
-  public static boolean putArchive(String pVaultName, String pFilePath){
-    String pFileName = pFilePath.substring(pFilePath.lastIndexOf("/")+1, pFilePath.length());
-    boolean uploadResult = false;
+  public static boolean putChunked(String pVaultName, String pFilePath){
+    File file = new File(pFilePath);
+    if (!file.isFile())
+      throw new GlacierException(pFilePath + " is not a file.");
 
     if (getVaultDescription(pVaultName) == null)
       createVault(pVaultName);
 
-    LOG.info("Uploading " + pFileName + " in a single operation");
+    ChunkStore store = null;
     try {
-      ArchiveTransferManager atm = new ArchiveTransferManager(client, credentials);
-      UploadResult result = atm.upload(pVaultName, pFileName + (new Date()), new File(pFilePath));
-      LOG.info("Archive ID: " + result.getArchiveId());
-      uploadResult = true;
-    } catch (Exception e){
-      throw new GlacierException(e.getMessage());
+      store = new ChunkStore(service, pVaultName, chunkDirectory, averageChunkSize, packSize);
+      store.setCipher(getCipher());
+      File manifest = store.put(file);
+      LOG.info("Manifest: " + manifest);
+      return true;
+    } catch (IOException e) {
+      LOG.error("Error storing " + pFilePath + ": " + e.getMessage());
+      return false;
+    } finally {
+      try {if (store != null) store.close();}  catch (IOException e) {}
     }
-
-    return uploadResult;
   }
 
   /**
@@ -403,12 +1148,10 @@ public class GlacierOperations {
   public static boolean createVault(String pVaultName) {
     boolean success = false;
     LOG.info("Creating vault " + pVaultName);
-    CreateVaultRequest createVaultRequest = new CreateVaultRequest().withVaultName(pVaultName);
-    CreateVaultResult createVaultResult = client.createVault(createVaultRequest);
-    if (createVaultResult != null){
-      LOG.info("Created vault successfully: " + describeVault(pVaultName));
-      success = true;
-    }
+    service.createVault(pVaultName);
+    getVaultCache().invalidate(pVaultName);
+    LOG.info("Created vault successfully: " + pVaultName);
+    success = true;
     return success;
   }
 
@@ -420,12 +1163,12 @@ public class GlacierOperations {
   public static boolean deleteVault(String pVaultName) {
     boolean success = false;
     try {
-      DeleteVaultRequest request = new DeleteVaultRequest().withVaultName(pVaultName);
-      client.deleteVault(request);
+      service.deleteVault(pVaultName);
+      getVaultCache().invalidate(pVaultName);
       LOG.info("Deleted vault: " + pVaultName);
       success = true;
     } catch (Exception e) {
-      LOG.error(e.getMessage());
+      LOG.error("Error deleting vault " + pVaultName + ": " + e.getMessage());
     }
     return success;
   }
@@ -446,18 +1189,32 @@ public class GlacierOperations {
   }
 
   /**
-   * Method that returns the vault description of an specific vault name
+   * Method that returns the vault description of an specific vault name,
+   * served by the vault cache while it is recent enough
    * @param pVaultName
    * @return
    */
   public static DescribeVaultResult getVaultDescription(String pVaultName){
-    DescribeVaultResult describeVaultResult = null;
-    DescribeVaultRequest describeVaultRequest = new DescribeVaultRequest().withVaultName(pVaultName);
-    try{
-      describeVaultResult = client.describeVault(describeVaultRequest);
-    } catch(ResourceNotFoundException re){
+    DescribeVaultResult describeVaultResult = getVaultCache().get(pVaultName);
+    if (describeVaultResult == null)
       LOG.error("Vault " + pVaultName + " was not found. Please check its name.");
-    }
     return describeVaultResult;
   }
+
+  /**
+   * Creates the vault cache on first use
+   * @return
+   */
+  private static synchronized VaultCache getVaultCache(){
+    if (vaultCache == null) {
+      vaultCache = new VaultCache(pVaultName -> {
+        try {
+          return service.describeVault(pVaultName);
+        } catch (ResourceNotFoundException e) {
+          return null;
+        }
+      }, vaultCacheTtl, vaultCacheFile);
+    }
+    return vaultCache;
+  }
 }
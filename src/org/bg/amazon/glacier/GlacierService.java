@@ -0,0 +1,123 @@
+package org.bg.amazon.glacier;
+
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+
+/**
+ * Subset of the Amazon Glacier API used by the transfer engines. Keeping the
+ * engines behind this interface allows them to run against the real service
+ * as well as against a local stand-in.
+ */
+public interface GlacierService {
+
+  /**
+   * Creates a vault, nothing is done if it already exists
+   * @param pVaultName
+   */
+  void createVault(String pVaultName);
+
+  /**
+   * Deletes an empty vault
+   * @param pVaultName
+   */
+  void deleteVault(String pVaultName);
+
+  /**
+   * Describes a vault
+   * @param pVaultName
+   * @return
+   */
+  DescribeVaultResult describeVault(String pVaultName);
+
+  /**
+   * Starts a multipart upload
+   * @param pVaultName vault receiving the archive
+   * @param pDescription archive description
+   * @param pPartSize size of every part but the last one
+   * @return upload id
+   */
+  String initiateMultipartUpload(String pVaultName, String pDescription, long pPartSize);
+
+  /**
+   * Uploads a single part of a multipart upload
+   * @param pVaultName vault receiving the archive
+   * @param pUploadId upload id returned by initiateMultipartUpload
+   * @param pOffset offset of the part within the archive
+   * @param pBody part content, from its position to its limit
+   * @param pChecksum hex encoded tree hash of the part
+   * @return tree hash computed by the service
+   */
+  String uploadPart(String pVaultName, String pUploadId, long pOffset, ByteBuffer pBody, String pChecksum);
+
+  /**
+   * Completes a multipart upload
+   * @param pVaultName vault receiving the archive
+   * @param pUploadId upload id returned by initiateMultipartUpload
+   * @param pArchiveSize total size of the archive
+   * @param pChecksum hex encoded tree hash of the whole archive
+   * @return archive id
+   */
+  String completeMultipartUpload(String pVaultName, String pUploadId, long pArchiveSize, String pChecksum);
+
+  /**
+   * Aborts a multipart upload, discarding the parts already uploaded
+   * @param pVaultName vault receiving the archive
+   * @param pUploadId upload id returned by initiateMultipartUpload
+   */
+  void abortMultipartUpload(String pVaultName, String pUploadId);
+
+  /**
+   * Uploads an archive in a single request
+   * @param pVaultName vault receiving the archive
+   * @param pDescription archive description
+   * @param pBody archive content, from its position to its limit
+   * @param pChecksum hex encoded tree hash of the archive
+   * @return archive id
+   */
+  String uploadArchive(String pVaultName, String pDescription, ByteBuffer pBody, String pChecksum);
+
+  /**
+   * Deletes an archive
+   * @param pVaultName vault holding the archive
+   * @param pArchiveId archive to delete
+   */
+  void deleteArchive(String pVaultName, String pArchiveId);
+
+  /**
+   * Initiates a job retrieving an archive
+   * @param pVaultName vault holding the archive
+   * @param pArchiveId archive to retrieve
+   * @param pSnsTopic topic notified when the job completes, may be null
+   * @return job id
+   */
+  String initiateArchiveRetrieval(String pVaultName, String pArchiveId, String pSnsTopic);
+
+  /**
+   * Initiates a job retrieving the inventory of a vault
+   * @param pVaultName vault to inventory
+   * @param pSnsTopic topic notified when the job completes, may be null
+   * @return job id
+   */
+  String initiateInventoryRetrieval(String pVaultName, String pSnsTopic);
+
+  /**
+   * Describes a job
+   * @param pVaultName vault the job belongs to
+   * @param pJobId job to describe
+   * @return
+   */
+  DescribeJobResult describeJob(String pVaultName, String pJobId);
+
+  /**
+   * Gets a range of the output of a completed job
+   * @param pVaultName vault the job belongs to
+   * @param pJobId completed job
+   * @param pStart first byte of the range
+   * @param pEnd last byte of the range, inclusive
+   * @return output whose body must be closed by the caller
+   */
+  GetJobOutputResult getJobOutput(String pVaultName, String pJobId, long pStart, long pEnd);
+}
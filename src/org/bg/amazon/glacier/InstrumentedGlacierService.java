@@ -0,0 +1,157 @@
+package org.bg.amazon.glacier;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+
+/**
+ * GlacierService recording the latency and the errors of every call, and the
+ * bytes sent and received, in a MetricsRegistry. It wraps the service doing
+ * the calls, so every attempt of a retried call is recorded.
+ */
+public class InstrumentedGlacierService implements GlacierService {
+
+  private final GlacierService service;
+  private final MetricsRegistry metrics;
+  private final MetricsRegistry.Counter sent;
+  private final MetricsRegistry.Counter received;
+
+  /**
+   * Constructor for the InstrumentedGlacierService class
+   * @param pService service doing the calls
+   * @param pMetrics
+   */
+  public InstrumentedGlacierService(GlacierService pService, MetricsRegistry pMetrics) {
+    service = pService;
+    metrics = pMetrics;
+    sent = pMetrics.counter("glacier_sent_bytes_total", "Bytes of parts and archives uploaded");
+    received = pMetrics.counter("glacier_received_bytes_total", "Bytes of job outputs downloaded");
+  }
+
+  /**
+   * Runs a call, recording its latency, or its error
+   * @param pCall name of the call
+   * @param pAttempt
+   * @return
+   */
+  private <T> T record(String pCall, RetryPolicy.Attempt<T, RuntimeException> pAttempt) {
+    long start = System.nanoTime();
+    try {
+      T result = pAttempt.run();
+      metrics.histogram("glacier_call_seconds", "Latency of the Glacier calls", "call", pCall).recordSince(start);
+      return result;
+    } catch (RuntimeException e) {
+      metrics.counter("glacier_call_errors_total", "Glacier calls which failed", "call", pCall,
+                      "retryable", String.valueOf(RetryPolicy.isRetryable(e))).increment();
+      throw e;
+    }
+  }
+
+  @Override
+  public String initiateMultipartUpload(String pVaultName, String pDescription, long pPartSize) {
+    return record("initiateMultipartUpload", () -> service.initiateMultipartUpload(pVaultName, pDescription, pPartSize));
+  }
+
+  @Override
+  public String uploadPart(String pVaultName, String pUploadId, long pOffset, ByteBuffer pBody, String pChecksum) {
+    String checksum = record("uploadPart", () -> service.uploadPart(pVaultName, pUploadId, pOffset, pBody, pChecksum));
+    sent.add(pBody.remaining());
+    return checksum;
+  }
+
+  @Override
+  public String completeMultipartUpload(String pVaultName, String pUploadId, long pArchiveSize, String pChecksum) {
+    return record("completeMultipartUpload",
+        () -> service.completeMultipartUpload(pVaultName, pUploadId, pArchiveSize, pChecksum));
+  }
+
+  @Override
+  public void abortMultipartUpload(String pVaultName, String pUploadId) {
+    record("abortMultipartUpload", () -> {
+      service.abortMultipartUpload(pVaultName, pUploadId);
+      return null;
+    });
+  }
+
+  @Override
+  public String uploadArchive(String pVaultName, String pDescription, ByteBuffer pBody, String pChecksum) {
+    String archiveId = record("uploadArchive", () -> service.uploadArchive(pVaultName, pDescription, pBody, pChecksum));
+    sent.add(pBody.remaining());
+    return archiveId;
+  }
+
+  @Override
+  public void createVault(String pVaultName) {
+    record("createVault", () -> {
+      service.createVault(pVaultName);
+      return null;
+    });
+  }
+
+  @Override
+  public void deleteVault(String pVaultName) {
+    record("deleteVault", () -> {
+      service.deleteVault(pVaultName);
+      return null;
+    });
+  }
+
+  @Override
+  public DescribeVaultResult describeVault(String pVaultName) {
+    return record("describeVault", () -> service.describeVault(pVaultName));
+  }
+
+  @Override
+  public void deleteArchive(String pVaultName, String pArchiveId) {
+    record("deleteArchive", () -> {
+      service.deleteArchive(pVaultName, pArchiveId);
+      return null;
+    });
+  }
+
+  @Override
+  public String initiateArchiveRetrieval(String pVaultName, String pArchiveId, String pSnsTopic) {
+    return record("initiateArchiveRetrieval", () -> service.initiateArchiveRetrieval(pVaultName, pArchiveId, pSnsTopic));
+  }
+
+  @Override
+  public String initiateInventoryRetrieval(String pVaultName, String pSnsTopic) {
+    return record("initiateInventoryRetrieval", () -> service.initiateInventoryRetrieval(pVaultName, pSnsTopic));
+  }
+
+  @Override
+  public DescribeJobResult describeJob(String pVaultName, String pJobId) {
+    return record("describeJob", () -> service.describeJob(pVaultName, pJobId));
+  }
+
+  /**
+   * The latency recorded is the time to the first byte, the body is counted as it is read
+   */
+  @Override
+  public GetJobOutputResult getJobOutput(String pVaultName, String pJobId, long pStart, long pEnd) {
+    GetJobOutputResult result = record("getJobOutput", () -> service.getJobOutput(pVaultName, pJobId, pStart, pEnd));
+    result.setBody(new FilterInputStream(result.getBody()) {
+      @Override
+      public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0)
+          received.increment();
+        return value;
+      }
+
+      @Override
+      public int read(byte[] pBuffer, int pOffset, int pLength) throws IOException {
+        int count = super.read(pBuffer, pOffset, pLength);
+        if (count > 0)
+          received.add(count);
+        return count;
+      }
+    });
+    return result;
+  }
+}
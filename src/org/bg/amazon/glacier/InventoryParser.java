@@ -0,0 +1,110 @@
+package org.bg.amazon.glacier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+/**
+ * Parses a vault inventory incrementally, in constant memory, handing
+ * every archive to a handler as soon as it has been read.
+ */
+public class InventoryParser {
+
+  /**
+   * Receives the archives of an inventory
+   */
+  public interface Handler {
+    void archive(CatalogEntry pEntry) throws IOException;
+  }
+
+  private static final JsonFactory FACTORY = new JsonFactory();
+
+  private InventoryParser() {
+  }
+
+  /**
+   * Parses an inventory
+   * @param pIn inventory in JSON format, it is not closed
+   * @param pHandler handler receiving every archive
+   * @return number of archives read
+   * @throws IOException
+   */
+  public static long parse(InputStream pIn, Handler pHandler) throws IOException {
+    JsonParser parser = FACTORY.createJsonParser(pIn);
+    long count = 0;
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw new IOException("Inventory is not a JSON object");
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (!field.equals("ArchiveList") || value != JsonToken.START_ARRAY) {
+          parser.skipChildren();
+          continue;
+        }
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+          pHandler.archive(readArchive(parser));
+          count++;
+        }
+      }
+    } finally {
+      parser.close();
+    }
+    return count;
+  }
+
+  /**
+   * Reads an archive object, the parser being on its START_OBJECT token
+   * @param pParser
+   * @return
+   * @throws IOException
+   */
+  private static CatalogEntry readArchive(JsonParser pParser) throws IOException {
+    String archiveId = null;
+    String description = "";
+    long creationDate = 0;
+    long size = 0;
+    String treeHash = "";
+    while (pParser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = pParser.getCurrentName();
+      pParser.nextToken();
+      if (field.equals("ArchiveId"))
+        archiveId = pParser.getText();
+      else if (field.equals("ArchiveDescription"))
+        description = pParser.getText();
+      else if (field.equals("CreationDate"))
+        creationDate = parseDate(pParser.getText());
+      else if (field.equals("Size"))
+        size = pParser.getLongValue();
+      else if (field.equals("SHA256TreeHash"))
+        treeHash = pParser.getText();
+      else
+        pParser.skipChildren();
+    }
+    if (archiveId == null)
+      throw new IOException("Inventory archive without ArchiveId");
+    return new CatalogEntry(archiveId, description, creationDate, size, treeHash);
+  }
+
+  /**
+   * Parses an ISO 8601 date as written by Glacier, e.g. 2012-03-20T17:03:43Z
+   * @param pDate
+   * @return milliseconds since the epoch
+   * @throws IOException
+   */
+  static long parseDate(String pDate) throws IOException {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    try {
+      return format.parse(pDate).getTime();
+    } catch (ParseException e) {
+      throw new IOException("Invalid date " + pDate);
+    }
+  }
+}
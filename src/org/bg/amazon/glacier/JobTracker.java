@@ -0,0 +1,500 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.policy.Policy;
+import com.amazonaws.auth.policy.Principal;
+import com.amazonaws.auth.policy.Resource;
+import com.amazonaws.auth.policy.Statement;
+import com.amazonaws.auth.policy.Statement.Effect;
+import com.amazonaws.auth.policy.actions.SQSActions;
+import com.amazonaws.auth.policy.conditions.ConditionFactory;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+import com.amazonaws.services.sns.AmazonSNSClient;
+import com.amazonaws.services.sns.model.CreateTopicRequest;
+import com.amazonaws.services.sns.model.SubscribeRequest;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+
+/**
+ * Tracks any number of Glacier jobs at once. Completion notifications are
+ * published on one long-lived SNS topic and delivered to a queue owned by
+ * this installation, which a single long-polling receiver drains and routes
+ * to the waiting jobs by JobId. Jobs are also checked with DescribeJob from
+ * time to time, so a lost notification or a missing queue only delays them.
+ * Pending jobs are persisted, so a restarted run picks up the jobs it had
+ * initiated instead of initiating new ones.
+ */
+public class JobTracker {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(JobTracker.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * Target of inventory retrieval jobs in the persisted state
+   */
+  private static final String INVENTORY = "inventory";
+
+  /**
+   * Seconds a receive call waits for messages
+   */
+  private static final int WAIT_TIME_SECONDS = 20;
+
+  private final GlacierService service;
+  private final File stateFile;
+  private final long pollInterval;
+
+  /**
+   * Identifier of this installation, used to name its queue
+   */
+  private String instanceId;
+
+  /**
+   * Jobs initiated and not completed yet, by job id
+   */
+  private final Map<String, PendingJob> pending = new LinkedHashMap<String, PendingJob>();
+
+  /**
+   * Futures of the jobs being waited for, by job id
+   */
+  private final Map<String, CompletableFuture<DescribeJobResult>> waiting =
+      new ConcurrentHashMap<String, CompletableFuture<DescribeJobResult>>();
+
+  private final ScheduledExecutorService poller;
+  private Thread receiver;
+  private volatile boolean running = true;
+
+  private AmazonSQSClient sqsClient;
+  private String queueUrl;
+  private String topicArn;
+
+  /**
+   * Policy retrying the SQS and SNS calls
+   */
+  private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+  /**
+   * Job initiated by this installation
+   */
+  private static class PendingJob {
+    final String vaultName;
+    final String jobId;
+    final String target;
+
+    PendingJob(String pVaultName, String pJobId, String pTarget) {
+      vaultName = pVaultName;
+      jobId = pJobId;
+      target = pTarget;
+    }
+  }
+
+  /**
+   * Constructor for the JobTracker class. Without notifications jobs are only
+   * tracked by polling.
+   * @param pService service describing the jobs
+   * @param pStateFile file persisting the pending jobs
+   * @param pPollInterval milliseconds between two DescribeJob checks of a job
+   * @throws IOException
+   */
+  public JobTracker(GlacierService pService, File pStateFile, long pPollInterval) throws IOException {
+    service = pService;
+    stateFile = pStateFile;
+    pollInterval = pPollInterval;
+    load();
+    MetricsRegistry.DEFAULT.gauge("glacier_jobs_pending", "Jobs initiated and not completed yet", () -> {
+      synchronized (pending) {
+        return pending.size();
+      }
+    });
+    poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-jobs-poll");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    poller.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        for (String jobId : new ArrayList<String>(waiting.keySet()))
+          check(jobId);
+      }
+    }, pPollInterval, pPollInterval, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Makes the SQS and SNS calls be made again when they fail with a transient error
+   * @param pPolicy
+   */
+  public void setRetryPolicy(RetryPolicy pPolicy) {
+    retryPolicy = pPolicy;
+  }
+
+  /**
+   * Sets the topic and the queue of this installation up, creating them when
+   * they do not exist yet, and starts receiving notifications
+   * @param pSqsClient
+   * @param pSnsClient
+   * @param pTopicName topic shared by every installation
+   * @param pQueuePrefix prefix of the queue name, completed with the installation id
+   */
+  public void enableNotifications(AmazonSQSClient pSqsClient, AmazonSNSClient pSnsClient, String pTopicName, String pQueuePrefix) {
+    sqsClient = pSqsClient;
+    topicArn = retryPolicy.call("Creating topic " + pTopicName,
+        () -> pSnsClient.createTopic(new CreateTopicRequest().withName(pTopicName)).getTopicArn());
+    queueUrl = retryPolicy.call("Creating queue " + pQueuePrefix,
+        () -> pSqsClient.createQueue(new CreateQueueRequest().withQueueName(pQueuePrefix + "-" + instanceId)).getQueueUrl());
+    String queueArn = retryPolicy.call("Getting queue attributes", () -> pSqsClient.getQueueAttributes(new GetQueueAttributesRequest()
+        .withQueueUrl(queueUrl)
+        .withAttributeNames("QueueArn")).getAttributes().get("QueueArn"));
+
+    /** Only the topic may send messages to the queue */
+    Policy sqsPolicy =
+        new Policy().withStatements(
+                new Statement(Effect.Allow)
+                .withPrincipals(Principal.AllUsers)
+                .withActions(SQSActions.SendMessage)
+                .withResources(new Resource(queueArn))
+                .withConditions(ConditionFactory.newSourceArnCondition(topicArn)));
+    Map<String, String> queueAttributes = new HashMap<String, String>();
+    queueAttributes.put("Policy", sqsPolicy.toJson());
+    retryPolicy.call("Setting queue policy", () -> {
+      pSqsClient.setQueueAttributes(new SetQueueAttributesRequest(queueUrl, queueAttributes));
+      return null;
+    });
+
+    /** Subscribing is idempotent, an existing subscription is returned */
+    retryPolicy.call("Subscribing queue", () -> pSnsClient.subscribe(new SubscribeRequest()
+        .withTopicArn(topicArn)
+        .withEndpoint(queueArn)
+        .withProtocol("sqs")));
+    LOG.info("Receiving job notifications of topic " + topicArn + " on queue " + queueUrl);
+
+    receiver = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        receive();
+      }
+    }, "glacier-jobs-receive");
+    receiver.setDaemon(true);
+    receiver.start();
+  }
+
+  /**
+   * Returns the topic jobs should notify, or null when notifications are not enabled
+   * @return
+   */
+  public String getTopicArn() {
+    return topicArn;
+  }
+
+  /**
+   * Initiates a job retrieving an archive, unless one initiated earlier is still pending.
+   * A pending job Glacier no longer knows, e.g. expired since it was saved, is replaced
+   * @param pVaultName
+   * @param pArchiveId
+   * @return job id
+   */
+  public String initiateArchiveRetrieval(String pVaultName, String pArchiveId) {
+    String jobId = findLivePending(pVaultName, pArchiveId);
+    if (jobId == null) {
+      jobId = service.initiateArchiveRetrieval(pVaultName, pArchiveId, topicArn);
+      addPending(new PendingJob(pVaultName, jobId, pArchiveId));
+      LOG.info("Job has initiated with Jobid = " + jobId);
+    } else
+      LOG.info("Resuming pending job " + jobId);
+    return jobId;
+  }
+
+  /**
+   * Initiates a job retrieving the inventory of a vault, unless one initiated earlier is still pending.
+   * A pending job Glacier no longer knows is replaced
+   * @param pVaultName
+   * @return job id
+   */
+  public String initiateInventoryRetrieval(String pVaultName) {
+    String jobId = findLivePending(pVaultName, INVENTORY);
+    if (jobId == null) {
+      jobId = service.initiateInventoryRetrieval(pVaultName, topicArn);
+      addPending(new PendingJob(pVaultName, jobId, INVENTORY));
+      LOG.info("Job has initiated with Jobid = " + jobId);
+    } else
+      LOG.info("Resuming pending job " + jobId);
+    return jobId;
+  }
+
+  /**
+   * Returns a future completed with the description of a job once it completes.
+   * The future fails when the job no longer exists.
+   * @param pVaultName
+   * @param pJobId
+   * @return
+   */
+  public CompletableFuture<DescribeJobResult> track(String pVaultName, final String pJobId) {
+    synchronized (pending) {
+      if (!pending.containsKey(pJobId))
+        addPending(new PendingJob(pVaultName, pJobId, null));
+    }
+    CompletableFuture<DescribeJobResult> future = new CompletableFuture<DescribeJobResult>();
+    CompletableFuture<DescribeJobResult> previous = waiting.putIfAbsent(pJobId, future);
+    if (previous != null)
+      return previous;
+    final long start = System.nanoTime();
+    future.thenAccept(job -> MetricsRegistry.DEFAULT.histogram("glacier_job_wait_seconds",
+        "Time waited for jobs to complete", "action", String.valueOf(job.getAction())).recordSince(start));
+    poller.execute(new Runnable() {
+      @Override
+      public void run() {
+        check(pJobId);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Waits for a job to complete
+   * @param pVaultName
+   * @param pJobId
+   * @return description of the completed job
+   * @throws InterruptedException
+   */
+  public DescribeJobResult await(String pVaultName, String pJobId) throws InterruptedException {
+    try {
+      return track(pVaultName, pJobId).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new GlacierException("Job " + pJobId + " failed: " + e.getCause());
+    }
+  }
+
+  /**
+   * Checks a waited job with DescribeJob and completes its future when it is done
+   * @param pJobId
+   */
+  private void check(String pJobId) {
+    CompletableFuture<DescribeJobResult> future = waiting.get(pJobId);
+    PendingJob job;
+    synchronized (pending) {
+      job = pending.get(pJobId);
+    }
+    if (future == null || job == null)
+      return;
+    try {
+      DescribeJobResult result = service.describeJob(job.vaultName, pJobId);
+      if (Boolean.TRUE.equals(result.getCompleted())) {
+        removePending(pJobId);
+        waiting.remove(pJobId);
+        LOG.info("Job " + pJobId + " completed with status " + result.getStatusCode());
+        future.complete(result);
+      }
+    } catch (ResourceNotFoundException e) {
+      removePending(pJobId);
+      waiting.remove(pJobId);
+      future.completeExceptionally(e);
+    } catch (AmazonClientException e) {
+      LOG.warn("Unable to describe job " + pJobId + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Drains the queue, routing every notification to the job it is about
+   */
+  private void receive() {
+    while (running) {
+      try {
+        List<Message> messages = sqsClient.receiveMessage(new ReceiveMessageRequest(queueUrl)
+            .withMaxNumberOfMessages(10)
+            .withWaitTimeSeconds(WAIT_TIME_SECONDS)).getMessages();
+        for (Message message : messages) {
+          String jobId = getJobId(message.getBody());
+          if (jobId != null)
+            check(jobId);
+          retryPolicy.call("Deleting notification", () -> {
+            sqsClient.deleteMessage(new DeleteMessageRequest(queueUrl, message.getReceiptHandle()));
+            return null;
+          });
+        }
+      } catch (AmazonClientException e) {
+        if (!running)
+          return;
+        LOG.warn("Unable to receive job notifications: " + e.getMessage());
+        try {
+          Thread.sleep(TimeUnit.SECONDS.toMillis(WAIT_TIME_SECONDS));
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * Extracts the job id of an SNS notification, or null if the message is not one
+   * @param pBody
+   * @return
+   */
+  static String getJobId(String pBody) {
+    try {
+      JsonNode notification = MAPPER.readTree(pBody);
+      JsonNode message = notification.get("Message");
+      if (message == null)
+        return null;
+      JsonNode jobId = MAPPER.readTree(message.getTextValue()).get("JobId");
+      return jobId == null ? null : jobId.getTextValue();
+    } catch (IOException e) {
+      LOG.warn("Ignoring unexpected message " + pBody);
+      return null;
+    }
+  }
+
+  /**
+   * Returns the pending job of a target, dropping it if Glacier no longer knows
+   * it, so that the caller initiates a new one instead of failing on it
+   * @param pVaultName
+   * @param pTarget
+   * @return job id, or null if there is none
+   */
+  private String findLivePending(String pVaultName, String pTarget) {
+    String jobId = findPending(pVaultName, pTarget);
+    if (jobId == null)
+      return null;
+    try {
+      service.describeJob(pVaultName, jobId);
+    } catch (ResourceNotFoundException e) {
+      LOG.info("Pending job " + jobId + " no longer exists, initiating a new one");
+      removePending(jobId);
+      return null;
+    } catch (AmazonClientException e) {
+      LOG.warn("Unable to describe job " + jobId + ": " + e.getMessage());
+    }
+    return jobId;
+  }
+
+  private String findPending(String pVaultName, String pTarget) {
+    synchronized (pending) {
+      for (PendingJob job : pending.values()) {
+        if (job.vaultName.equals(pVaultName) && pTarget.equals(job.target))
+          return job.jobId;
+      }
+      return null;
+    }
+  }
+
+  private void addPending(PendingJob pJob) {
+    synchronized (pending) {
+      pending.put(pJob.jobId, pJob);
+      save();
+    }
+  }
+
+  private void removePending(String pJobId) {
+    synchronized (pending) {
+      if (pending.remove(pJobId) != null)
+        save();
+    }
+  }
+
+  /**
+   * Loads the installation id and the pending jobs
+   * @throws IOException
+   */
+  private void load() throws IOException {
+    if (!stateFile.exists()) {
+      instanceId = UUID.randomUUID().toString().replace("-", "").substring(0, 12);
+      save();
+      return;
+    }
+    InputStream in = new FileInputStream(stateFile);
+    try {
+      JsonNode state = MAPPER.readTree(in);
+      instanceId = state.get("instanceId").getTextValue();
+      for (JsonNode job : state.get("jobs")) {
+        JsonNode target = job.get("target");
+        PendingJob pendingJob = new PendingJob(job.get("vault").getTextValue(), job.get("jobId").getTextValue(),
+                                               target == null || target.isNull() ? null : target.getTextValue());
+        pending.put(pendingJob.jobId, pendingJob);
+      }
+    } finally {
+      in.close();
+    }
+    if (!pending.isEmpty())
+      LOG.info(pending.size() + " jobs pending from a previous run");
+  }
+
+  /**
+   * Persists the installation id and the pending jobs, replacing the state file atomically
+   */
+  private void save() {
+    List<Map<String, Object>> jobs = new ArrayList<Map<String, Object>>();
+    for (PendingJob job : pending.values()) {
+      Map<String, Object> entry = new LinkedHashMap<String, Object>();
+      entry.put("vault", job.vaultName);
+      entry.put("jobId", job.jobId);
+      entry.put("target", job.target);
+      jobs.add(entry);
+    }
+    Map<String, Object> state = new LinkedHashMap<String, Object>();
+    state.put("instanceId", instanceId);
+    state.put("jobs", jobs);
+    File temp = new File(stateFile.getPath() + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(MAPPER.writeValueAsBytes(state));
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+      Files.move(temp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new GlacierException("Unable to save job state to " + stateFile + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Stops receiving notifications and polling. The topic and the queue are
+   * kept for the next run.
+   */
+  public void close() {
+    running = false;
+    poller.shutdownNow();
+    if (receiver != null)
+      receiver.interrupt();
+  }
+}
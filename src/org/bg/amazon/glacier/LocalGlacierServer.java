@@ -0,0 +1,924 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+
+/**
+ * HTTP stand-in for Amazon Glacier, SNS and SQS, serving the REST and query
+ * requests of the Amazon clients from a LocalGlacierService and a
+ * LocalQueueService. Pointing amazon.glacier.endpoint, amazon.sqs.endpoint
+ * and amazon.sns.endpoint to it runs every operation, job notifications
+ * included, without an Amazon account and with jobs completing in seconds.
+ * Latency, bandwidth caps and faults can be injected to load test the
+ * transfer engines:
+ * <ul>
+ * <li>throttling: Glacier calls answered with a ThrottlingException</li>
+ * <li>errors: Glacier calls answered with a ServiceUnavailableException</li>
+ * <li>drops: Glacier calls served, but the connection closed before the
+ * response, or halfway through its body</li>
+ * </ul>
+ * Requests are parsed here rather than with com.sun.net.httpserver, which
+ * changes the case of the response header names the Amazon clients look up
+ * case sensitively.
+ */
+public class LocalGlacierServer {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(LocalGlacierServer.class);
+
+  public static final int DEFAULT_PORT = 7712;
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * Largest read or write paced at once
+   */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final String SNS_NAMESPACE = "http://sns.amazonaws.com/doc/2010-03-31/";
+  private static final String SQS_NAMESPACE = "http://queue.amazonaws.com/doc/2012-11-05/";
+
+  private final LocalGlacierService glacier;
+  private final LocalQueueService queues;
+
+  /**
+   * Bandwidth caps of the request and response bodies
+   */
+  private final TransferController inbound = new TransferController("local-in", 1, false);
+  private final TransferController outbound = new TransferController("local-out", 1, false);
+
+  private volatile double throttleRate;
+  private volatile double errorRate;
+  private volatile double dropRate;
+  private final AtomicLong faults = new AtomicLong();
+
+  private final ExecutorService connections;
+  private final ScheduledExecutorService notifier;
+  private volatile boolean running;
+  private ServerSocket serverSocket;
+
+  /**
+   * Constructor for the LocalGlacierServer class
+   * @param pGlacier vaults, archives and jobs served
+   * @param pQueues topics and queues served
+   */
+  public LocalGlacierServer(LocalGlacierService pGlacier, LocalQueueService pQueues) {
+    glacier = pGlacier;
+    queues = pQueues;
+    final AtomicInteger count = new AtomicInteger();
+    connections = Executors.newCachedThreadPool(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-local-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    notifier = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-local-notifier");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Creates a server as set up by the glacier.local.* keys of the configuration file
+   * @param pConf
+   * @return server, not started yet
+   */
+  public static LocalGlacierServer create(Properties pConf) {
+    LocalGlacierService glacier =
+        new LocalGlacierService(Boolean.parseBoolean(pConf.getProperty("glacier.local.retainData", "true")));
+    glacier.setJobDelay(Long.parseLong(pConf.getProperty("glacier.local.jobDelaySeconds", "10")) * 1000);
+    glacier.setLatency(Long.parseLong(pConf.getProperty("glacier.local.latencyMs", "0")));
+    LocalGlacierServer server = new LocalGlacierServer(glacier, new LocalQueueService());
+    server.setBandwidth(Long.parseLong(pConf.getProperty("glacier.local.uploadKBps", "0")) * 1024,
+                        Long.parseLong(pConf.getProperty("glacier.local.downloadKBps", "0")) * 1024);
+    server.setFaults(Double.parseDouble(pConf.getProperty("glacier.local.throttleRate", "0")),
+                     Double.parseDouble(pConf.getProperty("glacier.local.errorRate", "0")),
+                     Double.parseDouble(pConf.getProperty("glacier.local.dropRate", "0")));
+    return server;
+  }
+
+  /**
+   * Caps the rate at which request bodies are read and response bodies written
+   * @param pUploadBytesPerSecond 0 for no cap
+   * @param pDownloadBytesPerSecond 0 for no cap
+   */
+  public void setBandwidth(long pUploadBytesPerSecond, long pDownloadBytesPerSecond) {
+    inbound.setRateLimit(pUploadBytesPerSecond);
+    outbound.setRateLimit(pDownloadBytesPerSecond);
+  }
+
+  /**
+   * Sets the fraction of the Glacier calls failing in every way
+   * @param pThrottleRate answered with a ThrottlingException
+   * @param pErrorRate answered with a ServiceUnavailableException
+   * @param pDropRate served, but the connection is closed before the response is complete
+   */
+  public void setFaults(double pThrottleRate, double pErrorRate, double pDropRate) {
+    throttleRate = pThrottleRate;
+    errorRate = pErrorRate;
+    dropRate = pDropRate;
+  }
+
+  /**
+   * Returns the number of faults injected so far
+   * @return
+   */
+  public long getFaults() {
+    return faults.get();
+  }
+
+  public LocalGlacierService getGlacier() {
+    return glacier;
+  }
+
+  public LocalQueueService getQueues() {
+    return queues;
+  }
+
+  /**
+   * Starts serving requests
+   * @param pAddress address to bind, e.g. 127.0.0.1
+   * @param pPort 0 for any free port
+   * @throws IOException
+   */
+  public synchronized void start(String pAddress, int pPort) throws IOException {
+    serverSocket = new ServerSocket(pPort, 50, InetAddress.getByName(pAddress));
+    running = true;
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    }, "glacier-local-accept");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    LOG.info("Serving Glacier, SNS and SQS on " + getEndpoint());
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Returns the endpoint the clients should point to
+   * @return
+   */
+  public String getEndpoint() {
+    return "http://" + serverSocket.getInetAddress().getHostAddress() + ":" + getPort();
+  }
+
+  /**
+   * Stops serving requests, closing the connections open
+   */
+  public synchronized void stop() {
+    running = false;
+    try {if (serverSocket != null) serverSocket.close();}  catch (IOException e) {}
+    connections.shutdownNow();
+    notifier.shutdownNow();
+    notifyAll();
+  }
+
+  /**
+   * Waits until the server is stopped
+   * @throws InterruptedException
+   */
+  public synchronized void awaitTermination() throws InterruptedException {
+    while (running)
+      wait();
+  }
+
+  private void accept() {
+    while (running) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (running)
+          LOG.error("Unable to accept connections: " + e.getMessage());
+        return;
+      }
+      connections.execute(new Runnable() {
+        @Override
+        public void run() {
+          serve(socket);
+        }
+      });
+    }
+  }
+
+  /**
+   * Serves the requests of a connection until the client closes it
+   * @param pSocket
+   */
+  private void serve(Socket pSocket) {
+    try {
+      pSocket.setTcpNoDelay(true);
+      InputStream in = new BufferedInputStream(pSocket.getInputStream(), BUFFER_SIZE);
+      OutputStream out = new BufferedOutputStream(pSocket.getOutputStream(), BUFFER_SIZE);
+      Request request;
+      while (running && (request = readRequest(in, out)) != null) {
+        Response response = handle(request);
+        if (!write(response, out) || "close".equalsIgnoreCase(request.getHeader("connection")))
+          break;
+      }
+    } catch (SocketException e) {
+      LOG.debug("Connection closed: " + e.getMessage());
+    } catch (IOException e) {
+      LOG.warn("Connection closed: " + e.getMessage());
+    } finally {
+      try {pSocket.close();}  catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Routes a request to Glacier, or to SNS and SQS
+   * @param pRequest
+   * @return
+   */
+  private Response handle(Request pRequest) {
+    String[] path = pRequest.path.split("/");
+    boolean rest = path.length > 2 && path[2].equals("vaults");
+    try {
+      return rest ? glacier(pRequest, path) : query(pRequest);
+    } catch (AmazonServiceException e) {
+      return rest ? jsonError(e.getStatusCode(), e.getErrorCode(), e.getMessage())
+                  : xmlError(e.getStatusCode(), e.getErrorCode(), e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return rest ? jsonError(503, "ServiceUnavailableException", "Server stopping")
+                  : xmlError(503, "ServiceUnavailable", "Server stopping");
+    } catch (RuntimeException e) {
+      LOG.error("Unable to serve " + pRequest.method + " " + pRequest.path, e);
+      return rest ? jsonError(500, "ServiceUnavailableException", String.valueOf(e.getMessage()))
+                  : xmlError(500, "InternalFailure", String.valueOf(e.getMessage()));
+    }
+  }
+
+  /**
+   * Serves a Glacier request, or fails it as told by the fault rates
+   * @param pRequest
+   * @param pPath "", account id, "vaults", then the vault and its resources
+   * @return
+   */
+  private Response glacier(Request pRequest, String[] pPath) throws InterruptedException {
+    double fault = ThreadLocalRandom.current().nextDouble();
+    if (fault < throttleRate) {
+      faults.incrementAndGet();
+      return jsonError(400, "ThrottlingException", "Rate exceeded (injected)");
+    }
+    if (fault < throttleRate + errorRate) {
+      faults.incrementAndGet();
+      return jsonError(500, "ServiceUnavailableException", "Service unavailable (injected)");
+    }
+    Response response = route(pRequest, pPath);
+    if (ThreadLocalRandom.current().nextDouble() < dropRate) {
+      faults.incrementAndGet();
+      response.drop = true;
+    }
+    return response;
+  }
+
+  private Response route(Request pRequest, String[] pPath) throws InterruptedException {
+    String method = pRequest.method;
+    String vaultName = pPath.length > 3 ? pPath[3] : null;
+    String resource = pPath.length > 4 ? pPath[4] : null;
+    String id = pPath.length > 5 ? pPath[5] : null;
+    String location = "/" + pPath[1] + "/vaults/" + vaultName;
+
+    if (vaultName == null && method.equals("GET")) {
+      List<Map<String, Object>> vaults = new ArrayList<Map<String, Object>>();
+      for (String name : glacier.listVaults())
+        vaults.add(vaultJson(glacier.describeVault(name)));
+      Map<String, Object> list = new LinkedHashMap<String, Object>();
+      list.put("VaultList", vaults);
+      list.put("Marker", null);
+      return json(200, list);
+    }
+    if (vaultName != null && resource == null) {
+      if (method.equals("PUT")) {
+        glacier.createVault(vaultName);
+        return new Response(201).header("Location", location);
+      }
+      if (method.equals("GET"))
+        return json(200, vaultJson(glacier.describeVault(vaultName)));
+      if (method.equals("DELETE")) {
+        glacier.deleteVault(vaultName);
+        return new Response(204);
+      }
+    }
+    if ("archives".equals(resource)) {
+      if (id == null && method.equals("POST")) {
+        String checksum = pRequest.getHeader("x-amz-sha256-tree-hash");
+        String archiveId = glacier.uploadArchive(vaultName, pRequest.getHeader("x-amz-archive-description"),
+                                                 ByteBuffer.wrap(pRequest.body), checksum);
+        return new Response(201)
+            .header("Location", location + "/archives/" + archiveId)
+            .header("x-amz-sha256-tree-hash", checksum)
+            .header("x-amz-archive-id", archiveId);
+      }
+      if (id != null && method.equals("DELETE")) {
+        glacier.deleteArchive(vaultName, id);
+        return new Response(204);
+      }
+    }
+    if ("multipart-uploads".equals(resource))
+      return multipartUpload(pRequest, vaultName, id, location);
+    if ("jobs".equals(resource)) {
+      if (id == null && method.equals("POST"))
+        return initiateJob(pRequest, vaultName, location);
+      if (id != null && pPath.length == 6 && method.equals("GET"))
+        return json(200, jobJson(glacier.describeJob(vaultName, id)));
+      if (id != null && pPath.length == 7 && pPath[6].equals("output") && method.equals("GET"))
+        return jobOutput(pRequest, vaultName, id);
+    }
+    throw error(400, "InvalidParameterValueException", "Unsupported request " + method + " " + pRequest.path);
+  }
+
+  private Response multipartUpload(Request pRequest, String pVaultName, String pUploadId, String pLocation) {
+    String method = pRequest.method;
+    if (pUploadId == null && method.equals("POST")) {
+      String partSize = pRequest.getHeader("x-amz-part-size");
+      if (partSize == null)
+        throw error(400, "MissingParameterValueException", "Missing x-amz-part-size");
+      String uploadId = glacier.initiateMultipartUpload(pVaultName, pRequest.getHeader("x-amz-archive-description"),
+                                                        Long.parseLong(partSize));
+      return new Response(201)
+          .header("Location", pLocation + "/multipart-uploads/" + uploadId)
+          .header("x-amz-multipart-upload-id", uploadId);
+    }
+    if (pUploadId != null && method.equals("PUT")) {
+      long[] range = parseRange(pRequest.getHeader("content-range"), "bytes ");
+      if (range[1] - range[0] + 1 != pRequest.body.length)
+        throw error(400, "InvalidParameterValueException", "Content-Range does not match the body length");
+      String checksum = glacier.uploadPart(pVaultName, pUploadId, range[0], ByteBuffer.wrap(pRequest.body),
+                                           pRequest.getHeader("x-amz-sha256-tree-hash"));
+      return new Response(204).header("x-amz-sha256-tree-hash", checksum);
+    }
+    if (pUploadId != null && method.equals("POST")) {
+      String archiveSize = pRequest.getHeader("x-amz-archive-size");
+      if (archiveSize == null)
+        throw error(400, "MissingParameterValueException", "Missing x-amz-archive-size");
+      String checksum = pRequest.getHeader("x-amz-sha256-tree-hash");
+      String archiveId = glacier.completeMultipartUpload(pVaultName, pUploadId, Long.parseLong(archiveSize), checksum);
+      return new Response(201)
+          .header("Location", pLocation + "/archives/" + archiveId)
+          .header("x-amz-sha256-tree-hash", checksum)
+          .header("x-amz-archive-id", archiveId);
+    }
+    if (pUploadId != null && method.equals("DELETE")) {
+      glacier.abortMultipartUpload(pVaultName, pUploadId);
+      return new Response(204);
+    }
+    throw error(400, "InvalidParameterValueException", "Unsupported request " + method + " " + pRequest.path);
+  }
+
+  /**
+   * Initiates a job, and notifies its topic once it completes
+   */
+  private Response initiateJob(Request pRequest, String pVaultName, String pLocation) {
+    JsonNode parameters;
+    try {
+      parameters = MAPPER.readTree(new ByteArrayInputStream(pRequest.body));
+    } catch (IOException e) {
+      throw error(400, "InvalidParameterValueException", "Invalid job parameters: " + e.getMessage());
+    }
+    String type = parameters.path("Type").getTextValue();
+    String topic = parameters.path("SNSTopic").getTextValue();
+    String jobId;
+    if ("archive-retrieval".equals(type))
+      jobId = glacier.initiateArchiveRetrieval(pVaultName, parameters.path("ArchiveId").getTextValue(), topic);
+    else if ("inventory-retrieval".equals(type))
+      jobId = glacier.initiateInventoryRetrieval(pVaultName, topic);
+    else
+      throw error(400, "InvalidParameterValueException", "Invalid job type " + type);
+    if (topic != null)
+      scheduleNotification(pVaultName, jobId, glacier.getJobDelay());
+    return new Response(202)
+        .header("Location", pLocation + "/jobs/" + jobId)
+        .header("x-amz-job-id", jobId);
+  }
+
+  /**
+   * Publishes the description of a job to its topic once it completes
+   * @param pVaultName
+   * @param pJobId
+   * @param pDelay milliseconds
+   */
+  private void scheduleNotification(final String pVaultName, final String pJobId, long pDelay) {
+    notifier.schedule(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          DescribeJobResult job = glacier.describeJob(pVaultName, pJobId);
+          if (!job.isCompleted())
+            scheduleNotification(pVaultName, pJobId, 10);
+          else
+            queues.publish(job.getSNSTopic(), null, MAPPER.writeValueAsString(jobJson(job)));
+        } catch (Exception e) {
+          LOG.warn("Unable to notify job " + pJobId + ": " + e.getMessage());
+        }
+      }
+    }, pDelay, TimeUnit.MILLISECONDS);
+  }
+
+  private Response jobOutput(Request pRequest, String pVaultName, String pJobId) {
+    long size = glacier.getOutputSize(pVaultName, pJobId);
+    String rangeHeader = pRequest.getHeader("range");
+    long[] range = rangeHeader == null ? new long[] {0, size - 1} : parseRange(rangeHeader, "bytes=");
+    GetJobOutputResult output = glacier.getJobOutput(pVaultName, pJobId, range[0], Math.min(range[1], size - 1));
+    Response response = new Response(output.getStatus())
+        .header("Content-Type", output.getContentType())
+        .header("Accept-Ranges", "bytes");
+    if (output.getStatus() == 206)
+      response.header("Content-Range", output.getContentRange());
+    if (output.getChecksum() != null)
+      response.header("x-amz-sha256-tree-hash", output.getChecksum());
+    if (output.getArchiveDescription() != null)
+      response.header("x-amz-archive-description", output.getArchiveDescription());
+    response.body = output.getBody();
+    response.length = Math.min(range[1], size - 1) - range[0] + 1;
+    return response;
+  }
+
+  /**
+   * Parses a byte range
+   * @param pRange e.g. "bytes 0-1023/*" or "bytes=0-1023"
+   * @param pPrefix
+   * @return first and last byte
+   */
+  private static long[] parseRange(String pRange, String pPrefix) {
+    if (pRange == null || !pRange.startsWith(pPrefix))
+      throw error(400, "InvalidParameterValueException", "Invalid range " + pRange);
+    String[] ends = pRange.substring(pPrefix.length()).split("/")[0].split("-");
+    try {
+      return new long[] {Long.parseLong(ends[0].trim()), Long.parseLong(ends[1].trim())};
+    } catch (RuntimeException e) {
+      throw error(400, "InvalidParameterValueException", "Invalid range " + pRange);
+    }
+  }
+
+  private static Map<String, Object> vaultJson(DescribeVaultResult pVault) {
+    Map<String, Object> vault = new LinkedHashMap<String, Object>();
+    vault.put("VaultARN", pVault.getVaultARN());
+    vault.put("VaultName", pVault.getVaultName());
+    vault.put("CreationDate", pVault.getCreationDate());
+    vault.put("LastInventoryDate", pVault.getLastInventoryDate());
+    vault.put("NumberOfArchives", pVault.getNumberOfArchives());
+    vault.put("SizeInBytes", pVault.getSizeInBytes());
+    return vault;
+  }
+
+  /**
+   * Describes a job the way DescribeJob and the job notifications do
+   * @param pJob
+   * @return
+   */
+  private static Map<String, Object> jobJson(DescribeJobResult pJob) {
+    Map<String, Object> job = new LinkedHashMap<String, Object>();
+    job.put("JobId", pJob.getJobId());
+    job.put("JobDescription", pJob.getJobDescription());
+    job.put("Action", pJob.getAction());
+    job.put("ArchiveId", pJob.getArchiveId());
+    job.put("VaultARN", pJob.getVaultARN());
+    job.put("CreationDate", pJob.getCreationDate());
+    job.put("Completed", pJob.getCompleted());
+    job.put("StatusCode", pJob.getStatusCode());
+    job.put("StatusMessage", pJob.getStatusMessage());
+    job.put("ArchiveSizeInBytes", pJob.getArchiveSizeInBytes());
+    job.put("InventorySizeInBytes", pJob.getInventorySizeInBytes());
+    job.put("SNSTopic", pJob.getSNSTopic());
+    job.put("CompletionDate", pJob.getCompletionDate());
+    job.put("SHA256TreeHash", pJob.getSHA256TreeHash());
+    return job;
+  }
+
+  private static Response json(int pStatus, Object pBody) {
+    try {
+      byte[] body = MAPPER.writeValueAsBytes(pBody);
+      return new Response(pStatus).header("Content-Type", "application/json").body(body);
+    } catch (IOException e) {
+      throw new GlacierException("Unable to serialize response: " + e.getMessage(), e);
+    }
+  }
+
+  private static Response jsonError(int pStatus, String pCode, String pMessage) {
+    Map<String, Object> error = new LinkedHashMap<String, Object>();
+    error.put("code", pCode);
+    error.put("message", pMessage);
+    error.put("type", pStatus >= 500 ? "Server" : "Client");
+    return json(pStatus, error);
+  }
+
+  private static AmazonServiceException error(int pStatus, String pCode, String pMessage) {
+    AmazonServiceException e = new AmazonServiceException(pMessage);
+    e.setErrorCode(pCode);
+    e.setStatusCode(pStatus);
+    return e;
+  }
+
+  /**
+   * Serves an SNS or SQS query request. Queue requests name their queue in
+   * the path of their url, as returned by CreateQueue
+   * @param pRequest
+   * @return
+   * @throws InterruptedException
+   */
+  private Response query(Request pRequest) throws InterruptedException {
+    Map<String, String> params = new HashMap<String, String>(pRequest.params);
+    String contentType = pRequest.getHeader("content-type");
+    if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded"))
+      params.putAll(parseParams(new String(pRequest.body, StandardCharsets.ISO_8859_1)));
+    String action = params.get("Action");
+    if (action == null)
+      throw error(400, "MissingAction", "Missing Action");
+    String queueName = pRequest.path.startsWith("/queue/") ? pRequest.path.substring("/queue/".length()) : null;
+    if (params.containsKey("QueueUrl"))
+      queueName = params.get("QueueUrl").substring(params.get("QueueUrl").lastIndexOf('/') + 1);
+    String queueUrl = "http://" + pRequest.getHeader("host") + "/queue/";
+    StringBuilder result = new StringBuilder();
+
+    if (action.equals("CreateTopic"))
+      element(result, "TopicArn", queues.createTopic(required(params, "Name")));
+    else if (action.equals("Subscribe"))
+      element(result, "SubscriptionArn", queues.subscribe(required(params, "TopicArn"), required(params, "Protocol"),
+                                                          required(params, "Endpoint")));
+    else if (action.equals("Publish"))
+      element(result, "MessageId", queues.publish(required(params, "TopicArn"), params.get("Subject"),
+                                                  required(params, "Message")));
+    else if (action.equals("CreateQueue")) {
+      queues.createQueue(required(params, "QueueName"));
+      element(result, "QueueUrl", queueUrl + params.get("QueueName"));
+    } else if (action.equals("GetQueueUrl")) {
+      queues.getQueueAttributes(required(params, "QueueName"));
+      element(result, "QueueUrl", queueUrl + params.get("QueueName"));
+    } else if (action.equals("DeleteQueue"))
+      queues.deleteQueue(required(queueName));
+    else if (action.equals("GetQueueAttributes")) {
+      for (Map.Entry<String, String> attribute : queues.getQueueAttributes(required(queueName)).entrySet()) {
+        result.append("<Attribute>");
+        element(result, "Name", attribute.getKey());
+        element(result, "Value", attribute.getValue());
+        result.append("</Attribute>");
+      }
+    } else if (action.equals("SetQueueAttributes")) {
+      Map<String, String> attributes = new HashMap<String, String>();
+      for (int i = 1; params.containsKey("Attribute." + i + ".Name"); i++)
+        attributes.put(params.get("Attribute." + i + ".Name"), params.get("Attribute." + i + ".Value"));
+      queues.setQueueAttributes(required(queueName), attributes);
+    } else if (action.equals("SendMessage")) {
+      String body = required(params, "MessageBody");
+      element(result, "MD5OfMessageBody", md5(body));
+      element(result, "MessageId", queues.sendMessage(required(queueName), body));
+    } else if (action.equals("ReceiveMessage")) {
+      int max = Integer.parseInt(params.containsKey("MaxNumberOfMessages") ? params.get("MaxNumberOfMessages") : "1");
+      long wait = Long.parseLong(params.containsKey("WaitTimeSeconds") ? params.get("WaitTimeSeconds") : "0");
+      for (LocalQueueService.Message message : queues.receiveMessages(required(queueName), max, wait * 1000)) {
+        result.append("<Message>");
+        element(result, "MessageId", message.getMessageId());
+        element(result, "ReceiptHandle", message.getReceiptHandle());
+        element(result, "MD5OfBody", md5(message.getBody()));
+        element(result, "Body", message.getBody());
+        result.append("</Message>");
+      }
+    } else if (action.equals("DeleteMessage"))
+      queues.deleteMessage(required(queueName), required(params, "ReceiptHandle"));
+    else
+      throw error(400, "InvalidAction", "Unsupported action " + action);
+
+    String namespace = action.equals("CreateTopic") || action.equals("Subscribe") || action.equals("Publish")
+                       ? SNS_NAMESPACE : SQS_NAMESPACE;
+    StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?>");
+    xml.append("<").append(action).append("Response xmlns=\"").append(namespace).append("\">");
+    if (result.length() > 0)
+      xml.append("<").append(action).append("Result>").append(result).append("</").append(action).append("Result>");
+    xml.append("<ResponseMetadata><RequestId>").append(UUID.randomUUID()).append("</RequestId></ResponseMetadata>");
+    xml.append("</").append(action).append("Response>");
+    return xml(200, xml.toString());
+  }
+
+  private static String required(Map<String, String> pParams, String pName) {
+    String value = pParams.get(pName);
+    if (value == null)
+      throw error(400, "MissingParameter", "Missing parameter " + pName);
+    return value;
+  }
+
+  private static String required(String pQueueName) {
+    if (pQueueName == null || pQueueName.isEmpty())
+      throw error(400, "MissingParameter", "Missing queue url");
+    return pQueueName;
+  }
+
+  private static Response xmlError(int pStatus, String pCode, String pMessage) {
+    StringBuilder xml = new StringBuilder("<?xml version=\"1.0\"?><ErrorResponse><Error>");
+    element(xml, "Type", pStatus >= 500 ? "Receiver" : "Sender");
+    element(xml, "Code", pCode);
+    element(xml, "Message", pMessage);
+    xml.append("</Error>");
+    element(xml, "RequestId", UUID.randomUUID().toString());
+    xml.append("</ErrorResponse>");
+    return xml(pStatus, xml.toString());
+  }
+
+  private static Response xml(int pStatus, String pXml) {
+    try {
+      return new Response(pStatus).header("Content-Type", "text/xml").body(pXml.getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new GlacierException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Appends an element, escaping its text
+   */
+  private static void element(StringBuilder pXml, String pName, String pText) {
+    pXml.append('<').append(pName).append('>');
+    for (char c : pText.toCharArray()) {
+      switch (c) {
+        case '<': pXml.append("&lt;"); break;
+        case '>': pXml.append("&gt;"); break;
+        case '&': pXml.append("&amp;"); break;
+        case '"': pXml.append("&quot;"); break;
+        case '\'': pXml.append("&apos;"); break;
+        default: pXml.append(c);
+      }
+    }
+    pXml.append("</").append(pName).append('>');
+  }
+
+  private static String md5(String pText) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(pText.getBytes("UTF-8"));
+      return TreeHash.toHex(digest);
+    } catch (NoSuchAlgorithmException e) {
+      throw new GlacierException(e.getMessage(), e);
+    } catch (UnsupportedEncodingException e) {
+      throw new GlacierException(e.getMessage(), e);
+    }
+  }
+
+  private static Map<String, String> parseParams(String pQuery) {
+    Map<String, String> params = new HashMap<String, String>();
+    for (String param : pQuery.split("&")) {
+      if (param.isEmpty())
+        continue;
+      int equals = param.indexOf('=');
+      String name = equals < 0 ? param : param.substring(0, equals);
+      params.put(decode(name), equals < 0 ? "" : decode(param.substring(equals + 1)));
+    }
+    return params;
+  }
+
+  private static String decode(String pText) {
+    try {
+      return URLDecoder.decode(pText, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new GlacierException(e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Reads the next request of a connection, its body paced by the upload cap
+   * @param pIn
+   * @param pOut written to when the client expects a 100 Continue
+   * @return null once the client closes the connection
+   * @throws IOException
+   */
+  private Request readRequest(InputStream pIn, OutputStream pOut) throws IOException {
+    String line = readLine(pIn);
+    while (line != null && line.isEmpty())
+      line = readLine(pIn);
+    if (line == null)
+      return null;
+    String[] fields = line.split(" ");
+    if (fields.length != 3)
+      throw new IOException("Invalid request line " + line);
+    Request request = new Request(fields[0], fields[1]);
+    while (!(line = readLine(pIn, true)).isEmpty()) {
+      int colon = line.indexOf(':');
+      if (colon > 0)
+        request.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+    }
+    if ("100-continue".equalsIgnoreCase(request.getHeader("expect"))) {
+      pOut.write("HTTP/1.1 100 Continue\r\n\r\n".getBytes("ISO-8859-1"));
+      pOut.flush();
+    }
+    if ("chunked".equalsIgnoreCase(request.getHeader("transfer-encoding"))) {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      int size;
+      while ((size = Integer.parseInt(readLine(pIn, true).split(";")[0].trim(), 16)) > 0) {
+        body.write(readBody(pIn, size));
+        readLine(pIn, true);
+      }
+      while (!readLine(pIn, true).isEmpty())
+        ;
+      request.body = body.toByteArray();
+    } else {
+      String length = request.getHeader("content-length");
+      request.body = readBody(pIn, length == null ? 0 : Integer.parseInt(length));
+    }
+    return request;
+  }
+
+  private byte[] readBody(InputStream pIn, int pLength) throws IOException {
+    byte[] body = new byte[pLength];
+    int offset = 0;
+    while (offset < pLength) {
+      int count = pIn.read(body, offset, Math.min(BUFFER_SIZE, pLength - offset));
+      if (count < 0)
+        throw new EOFException("Connection closed after " + offset + " of " + pLength + " bytes");
+      offset += count;
+      pace(inbound, count);
+    }
+    return body;
+  }
+
+  private static String readLine(InputStream pIn) throws IOException {
+    return readLine(pIn, false);
+  }
+
+  /**
+   * Reads a line ended by CRLF
+   * @param pIn
+   * @param pRequired whether the end of the stream is an error
+   * @return line without its end, null at the end of the stream
+   * @throws IOException
+   */
+  private static String readLine(InputStream pIn, boolean pRequired) throws IOException {
+    StringBuilder line = new StringBuilder();
+    int c;
+    while ((c = pIn.read()) != '\n') {
+      if (c < 0) {
+        if (pRequired || line.length() > 0)
+          throw new EOFException("Connection closed within a request");
+        return null;
+      }
+      if (c != '\r')
+        line.append((char) c);
+    }
+    return line.toString();
+  }
+
+  /**
+   * Writes a response, its body paced by the download cap
+   * @param pResponse
+   * @param pOut
+   * @return whether the connection may be reused
+   * @throws IOException
+   */
+  private boolean write(Response pResponse, OutputStream pOut) throws IOException {
+    if (pResponse.drop && pResponse.length <= 0)
+      return false;
+    StringBuilder head = new StringBuilder("HTTP/1.1 ").append(pResponse.status).append(' ')
+        .append(getReason(pResponse.status)).append("\r\n");
+    for (Map.Entry<String, String> header : pResponse.headers.entrySet())
+      head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+    head.append("x-amzn-RequestId: ").append(UUID.randomUUID()).append("\r\n");
+    head.append("Content-Length: ").append(Math.max(pResponse.length, 0)).append("\r\n\r\n");
+    pOut.write(head.toString().getBytes("ISO-8859-1"));
+    long remaining = pResponse.drop ? pResponse.length / 2 : pResponse.length;
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try {
+      while (remaining > 0) {
+        int count = pResponse.body.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (count < 0)
+          throw new EOFException("Response body shorter than its length");
+        pace(outbound, count);
+        pOut.write(buffer, 0, count);
+        remaining -= count;
+      }
+    } finally {
+      if (pResponse.body != null)
+        pResponse.body.close();
+    }
+    pOut.flush();
+    return !pResponse.drop;
+  }
+
+  private static void pace(TransferController pController, int pBytes) throws InterruptedIOException {
+    try {
+      pController.throttle(pBytes);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while transferring");
+    }
+  }
+
+  private static String getReason(int pStatus) {
+    switch (pStatus) {
+      case 200: return "OK";
+      case 201: return "Created";
+      case 202: return "Accepted";
+      case 204: return "No Content";
+      case 206: return "Partial Content";
+      case 400: return "Bad Request";
+      case 404: return "Not Found";
+      case 500: return "Internal Server Error";
+      case 503: return "Service Unavailable";
+      default: return "Status " + pStatus;
+    }
+  }
+
+  /**
+   * Request read from a connection
+   */
+  private static class Request {
+    final String method;
+    final String path;
+    final Map<String, String> params;
+    final Map<String, String> headers = new HashMap<String, String>();
+    byte[] body;
+
+    Request(String pMethod, String pTarget) {
+      method = pMethod;
+      int question = pTarget.indexOf('?');
+      path = decode(question < 0 ? pTarget : pTarget.substring(0, question));
+      params = question < 0 ? new HashMap<String, String>() : parseParams(pTarget.substring(question + 1));
+    }
+
+    /**
+     * Returns a header
+     * @param pName lower case name
+     * @return
+     */
+    String getHeader(String pName) {
+      return headers.get(pName);
+    }
+  }
+
+  /**
+   * Response to a request, its header names written as they are given
+   */
+  private static class Response {
+    final int status;
+    final Map<String, String> headers = new LinkedHashMap<String, String>();
+    InputStream body;
+    long length;
+    boolean drop;
+
+    Response(int pStatus) {
+      status = pStatus;
+    }
+
+    Response header(String pName, String pValue) {
+      headers.put(pName, pValue);
+      return this;
+    }
+
+    Response body(byte[] pBody) {
+      body = new ByteArrayInputStream(pBody);
+      length = pBody.length;
+      return this;
+    }
+  }
+}
@@ -0,0 +1,525 @@
+package org.bg.amazon.glacier;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+
+/**
+ * In-memory stand-in for Amazon Glacier. It validates part ranges and tree
+ * hashes the same way the service does, so the transfer engines can be run
+ * and load tested without an Amazon account.
+ */
+public class LocalGlacierService implements GlacierService {
+
+  /**
+   * Uploads in progress by upload id
+   */
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
+  /**
+   * Archives stored by vault name and archive id
+   */
+  private final Map<String, Map<String, Archive>> vaults = new ConcurrentHashMap<String, Map<String, Archive>>();
+
+  /**
+   * Jobs by job id
+   */
+  private final Map<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+
+  /**
+   * Time it takes for a job to complete, in milliseconds
+   */
+  private volatile long jobDelay;
+
+  /**
+   * Time every call takes before it is served, in milliseconds, standing for the network round trip
+   */
+  private volatile long latency;
+
+  /**
+   * Whether archive contents are kept, load tests usually only need sizes and hashes
+   */
+  private final boolean retainData;
+
+  /**
+   * Bytes received through uploadPart
+   */
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  /**
+   * Constructor for the LocalGlacierService class
+   * @param pRetainData keep archive contents in memory
+   */
+  public LocalGlacierService(boolean pRetainData) {
+    retainData = pRetainData;
+  }
+
+  @Override
+  public String initiateMultipartUpload(String pVaultName, String pDescription, long pPartSize) {
+    pause();
+    String uploadId = UUID.randomUUID().toString();
+    uploads.put(uploadId, new Upload(pVaultName, pDescription, pPartSize));
+    return uploadId;
+  }
+
+  @Override
+  public String uploadPart(String pVaultName, String pUploadId, long pOffset, ByteBuffer pBody, String pChecksum) {
+    pause();
+    Upload upload = getUpload(pVaultName, pUploadId);
+    if (pOffset % upload.partSize != 0 || pBody.remaining() > upload.partSize || pBody.remaining() == 0)
+      throw serviceError("InvalidParameterValueException", "Invalid range for part at offset " + pOffset);
+    String checksum = TreeHash.toHex(TreeHash.compute(pBody));
+    if (!checksum.equals(pChecksum))
+      throw serviceError("InvalidParameterValueException", "Checksum mismatch for part at offset " + pOffset);
+    byte[] data = null;
+    if (retainData) {
+      data = new byte[pBody.remaining()];
+      pBody.duplicate().get(data);
+    }
+    upload.parts.put(pOffset, new Part(pBody.remaining(), checksum, data));
+    bytesReceived.addAndGet(pBody.remaining());
+    return checksum;
+  }
+
+  @Override
+  public String completeMultipartUpload(String pVaultName, String pUploadId, long pArchiveSize, String pChecksum) {
+    pause();
+    Upload upload = getUpload(pVaultName, pUploadId);
+    List<byte[]> hashes = new ArrayList<byte[]>();
+    long expected = 0;
+    for (Map.Entry<Long, Part> entry : upload.parts.entrySet()) {
+      if (entry.getKey() != expected)
+        throw serviceError("InvalidParameterValueException", "Missing part at offset " + expected);
+      hashes.add(TreeHash.fromHex(entry.getValue().checksum));
+      expected += entry.getValue().length;
+    }
+    if (expected != pArchiveSize)
+      throw serviceError("InvalidParameterValueException", "Archive size " + pArchiveSize + " does not match uploaded " + expected);
+    String checksum = TreeHash.toHex(TreeHash.combine(hashes));
+    if (!checksum.equals(pChecksum))
+      throw serviceError("InvalidParameterValueException", "Tree hash mismatch for upload " + pUploadId);
+
+    byte[] data = null;
+    if (retainData) {
+      data = new byte[(int) pArchiveSize];
+      for (Map.Entry<Long, Part> entry : upload.parts.entrySet())
+        System.arraycopy(entry.getValue().data, 0, data, entry.getKey().intValue(), entry.getValue().data.length);
+    }
+    uploads.remove(pUploadId);
+    String archiveId = UUID.randomUUID().toString().replace("-", "");
+    getVault(pVaultName).put(archiveId, new Archive(upload.description, pArchiveSize, checksum, data));
+    return archiveId;
+  }
+
+  @Override
+  public void abortMultipartUpload(String pVaultName, String pUploadId) {
+    pause();
+    getUpload(pVaultName, pUploadId);
+    uploads.remove(pUploadId);
+  }
+
+  @Override
+  public String uploadArchive(String pVaultName, String pDescription, ByteBuffer pBody, String pChecksum) {
+    pause();
+    String checksum = TreeHash.toHex(TreeHash.compute(pBody));
+    if (!checksum.equals(pChecksum))
+      throw serviceError("InvalidParameterValueException", "Checksum mismatch for archive " + pDescription);
+    byte[] data = null;
+    if (retainData) {
+      data = new byte[pBody.remaining()];
+      pBody.duplicate().get(data);
+    }
+    bytesReceived.addAndGet(pBody.remaining());
+    String archiveId = UUID.randomUUID().toString().replace("-", "");
+    getVault(pVaultName).put(archiveId, new Archive(pDescription, pBody.remaining(), checksum, data));
+    return archiveId;
+  }
+
+  @Override
+  public String initiateArchiveRetrieval(String pVaultName, String pArchiveId, String pSnsTopic) {
+    pause();
+    getArchive(pVaultName, pArchiveId);
+    String jobId = UUID.randomUUID().toString().replace("-", "");
+    jobs.put(jobId, new Job(pVaultName, pArchiveId, null, pSnsTopic, System.currentTimeMillis() + jobDelay));
+    return jobId;
+  }
+
+  @Override
+  public String initiateInventoryRetrieval(String pVaultName, String pSnsTopic) {
+    pause();
+    String jobId = UUID.randomUUID().toString().replace("-", "");
+    jobs.put(jobId, new Job(pVaultName, null, inventory(pVaultName), pSnsTopic, System.currentTimeMillis() + jobDelay));
+    return jobId;
+  }
+
+  @Override
+  public DescribeJobResult describeJob(String pVaultName, String pJobId) {
+    pause();
+    Job job = getJob(pVaultName, pJobId);
+    boolean completed = job.isCompleted();
+    DescribeJobResult result = new DescribeJobResult();
+    result.setJobId(pJobId);
+    result.setVaultARN(getVaultArn(pVaultName));
+    result.setCreationDate(formatDate(job.creationTime));
+    result.setSNSTopic(job.snsTopic);
+    result.setCompleted(completed);
+    result.setStatusCode(completed ? "Succeeded" : "InProgress");
+    if (completed)
+      result.setCompletionDate(formatDate(job.completionTime));
+    if (job.inventory != null) {
+      result.setAction("InventoryRetrieval");
+      result.setInventorySizeInBytes((long) job.inventory.length);
+    } else {
+      Archive archive = getArchive(pVaultName, job.archiveId);
+      result.setAction("ArchiveRetrieval");
+      result.setArchiveId(job.archiveId);
+      result.setArchiveSizeInBytes(archive.size);
+      result.setSHA256TreeHash(archive.checksum);
+    }
+    return result;
+  }
+
+  @Override
+  public GetJobOutputResult getJobOutput(String pVaultName, String pJobId, long pStart, long pEnd) {
+    pause();
+    Job job = getJob(pVaultName, pJobId);
+    if (!job.isCompleted())
+      throw serviceError("InvalidParameterValueException", "Job " + pJobId + " is still in progress");
+    byte[] data = job.inventory;
+    String description = null;
+    if (data == null) {
+      Archive archive = getArchive(pVaultName, job.archiveId);
+      data = archive.data;
+      description = archive.description;
+      if (data == null)
+        throw serviceError("InvalidParameterValueException", "Archive contents are not retained");
+    }
+    if (pStart < 0 || pEnd >= data.length || pStart > pEnd)
+      throw serviceError("InvalidParameterValueException", "Invalid range " + pStart + "-" + pEnd);
+    ByteBuffer range = ByteBuffer.wrap(data, (int) pStart, (int) (pEnd - pStart + 1));
+    GetJobOutputResult result = new GetJobOutputResult();
+    result.setStatus(pStart == 0 && pEnd == data.length - 1 ? 200 : 206);
+    result.setContentRange("bytes " + pStart + "-" + pEnd + "/" + data.length);
+    result.setContentType(job.inventory != null ? "application/json" : "application/octet-stream");
+    result.setArchiveDescription(description);
+    if (pStart % TreeHash.CHUNK_SIZE == 0)
+      result.setChecksum(TreeHash.toHex(TreeHash.compute(range)));
+    result.setBody(new ByteArrayInputStream(data, (int) pStart, (int) (pEnd - pStart + 1)));
+    return result;
+  }
+
+  /**
+   * Returns the size of the output of a job, without the latency of a call
+   * @param pVaultName
+   * @param pJobId
+   * @return
+   */
+  long getOutputSize(String pVaultName, String pJobId) {
+    Job job = getJob(pVaultName, pJobId);
+    return job.inventory != null ? job.inventory.length : getArchive(pVaultName, job.archiveId).size;
+  }
+
+  /**
+   * Creates a vault, nothing is done if it already exists
+   * @param pVaultName
+   */
+  @Override
+  public void createVault(String pVaultName) {
+    pause();
+    getVault(pVaultName);
+  }
+
+  /**
+   * Deletes an empty vault
+   * @param pVaultName
+   */
+  @Override
+  public void deleteVault(String pVaultName) {
+    pause();
+    Map<String, Archive> vault = vaults.get(pVaultName);
+    if (vault == null)
+      throw notFound("Vault " + pVaultName + " not found");
+    if (!vault.isEmpty())
+      throw serviceError("InvalidParameterValueException", "Vault " + pVaultName + " is not empty");
+    vaults.remove(pVaultName);
+  }
+
+  /**
+   * Describes a vault, as of now rather than as of its last inventory
+   * @param pVaultName
+   * @return
+   */
+  @Override
+  public DescribeVaultResult describeVault(String pVaultName) {
+    pause();
+    Map<String, Archive> vault = vaults.get(pVaultName);
+    if (vault == null)
+      throw notFound("Vault " + pVaultName + " not found");
+    long size = 0;
+    for (Archive archive : vault.values())
+      size += archive.size;
+    return new DescribeVaultResult()
+        .withVaultName(pVaultName)
+        .withVaultARN(getVaultArn(pVaultName))
+        .withNumberOfArchives((long) vault.size())
+        .withSizeInBytes(size);
+  }
+
+  /**
+   * Returns the names of the vaults, sorted
+   * @return
+   */
+  public List<String> listVaults() {
+    pause();
+    List<String> names = new ArrayList<String>(vaults.keySet());
+    Collections.sort(names);
+    return names;
+  }
+
+  @Override
+  public void deleteArchive(String pVaultName, String pArchiveId) {
+    pause();
+    getArchive(pVaultName, pArchiveId);
+    getVault(pVaultName).remove(pArchiveId);
+  }
+
+  /**
+   * Sets the time it takes for a job to complete
+   * @param pMillis
+   */
+  public void setJobDelay(long pMillis) {
+    jobDelay = pMillis;
+  }
+
+  public long getJobDelay() {
+    return jobDelay;
+  }
+
+  /**
+   * Sets the time every call takes before it is served
+   * @param pMillis
+   */
+  public void setLatency(long pMillis) {
+    latency = pMillis;
+  }
+
+  /**
+   * Waits for the latency of a call
+   */
+  private void pause() {
+    if (latency <= 0)
+      return;
+    try {
+      Thread.sleep(latency);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AmazonClientException("Interrupted", e);
+    }
+  }
+
+  /**
+   * Returns the number of bytes received so far
+   * @return
+   */
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  /**
+   * Returns the content of a stored archive, or null if contents are not retained
+   * @param pVaultName
+   * @param pArchiveId
+   * @return
+   */
+  public byte[] getArchiveData(String pVaultName, String pArchiveId) {
+    return getArchive(pVaultName, pArchiveId).data;
+  }
+
+  /**
+   * Returns the tree hash of a stored archive
+   * @param pVaultName
+   * @param pArchiveId
+   * @return
+   */
+  public String getArchiveChecksum(String pVaultName, String pArchiveId) {
+    return getArchive(pVaultName, pArchiveId).checksum;
+  }
+
+  private static String getVaultArn(String pVaultName) {
+    return "arn:aws:glacier:local:000000000000:vaults/" + pVaultName;
+  }
+
+  /**
+   * Formats a time the way the service does
+   * @param pMillis
+   * @return
+   */
+  static String formatDate(long pMillis) {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format.format(new Date(pMillis));
+  }
+
+  /**
+   * Serializes the archives of a vault the way inventory retrieval jobs return them
+   */
+  private byte[] inventory(String pVaultName) {
+    List<Map<String, Object>> archives = new ArrayList<Map<String, Object>>();
+    for (Map.Entry<String, Archive> entry : getVault(pVaultName).entrySet()) {
+      Map<String, Object> archive = new LinkedHashMap<String, Object>();
+      archive.put("ArchiveId", entry.getKey());
+      archive.put("ArchiveDescription", entry.getValue().description);
+      archive.put("CreationDate", formatDate(entry.getValue().creationDate));
+      archive.put("Size", entry.getValue().size);
+      archive.put("SHA256TreeHash", entry.getValue().checksum);
+      archives.add(archive);
+    }
+    Map<String, Object> inventory = new LinkedHashMap<String, Object>();
+    inventory.put("VaultARN", getVaultArn(pVaultName));
+    inventory.put("InventoryDate", formatDate(System.currentTimeMillis()));
+    inventory.put("ArchiveList", archives);
+    try {
+      return new ObjectMapper().writeValueAsBytes(inventory);
+    } catch (IOException e) {
+      throw new GlacierException("Unable to serialize inventory: " + e.getMessage());
+    }
+  }
+
+  private Archive getArchive(String pVaultName, String pArchiveId) {
+    Archive archive = getVault(pVaultName).get(pArchiveId);
+    if (archive == null)
+      throw notFound("Archive " + pArchiveId + " not found in vault " + pVaultName);
+    return archive;
+  }
+
+  private Job getJob(String pVaultName, String pJobId) {
+    Job job = jobs.get(pJobId);
+    if (job == null || !job.vaultName.equals(pVaultName))
+      throw notFound("Job " + pJobId + " not found in vault " + pVaultName);
+    return job;
+  }
+
+  private Map<String, Archive> getVault(String pVaultName) {
+    Map<String, Archive> vault = vaults.get(pVaultName);
+    if (vault == null) {
+      vaults.putIfAbsent(pVaultName, new ConcurrentHashMap<String, Archive>());
+      vault = vaults.get(pVaultName);
+    }
+    return vault;
+  }
+
+  private Upload getUpload(String pVaultName, String pUploadId) {
+    Upload upload = uploads.get(pUploadId);
+    if (upload == null || !upload.vaultName.equals(pVaultName))
+      throw notFound("Upload " + pUploadId + " not found in vault " + pVaultName);
+    return upload;
+  }
+
+  private static AmazonServiceException notFound(String pMessage) {
+    ResourceNotFoundException e = new ResourceNotFoundException(pMessage);
+    e.setErrorCode("ResourceNotFoundException");
+    e.setStatusCode(404);
+    return e;
+  }
+
+  private static AmazonServiceException serviceError(String pCode, String pMessage) {
+    AmazonServiceException e = new AmazonServiceException(pMessage);
+    e.setErrorCode(pCode);
+    e.setStatusCode(400);
+    return e;
+  }
+
+  /**
+   * Multipart upload in progress
+   */
+  private static class Upload {
+    final String vaultName;
+    final String description;
+    final long partSize;
+    final ConcurrentSkipListMap<Long, Part> parts = new ConcurrentSkipListMap<Long, Part>();
+
+    Upload(String pVaultName, String pDescription, long pPartSize) {
+      vaultName = pVaultName;
+      description = pDescription;
+      partSize = pPartSize;
+    }
+  }
+
+  /**
+   * Part received for an upload
+   */
+  private static class Part {
+    final long length;
+    final String checksum;
+    final byte[] data;
+
+    Part(long pLength, String pChecksum, byte[] pData) {
+      length = pLength;
+      checksum = pChecksum;
+      data = pData;
+    }
+  }
+
+  /**
+   * Archive stored in a vault
+   */
+  private static class Archive {
+    final String description;
+    final long size;
+    final String checksum;
+    final byte[] data;
+    final long creationDate = System.currentTimeMillis();
+
+    Archive(String pDescription, long pSize, String pChecksum, byte[] pData) {
+      description = pDescription;
+      size = pSize;
+      checksum = pChecksum;
+      data = pData;
+    }
+  }
+
+  /**
+   * Archive or inventory retrieval job
+   */
+  private static class Job {
+    final String vaultName;
+    final String archiveId;
+    final byte[] inventory;
+    final String snsTopic;
+    final long creationTime = System.currentTimeMillis();
+    final long completionTime;
+
+    Job(String pVaultName, String pArchiveId, byte[] pInventory, String pSnsTopic, long pCompletionTime) {
+      vaultName = pVaultName;
+      archiveId = pArchiveId;
+      inventory = pInventory;
+      snsTopic = pSnsTopic;
+      completionTime = pCompletionTime;
+    }
+
+    boolean isCompleted() {
+      return System.currentTimeMillis() >= completionTime;
+    }
+  }
+}
@@ -0,0 +1,292 @@
+package org.bg.amazon.glacier;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.codehaus.jackson.map.ObjectMapper;
+
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * In-memory stand-in for the part of Amazon SNS and SQS used to be notified
+ * of completed jobs: topics delivering to queues, and queues whose received
+ * messages stay invisible until deleted or until their visibility timeout
+ * runs out.
+ */
+public class LocalQueueService {
+
+  /**
+   * Time a received message stays invisible, in milliseconds
+   */
+  public static final long VISIBILITY_TIMEOUT = 30000;
+
+  private static final String ARN_PREFIX = "arn:aws:%s:local:000000000000:";
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * Queue arns subscribed to every topic, by topic arn
+   */
+  private final Map<String, List<String>> topics = new ConcurrentHashMap<String, List<String>>();
+
+  /**
+   * Queues by name
+   */
+  private final Map<String, Queue> queues = new ConcurrentHashMap<String, Queue>();
+
+  /**
+   * Creates a topic, nothing is done if it already exists
+   * @param pName
+   * @return topic arn
+   */
+  public String createTopic(String pName) {
+    String arn = String.format(ARN_PREFIX, "sns") + pName;
+    topics.putIfAbsent(arn, new CopyOnWriteArrayList<String>());
+    return arn;
+  }
+
+  /**
+   * Subscribes a queue to a topic
+   * @param pTopicArn
+   * @param pProtocol only "sqs" is supported
+   * @param pQueueArn
+   * @return subscription arn
+   */
+  public String subscribe(String pTopicArn, String pProtocol, String pQueueArn) {
+    if (!"sqs".equals(pProtocol))
+      throw error("InvalidParameter", "Unsupported protocol " + pProtocol);
+    List<String> subscribers = getTopic(pTopicArn);
+    if (!subscribers.contains(pQueueArn))
+      subscribers.add(pQueueArn);
+    return pTopicArn + ":" + UUID.nameUUIDFromBytes(pQueueArn.getBytes());
+  }
+
+  /**
+   * Delivers a message to every queue subscribed to a topic, wrapped the way
+   * SNS wraps the notifications it sends to SQS
+   * @param pTopicArn
+   * @param pSubject may be null
+   * @param pMessage
+   * @return message id
+   */
+  public String publish(String pTopicArn, String pSubject, String pMessage) {
+    String messageId = UUID.randomUUID().toString();
+    Map<String, Object> notification = new LinkedHashMap<String, Object>();
+    notification.put("Type", "Notification");
+    notification.put("MessageId", messageId);
+    notification.put("TopicArn", pTopicArn);
+    if (pSubject != null)
+      notification.put("Subject", pSubject);
+    notification.put("Message", pMessage);
+    notification.put("Timestamp", LocalGlacierService.formatDate(System.currentTimeMillis()));
+    String body;
+    try {
+      body = MAPPER.writeValueAsString(notification);
+    } catch (IOException e) {
+      throw new GlacierException("Unable to serialize notification: " + e.getMessage(), e);
+    }
+    for (String queueArn : getTopic(pTopicArn)) {
+      Queue queue = queues.get(queueArn.substring(queueArn.lastIndexOf(':') + 1));
+      if (queue != null)
+        queue.send(body);
+    }
+    return messageId;
+  }
+
+  /**
+   * Creates a queue, nothing is done if it already exists
+   * @param pName
+   */
+  public void createQueue(String pName) {
+    queues.putIfAbsent(pName, new Queue(pName));
+  }
+
+  /**
+   * Deletes a queue, discarding its messages
+   * @param pName
+   */
+  public void deleteQueue(String pName) {
+    getQueue(pName).close();
+    queues.remove(pName);
+  }
+
+  /**
+   * Returns the attributes of a queue, including its arn and number of messages
+   * @param pName
+   * @return
+   */
+  public Map<String, String> getQueueAttributes(String pName) {
+    return getQueue(pName).getAttributes();
+  }
+
+  /**
+   * Sets attributes of a queue, such as its policy. They are kept but not enforced
+   * @param pName
+   * @param pAttributes
+   */
+  public void setQueueAttributes(String pName, Map<String, String> pAttributes) {
+    getQueue(pName).setAttributes(pAttributes);
+  }
+
+  /**
+   * Adds a message to a queue
+   * @param pName
+   * @param pBody
+   * @return message id
+   */
+  public String sendMessage(String pName, String pBody) {
+    return getQueue(pName).send(pBody).messageId;
+  }
+
+  /**
+   * Receives the visible messages of a queue, waiting for some to arrive
+   * @param pName
+   * @param pMaxMessages
+   * @param pWaitMillis longest wait when the queue is empty
+   * @return messages received, which stay invisible until deleted or until their visibility timeout
+   * @throws InterruptedException
+   */
+  public List<Message> receiveMessages(String pName, int pMaxMessages, long pWaitMillis) throws InterruptedException {
+    return getQueue(pName).receive(pMaxMessages, pWaitMillis);
+  }
+
+  /**
+   * Deletes a received message
+   * @param pName
+   * @param pReceiptHandle handle returned when the message was received
+   */
+  public void deleteMessage(String pName, String pReceiptHandle) {
+    getQueue(pName).delete(pReceiptHandle);
+  }
+
+  private List<String> getTopic(String pTopicArn) {
+    List<String> subscribers = topics.get(pTopicArn);
+    if (subscribers == null)
+      throw error("NotFound", "Topic " + pTopicArn + " does not exist");
+    return subscribers;
+  }
+
+  private Queue getQueue(String pName) {
+    Queue queue = queues.get(pName);
+    if (queue == null)
+      throw error("AWS.SimpleQueueService.NonExistentQueue", "Queue " + pName + " does not exist");
+    return queue;
+  }
+
+  private static AmazonServiceException error(String pCode, String pMessage) {
+    AmazonServiceException e = new AmazonServiceException(pMessage);
+    e.setErrorCode(pCode);
+    e.setStatusCode(pCode.equals("NotFound") ? 404 : 400);
+    return e;
+  }
+
+  /**
+   * Message of a queue
+   */
+  public static class Message {
+    final String messageId = UUID.randomUUID().toString();
+    final String body;
+    String receiptHandle;
+    long visibleAt;
+
+    Message(String pBody) {
+      body = pBody;
+    }
+
+    public String getMessageId() {
+      return messageId;
+    }
+
+    public String getBody() {
+      return body;
+    }
+
+    public String getReceiptHandle() {
+      return receiptHandle;
+    }
+  }
+
+  /**
+   * Queue of messages, received by long polling
+   */
+  private static class Queue {
+    final String name;
+    final LinkedList<Message> messages = new LinkedList<Message>();
+    final Map<String, String> attributes = new HashMap<String, String>();
+    boolean closed;
+
+    Queue(String pName) {
+      name = pName;
+    }
+
+    synchronized Message send(String pBody) {
+      Message message = new Message(pBody);
+      messages.add(message);
+      notifyAll();
+      return message;
+    }
+
+    synchronized List<Message> receive(int pMaxMessages, long pWaitMillis) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + pWaitMillis;
+      List<Message> received = new ArrayList<Message>();
+      while (true) {
+        long now = System.currentTimeMillis();
+        for (Message message : messages) {
+          if (received.size() >= pMaxMessages)
+            break;
+          if (message.visibleAt <= now) {
+            message.visibleAt = now + VISIBILITY_TIMEOUT;
+            message.receiptHandle = UUID.randomUUID().toString();
+            received.add(message);
+          }
+        }
+        if (!received.isEmpty() || closed || now >= deadline)
+          return received;
+        wait(Math.min(deadline - now, 1000));
+      }
+    }
+
+    synchronized void delete(String pReceiptHandle) {
+      for (Iterator<Message> it = messages.iterator(); it.hasNext();) {
+        if (pReceiptHandle.equals(it.next().receiptHandle)) {
+          it.remove();
+          return;
+        }
+      }
+    }
+
+    synchronized Map<String, String> getAttributes() {
+      long now = System.currentTimeMillis();
+      int visible = 0;
+      for (Message message : messages) {
+        if (message.visibleAt <= now)
+          visible++;
+      }
+      Map<String, String> result = new LinkedHashMap<String, String>(attributes);
+      result.put("QueueArn", String.format(ARN_PREFIX, "sqs") + name);
+      result.put("ApproximateNumberOfMessages", String.valueOf(visible));
+      result.put("ApproximateNumberOfMessagesNotVisible", String.valueOf(messages.size() - visible));
+      result.put("VisibilityTimeout", String.valueOf(VISIBILITY_TIMEOUT / 1000));
+      return result;
+    }
+
+    synchronized void setAttributes(Map<String, String> pAttributes) {
+      attributes.putAll(pAttributes);
+    }
+
+    synchronized void close() {
+      closed = true;
+      messages.clear();
+      notifyAll();
+    }
+  }
+}
@@ -0,0 +1,497 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counters, gauges and latency histograms of the operations and transfer
+ * stages. Metrics are named and labelled as Prometheus does, are exposed as
+ * MBeans once JMX is enabled, and can be written periodically to a file in
+ * the Prometheus text format, e.g. for the textfile collector of the node
+ * exporter.
+ */
+public class MetricsRegistry {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(MetricsRegistry.class);
+
+  /**
+   * Registry of the process, used by all operations
+   */
+  public static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+  /**
+   * Upper bounds of the histogram buckets, in seconds, from a millisecond to the half day a job may take
+   */
+  private static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10,
+                                           30, 60, 300, 900, 3600, 4 * 3600, 12 * 3600};
+
+  private static final String DOMAIN = "org.bg.amazon.glacier";
+
+  /**
+   * Metrics by name and labels
+   */
+  private final ConcurrentMap<String, Metric> metrics = new ConcurrentHashMap<String, Metric>();
+
+  private volatile MBeanServer mbeanServer;
+  private ScheduledExecutorService exporter;
+  private File textFile;
+  private Thread exitHook;
+
+  public interface CounterMBean {
+    long getCount();
+  }
+
+  public interface GaugeMBean {
+    double getValue();
+  }
+
+  public interface HistogramMBean {
+    long getCount();
+    double getSumSeconds();
+    double getMeanSeconds();
+    double getMaxSeconds();
+    double get50thPercentileSeconds();
+    double get99thPercentileSeconds();
+  }
+
+  /**
+   * Value of a gauge, read whenever the gauge is exported
+   */
+  public interface Source {
+    double getValue();
+  }
+
+  /**
+   * Metric with its name, labels and help text
+   */
+  private abstract static class Metric {
+    final String name;
+    final String help;
+    final String[] labels;
+
+    Metric(String pName, String pHelp, String[] pLabels) {
+      name = pName;
+      help = pHelp;
+      labels = pLabels;
+    }
+
+    abstract String type();
+
+    abstract Class<?> mbeanInterface();
+
+    abstract void write(StringBuilder pOut);
+
+    String series(String pSuffix, String pExtraLabel) {
+      StringBuilder out = new StringBuilder(name).append(pSuffix);
+      if (labels.length > 0 || pExtraLabel != null) {
+        out.append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+          if (i > 0)
+            out.append(',');
+          out.append(labels[i]).append("=\"").append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        if (pExtraLabel != null)
+          out.append(labels.length > 0 ? "," : "").append(pExtraLabel);
+        out.append('}');
+      }
+      return out.toString();
+    }
+  }
+
+  /**
+   * Monotonic count, such as bytes sent or retries
+   */
+  public static class Counter extends Metric implements CounterMBean {
+
+    private final LongAdder count = new LongAdder();
+
+    Counter(String pName, String pHelp, String[] pLabels) {
+      super(pName, pHelp, pLabels);
+    }
+
+    public void increment() {
+      count.increment();
+    }
+
+    public void add(long pAmount) {
+      count.add(pAmount);
+    }
+
+    @Override
+    public long getCount() {
+      return count.sum();
+    }
+
+    @Override
+    String type() {
+      return "counter";
+    }
+
+    @Override
+    Class<?> mbeanInterface() {
+      return CounterMBean.class;
+    }
+
+    @Override
+    void write(StringBuilder pOut) {
+      pOut.append(series("", null)).append(' ').append(getCount()).append('\n');
+    }
+  }
+
+  /**
+   * Value sampled when exported, such as the parts in flight
+   */
+  public static class Gauge extends Metric implements GaugeMBean {
+
+    private volatile Source source;
+
+    Gauge(String pName, String pHelp, String[] pLabels, Source pSource) {
+      super(pName, pHelp, pLabels);
+      source = pSource;
+    }
+
+    @Override
+    public double getValue() {
+      return source.getValue();
+    }
+
+    @Override
+    String type() {
+      return "gauge";
+    }
+
+    @Override
+    Class<?> mbeanInterface() {
+      return GaugeMBean.class;
+    }
+
+    @Override
+    void write(StringBuilder pOut) {
+      pOut.append(series("", null)).append(' ').append(getValue()).append('\n');
+    }
+  }
+
+  /**
+   * Distribution of durations, in fixed buckets
+   */
+  public static class Histogram extends Metric implements HistogramMBean {
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram(String pName, String pHelp, String[] pLabels) {
+      super(pName, pHelp, pLabels);
+      for (int i = 0; i < buckets.length; i++)
+        buckets[i] = new LongAdder();
+    }
+
+    /**
+     * Records a duration
+     * @param pNanos
+     */
+    public void record(long pNanos) {
+      double seconds = pNanos / 1e9;
+      int i = 0;
+      while (i < BUCKETS.length && seconds > BUCKETS[i])
+        i++;
+      buckets[i].increment();
+      sum.add(pNanos);
+      max.accumulate(pNanos);
+    }
+
+    /**
+     * Records the time elapsed since a start read from System.nanoTime
+     * @param pStart
+     */
+    public void recordSince(long pStart) {
+      record(System.nanoTime() - pStart);
+    }
+
+    @Override
+    public long getCount() {
+      long count = 0;
+      for (LongAdder bucket : buckets)
+        count += bucket.sum();
+      return count;
+    }
+
+    @Override
+    public double getSumSeconds() {
+      return sum.sum() / 1e9;
+    }
+
+    @Override
+    public double getMeanSeconds() {
+      long count = getCount();
+      return count == 0 ? 0 : getSumSeconds() / count;
+    }
+
+    @Override
+    public double getMaxSeconds() {
+      return max.get() / 1e9;
+    }
+
+    @Override
+    public double get50thPercentileSeconds() {
+      return percentile(0.5);
+    }
+
+    @Override
+    public double get99thPercentileSeconds() {
+      return percentile(0.99);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding a percentile, or the
+     * largest duration if it is beyond the last bucket
+     */
+    private double percentile(double pRank) {
+      long count = getCount();
+      if (count == 0)
+        return 0;
+      long seen = 0;
+      for (int i = 0; i < BUCKETS.length; i++) {
+        seen += buckets[i].sum();
+        if (seen >= pRank * count)
+          return BUCKETS[i];
+      }
+      return getMaxSeconds();
+    }
+
+    @Override
+    String type() {
+      return "histogram";
+    }
+
+    @Override
+    Class<?> mbeanInterface() {
+      return HistogramMBean.class;
+    }
+
+    @Override
+    void write(StringBuilder pOut) {
+      long cumulative = 0;
+      for (int i = 0; i < BUCKETS.length; i++) {
+        cumulative += buckets[i].sum();
+        pOut.append(series("_bucket", "le=\"" + BUCKETS[i] + "\"")).append(' ').append(cumulative).append('\n');
+      }
+      cumulative += buckets[BUCKETS.length].sum();
+      pOut.append(series("_bucket", "le=\"+Inf\"")).append(' ').append(cumulative).append('\n');
+      pOut.append(series("_sum", null)).append(' ').append(getSumSeconds()).append('\n');
+      pOut.append(series("_count", null)).append(' ').append(cumulative).append('\n');
+    }
+  }
+
+  /**
+   * Returns a counter, creating it on first use
+   * @param pName
+   * @param pHelp
+   * @param pLabels label names and values, alternately
+   * @return
+   */
+  public Counter counter(String pName, String pHelp, String... pLabels) {
+    Metric metric = metrics.get(key(pName, pLabels));
+    return (Counter) (metric instanceof Counter ? metric : add(new Counter(pName, pHelp, pLabels)));
+  }
+
+  /**
+   * Returns a histogram, creating it on first use
+   * @param pName
+   * @param pHelp
+   * @param pLabels label names and values, alternately
+   * @return
+   */
+  public Histogram histogram(String pName, String pHelp, String... pLabels) {
+    Metric metric = metrics.get(key(pName, pLabels));
+    return (Histogram) (metric instanceof Histogram ? metric : add(new Histogram(pName, pHelp, pLabels)));
+  }
+
+  /**
+   * Returns the histogram of the time spent in a transfer stage, which tells
+   * whether the disk, the processors or the network bound a transfer
+   * @param pStage read, compress, encrypt, hash, receive or write
+   * @return
+   */
+  public Histogram stage(String pStage) {
+    return histogram("glacier_stage_seconds", "Time spent in every transfer stage, per part or range", "stage", pStage);
+  }
+
+  /**
+   * Registers a gauge, replacing the source of an existing one
+   * @param pName
+   * @param pHelp
+   * @param pSource
+   * @param pLabels label names and values, alternately
+   */
+  public void gauge(String pName, String pHelp, Source pSource, String... pLabels) {
+    Gauge gauge = (Gauge) add(new Gauge(pName, pHelp, pLabels, pSource));
+    gauge.source = pSource;
+  }
+
+  private static String key(String pName, String[] pLabels) {
+    StringBuilder key = new StringBuilder(pName);
+    for (String label : pLabels)
+      key.append('\n').append(label);
+    return key.toString();
+  }
+
+  /**
+   * Adds a metric unless one with the same name and labels exists, which is returned instead
+   * @param pMetric
+   * @return
+   */
+  private Metric add(Metric pMetric) {
+    String key = key(pMetric.name, pMetric.labels);
+    Metric existing = metrics.putIfAbsent(key, pMetric);
+    if (existing != null) {
+      if (!existing.type().equals(pMetric.type()))
+        throw new GlacierException("Metric " + pMetric.series("", null) + " is already registered as a " + existing.type());
+      return existing;
+    }
+    if (mbeanServer != null)
+      register(pMetric);
+    return pMetric;
+  }
+
+  /**
+   * Exposes every metric, present and future, as an MBean of the platform server
+   */
+  public synchronized void enableJmx() {
+    if (mbeanServer != null)
+      return;
+    mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    for (Metric metric : metrics.values())
+      register(metric);
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private void register(Metric pMetric) {
+    try {
+      StringBuilder name = new StringBuilder(DOMAIN).append(":type=").append(pMetric.type())
+          .append(",name=").append(pMetric.name);
+      for (int i = 0; i + 1 < pMetric.labels.length; i += 2)
+        name.append(',').append(pMetric.labels[i]).append('=').append(quote(pMetric.labels[i + 1]));
+      ObjectName objectName = new ObjectName(name.toString());
+      if (!mbeanServer.isRegistered(objectName))
+        mbeanServer.registerMBean(new StandardMBean(pMetric, (Class) pMetric.mbeanInterface()), objectName);
+    } catch (JMException e) {
+      LOG.warn("Unable to expose metric " + pMetric.name + " through JMX: " + e.getMessage());
+    }
+  }
+
+  private static String quote(String pValue) {
+    return pValue.matches("[A-Za-z0-9_.-]*") ? pValue : ObjectName.quote(pValue);
+  }
+
+  /**
+   * Returns every metric in the Prometheus text format
+   * @return
+   */
+  public String toPrometheus() {
+    Map<String, List<Metric>> byName = new TreeMap<String, List<Metric>>();
+    for (Metric metric : new TreeMap<String, Metric>(metrics).values()) {
+      if (!byName.containsKey(metric.name))
+        byName.put(metric.name, new ArrayList<Metric>());
+      byName.get(metric.name).add(metric);
+    }
+    StringBuilder out = new StringBuilder();
+    for (List<Metric> family : byName.values()) {
+      Metric first = family.get(0);
+      out.append("# HELP ").append(first.name).append(' ').append(first.help).append('\n');
+      out.append("# TYPE ").append(first.name).append(' ').append(first.type()).append('\n');
+      for (Metric metric : family)
+        metric.write(out);
+    }
+    return out.toString();
+  }
+
+  /**
+   * Writes every metric to a file periodically and when the JVM exits. The
+   * file is replaced atomically, so readers never see a partial one.
+   * @param pFile
+   * @param pPeriodSeconds
+   */
+  public synchronized void startTextFile(File pFile, long pPeriodSeconds) {
+    if (exporter != null)
+      exporter.shutdownNow();
+    textFile = pFile;
+    exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable pRunnable) {
+        Thread thread = new Thread(pRunnable, "glacier-metrics");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    exporter.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        writeTextFile();
+      }
+    }, pPeriodSeconds, pPeriodSeconds, TimeUnit.SECONDS);
+    if (exitHook == null) {
+      exitHook = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          writeTextFile();
+        }
+      }, "glacier-metrics-exit");
+      Runtime.getRuntime().addShutdownHook(exitHook);
+    }
+    LOG.info("Writing metrics to " + pFile + " every " + pPeriodSeconds + " seconds");
+  }
+
+  /**
+   * Writes every metric to the text file, if one is set
+   */
+  public void writeTextFile() {
+    File file;
+    synchronized (this) {
+      file = textFile;
+    }
+    if (file == null)
+      return;
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(toPrometheus().getBytes(StandardCharsets.UTF_8));
+      } finally {
+        out.close();
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Unable to write metrics to " + file + ": " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,320 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+
+/**
+ * Uploads a file as a Glacier multipart upload, sending several parts
+ * concurrently through a bounded pool of workers. Each part is memory-mapped
+ * once, hashed in parallel and sent from the same mapping.
+ */
+public class MultipartUploader {
+
+  /**
+   * Default size of every part but the last one
+   */
+  public static final long DEFAULT_PART_SIZE = 64L * 1024 * 1024;
+
+  /**
+   * Biggest part size supported, parts are mapped in a single buffer
+   */
+  public static final long MAX_PART_SIZE = 1024L * 1024 * 1024;
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(MultipartUploader.class);
+
+  /**
+   * Service receiving the parts
+   */
+  private final GlacierService service;
+
+  /**
+   * Size of every part but the last one
+   */
+  private final long partSize;
+
+  /**
+   * Number of parts being uploaded at the same time
+   */
+  private final int threads;
+
+  /**
+   * Object hashing the parts
+   */
+  private final TreeHashCalculator hashCalculator;
+
+  /**
+   * Object encrypting every part, null to upload the file as it is
+   */
+  private ArchiveCipher cipher;
+
+  /**
+   * Constructor for the MultipartUploader class
+   * @param pService service receiving the parts
+   * @param pPartSize a power of two number of megabytes, up to MAX_PART_SIZE
+   * @param pThreads number of parts being uploaded at the same time
+   */
+  public MultipartUploader(GlacierService pService, long pPartSize, int pThreads) {
+    this(pService, pPartSize, pThreads, new TreeHashCalculator());
+  }
+
+  /**
+   * Constructor for the MultipartUploader class
+   * @param pService service receiving the parts
+   * @param pPartSize a power of two number of megabytes, up to MAX_PART_SIZE
+   * @param pThreads number of parts being uploaded at the same time
+   * @param pHashCalculator object hashing the parts
+   */
+  public MultipartUploader(GlacierService pService, long pPartSize, int pThreads, TreeHashCalculator pHashCalculator) {
+    if (pPartSize < TreeHash.CHUNK_SIZE || pPartSize > MAX_PART_SIZE || Long.bitCount(pPartSize) != 1)
+      throw new GlacierException("Invalid part size " + pPartSize + ", it must be a power of two between 1MB and 1GB.");
+    if (pThreads < 1)
+      throw new GlacierException("Invalid number of upload threads " + pThreads);
+    service = pService;
+    partSize = pPartSize;
+    threads = pThreads;
+    hashCalculator = pHashCalculator;
+  }
+
+  /**
+   * Encrypts every part of the following uploads
+   * @param pCipher cipher using the same part size, null to stop encrypting
+   */
+  public void setCipher(ArchiveCipher pCipher) {
+    if (pCipher != null && pCipher.getPartSize() != partSize)
+      throw new GlacierException("The cipher must use the part size of the uploader");
+    cipher = pCipher;
+  }
+
+  /**
+   * Uploads a file as a new archive
+   * @param pVaultName vault receiving the archive
+   * @param pDescription archive description
+   * @param pFile file to upload
+   * @return the new archive
+   */
+  public UploadedArchive upload(String pVaultName, String pDescription, File pFile) {
+    return upload(pVaultName, pDescription, pFile, null);
+  }
+
+  /**
+   * Uploads a file, resuming the upload recorded in a journal if it still
+   * matches the file, and returns the id of the new archive. A failed upload
+   * is kept for a later resume when a journal is given.
+   * @param pVaultName vault receiving the archive
+   * @param pDescription archive description
+   * @param pFile file to upload
+   * @param pJournal journal of the upload, may be null
+   * @return the new archive
+   */
+  public UploadedArchive upload(String pVaultName, String pDescription, File pFile, UploadJournal pJournal) {
+    String uploadId = pJournal == null ? null : pJournal.getResumableUpload(partSize, pFile, cipher != null);
+    if (uploadId != null) {
+      try {
+        LOG.info("Resuming upload " + uploadId + " of " + pFile);
+        return uploadParts(pVaultName, uploadId, pFile, pJournal.getSalt(), pJournal);
+      } catch (ResourceNotFoundException e) {
+        LOG.info("Upload " + uploadId + " is no longer available, starting over.");
+      }
+    }
+    uploadId = service.initiateMultipartUpload(pVaultName, pDescription, partSize);
+    byte[] salt = cipher == null ? null : ArchiveCipher.randomSalt();
+    try {
+      if (pJournal != null)
+        pJournal.recordUpload(uploadId, partSize, pFile, salt);
+      LOG.info("Started upload " + uploadId + " of " + pFile);
+      return uploadParts(pVaultName, uploadId, pFile, salt, pJournal);
+    } catch (RuntimeException e) {
+      if (pJournal == null)
+        abort(pVaultName, uploadId);
+      else
+        LOG.info("Upload " + uploadId + " will be resumed on the next put of " + pFile);
+      throw e;
+    } catch (IOException e) {
+      abort(pVaultName, uploadId);
+      throw new GlacierException("Unable to journal upload of " + pFile + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Uploads the parts missing from an upload already initiated and completes it
+   * @param pVaultName
+   * @param pUploadId
+   * @param pFile
+   * @param pSalt salt of the encrypted parts, recorded with the upload so that a resume reuses it
+   * @param pJournal
+   * @return
+   */
+  private UploadedArchive uploadParts(String pVaultName, String pUploadId, File pFile, byte[] pSalt,
+                                      UploadJournal pJournal) {
+    long fileSize = pFile.length();
+    long archiveSize = cipher == null ? fileSize : cipher.archiveSize(fileSize);
+    int partCount = cipher == null ? (int) Math.max(1, (fileSize + partSize - 1) / partSize) : cipher.partCount(fileSize);
+    byte[] header = cipher == null ? null : cipher.header(pSalt);
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, partCount), new WorkerFactory());
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(pFile, "r");
+      FileChannel channel = raf.getChannel();
+      List<Future<byte[]>> parts = new ArrayList<Future<byte[]>>(partCount);
+      int pending = 0;
+      for (int i = 0; i < partCount; i++) {
+        if (pJournal != null && pJournal.getPartHash(i) != null) {
+          parts.add(null);
+          continue;
+        }
+        long offset = i * partSize;
+        PartTask task = new PartTask(pVaultName, pUploadId, channel, i, offset, Math.min(partSize, archiveSize - offset), pJournal);
+        if (cipher != null)
+          task.encrypt(header, i == partCount - 1, fileSize);
+        parts.add(pool.submit(task));
+        pending++;
+      }
+      LOG.info("Uploading " + pending + " of " + partCount + " parts of upload " + pUploadId);
+      byte[][] hashes = new byte[partCount][];
+      for (int i = 0; i < partCount; i++)
+        hashes[i] = parts.get(i) == null ? pJournal.getPartHash(i) : parts.get(i).get();
+
+      String checksum = TreeHash.toHex(TreeHash.combine(Arrays.asList(hashes)));
+      String archiveId = service.completeMultipartUpload(pVaultName, pUploadId, archiveSize, checksum);
+      LOG.info("Completed upload " + pUploadId + " with tree hash " + checksum);
+      if (pJournal != null)
+        pJournal.delete();
+      return new UploadedArchive(archiveId, checksum, archiveSize);
+    } catch (ResourceNotFoundException e) {
+      pool.shutdownNow();
+      throw e;
+    } catch (Exception e) {
+      pool.shutdownNow();
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      if (e instanceof InterruptedException)
+        Thread.currentThread().interrupt();
+      if (cause instanceof ResourceNotFoundException)
+        throw (ResourceNotFoundException) cause;
+      throw new GlacierException("Multipart upload of " + pFile + " failed: " + cause.getMessage(), cause);
+    } finally {
+      pool.shutdown();
+      try {if (raf != null) raf.close();}  catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Aborts an upload, logging failures instead of hiding the original error
+   * @param pVaultName
+   * @param pUploadId
+   */
+  private void abort(String pVaultName, String pUploadId) {
+    try {
+      service.abortMultipartUpload(pVaultName, pUploadId);
+      LOG.info("Aborted upload " + pUploadId);
+    } catch (Exception e) {
+      LOG.error("Error aborting upload " + pUploadId + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Maps, hashes and uploads a single part, encrypting it first when the upload is encrypted
+   */
+  private class PartTask implements Callable<byte[]> {
+
+    private final String vaultName;
+    private final String uploadId;
+    private final FileChannel channel;
+    private final int index;
+    private final long offset;
+    private final long length;
+    private final UploadJournal journal;
+    private byte[] header;
+    private boolean last;
+    private long fileSize;
+
+    PartTask(String pVaultName, String pUploadId, FileChannel pChannel, int pIndex, long pOffset, long pLength,
+             UploadJournal pJournal) {
+      vaultName = pVaultName;
+      uploadId = pUploadId;
+      channel = pChannel;
+      index = pIndex;
+      offset = pOffset;
+      length = pLength;
+      journal = pJournal;
+    }
+
+    /**
+     * Makes the task encrypt the plaintext the part carries
+     * @param pHeader header of the encrypted archive
+     * @param pLast whether it is the last part
+     * @param pFileSize size of the plaintext
+     */
+    void encrypt(byte[] pHeader, boolean pLast, long pFileSize) {
+      header = pHeader;
+      last = pLast;
+      fileSize = pFileSize;
+    }
+
+    @Override
+    public byte[] call() throws IOException {
+      MetricsRegistry metrics = MetricsRegistry.DEFAULT;
+      long start = System.nanoTime();
+      ByteBuffer body;
+      if (header == null) {
+        body = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        /** Reading the pages now tells the time spent on the disk from the time spent hashing */
+        ((MappedByteBuffer) body).load();
+        metrics.stage("read").recordSince(start);
+      } else {
+        long plainOffset = cipher.plainOffset(index);
+        long plainLength = Math.min(cipher.plainCapacity(index), fileSize - plainOffset);
+        MappedByteBuffer plain = channel.map(FileChannel.MapMode.READ_ONLY, plainOffset, plainLength);
+        plain.load();
+        metrics.stage("read").recordSince(start);
+        start = System.nanoTime();
+        body = cipher.encryptPart(header, index, last, plain);
+        metrics.stage("encrypt").recordSince(start);
+      }
+      start = System.nanoTime();
+      byte[] hash = hashCalculator.compute(body);
+      metrics.stage("hash").recordSince(start);
+      service.uploadPart(vaultName, uploadId, offset, body, TreeHash.toHex(hash));
+      if (journal != null)
+        journal.recordPart(index, offset, length, hash);
+      LOG.debug("Uploaded part at offset " + offset + " of upload " + uploadId);
+      return hash;
+    }
+  }
+
+  /**
+   * Names the upload workers and keeps them from blocking the JVM exit
+   */
+  private static class WorkerFactory implements ThreadFactory {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable pTask) {
+      Thread thread = new Thread(pTask, "glacier-upload-" + COUNT.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
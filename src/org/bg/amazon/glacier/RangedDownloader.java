@@ -0,0 +1,389 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+
+/**
+ * Downloads the output of a retrieval job in byte ranges over several
+ * connections, writing each range at its offset in a preallocated file.
+ * Every range is checked against its tree hash and recorded once it is on
+ * disk, so an interrupted download only fetches the missing ranges. The
+ * output may also be streamed, in order, to a channel.
+ */
+public class RangedDownloader {
+
+  /**
+   * Default size of every range but the last one
+   */
+  public static final long DEFAULT_RANGE_SIZE = 64L * 1024 * 1024;
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(RangedDownloader.class);
+
+  /**
+   * Service serving the job output
+   */
+  private final GlacierService service;
+
+  /**
+   * Size of every range but the last one
+   */
+  private final long rangeSize;
+
+  /**
+   * Number of ranges being downloaded at the same time
+   */
+  private final int threads;
+
+  /**
+   * Policy retrying a range whose download fails
+   */
+  private RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+  /**
+   * Description of the archive streamed, reported with its first range
+   */
+  private volatile String archiveDescription;
+
+  /**
+   * Constructor for the RangedDownloader class
+   * @param pService service serving the job output
+   * @param pRangeSize a power of two number of megabytes, so ranges are tree hash aligned
+   * @param pThreads number of ranges being downloaded at the same time
+   */
+  public RangedDownloader(GlacierService pService, long pRangeSize, int pThreads) {
+    if (pRangeSize < TreeHash.CHUNK_SIZE || Long.bitCount(pRangeSize) != 1)
+      throw new GlacierException("Invalid range size " + pRangeSize + ", it must be a power of two number of megabytes.");
+    if (pThreads < 1)
+      throw new GlacierException("Invalid number of download threads " + pThreads);
+    service = pService;
+    rangeSize = pRangeSize;
+    threads = pThreads;
+  }
+
+  /**
+   * Makes every range be downloaded again when its download fails with a
+   * transient error, such as a broken connection or a corrupted range
+   * @param pPolicy
+   */
+  public void setRetryPolicy(RetryPolicy pPolicy) {
+    retryPolicy = pPolicy;
+  }
+
+  /**
+   * Downloads the output of a completed retrieval job. The ranges recorded in
+   * the state are forgotten if the archive does not match its tree hash
+   * @param pVaultName vault holding the archive
+   * @param pJobId completed retrieval job
+   * @param pArchiveSize size of the archive
+   * @param pChecksum tree hash of the archive as reported by the job
+   * @param pTarget file receiving the archive
+   * @param pState progress of the retrieval
+   * @return description of the archive, which tells how to decode it, null if the job output reports none
+   */
+  public String download(String pVaultName, String pJobId, long pArchiveSize, String pChecksum,
+                         File pTarget, RetrievalState pState) {
+    int rangeCount = (int) Math.max(1, (pArchiveSize + rangeSize - 1) / rangeSize);
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, rangeCount), new WorkerFactory());
+    RandomAccessFile raf = null;
+    try {
+      pState.recordRangeSize(rangeSize);
+      raf = new RandomAccessFile(pTarget, "rw");
+      if (raf.length() != pArchiveSize)
+        raf.setLength(pArchiveSize);
+      FileChannel channel = raf.getChannel();
+
+      List<Future<byte[]>> ranges = new ArrayList<Future<byte[]>>(rangeCount);
+      int pending = 0;
+      for (int i = 0; i < rangeCount; i++) {
+        if (pState.getRangeHash(i) != null) {
+          ranges.add(null);
+          continue;
+        }
+        long start = i * rangeSize;
+        long end = Math.min(start + rangeSize, pArchiveSize) - 1;
+        ranges.add(pool.submit(new RangeTask(pVaultName, pJobId, i, start, end, channel, pState)));
+        pending++;
+      }
+      LOG.info("Downloading " + pending + " of " + rangeCount + " ranges of job " + pJobId);
+
+      byte[][] hashes = new byte[rangeCount][];
+      for (int i = 0; i < rangeCount; i++)
+        hashes[i] = ranges.get(i) == null ? pState.getRangeHash(i) : ranges.get(i).get();
+
+      String checksum = TreeHash.toHex(TreeHash.combine(Arrays.asList(hashes)));
+      if (pChecksum != null && !pChecksum.equals(checksum)) {
+        /** Resuming from the same ranges would fail the same way */
+        pState.clearRanges();
+        throw new GlacierException("Tree hash " + checksum + " of " + pTarget + " does not match " + pChecksum);
+      }
+      /** A download resumed from a state recorded without the description has yet to ask for it */
+      if (pState.getDescription() == null && pending == 0 && pArchiveSize > 0)
+        pState.recordDescription(fetchDescription(pVaultName, pJobId));
+      return pState.getDescription();
+    } catch (GlacierException e) {
+      throw e;
+    } catch (Exception e) {
+      pool.shutdownNow();
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      if (e instanceof InterruptedException)
+        Thread.currentThread().interrupt();
+      throw new GlacierException("Download of job " + pJobId + " failed: " + cause.getMessage(), cause);
+    } finally {
+      pool.shutdown();
+      try {if (raf != null) raf.close();}  catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Returns the description of the archive a job output holds, asking for its first byte only
+   * @param pVaultName
+   * @param pJobId
+   * @return
+   * @throws IOException
+   */
+  private String fetchDescription(String pVaultName, String pJobId) throws IOException {
+    GetJobOutputResult result = service.getJobOutput(pVaultName, pJobId, 0, 0);
+    result.getBody().close();
+    return result.getArchiveDescription();
+  }
+
+  /**
+   * Returns the description of the archive being streamed, known once its
+   * first range is downloaded
+   * @return null if it is not known yet or the job output reports none
+   */
+  public String getArchiveDescription() {
+    return archiveDescription;
+  }
+
+  /**
+   * Streams the output of a completed retrieval job to a sink, in order. The
+   * next ranges are downloaded while one is written, and every range is
+   * checked against its tree hash before it reaches the sink, so memory holds
+   * up to threads ranges. The tree hash of the whole archive is checked once
+   * its last byte is written
+   * @param pVaultName vault holding the archive
+   * @param pJobId completed retrieval job
+   * @param pArchiveSize size of the archive
+   * @param pChecksum tree hash of the archive as reported by the job
+   * @param pSink receives the archive, it is not closed
+   */
+  public void stream(String pVaultName, String pJobId, long pArchiveSize, String pChecksum, WritableByteChannel pSink) {
+    int rangeCount = (int) Math.max(1, (pArchiveSize + rangeSize - 1) / rangeSize);
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, rangeCount), new WorkerFactory());
+    try {
+      Deque<Future<byte[]>> window = new ArrayDeque<Future<byte[]>>();
+      Deque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+      List<byte[]> hashes = new ArrayList<byte[]>(rangeCount);
+      int next = 0;
+      for (int i = 0; i < rangeCount; i++) {
+        for (; next < rangeCount && next < i + threads; next++) {
+          long start = next * rangeSize;
+          long end = Math.min(start + rangeSize, pArchiveSize) - 1;
+          ByteBuffer buffer = ByteBuffer.allocate((int) (end + 1 - start));
+          window.add(pool.submit(new RangeTask(pVaultName, pJobId, next, start, end, buffer)));
+          buffers.add(buffer);
+        }
+        hashes.add(window.poll().get());
+        ByteBuffer data = buffers.poll();
+        data.flip();
+        long time = System.nanoTime();
+        while (data.hasRemaining())
+          pSink.write(data);
+        MetricsRegistry.DEFAULT.stage("write").recordSince(time);
+      }
+      String checksum = TreeHash.toHex(TreeHash.combine(hashes));
+      if (pChecksum != null && !pChecksum.equals(checksum))
+        throw new GlacierException("Tree hash " + checksum + " of the archive streamed from job " + pJobId
+                                   + " does not match " + pChecksum);
+    } catch (GlacierException e) {
+      throw e;
+    } catch (Exception e) {
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      if (e instanceof InterruptedException)
+        Thread.currentThread().interrupt();
+      throw new GlacierException("Streaming of job " + pJobId + " failed: " + cause.getMessage(), cause);
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Downloads, verifies and writes a single range
+   */
+  private class RangeTask implements Callable<byte[]> {
+
+    private final String vaultName;
+    private final String jobId;
+    private final int index;
+    private final long start;
+    private final long end;
+    private final FileChannel channel;
+    private final RetrievalState state;
+
+    /**
+     * Buffer receiving the range instead of the channel, when it is streamed
+     */
+    private final ByteBuffer buffer;
+
+    RangeTask(String pVaultName, String pJobId, int pIndex, long pStart, long pEnd, FileChannel pChannel, RetrievalState pState) {
+      vaultName = pVaultName;
+      jobId = pJobId;
+      index = pIndex;
+      start = pStart;
+      end = pEnd;
+      channel = pChannel;
+      state = pState;
+      buffer = null;
+    }
+
+    RangeTask(String pVaultName, String pJobId, int pIndex, long pStart, long pEnd, ByteBuffer pBuffer) {
+      vaultName = pVaultName;
+      jobId = pJobId;
+      index = pIndex;
+      start = pStart;
+      end = pEnd;
+      channel = null;
+      state = null;
+      buffer = pBuffer;
+    }
+
+    /**
+     * Downloads the range again when its body breaks or does not match its
+     * tree hash. Failed requests are not retried here, the service already did
+     */
+    @Override
+    public byte[] call() throws IOException {
+      try {
+        return retryPolicy.call("Range " + start + "-" + end + " of job " + jobId, () -> fetch());
+      } catch (RequestFailure e) {
+        throw e.error;
+      }
+    }
+
+    private byte[] fetch() throws IOException {
+      GetJobOutputResult result;
+      try {
+        result = service.getJobOutput(vaultName, jobId, start, end);
+      } catch (AmazonClientException e) {
+        throw new RequestFailure(e);
+      }
+      List<byte[]> leaves = new ArrayList<byte[]>();
+      byte[] leaf = new byte[TreeHash.CHUNK_SIZE];
+      MessageDigest digest = TreeHash.digest();
+      InputStream in = result.getBody();
+      long receiving = 0, hashing = 0, writing = 0;
+      try {
+        long position = start;
+        while (position <= end) {
+          int length = (int) Math.min(leaf.length, end + 1 - position);
+          long time = System.nanoTime();
+          readFully(in, leaf, length, position);
+          receiving += System.nanoTime() - time;
+          time = System.nanoTime();
+          digest.update(leaf, 0, length);
+          leaves.add(digest.digest());
+          hashing += System.nanoTime() - time;
+          time = System.nanoTime();
+          if (buffer != null) {
+            /** A failed attempt may have filled part of the buffer already */
+            buffer.position((int) (position - start));
+            buffer.put(leaf, 0, length);
+          } else {
+            ByteBuffer data = ByteBuffer.wrap(leaf, 0, length);
+            while (data.hasRemaining())
+              channel.write(data, position + data.position());
+          }
+          writing += System.nanoTime() - time;
+          position += length;
+        }
+      } finally {
+        in.close();
+      }
+      MetricsRegistry.DEFAULT.stage("receive").record(receiving);
+      MetricsRegistry.DEFAULT.stage("hash").record(hashing);
+      MetricsRegistry.DEFAULT.stage("write").record(writing);
+
+      byte[] hash = TreeHash.combine(leaves);
+      if (result.getChecksum() != null && !result.getChecksum().equals(TreeHash.toHex(hash)))
+        throw new IOException("Tree hash mismatch for bytes " + start + "-" + end);
+      if (buffer != null) {
+        if (result.getArchiveDescription() != null)
+          archiveDescription = result.getArchiveDescription();
+        return hash;
+      }
+      channel.force(false);
+      state.recordDescription(result.getArchiveDescription());
+      state.recordRange(index, hash);
+      LOG.debug("Downloaded bytes " + start + "-" + end + " of job " + jobId);
+      return hash;
+    }
+
+    private void readFully(InputStream pIn, byte[] pBuffer, int pLength, long pPosition) throws IOException {
+      int read = 0;
+      while (read < pLength) {
+        int count = pIn.read(pBuffer, read, pLength - read);
+        if (count < 0)
+          throw new IOException("Unexpected end of job output at offset " + (pPosition + read));
+        read += count;
+      }
+    }
+  }
+
+  /**
+   * Carries a failed request through the retry policy of the ranges, which does not retry it
+   */
+  private static class RequestFailure extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final AmazonClientException error;
+
+    RequestFailure(AmazonClientException pError) {
+      super(pError.getMessage(), pError);
+      error = pError;
+    }
+  }
+
+  /**
+   * Names the download workers and keeps them from blocking the JVM exit
+   */
+  private static class WorkerFactory implements ThreadFactory {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable pTask) {
+      Thread thread = new Thread(pTask, "glacier-download-" + COUNT.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Progress of an archive retrieval persisted next to its target file. It
+ * records the retrieval job, the description of the archive and every range
+ * already written, so an interrupted restore neither initiates a new job nor
+ * fetches those ranges again.
+ */
+public class RetrievalState {
+
+  /**
+   * Log holding the recorded progress
+   */
+  private final AppendLog log;
+
+  /**
+   * Archive being retrieved
+   */
+  private String archiveId;
+
+  /**
+   * Job retrieving the archive
+   */
+  private String jobId;
+
+  /**
+   * Size of the ranges recorded
+   */
+  private long rangeSize;
+
+  /**
+   * Description of the archive as its job output reported it, null until known
+   */
+  private String description;
+
+  /**
+   * Tree hashes of the ranges already written, by range index
+   */
+  private final Map<Integer, byte[]> ranges = new HashMap<Integer, byte[]>();
+
+  private RetrievalState(AppendLog pLog) {
+    log = pLog;
+  }
+
+  /**
+   * Opens the state stored for a target file
+   * @param pTarget file being restored
+   * @return
+   * @throws IOException
+   */
+  public static RetrievalState open(File pTarget) throws IOException {
+    File file = new File(pTarget.getPath() + ".retrieval");
+    RetrievalState state = new RetrievalState(null);
+    for (String line : AppendLog.readLines(file)) {
+      String[] fields = line.split(" ");
+      if (fields[0].equals("job")) {
+        state.archiveId = fields[1];
+        state.jobId = fields[2];
+        state.description = null;
+        state.ranges.clear();
+      } else if (fields[0].equals("rangeSize")) {
+        state.rangeSize = Long.parseLong(fields[1]);
+        state.ranges.clear();
+      } else if (fields[0].equals("description"))
+        state.description = line.substring("description ".length());
+      else if (fields[0].equals("reset"))
+        state.ranges.clear();
+      else if (fields[0].equals("range"))
+        state.ranges.put(Integer.valueOf(fields[1]), TreeHash.fromHex(fields[2]));
+    }
+    RetrievalState opened = new RetrievalState(new AppendLog(file));
+    opened.archiveId = state.archiveId;
+    opened.jobId = state.jobId;
+    opened.rangeSize = state.rangeSize;
+    opened.description = state.description;
+    opened.ranges.putAll(state.ranges);
+    return opened;
+  }
+
+  /**
+   * Returns the job recorded for an archive, or null if there is none
+   * @param pArchiveId
+   * @return
+   */
+  public String getJobId(String pArchiveId) {
+    return pArchiveId.equals(archiveId) ? jobId : null;
+  }
+
+  /**
+   * Records the job retrieving an archive, forgetting previous progress
+   * @param pArchiveId
+   * @param pJobId
+   * @throws IOException
+   */
+  public synchronized void recordJob(String pArchiveId, String pJobId) throws IOException {
+    log.append("job " + pArchiveId + " " + pJobId);
+    archiveId = pArchiveId;
+    jobId = pJobId;
+    description = null;
+    ranges.clear();
+  }
+
+  /**
+   * Records the range size used, forgetting progress made with another size
+   * @param pRangeSize
+   * @throws IOException
+   */
+  public synchronized void recordRangeSize(long pRangeSize) throws IOException {
+    if (pRangeSize == rangeSize)
+      return;
+    log.append("rangeSize " + pRangeSize);
+    rangeSize = pRangeSize;
+    ranges.clear();
+  }
+
+  /**
+   * Records the description of the archive, which tells how to decode it
+   * @param pDescription
+   * @throws IOException
+   */
+  public synchronized void recordDescription(String pDescription) throws IOException {
+    if (pDescription == null || pDescription.equals(description))
+      return;
+    log.append("description " + pDescription);
+    description = pDescription;
+  }
+
+  /**
+   * Returns the description of the archive, or null if it is not known yet
+   * @return
+   */
+  public synchronized String getDescription() {
+    return description;
+  }
+
+  /**
+   * Records a range whose data is already on disk
+   * @param pIndex
+   * @param pHash
+   * @throws IOException
+   */
+  public synchronized void recordRange(int pIndex, byte[] pHash) throws IOException {
+    log.append("range " + pIndex + " " + TreeHash.toHex(pHash));
+    ranges.put(pIndex, pHash);
+  }
+
+  /**
+   * Forgets every range written, e.g. once the archive they form turned out
+   * corrupted, so that the next attempt downloads all of them again
+   * @throws IOException
+   */
+  public synchronized void clearRanges() throws IOException {
+    log.append("reset");
+    ranges.clear();
+  }
+
+  /**
+   * Returns the tree hash of a range already written, or null
+   * @param pIndex
+   * @return
+   */
+  public synchronized byte[] getRangeHash(int pIndex) {
+    return ranges.get(pIndex);
+  }
+
+  /**
+   * Releases the state without removing it
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    log.close();
+  }
+
+  /**
+   * Removes the state once the retrieval is over
+   * @throws IOException
+   */
+  public void delete() throws IOException {
+    log.delete();
+  }
+}
@@ -0,0 +1,125 @@
+package org.bg.amazon.glacier;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Retries calls failing with transient errors: throttling, timeouts, server
+ * errors and broken connections. The delay before attempt n is drawn at
+ * random between 0 and baseDelay * 2^(n-2), capped at maxDelay, so that
+ * clients failing together do not retry together.
+ */
+public class RetryPolicy {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(RetryPolicy.class);
+
+  /**
+   * Policy making a single attempt
+   */
+  public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+  public static final int DEFAULT_MAX_ATTEMPTS = 6;
+  public static final long DEFAULT_BASE_DELAY = 500;
+  public static final long DEFAULT_MAX_DELAY = 30000;
+
+  private final int maxAttempts;
+  private final long baseDelay;
+  private final long maxDelay;
+
+  /**
+   * Call which may be attempted several times
+   */
+  public interface Attempt<T, E extends Exception> {
+    T run() throws E;
+  }
+
+  /**
+   * Constructor for the RetryPolicy class
+   * @param pMaxAttempts attempts before the error is reported, at least 1
+   * @param pBaseDelay milliseconds, the delay doubles after every attempt
+   * @param pMaxDelay milliseconds
+   */
+  public RetryPolicy(int pMaxAttempts, long pBaseDelay, long pMaxDelay) {
+    if (pMaxAttempts < 1)
+      throw new GlacierException("Invalid number of attempts " + pMaxAttempts);
+    maxAttempts = pMaxAttempts;
+    baseDelay = pBaseDelay;
+    maxDelay = pMaxDelay;
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  /**
+   * Runs a call until it succeeds, fails with an error that is not transient
+   * or runs out of attempts
+   * @param pWhat description of the call, for the logs
+   * @param pAttempt
+   * @return result of the call
+   * @throws E last error of the call
+   */
+  public <T, E extends Exception> T call(String pWhat, Attempt<T, E> pAttempt) throws E {
+    for (int attempt = 1;; attempt++) {
+      try {
+        return pAttempt.run();
+      } catch (Exception e) {
+        if (attempt >= maxAttempts || !isRetryable(e)) {
+          if (attempt > 1) {
+            LOG.error(pWhat + " failed after " + attempt + " attempts: " + e.getMessage());
+            MetricsRegistry.DEFAULT.counter("glacier_retries_exhausted_total", "Calls which failed after being retried").increment();
+          }
+          throw e;
+        }
+        MetricsRegistry.DEFAULT.counter("glacier_retries_total", "Calls made again after a transient error").increment();
+        long delay = ThreadLocalRandom.current().nextLong(getDelay(attempt) + 1);
+        LOG.warn(pWhat + " failed (attempt " + attempt + " of " + maxAttempts + "), retrying in " + delay + " ms: "
+                 + e.getMessage());
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw new GlacierException("Interrupted while retrying " + pWhat, e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the longest delay after a failed attempt
+   * @param pAttempt
+   * @return milliseconds
+   */
+  private long getDelay(int pAttempt) {
+    return Math.min(maxDelay, baseDelay << Math.min(pAttempt - 1, 30));
+  }
+
+  /**
+   * Tells whether an error is transient, so that the call may succeed if made again
+   * @param pError
+   * @return
+   */
+  public static boolean isRetryable(Exception pError) {
+    if (TransferController.isThrottling(pError))
+      return true;
+    if (pError instanceof AmazonServiceException) {
+      AmazonServiceException error = (AmazonServiceException) pError;
+      return error.getStatusCode() >= 500 || "RequestTimeout".equals(error.getErrorCode())
+          || "Throttling".equals(error.getErrorCode()) || "RequestThrottled".equals(error.getErrorCode())
+          || "ServiceUnavailable".equals(error.getErrorCode()) || "InternalError".equals(error.getErrorCode());
+    }
+    if (pError instanceof AmazonClientException)
+      return pError.getCause() instanceof IOException;
+    return pError instanceof IOException && !(pError instanceof FileNotFoundException);
+  }
+}
@@ -0,0 +1,114 @@
+package org.bg.amazon.glacier;
+
+import java.nio.ByteBuffer;
+
+import com.amazonaws.services.glacier.model.DescribeJobResult;
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+import com.amazonaws.services.glacier.model.GetJobOutputResult;
+
+/**
+ * GlacierService making every call again when it fails with a transient
+ * error, as told by a RetryPolicy. Parts are retried one by one, so a
+ * transient error does not restart the archive they belong to. The body of a
+ * job output is read by the caller, which retries its range when the
+ * connection breaks.
+ */
+public class RetryingGlacierService implements GlacierService {
+
+  private final GlacierService service;
+  private final RetryPolicy policy;
+
+  /**
+   * Constructor for the RetryingGlacierService class
+   * @param pService service doing the calls
+   * @param pPolicy
+   */
+  public RetryingGlacierService(GlacierService pService, RetryPolicy pPolicy) {
+    service = pService;
+    policy = pPolicy;
+  }
+
+  @Override
+  public String initiateMultipartUpload(String pVaultName, String pDescription, long pPartSize) {
+    return policy.call("Initiating upload to " + pVaultName,
+        () -> service.initiateMultipartUpload(pVaultName, pDescription, pPartSize));
+  }
+
+  @Override
+  public String uploadPart(String pVaultName, String pUploadId, long pOffset, ByteBuffer pBody, String pChecksum) {
+    return policy.call("Part at " + pOffset + " of upload " + pUploadId,
+        () -> service.uploadPart(pVaultName, pUploadId, pOffset, pBody, pChecksum));
+  }
+
+  @Override
+  public String completeMultipartUpload(String pVaultName, String pUploadId, long pArchiveSize, String pChecksum) {
+    return policy.call("Completing upload " + pUploadId,
+        () -> service.completeMultipartUpload(pVaultName, pUploadId, pArchiveSize, pChecksum));
+  }
+
+  @Override
+  public void abortMultipartUpload(String pVaultName, String pUploadId) {
+    policy.call("Aborting upload " + pUploadId, () -> {
+      service.abortMultipartUpload(pVaultName, pUploadId);
+      return null;
+    });
+  }
+
+  @Override
+  public String uploadArchive(String pVaultName, String pDescription, ByteBuffer pBody, String pChecksum) {
+    return policy.call("Upload of " + pBody.remaining() + " bytes to " + pVaultName,
+        () -> service.uploadArchive(pVaultName, pDescription, pBody, pChecksum));
+  }
+
+  @Override
+  public void createVault(String pVaultName) {
+    policy.call("Creating vault " + pVaultName, () -> {
+      service.createVault(pVaultName);
+      return null;
+    });
+  }
+
+  @Override
+  public void deleteVault(String pVaultName) {
+    policy.call("Deleting vault " + pVaultName, () -> {
+      service.deleteVault(pVaultName);
+      return null;
+    });
+  }
+
+  @Override
+  public DescribeVaultResult describeVault(String pVaultName) {
+    return policy.call("Describing vault " + pVaultName, () -> service.describeVault(pVaultName));
+  }
+
+  @Override
+  public void deleteArchive(String pVaultName, String pArchiveId) {
+    policy.call("Deleting archive " + pArchiveId, () -> {
+      service.deleteArchive(pVaultName, pArchiveId);
+      return null;
+    });
+  }
+
+  @Override
+  public String initiateArchiveRetrieval(String pVaultName, String pArchiveId, String pSnsTopic) {
+    return policy.call("Initiating retrieval of archive " + pArchiveId,
+        () -> service.initiateArchiveRetrieval(pVaultName, pArchiveId, pSnsTopic));
+  }
+
+  @Override
+  public String initiateInventoryRetrieval(String pVaultName, String pSnsTopic) {
+    return policy.call("Initiating inventory of " + pVaultName,
+        () -> service.initiateInventoryRetrieval(pVaultName, pSnsTopic));
+  }
+
+  @Override
+  public DescribeJobResult describeJob(String pVaultName, String pJobId) {
+    return policy.call("Describing job " + pJobId, () -> service.describeJob(pVaultName, pJobId));
+  }
+
+  @Override
+  public GetJobOutputResult getJobOutput(String pVaultName, String pJobId, long pStart, long pEnd) {
+    return policy.call("Bytes " + pStart + "-" + pEnd + " of job " + pJobId,
+        () -> service.getJobOutput(pVaultName, pJobId, pStart, pEnd));
+  }
+}
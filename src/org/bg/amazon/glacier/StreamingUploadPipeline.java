@@ -0,0 +1,550 @@
+package org.bg.amazon.glacier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.glacier.model.ResourceNotFoundException;
+
+/**
+ * Compresses a stream into a multipart upload without staging it on disk.
+ * A reader cuts the input into blocks that are deflated independently on
+ * several threads, the compressed frames are appended in order to part
+ * buffers, and full parts are hashed and uploaded while the next ones are
+ * being filled. Every stage hands over through a bounded queue, so memory
+ * stays within a few blocks per compression thread and one part buffer per
+ * upload thread. Part buffers are only allocated once needed and no bigger
+ * than the input requires, growing when it turns out bigger than announced.
+ *
+ * The archive starts with MAGIC and the block size, followed by one frame per
+ * block: a type byte (STORED or DEFLATED), the raw length and the stored
+ * length as ints, and the stored bytes. Blocks that do not shrink are stored.
+ */
+public class StreamingUploadPipeline {
+
+  /**
+   * First bytes of a compressed archive
+   */
+  public static final byte[] MAGIC = {'G', 'B', 'Z', '1'};
+
+  /**
+   * Size of the blocks compressed independently, that of the tree hash leaves
+   */
+  public static final int DEFAULT_BLOCK_SIZE = TreeHash.CHUNK_SIZE;
+
+  private static final byte STORED = 0;
+  private static final byte DEFLATED = 1;
+  private static final int HEADER_SIZE = MAGIC.length + 4;
+  private static final int FRAME_HEADER_SIZE = 9;
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(StreamingUploadPipeline.class);
+
+  private final GlacierService service;
+  private final int partSize;
+  private final int blockSize;
+  private final int compressThreads;
+  private final int uploadThreads;
+  private final int level;
+
+  /**
+   * Object encrypting every part, null to upload the compressed stream as it is
+   */
+  private ArchiveCipher cipher;
+
+  /**
+   * Constructor for the StreamingUploadPipeline class
+   * @param pService service receiving the parts
+   * @param pPartSize a power of two number of megabytes, parts are buffered in memory
+   * @param pCompressThreads blocks compressed at the same time
+   * @param pUploadThreads parts uploaded at the same time
+   * @param pLevel deflate level, 1 to 9
+   */
+  public StreamingUploadPipeline(GlacierService pService, long pPartSize, int pCompressThreads, int pUploadThreads, int pLevel) {
+    if (pPartSize < TreeHash.CHUNK_SIZE || pPartSize > MultipartUploader.MAX_PART_SIZE || Long.bitCount(pPartSize) != 1)
+      throw new GlacierException("Invalid part size " + pPartSize + ", it must be a power of two between 1MB and 1GB.");
+    service = pService;
+    partSize = (int) pPartSize;
+    blockSize = DEFAULT_BLOCK_SIZE;
+    compressThreads = pCompressThreads;
+    uploadThreads = pUploadThreads;
+    level = pLevel;
+  }
+
+  /**
+   * Encrypts every part of the following uploads, after compressing them
+   * @param pCipher cipher using the same part size, null to stop encrypting
+   */
+  public void setCipher(ArchiveCipher pCipher) {
+    if (pCipher != null && pCipher.getPartSize() != partSize)
+      throw new GlacierException("The cipher must use the part size of the pipeline");
+    cipher = pCipher;
+  }
+
+  /**
+   * Compresses and uploads a stream as a new archive
+   * @param pVaultName vault receiving the archive
+   * @param pDescription archive description
+   * @param pInput stream to upload, read until its end
+   * @return the new archive, its size being the compressed size
+   * @throws IOException
+   */
+  public UploadedArchive upload(String pVaultName, String pDescription, InputStream pInput) throws IOException {
+    return upload(pVaultName, pDescription, pInput, -1);
+  }
+
+  /**
+   * Compresses and uploads a stream as a new archive
+   * @param pVaultName vault receiving the archive
+   * @param pDescription archive description
+   * @param pInput stream to upload, read until its end
+   * @param pSize expected length of the stream sizing the part buffers, -1 if unknown
+   * @return the new archive, its size being the compressed size
+   * @throws IOException
+   */
+  public UploadedArchive upload(String pVaultName, String pDescription, final InputStream pInput, long pSize)
+      throws IOException {
+    final ExecutorService compressors = Executors.newFixedThreadPool(compressThreads, new WorkerFactory("glacier-compress-"));
+    ExecutorService uploaders = Executors.newFixedThreadPool(uploadThreads, new WorkerFactory("glacier-upload-"));
+    final BlockingQueue<Future<Frame>> frames = new ArrayBlockingQueue<Future<Frame>>(compressThreads * 2);
+    PartBuffers buffers = new PartBuffers(uploadThreads + 1,
+                                          (int) Math.min(partSize, pSize < 0 ? blockSize : compressedBound(pSize)));
+
+    final String uploadId = service.initiateMultipartUpload(pVaultName, pDescription, partSize);
+    final byte[] cipherHeader = cipher == null ? null : cipher.header(ArchiveCipher.randomSalt());
+    LOG.info("Started compressed upload " + uploadId + (cipher == null ? "" : ", encrypting every part"));
+    Thread reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        read(pInput, compressors, frames);
+      }
+    }, "glacier-read");
+    reader.setDaemon(true);
+    reader.start();
+
+    List<Future<byte[]>> parts = new ArrayList<Future<byte[]>>();
+    List<byte[]> leaves = new ArrayList<byte[]>();
+    long rawSize = 0, offset = 0;
+    try {
+      byte[] part = buffers.take();
+      int fill = 0;
+      int capacity = capacity(0);
+      byte[] header = ByteBuffer.allocate(HEADER_SIZE).put(MAGIC).putInt(blockSize).array();
+      System.arraycopy(header, 0, part, 0, header.length);
+      fill = header.length;
+      while (true) {
+        Frame next = frames.take().get();
+        if (next == null)
+          break;
+        leaves.add(next.leafHash);
+        byte[] frame = next.data;
+        rawSize += ByteBuffer.wrap(frame, 1, 4).getInt();
+        int copied = 0;
+        while (copied < frame.length) {
+          if (fill == part.length && fill < capacity)
+            part = Arrays.copyOf(part, (int) Math.min(capacity, 2L * part.length));
+          int length = Math.min(frame.length - copied, Math.min(capacity, part.length) - fill);
+          System.arraycopy(frame, copied, part, fill, length);
+          fill += length;
+          copied += length;
+          if (fill == capacity) {
+            parts.add(uploaders.submit(new PartTask(pVaultName, uploadId, offset, parts.size(), false, cipherHeader,
+                                                    part, fill, buffers)));
+            offset += partLength(parts.size() - 1, fill);
+            part = buffers.take();
+            fill = 0;
+            capacity = capacity(parts.size());
+          }
+        }
+      }
+      if (fill > 0 || parts.isEmpty() || cipher != null) {
+        parts.add(uploaders.submit(new PartTask(pVaultName, uploadId, offset, parts.size(), true, cipherHeader,
+                                                part, fill, buffers)));
+        offset += partLength(parts.size() - 1, fill);
+      }
+
+      List<byte[]> hashes = new ArrayList<byte[]>(parts.size());
+      for (Future<byte[]> hash : parts)
+        hashes.add(hash.get());
+      String checksum = TreeHash.toHex(TreeHash.combine(hashes));
+      String archiveId = service.completeMultipartUpload(pVaultName, uploadId, offset, checksum);
+      LOG.info("Completed upload " + uploadId + ": " + rawSize + " bytes compressed to " + offset);
+      String contentHash = TreeHash.toHex(leaves.isEmpty() ? TreeHash.compute(ByteBuffer.allocate(0)) : TreeHash.combine(leaves));
+      return new UploadedArchive(archiveId, checksum, offset, contentHash);
+    } catch (Exception e) {
+      compressors.shutdownNow();
+      uploaders.shutdownNow();
+      reader.interrupt();
+      abort(pVaultName, uploadId);
+      Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+      if (e instanceof InterruptedException)
+        Thread.currentThread().interrupt();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof ResourceNotFoundException)
+        throw (ResourceNotFoundException) cause;
+      throw new GlacierException("Compressed upload failed: " + cause.getMessage(), cause);
+    } finally {
+      compressors.shutdown();
+      uploaders.shutdown();
+    }
+  }
+
+  /**
+   * Compresses a whole content held in memory, for archives uploaded in a single request
+   * @param pInput
+   * @return the compressed archive
+   */
+  public ByteBuffer compress(ByteBuffer pInput) {
+    ByteBuffer input = pInput.duplicate();
+    ByteBuffer archive = ByteBuffer.allocate((int) compressedBound(input.remaining()));
+    archive.put(MAGIC).putInt(blockSize);
+    byte[] block = new byte[Math.min(blockSize, input.remaining())];
+    while (input.hasRemaining()) {
+      int length = Math.min(block.length, input.remaining());
+      input.get(block, 0, length);
+      archive.put(compress(block, length));
+    }
+    archive.flip();
+    return archive;
+  }
+
+  /**
+   * Biggest size of the archive compressing some content, reached when no block shrinks
+   * @param pSize
+   * @return
+   */
+  private long compressedBound(long pSize) {
+    return HEADER_SIZE + pSize + (pSize + blockSize - 1) / blockSize * FRAME_HEADER_SIZE;
+  }
+
+  /**
+   * Number of compressed bytes a part carries
+   * @param pIndex
+   * @return
+   */
+  private int capacity(int pIndex) {
+    return cipher == null ? partSize : cipher.plainCapacity(pIndex);
+  }
+
+  /**
+   * Size of a part once it is encrypted
+   * @param pIndex
+   * @param pLength compressed bytes it carries
+   * @return
+   */
+  private int partLength(int pIndex, int pLength) {
+    return cipher == null ? pLength : pLength + ArchiveCipher.TAG_SIZE + (pIndex == 0 ? ArchiveCipher.HEADER_SIZE : 0);
+  }
+
+  /**
+   * Reads the input block by block and queues the compression of every
+   * block, then a null frame marking the end
+   * @param pInput
+   * @param pCompressors
+   * @param pFrames
+   */
+  private void read(InputStream pInput, ExecutorService pCompressors, BlockingQueue<Future<Frame>> pFrames) {
+    try {
+      while (true) {
+        final byte[] block = new byte[blockSize];
+        int length = 0, read;
+        long start = System.nanoTime();
+        while (length < blockSize && (read = pInput.read(block, length, blockSize - length)) > 0)
+          length += read;
+        MetricsRegistry.DEFAULT.stage("read").recordSince(start);
+        if (length == 0)
+          break;
+        final int blockLength = length;
+        pFrames.put(pCompressors.submit(new Callable<Frame>() {
+          @Override
+          public Frame call() {
+            long start = System.nanoTime();
+            MessageDigest digest = TreeHash.digest();
+            digest.update(block, 0, blockLength);
+            byte[] leafHash = digest.digest();
+            MetricsRegistry.DEFAULT.stage("hash").recordSince(start);
+            start = System.nanoTime();
+            byte[] frame = compress(block, blockLength);
+            MetricsRegistry.DEFAULT.stage("compress").recordSince(start);
+            return new Frame(frame, leafHash);
+          }
+        }));
+        if (length < blockSize)
+          break;
+      }
+      pFrames.put(CompletableFuture.completedFuture((Frame) null));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      CompletableFuture<Frame> failed = new CompletableFuture<Frame>();
+      failed.completeExceptionally(e);
+      try {
+        pFrames.put(failed);
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Deflates a block into a frame, storing it when it does not shrink
+   * @param pBlock
+   * @param pLength
+   * @return
+   */
+  private byte[] compress(byte[] pBlock, int pLength) {
+    Deflater deflater = new Deflater(level);
+    byte[] output = new byte[FRAME_HEADER_SIZE + pLength];
+    int stored;
+    try {
+      deflater.setInput(pBlock, 0, pLength);
+      deflater.finish();
+      stored = deflater.deflate(output, FRAME_HEADER_SIZE, pLength);
+      if (!deflater.finished())
+        stored = -1;
+    } finally {
+      deflater.end();
+    }
+    ByteBuffer frame = ByteBuffer.wrap(output);
+    if (stored < 0) {
+      frame.put(STORED).putInt(pLength).putInt(pLength).put(pBlock, 0, pLength);
+      return output;
+    }
+    frame.put(DEFLATED).putInt(pLength).putInt(stored);
+    return Arrays.copyOf(output, FRAME_HEADER_SIZE + stored);
+  }
+
+  /**
+   * Restores the original content of a compressed archive
+   * @param pInput compressed archive
+   * @param pOutput file receiving the original content
+   * @throws IOException
+   */
+  public static void decompress(File pInput, File pOutput) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(pInput), 1 << 20);
+    OutputStream out = new BufferedOutputStream(new FileOutputStream(pOutput), 1 << 20);
+    try {
+      decompress(in, out);
+    } catch (IOException e) {
+      throw new IOException(e.getMessage() + " in " + pInput, e);
+    } finally {
+      in.close();
+      out.close();
+    }
+  }
+
+  /**
+   * Restores the original content of a compressed archive as it is read, one frame at a time
+   * @param pInput compressed archive
+   * @param pOutput receives the original content
+   * @throws IOException
+   */
+  public static void decompress(InputStream pInput, OutputStream pOutput) throws IOException {
+    DataInputStream in = new DataInputStream(pInput);
+    Inflater inflater = new Inflater();
+    try {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC))
+        throw new IOException("Not a compressed archive");
+      int blockSize = in.readInt();
+      byte[] stored = new byte[blockSize];
+      byte[] block = new byte[blockSize];
+      while (true) {
+        int type = in.read();
+        if (type < 0)
+          break;
+        int rawLength = in.readInt();
+        int storedLength = in.readInt();
+        if (rawLength > blockSize || storedLength > blockSize || rawLength < 0 || storedLength < 0)
+          throw new IOException("Corrupted frame");
+        in.readFully(stored, 0, storedLength);
+        if (type == STORED) {
+          pOutput.write(stored, 0, storedLength);
+          continue;
+        }
+        inflater.reset();
+        inflater.setInput(stored, 0, storedLength);
+        if (inflater.inflate(block, 0, rawLength) != rawLength || !inflater.finished())
+          throw new IOException("Corrupted frame");
+        pOutput.write(block, 0, rawLength);
+      }
+    } catch (EOFException e) {
+      throw new IOException("Truncated compressed archive");
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted frame: " + e.getMessage());
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Aborts an upload, logging failures instead of hiding the original error
+   * @param pVaultName
+   * @param pUploadId
+   */
+  private void abort(String pVaultName, String pUploadId) {
+    try {
+      service.abortMultipartUpload(pVaultName, pUploadId);
+      LOG.info("Aborted upload " + pUploadId);
+    } catch (Exception e) {
+      LOG.error("Error aborting upload " + pUploadId + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Encrypts, hashes and uploads a part buffer, then hands the buffer back
+   */
+  private class PartTask implements Callable<byte[]> {
+
+    private final String vaultName;
+    private final String uploadId;
+    private final long offset;
+    private final int index;
+    private final boolean last;
+    private final byte[] header;
+    private final byte[] buffer;
+    private final int length;
+    private final PartBuffers buffers;
+
+    PartTask(String pVaultName, String pUploadId, long pOffset, int pIndex, boolean pLast, byte[] pHeader,
+             byte[] pBuffer, int pLength, PartBuffers pBuffers) {
+      vaultName = pVaultName;
+      uploadId = pUploadId;
+      offset = pOffset;
+      index = pIndex;
+      last = pLast;
+      header = pHeader;
+      buffer = pBuffer;
+      length = pLength;
+      buffers = pBuffers;
+    }
+
+    @Override
+    public byte[] call() {
+      try {
+        ByteBuffer body = ByteBuffer.wrap(buffer, 0, length);
+        long start = System.nanoTime();
+        if (header != null) {
+          body = cipher.encryptPart(header, index, last, body);
+          MetricsRegistry.DEFAULT.stage("encrypt").recordSince(start);
+          start = System.nanoTime();
+        }
+        byte[] hash = TreeHash.compute(body);
+        MetricsRegistry.DEFAULT.stage("hash").recordSince(start);
+        service.uploadPart(vaultName, uploadId, offset, body, TreeHash.toHex(hash));
+        LOG.debug("Uploaded part at offset " + offset + " of upload " + uploadId);
+        return hash;
+      } finally {
+        buffers.release(buffer);
+      }
+    }
+  }
+
+  /**
+   * Compressed block, with the tree hash leaf of its original content as
+   * blocks are as big as the leaves
+   */
+  private static class Frame {
+    final byte[] data;
+    final byte[] leafHash;
+
+    Frame(byte[] pData, byte[] pLeafHash) {
+      data = pData;
+      leafHash = pLeafHash;
+    }
+  }
+
+  /**
+   * Part buffers shared by the filling and the uploading threads, allocated
+   * on first use up to a maximum count
+   */
+  private static class PartBuffers {
+
+    private final BlockingQueue<byte[]> free;
+    private final int maxCount;
+    private final int size;
+    private int count;
+
+    PartBuffers(int pMaxCount, int pSize) {
+      free = new ArrayBlockingQueue<byte[]>(pMaxCount);
+      maxCount = pMaxCount;
+      size = pSize;
+    }
+
+    /**
+     * Returns a free buffer, allocating it while fewer than the maximum exist
+     * and waiting for one to be released otherwise
+     * @return
+     * @throws InterruptedException
+     */
+    byte[] take() throws InterruptedException {
+      byte[] buffer = free.poll();
+      if (buffer != null)
+        return buffer;
+      synchronized (this) {
+        if (count < maxCount) {
+          count++;
+          return new byte[size];
+        }
+      }
+      return free.take();
+    }
+
+    void release(byte[] pBuffer) {
+      free.add(pBuffer);
+    }
+  }
+
+  /**
+   * Names the pipeline workers and keeps them from blocking the JVM exit
+   */
+  private static class WorkerFactory implements ThreadFactory {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final String prefix;
+
+    WorkerFactory(String pPrefix) {
+      prefix = pPrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable pTask) {
+      Thread thread = new Thread(pTask, prefix + COUNT.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
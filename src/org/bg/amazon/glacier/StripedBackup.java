@@ -0,0 +1,444 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads one big file over several vaults, possibly in several regions, so
+ * that the per-vault and per-region limits do not cap the throughput of a
+ * single backup. The file is cut into stripes, every stripe is uploaded as an
+ * archive of its own to the next target in turn, while the stripes of the
+ * other targets are uploaded, and a manifest records where every stripe is.
+ * Each stripe may be uploaded to several targets, so that losing a region
+ * does not lose the file, from a single read of the file.
+ *
+ * The retrieval jobs of all the stripes are initiated at once on restore, and
+ * each stripe is written at its offset as soon as its job completes. A stripe
+ * whose retrieval fails is retrieved from its next copy.
+ */
+public class StripedBackup {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(StripedBackup.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  /**
+   * Suffix of the manifest files
+   */
+  public static final String MANIFEST_SUFFIX = ".stripes";
+
+  public static final long DEFAULT_STRIPE_SIZE = 1024L * 1024 * 1024;
+
+  /**
+   * Vault of a region receiving stripes
+   */
+  public static class Target {
+    final String region;
+    final String vaultName;
+    final AsyncGlacierOperations operations;
+
+    /**
+     * Constructor for the Target class
+     * @param pRegion
+     * @param pVaultName
+     * @param pOperations operations of the region
+     */
+    public Target(String pRegion, String pVaultName, AsyncGlacierOperations pOperations) {
+      region = pRegion;
+      vaultName = pVaultName;
+      operations = pOperations;
+    }
+
+    @Override
+    public String toString() {
+      return region + ":" + vaultName;
+    }
+  }
+
+  private final List<Target> targets;
+  private final long stripeSize;
+  private final int copies;
+
+  /**
+   * Constructor for the StripedBackup class
+   * @param pTargets vaults receiving the stripes in turn
+   * @param pStripeSize size of every stripe but the last one
+   * @param pCopies number of targets receiving every stripe
+   */
+  public StripedBackup(List<Target> pTargets, long pStripeSize, int pCopies) {
+    if (pTargets.isEmpty())
+      throw new GlacierException("No vault to stripe over.");
+    if (pCopies < 1 || pCopies > pTargets.size())
+      throw new GlacierException("Invalid number of copies " + pCopies + ", expected 1 to " + pTargets.size());
+    if (pStripeSize < TreeHash.CHUNK_SIZE)
+      throw new GlacierException("Invalid stripe size " + pStripeSize);
+    targets = pTargets;
+    stripeSize = pStripeSize;
+    copies = pCopies;
+  }
+
+  /**
+   * Uploads a file in stripes. A backup that stops resumes with the stripes
+   * it did not upload, as long as the file did not change
+   * @param pFile
+   * @param pDirectory directory holding the manifests and the stripes being uploaded
+   * @return manifest of the backup
+   * @throws IOException
+   */
+  public File backup(final File pFile, File pDirectory) throws IOException {
+    if (!pDirectory.isDirectory() && !pDirectory.mkdirs())
+      throw new IOException("Unable to create " + pDirectory);
+    final long size = pFile.length();
+    long lastModified = pFile.lastModified();
+    final int stripeCount = (int) Math.max(1, (size + stripeSize - 1) / stripeSize);
+    long start = System.currentTimeMillis();
+
+    File journalFile = new File(pDirectory, pFile.getName() + MANIFEST_SUFFIX + ".journal");
+    String source = "source " + size + " " + lastModified + " " + stripeSize + " " + copies + " " + targets;
+    final Map<Integer, String> done = new TreeMap<Integer, String>();
+    List<String> lines = AppendLog.readLines(journalFile);
+    if (!lines.isEmpty() && !lines.get(0).equals(source)) {
+      LOG.info(pFile + " or the stripe settings changed since the last backup, starting over");
+      journalFile.delete();
+      lines = new ArrayList<String>();
+    }
+    for (String line : lines) {
+      if (line.startsWith("stripe ")) {
+        String[] fields = line.split(" ", 3);
+        done.put(Integer.valueOf(fields[1]), fields[2]);
+      }
+    }
+    final AppendLog journal = new AppendLog(journalFile);
+    if (lines.isEmpty())
+      journal.append(source);
+
+    /**
+     * As many stripes as targets wait on disk while they are uploaded, each to
+     * copies targets, so a target uploads up to copies stripes at a time
+     */
+    final Semaphore inFlight = new Semaphore(targets.size());
+    boolean drained = false;
+    final AtomicInteger failed = new AtomicInteger();
+    LOG.info("Uploading " + (stripeCount - done.size()) + " of " + stripeCount + " stripes of " + pFile + " to "
+             + targets + ", " + copies + " copies of each");
+    RandomAccessFile raf = new RandomAccessFile(pFile, "r");
+    try {
+      for (int i = 0; i < stripeCount; i++) {
+        if (done.containsKey(i))
+          continue;
+        inFlight.acquire();
+        final int index = i;
+        final File stripe = new File(pDirectory, pFile.getName() + ".stripe-" + i);
+        final String sha256;
+        try {
+          sha256 = extract(raf, i * stripeSize, Math.min(stripeSize, size - i * stripeSize), stripe);
+        } catch (IOException e) {
+          inFlight.release();
+          throw e;
+        }
+        List<CompletableFuture<String>> uploads = new ArrayList<CompletableFuture<String>>();
+        for (int c = 0; c < copies; c++) {
+          final Target target = targets.get((i + c) % targets.size());
+          CompletableFuture<UploadedArchive> upload;
+          try {
+            upload = target.operations.putArchive(target.vaultName, pFile.getName() + " stripe " + (i + 1) + "/"
+                                                  + stripeCount + " " + (new Date()), stripe);
+          } catch (RuntimeException e) {
+            /** Failed like the uploads, so that the stripe still gives its permit back */
+            upload = new CompletableFuture<UploadedArchive>();
+            upload.completeExceptionally(e);
+          }
+          uploads.add(upload.thenApply(pArchive -> target + "=" + pArchive.getArchiveId()));
+        }
+        final CompletableFuture<?>[] all = uploads.toArray(new CompletableFuture<?>[uploads.size()]);
+        CompletableFuture.allOf(all).whenComplete((pResult, pError) -> {
+          try {
+            if (pError != null)
+              throw pError;
+            StringBuilder placement = new StringBuilder(sha256);
+            for (CompletableFuture<?> upload : all)
+              placement.append(' ').append(upload.join());
+            synchronized (done) {
+              journal.append("stripe " + index + " " + placement);
+              done.put(index, placement.toString());
+            }
+            LOG.info("Uploaded stripe " + (index + 1) + " of " + stripeCount + " of " + pFile);
+          } catch (Throwable e) {
+            failed.incrementAndGet();
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            LOG.error("Unable to upload stripe " + (index + 1) + " of " + pFile + ": " + cause.getMessage());
+          } finally {
+            if (!stripe.delete())
+              LOG.warn("Unable to delete stripe " + stripe);
+            inFlight.release();
+          }
+        });
+      }
+      inFlight.acquire(targets.size());
+      drained = true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlacierException("Backup of " + pFile + " was interrupted.");
+    } finally {
+      raf.close();
+      /** The stripes still uploading record themselves in the journal once done */
+      if (!drained)
+        inFlight.acquireUninterruptibly(targets.size());
+      journal.close();
+    }
+    if (failed.get() > 0)
+      throw new GlacierException(failed.get() + " stripes of " + pFile + " were not uploaded, put it again to resume.");
+
+    List<Map<String, Object>> stripes = new ArrayList<Map<String, Object>>();
+    for (Map.Entry<Integer, String> entry : done.entrySet()) {
+      String[] fields = entry.getValue().split(" ");
+      List<Map<String, Object>> placement = new ArrayList<Map<String, Object>>();
+      for (int c = 1; c < fields.length; c++) {
+        String[] target = fields[c].split("=", 2);
+        Map<String, Object> copy = new LinkedHashMap<String, Object>();
+        copy.put("region", target[0].substring(0, target[0].indexOf(':')));
+        copy.put("vault", target[0].substring(target[0].indexOf(':') + 1));
+        copy.put("archiveId", target[1]);
+        placement.add(copy);
+      }
+      long offset = entry.getKey() * stripeSize;
+      Map<String, Object> stripe = new LinkedHashMap<String, Object>();
+      stripe.put("offset", offset);
+      stripe.put("length", Math.min(stripeSize, size - offset));
+      stripe.put("sha256", fields[0]);
+      stripe.put("copies", placement);
+      stripes.add(stripe);
+    }
+    Map<String, Object> manifest = new LinkedHashMap<String, Object>();
+    manifest.put("name", pFile.getName());
+    manifest.put("path", pFile.getCanonicalPath());
+    manifest.put("size", size);
+    manifest.put("lastModified", lastModified);
+    manifest.put("created", System.currentTimeMillis());
+    manifest.put("stripeSize", stripeSize);
+    manifest.put("stripes", stripes);
+    File manifestFile = new File(pDirectory, pFile.getName() + "." + System.currentTimeMillis() + MANIFEST_SUFFIX);
+    OutputStream out = new FileOutputStream(manifestFile);
+    try {
+      out.write(MAPPER.writeValueAsBytes(manifest));
+    } finally {
+      out.close();
+    }
+    /** The manifest is kept with every copy of the first stripe */
+    List<CompletableFuture<UploadedArchive>> uploads = new ArrayList<CompletableFuture<UploadedArchive>>();
+    for (int c = 0; c < copies; c++) {
+      Target target = targets.get(c % targets.size());
+      uploads.add(target.operations.putArchive(target.vaultName, "manifest-" + pFile.getName() + (new Date()), manifestFile));
+    }
+    for (CompletableFuture<UploadedArchive> upload : uploads)
+      await(upload);
+    journalFile.delete();
+    LOG.info("Backed up " + pFile + " (" + size / (1024 * 1024) + " MB) in " + stripeCount + " stripes over "
+             + targets.size() + " vaults in " + (System.currentTimeMillis() - start) / 1000 + " seconds. Manifest "
+             + manifestFile);
+    return manifestFile;
+  }
+
+  /**
+   * Copies a stripe of a file into a file of its own
+   * @return the SHA-256 of the stripe
+   */
+  private static String extract(RandomAccessFile pSource, long pOffset, long pLength, File pStripe) throws IOException {
+    MessageDigest digest = TreeHash.digest();
+    FileChannel in = pSource.getChannel();
+    FileChannel out = new FileOutputStream(pStripe).getChannel();
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+      long position = pOffset;
+      while (position < pOffset + pLength) {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), pOffset + pLength - position));
+        int read = in.read(buffer, position);
+        if (read < 0)
+          throw new IOException("Unexpected end of file at offset " + position);
+        buffer.flip();
+        digest.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+          out.write(buffer);
+        position += read;
+      }
+    } finally {
+      out.close();
+    }
+    return TreeHash.toHex(digest.digest());
+  }
+
+  /**
+   * Rebuilds a file from its manifest. The retrieval jobs of all the stripes
+   * are initiated at once, every stripe is checked against its SHA-256, and a
+   * restore that stops resumes with the stripes it did not write
+   * @param pManifest manifest of the backup
+   * @param pTarget file receiving the backup
+   * @param pRegions operations of every region holding stripes, by region
+   * @throws IOException
+   */
+  public static void restore(File pManifest, File pTarget, Map<String, AsyncGlacierOperations> pRegions)
+      throws IOException {
+    JsonNode manifest = readManifest(pManifest);
+    long start = System.currentTimeMillis();
+    File doneFile = new File(pTarget.getPath() + MANIFEST_SUFFIX);
+    Set<String> done = new HashSet<String>(AppendLog.readLines(doneFile));
+    final AppendLog log = new AppendLog(doneFile);
+    RandomAccessFile raf = new RandomAccessFile(pTarget, "rw");
+    try {
+      raf.setLength(manifest.get("size").getLongValue());
+      final FileChannel channel = raf.getChannel();
+      List<CompletableFuture<Void>> restores = new ArrayList<CompletableFuture<Void>>();
+      int index = 0;
+      for (final JsonNode stripe : manifest.get("stripes")) {
+        final String line = "done " + stripe.get("offset").getLongValue();
+        final File file = new File(pTarget.getPath() + ".stripe-" + index++);
+        if (!done.contains(line))
+          restores.add(retrieve(stripe, 0, file, pRegions).thenAccept(pFile -> {
+            try {
+              write(pFile, stripe, channel);
+              log.append(line);
+            } catch (IOException e) {
+              throw new CompletionException(e);
+            }
+          }));
+      }
+      LOG.info("Retrieving " + restores.size() + " of " + manifest.get("stripes").size() + " stripes of " + pTarget);
+      for (CompletableFuture<Void> restore : restores)
+        await(restore);
+      channel.force(false);
+    } finally {
+      raf.close();
+      log.close();
+    }
+    doneFile.delete();
+    LOG.info("Restored " + pTarget + " from " + manifest.get("stripes").size() + " stripes in "
+             + (System.currentTimeMillis() - start) / 1000 + " seconds");
+  }
+
+  /**
+   * Returns the regions holding the stripes of a backup
+   * @param pManifest
+   * @return
+   * @throws IOException
+   */
+  public static Set<String> getRegions(File pManifest) throws IOException {
+    Set<String> regions = new LinkedHashSet<String>();
+    for (JsonNode stripe : readManifest(pManifest).get("stripes")) {
+      for (JsonNode copy : stripe.get("copies"))
+        regions.add(copy.get("region").getTextValue());
+    }
+    return regions;
+  }
+
+  private static JsonNode readManifest(File pManifest) throws IOException {
+    InputStream in = new FileInputStream(pManifest);
+    try {
+      return MAPPER.readTree(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Retrieves a stripe into a file, from its next copy if a copy cannot be retrieved
+   */
+  private static CompletableFuture<File> retrieve(final JsonNode pStripe, final int pCopy, final File pFile,
+                                                  final Map<String, AsyncGlacierOperations> pRegions) {
+    JsonNode copy = pStripe.get("copies").get(pCopy);
+    AsyncGlacierOperations operations = pRegions.get(copy.get("region").getTextValue());
+    if (operations == null)
+      throw new GlacierException("No operations for region " + copy.get("region").getTextValue());
+    final String location = copy.get("region").getTextValue() + ":" + copy.get("vault").getTextValue();
+    CompletableFuture<File> retrieval = operations.getArchive(copy.get("vault").getTextValue(),
+                                                              copy.get("archiveId").getTextValue(), pFile);
+    if (pCopy + 1 >= pStripe.get("copies").size())
+      return retrieval;
+    return retrieval.handle((pResult, pError) -> {
+      if (pError == null)
+        return CompletableFuture.completedFuture(pResult);
+      Throwable cause = pError instanceof CompletionException && pError.getCause() != null ? pError.getCause() : pError;
+      LOG.warn("Unable to retrieve the stripe at offset " + pStripe.get("offset").getLongValue() + " from " + location
+               + ", trying its next copy: " + cause.getMessage());
+      return retrieve(pStripe, pCopy + 1, pFile, pRegions);
+    }).thenCompose(pFuture -> pFuture);
+  }
+
+  /**
+   * Checks a retrieved stripe and writes it at its offset
+   */
+  private static void write(File pStripe, JsonNode pManifestStripe, FileChannel pTarget) throws IOException {
+    long offset = pManifestStripe.get("offset").getLongValue();
+    if (pStripe.length() != pManifestStripe.get("length").getLongValue())
+      throw new IOException("Stripe at offset " + offset + " holds " + pStripe.length() + " bytes instead of "
+                            + pManifestStripe.get("length").getLongValue());
+    MessageDigest digest = TreeHash.digest();
+    FileChannel in = new FileInputStream(pStripe).getChannel();
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+      long position = offset;
+      while (in.read(buffer) > 0) {
+        buffer.flip();
+        digest.update(buffer.duplicate());
+        while (buffer.hasRemaining())
+          position += pTarget.write(buffer, position);
+        buffer.clear();
+      }
+    } finally {
+      in.close();
+    }
+    if (!Arrays.equals(digest.digest(), TreeHash.fromHex(pManifestStripe.get("sha256").getTextValue())))
+      throw new IOException("Stripe at offset " + offset + " is corrupted");
+    if (!pStripe.delete())
+      LOG.warn("Unable to delete stripe " + pStripe);
+  }
+
+  /**
+   * Waits for an upload or a retrieval, reporting its error
+   */
+  private static <T> T await(CompletableFuture<T> pFuture) throws IOException {
+    try {
+      return pFuture.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlacierException("Interrupted while transferring stripes", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new GlacierException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+}
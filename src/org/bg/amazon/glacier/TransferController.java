@@ -0,0 +1,275 @@
+package org.bg.amazon.glacier;
+
+import java.net.SocketTimeoutException;
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Paces the transfers of one direction. The number of parts in flight is
+ * adjusted AIMD-style: every part transferred without trouble raises the
+ * limit by 1/limit, so by one part per round, and a throttling response or
+ * a timeout halves it, at most once per round. The rate is optionally capped
+ * with a token bucket, with a different cap during office hours.
+ */
+public class TransferController {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(TransferController.class);
+
+  private final String name;
+  private final int maxLimit;
+  private final boolean adaptive;
+
+  /**
+   * Current limit of parts in flight, and parts in flight
+   */
+  private double limit;
+  private int inFlight;
+
+  /**
+   * Time of the last decrease, the limit is not decreased again for a round
+   */
+  private long lastDecrease;
+
+  /**
+   * Averages of the latency of a part and of the throughput, in nanoseconds and bytes per second
+   */
+  private double averageLatency;
+  private double averageThroughput;
+  private long throttled;
+
+  /**
+   * Rate caps in bytes per second, 0 meaning no cap, and the office hours
+   */
+  private long bytesPerSecond;
+  private long officeBytesPerSecond;
+  private LocalTime officeStart;
+  private LocalTime officeEnd;
+  private Set<DayOfWeek> officeDays = EnumSet.noneOf(DayOfWeek.class);
+
+  /**
+   * Time at which the bytes granted so far will have been sent at the current rate
+   */
+  private long nextFree = System.nanoTime();
+
+  /**
+   * Constructor for the TransferController class
+   * @param pName direction, used in the logs
+   * @param pMaxLimit most parts in flight, usually the number of transfer threads
+   * @param pAdaptive whether the limit adapts, otherwise it stays at pMaxLimit
+   */
+  public TransferController(String pName, int pMaxLimit, boolean pAdaptive) {
+    if (pMaxLimit < 1)
+      throw new GlacierException("Invalid number of parts in flight " + pMaxLimit);
+    name = pName;
+    maxLimit = pMaxLimit;
+    adaptive = pAdaptive;
+    limit = pAdaptive ? Math.min(2, pMaxLimit) : pMaxLimit;
+  }
+
+  /**
+   * Caps the rate outside office hours
+   * @param pBytesPerSecond 0 for no cap
+   */
+  public synchronized void setRateLimit(long pBytesPerSecond) {
+    bytesPerSecond = pBytesPerSecond;
+  }
+
+  /**
+   * Caps the rate during office hours
+   * @param pStart
+   * @param pEnd
+   * @param pDays
+   * @param pBytesPerSecond 0 for no cap
+   */
+  public synchronized void setOfficeHours(LocalTime pStart, LocalTime pEnd, Set<DayOfWeek> pDays, long pBytesPerSecond) {
+    officeStart = pStart;
+    officeEnd = pEnd;
+    officeDays = EnumSet.copyOf(pDays);
+    officeBytesPerSecond = pBytesPerSecond;
+  }
+
+  /**
+   * Caps the rate during office hours, as read from the configuration file
+   * @param pHours "HH:mm-HH:mm", the end may be before the start to span midnight
+   * @param pDays "MON-FRI" or a list such as "MON,WED,FRI"
+   * @param pBytesPerSecond 0 for no cap
+   */
+  public void setOfficeHours(String pHours, String pDays, long pBytesPerSecond) {
+    String[] hours = pHours.trim().split("-");
+    if (hours.length != 2)
+      throw new GlacierException("Invalid office hours " + pHours + ", expected HH:mm-HH:mm");
+    Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+    for (String range : pDays.trim().toUpperCase().split("\\s*,\\s*")) {
+      String[] ends = range.split("-");
+      DayOfWeek first = parseDay(ends[0]), last = parseDay(ends[ends.length - 1]);
+      for (DayOfWeek day = first;; day = day.plus(1)) {
+        days.add(day);
+        if (day == last)
+          break;
+      }
+    }
+    try {
+      setOfficeHours(LocalTime.parse(hours[0].trim()), LocalTime.parse(hours[1].trim()), days, pBytesPerSecond);
+    } catch (DateTimeParseException e) {
+      throw new GlacierException("Invalid office hours " + pHours + ", expected HH:mm-HH:mm");
+    }
+  }
+
+  private static DayOfWeek parseDay(String pDay) {
+    for (DayOfWeek day : DayOfWeek.values()) {
+      if (day.name().startsWith(pDay.trim()) && pDay.trim().length() >= 3)
+        return day;
+    }
+    throw new GlacierException("Invalid day " + pDay + ", expected MON, TUE...");
+  }
+
+  /**
+   * Waits until another part may be in flight
+   * @throws InterruptedException
+   */
+  public synchronized void acquire() throws InterruptedException {
+    while (inFlight >= (int) limit)
+      wait();
+    inFlight++;
+  }
+
+  /**
+   * Records a part transferred without trouble and releases its slot
+   * @param pBytes
+   * @param pNanos time the transfer took
+   */
+  public synchronized void succeeded(long pBytes, long pNanos) {
+    inFlight--;
+    averageLatency = averageLatency == 0 ? pNanos : 0.8 * averageLatency + 0.2 * pNanos;
+    // the parts still in flight are assumed to go as fast as this one
+    double throughput = pBytes * 1e9 / Math.max(1, pNanos) * (inFlight + 1);
+    averageThroughput = averageThroughput == 0 ? throughput : 0.8 * averageThroughput + 0.2 * throughput;
+    if (adaptive && limit < maxLimit) {
+      int before = (int) limit;
+      limit = Math.min(maxLimit, limit + 1 / limit);
+      if ((int) limit != before)
+        LOG.debug(name + ": " + (int) limit + " parts in flight, " + getStatus());
+    }
+    notifyAll();
+  }
+
+  /**
+   * Records a failed part and releases its slot, halving the limit when the
+   * failure tells the service or the network is overloaded
+   * @param pError
+   */
+  public synchronized void failed(Exception pError) {
+    inFlight--;
+    if (isThrottling(pError)) {
+      throttled++;
+      long now = System.nanoTime();
+      if (adaptive && now - lastDecrease > averageLatency) {
+        lastDecrease = now;
+        limit = Math.max(1, limit / 2);
+        LOG.info(name + ": throttled (" + pError.getMessage() + "), down to " + (int) limit + " parts in flight");
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * Tells whether an error is a throttling response or a timeout
+   * @param pError
+   * @return
+   */
+  public static boolean isThrottling(Exception pError) {
+    if (pError instanceof AmazonServiceException) {
+      AmazonServiceException error = (AmazonServiceException) pError;
+      return error.getStatusCode() == 429 || error.getStatusCode() == 503
+          || "ThrottlingException".equals(error.getErrorCode()) || "RequestTimeoutException".equals(error.getErrorCode())
+          || "SlowDown".equals(error.getErrorCode());
+    }
+    if (pError instanceof AmazonClientException)
+      return pError.getCause() instanceof SocketTimeoutException;
+    return pError instanceof SocketTimeoutException;
+  }
+
+  /**
+   * Waits until a number of bytes may be sent without exceeding the current
+   * rate cap. Up to a second worth of bytes may be sent at once.
+   * @param pBytes
+   * @throws InterruptedException
+   */
+  public void throttle(long pBytes) throws InterruptedException {
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      long rate = getRateLimit();
+      if (rate <= 0) {
+        nextFree = now;
+        return;
+      }
+      nextFree = Math.max(nextFree, now - TimeUnit.SECONDS.toNanos(1)) + (long) (pBytes * 1e9 / rate);
+      wait = nextFree - now;
+    }
+    if (wait > 0)
+      TimeUnit.NANOSECONDS.sleep(wait);
+  }
+
+  /**
+   * Returns the rate cap in force now, 0 meaning no cap
+   * @return
+   */
+  public synchronized long getRateLimit() {
+    if (officeStart != null) {
+      LocalDateTime now = LocalDateTime.now();
+      LocalTime time = now.toLocalTime();
+      boolean inHours = officeStart.isBefore(officeEnd)
+          ? !time.isBefore(officeStart) && time.isBefore(officeEnd)
+          : !time.isBefore(officeStart) || time.isBefore(officeEnd);
+      if (inHours && officeDays.contains(now.getDayOfWeek()))
+        return officeBytesPerSecond;
+    }
+    return bytesPerSecond;
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Returns the average throughput of the parts, in bytes per second
+   * @return
+   */
+  public synchronized double getThroughput() {
+    return averageThroughput;
+  }
+
+  public synchronized long getThrottled() {
+    return throttled;
+  }
+
+  /**
+   * Describes the state of the controller, for the logs
+   * @return
+   */
+  public synchronized String getStatus() {
+    long rate = getRateLimit();
+    return String.format("limit %d, in flight %d, %.1f MB/s, latency %d ms, %d throttled%s", (int) limit, inFlight,
+                         averageThroughput / (1024 * 1024), (long) (averageLatency / 1e6), throttled,
+                         rate > 0 ? ", capped at " + rate / 1024 + " KB/s" : "");
+  }
+}
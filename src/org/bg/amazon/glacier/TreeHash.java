@@ -0,0 +1,114 @@
+package org.bg.amazon.glacier;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helpers to compute the SHA-256 tree hash used by Amazon Glacier
+ */
+public final class TreeHash {
+
+  /**
+   * Size of the leaves of the tree
+   */
+  public static final int CHUNK_SIZE = 1024 * 1024;
+
+  /**
+   * Digest instances reused by every thread
+   */
+  private static final ThreadLocal<MessageDigest> DIGESTS = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new GlacierException("SHA-256 is not available: " + e.getMessage());
+      }
+    }
+  };
+
+  private TreeHash() {
+  }
+
+  /**
+   * Returns a SHA-256 digest owned by the calling thread
+   * @return
+   */
+  static MessageDigest digest() {
+    MessageDigest digest = DIGESTS.get();
+    digest.reset();
+    return digest;
+  }
+
+  /**
+   * Computes the tree hash of the remaining bytes of a buffer. The position
+   * of the buffer is not modified.
+   * @param pData
+   * @return
+   */
+  public static byte[] compute(ByteBuffer pData) {
+    ByteBuffer data = pData.duplicate();
+    List<byte[]> leaves = new ArrayList<byte[]>();
+    MessageDigest digest = digest();
+    do {
+      ByteBuffer leaf = data.duplicate();
+      leaf.limit(leaf.position() + Math.min(CHUNK_SIZE, leaf.remaining()));
+      digest.update(leaf);
+      leaves.add(digest.digest());
+      data.position(leaf.limit());
+    } while (data.hasRemaining());
+    return combine(leaves);
+  }
+
+  /**
+   * Combines a list of tree hashes into the hash of their parent tree
+   * @param pHashes
+   * @return
+   */
+  public static byte[] combine(List<byte[]> pHashes) {
+    if (pHashes.isEmpty())
+      throw new GlacierException("Cannot combine an empty list of hashes.");
+    MessageDigest digest = digest();
+    List<byte[]> level = pHashes;
+    while (level.size() > 1) {
+      List<byte[]> parents = new ArrayList<byte[]>((level.size() + 1) / 2);
+      for (int i = 0; i < level.size(); i += 2) {
+        if (i + 1 < level.size()) {
+          digest.update(level.get(i));
+          digest.update(level.get(i + 1));
+          parents.add(digest.digest());
+        } else
+          parents.add(level.get(i));
+      }
+      level = parents;
+    }
+    return level.get(0);
+  }
+
+  /**
+   * Encodes a hash in the lower case hexadecimal form used by Glacier
+   * @param pHash
+   * @return
+   */
+  public static String toHex(byte[] pHash) {
+    StringBuilder hex = new StringBuilder(pHash.length * 2);
+    for (byte b : pHash)
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    return hex.toString();
+  }
+
+  /**
+   * Decodes a hexadecimal hash
+   * @param pHex
+   * @return
+   */
+  public static byte[] fromHex(String pHex) {
+    byte[] hash = new byte[pHex.length() / 2];
+    for (int i = 0; i < hash.length; i++)
+      hash[i] = (byte) Integer.parseInt(pHex.substring(2 * i, 2 * i + 2), 16);
+    return hash;
+  }
+}
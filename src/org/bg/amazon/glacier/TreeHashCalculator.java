@@ -0,0 +1,206 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes Glacier tree hashes over memory-mapped files, hashing the 1MB
+ * leaves in parallel on a fork-join pool. Data is read straight from the
+ * mapping, nothing is copied onto the heap.
+ */
+public class TreeHashCalculator {
+
+  /**
+   * Number of leaves below which a task hashes them itself instead of splitting
+   */
+  private static final int LEAVES_PER_TASK = 4;
+
+  /**
+   * Pool running the hashing tasks
+   */
+  private final ForkJoinPool pool;
+
+  /**
+   * Constructor for the TreeHashCalculator class
+   * @param pPool pool running the hashing tasks
+   */
+  public TreeHashCalculator(ForkJoinPool pPool) {
+    pool = pPool;
+  }
+
+  /**
+   * Constructor using a pool with one thread per available processor
+   */
+  public TreeHashCalculator() {
+    this(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Computes the tree hash of the remaining bytes of a buffer
+   * @param pData
+   * @return
+   */
+  public byte[] compute(ByteBuffer pData) {
+    return TreeHash.combine(Arrays.asList(leafHashes(pData)));
+  }
+
+  /**
+   * Computes the hashes of the 1MB leaves of a buffer
+   * @param pData
+   * @return
+   */
+  public byte[][] leafHashes(ByteBuffer pData) {
+    int leafCount = (int) Math.max(1, (pData.remaining() + (long) TreeHash.CHUNK_SIZE - 1) / TreeHash.CHUNK_SIZE);
+    byte[][] hashes = new byte[leafCount][];
+    pool.invoke(new LeafTask(pData.duplicate(), hashes, 0, leafCount));
+    return hashes;
+  }
+
+  /**
+   * Computes the tree hash of every part of a file and of the whole file,
+   * reading the file once through memory mappings of one part each
+   * @param pFile file to hash
+   * @param pPartSize a power of two number of megabytes, up to MultipartUploader.MAX_PART_SIZE
+   * @return
+   * @throws IOException
+   */
+  public Result calculate(File pFile, long pPartSize) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(pFile, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long fileSize = channel.size();
+      int partCount = (int) Math.max(1, (fileSize + pPartSize - 1) / pPartSize);
+      List<PartTask> tasks = new ArrayList<PartTask>(partCount);
+      for (int i = 0; i < partCount; i++) {
+        long offset = i * pPartSize;
+        tasks.add(new PartTask(channel, offset, Math.min(pPartSize, fileSize - offset)));
+      }
+      pool.invoke(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+
+      byte[][] partHashes = new byte[partCount][];
+      List<byte[]> leaves = new ArrayList<byte[]>();
+      for (int i = 0; i < partCount; i++) {
+        if (tasks.get(i).error != null)
+          throw tasks.get(i).error;
+        byte[][] partLeaves = tasks.get(i).leaves;
+        partHashes[i] = TreeHash.combine(Arrays.asList(partLeaves));
+        leaves.addAll(Arrays.asList(partLeaves));
+      }
+      return new Result(partHashes, TreeHash.combine(leaves));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * Tree hashes of a file and of each of its parts
+   */
+  public static class Result {
+
+    private final byte[][] partHashes;
+    private final byte[] rootHash;
+
+    Result(byte[][] pPartHashes, byte[] pRootHash) {
+      partHashes = pPartHashes;
+      rootHash = pRootHash;
+    }
+
+    public byte[][] getPartHashes() {
+      return partHashes;
+    }
+
+    public byte[] getRootHash() {
+      return rootHash;
+    }
+
+    public String getRootChecksum() {
+      return TreeHash.toHex(rootHash);
+    }
+  }
+
+  /**
+   * Maps a part of a file and hashes its leaves
+   */
+  private class PartTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final FileChannel channel;
+    private final long offset;
+    private final long length;
+    byte[][] leaves;
+    IOException error;
+
+    PartTask(FileChannel pChannel, long pOffset, long pLength) {
+      channel = pChannel;
+      offset = pOffset;
+      length = pLength;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        int leafCount = (int) Math.max(1, (length + TreeHash.CHUNK_SIZE - 1) / TreeHash.CHUNK_SIZE);
+        leaves = new byte[leafCount][];
+        new LeafTask(data, leaves, 0, leafCount).compute();
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+  }
+
+  /**
+   * Hashes a range of leaves of a buffer, splitting it while it is big enough
+   */
+  private static class LeafTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ByteBuffer data;
+    private final byte[][] hashes;
+    private final int from;
+    private final int to;
+
+    LeafTask(ByteBuffer pData, byte[][] pHashes, int pFrom, int pTo) {
+      data = pData;
+      hashes = pHashes;
+      from = pFrom;
+      to = pTo;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > LEAVES_PER_TASK) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new LeafTask(data, hashes, from, middle), new LeafTask(data, hashes, middle, to));
+        return;
+      }
+      MessageDigest digest = TreeHash.digest();
+      for (int i = from; i < to; i++) {
+        ByteBuffer leaf = data.duplicate();
+        int start = leaf.position() + i * TreeHash.CHUNK_SIZE;
+        leaf.limit(Math.min(leaf.limit(), start + TreeHash.CHUNK_SIZE));
+        leaf.position(start);
+        digest.update(leaf);
+        hashes[i] = digest.digest();
+      }
+    }
+  }
+}
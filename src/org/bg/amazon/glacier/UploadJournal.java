@@ -0,0 +1,160 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk journal of an in-flight multipart upload. It records the upload
+ * id, the part size, the salt of an encrypted upload and every part already
+ * accepted by Glacier together with its tree hash, so the upload can be
+ * resumed after the process dies.
+ */
+public class UploadJournal {
+
+  /**
+   * Log holding the journal
+   */
+  private final AppendLog log;
+
+  /**
+   * Upload being journaled, null if none was recorded
+   */
+  private String uploadId;
+
+  /**
+   * Sizes and modification time the upload was started with
+   */
+  private long partSize;
+  private long fileSize;
+  private long lastModified;
+  private boolean encrypted;
+
+  /**
+   * Random salt the parts of an encrypted upload are encrypted with, null if unknown
+   */
+  private byte[] salt;
+
+  /**
+   * Tree hashes of the parts already uploaded, by part index
+   */
+  private final Map<Integer, byte[]> parts = new HashMap<Integer, byte[]>();
+
+  private UploadJournal(AppendLog pLog) {
+    log = pLog;
+  }
+
+  /**
+   * Opens the journal of the uploads of a file to a vault
+   * @param pDirectory directory holding the journals
+   * @param pVaultName vault receiving the file
+   * @param pFile file being uploaded
+   * @return
+   * @throws IOException
+   */
+  public static UploadJournal open(File pDirectory, String pVaultName, File pFile) throws IOException {
+    if (!pDirectory.isDirectory() && !pDirectory.mkdirs())
+      throw new IOException("Unable to create journal directory " + pDirectory);
+    String key = pVaultName + "\n" + pFile.getCanonicalPath();
+    File file = new File(pDirectory, TreeHash.toHex(TreeHash.compute(ByteBuffer.wrap(key.getBytes("UTF-8")))) + ".journal");
+
+    UploadJournal journal = new UploadJournal(new AppendLog(file));
+    for (String line : AppendLog.readLines(file)) {
+      String[] fields = line.split(" ");
+      if (fields[0].equals("upload")) {
+        journal.uploadId = fields[1];
+        journal.partSize = Long.parseLong(fields[2]);
+        journal.fileSize = Long.parseLong(fields[3]);
+        journal.lastModified = Long.parseLong(fields[4]);
+        journal.encrypted = fields.length > 5 && fields[5].equals("encrypted");
+        /** Uploads journaled before the salt was recorded cannot be resumed */
+        journal.salt = fields.length > 6 ? TreeHash.fromHex(fields[6]) : null;
+        journal.parts.clear();
+      } else if (fields[0].equals("part"))
+        journal.parts.put(Integer.valueOf(fields[1]), TreeHash.fromHex(fields[4]));
+    }
+    return journal;
+  }
+
+  /**
+   * Returns the upload that can be resumed for the file as it is now, or null
+   * @param pPartSize part size about to be used
+   * @param pFile file about to be uploaded
+   * @param pEncrypted whether the parts are about to be encrypted
+   * @return
+   */
+  public String getResumableUpload(long pPartSize, File pFile, boolean pEncrypted) {
+    if (uploadId == null || partSize != pPartSize || fileSize != pFile.length() || lastModified != pFile.lastModified()
+        || encrypted != pEncrypted || (encrypted && salt == null))
+      return null;
+    return uploadId;
+  }
+
+  /**
+   * Returns the salt of the upload recorded, null if it is not encrypted
+   * @return
+   */
+  public byte[] getSalt() {
+    return salt == null ? null : salt.clone();
+  }
+
+  /**
+   * Records a new upload, forgetting any previous one
+   * @param pUploadId
+   * @param pPartSize
+   * @param pFile
+   * @param pSalt salt of the encrypted parts, null if they are not encrypted
+   * @throws IOException
+   */
+  public synchronized void recordUpload(String pUploadId, long pPartSize, File pFile, byte[] pSalt) throws IOException {
+    log.append("upload " + pUploadId + " " + pPartSize + " " + pFile.length() + " " + pFile.lastModified()
+               + (pSalt != null ? " encrypted " + TreeHash.toHex(pSalt) : ""));
+    uploadId = pUploadId;
+    encrypted = pSalt != null;
+    salt = pSalt == null ? null : pSalt.clone();
+    partSize = pPartSize;
+    fileSize = pFile.length();
+    lastModified = pFile.lastModified();
+    parts.clear();
+  }
+
+  /**
+   * Records a part accepted by Glacier
+   * @param pIndex
+   * @param pOffset
+   * @param pLength
+   * @param pHash
+   * @throws IOException
+   */
+  public synchronized void recordPart(int pIndex, long pOffset, long pLength, byte[] pHash) throws IOException {
+    log.append("part " + pIndex + " " + pOffset + " " + pLength + " " + TreeHash.toHex(pHash));
+    parts.put(pIndex, pHash);
+  }
+
+  /**
+   * Returns the tree hash of a part already uploaded, or null
+   * @param pIndex
+   * @return
+   */
+  public synchronized byte[] getPartHash(int pIndex) {
+    return parts.get(pIndex);
+  }
+
+  /**
+   * Releases the journal, keeping it for a later resume
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    log.close();
+  }
+
+  /**
+   * Removes the journal once the upload is completed
+   * @throws IOException
+   */
+  public void delete() throws IOException {
+    log.delete();
+  }
+}
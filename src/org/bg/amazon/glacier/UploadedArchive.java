@@ -0,0 +1,57 @@
+package org.bg.amazon.glacier;
+
+/**
+ * Archive created by an upload
+ */
+public class UploadedArchive {
+
+  private final String archiveId;
+  private final String treeHash;
+  private final long size;
+  private final String contentTreeHash;
+
+  /**
+   * Constructor for the UploadedArchive class
+   * @param pArchiveId id of the new archive
+   * @param pTreeHash hex encoded tree hash of its content
+   * @param pSize size in bytes
+   */
+  public UploadedArchive(String pArchiveId, String pTreeHash, long pSize) {
+    this(pArchiveId, pTreeHash, pSize, pTreeHash);
+  }
+
+  /**
+   * Constructor for the UploadedArchive class, for an archive encoding the uploaded content
+   * @param pArchiveId id of the new archive
+   * @param pTreeHash hex encoded tree hash of the archive
+   * @param pSize size in bytes of the archive
+   * @param pContentTreeHash hex encoded tree hash of the content before it was encoded
+   */
+  public UploadedArchive(String pArchiveId, String pTreeHash, long pSize, String pContentTreeHash) {
+    archiveId = pArchiveId;
+    treeHash = pTreeHash;
+    size = pSize;
+    contentTreeHash = pContentTreeHash;
+  }
+
+  public String getArchiveId() {
+    return archiveId;
+  }
+
+  public String getTreeHash() {
+    return treeHash;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the tree hash of the content uploaded, which is the tree hash of
+   * the archive unless it is compressed or encrypted
+   * @return
+   */
+  public String getContentTreeHash() {
+    return contentTreeHash;
+  }
+}
@@ -0,0 +1,239 @@
+package org.bg.amazon.glacier;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.glacier.model.DescribeVaultResult;
+
+/**
+ * Keeps the descriptions of the vaults for a while, so that checking a vault
+ * exists before every upload does not cost a DescribeVault call. Vaults found
+ * missing are kept as well. Concurrent lookups of a vault share one call, and
+ * creating or deleting a vault drops what is known of it. Descriptions may be
+ * persisted, missing vaults are not. Glacier only refreshes the number of
+ * archives and the size of a vault once a day, so keeping them for a while
+ * loses little.
+ */
+public class VaultCache {
+
+  /**
+   * Object in charged of performing all logging operations
+   */
+  private static final Logger LOG = LoggerFactory.getLogger(VaultCache.class);
+
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+
+  public static final long DEFAULT_TTL = 3600 * 1000;
+
+  /**
+   * Call describing a vault
+   */
+  public interface Loader {
+    /**
+     * @param pVaultName
+     * @return null if the vault does not exist
+     */
+    DescribeVaultResult describe(String pVaultName);
+  }
+
+  private final Loader loader;
+  private final long ttl;
+  private final File file;
+
+  /**
+   * Descriptions by vault name
+   */
+  private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /**
+   * Lookups in progress by vault name
+   */
+  private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<String, CompletableFuture<Entry>>();
+
+  private final MetricsRegistry.Counter hits;
+  private final MetricsRegistry.Counter misses;
+
+  /**
+   * Description of a vault, null if it does not exist, and when it was obtained
+   */
+  private static class Entry {
+    final DescribeVaultResult description;
+    final long loadedAt;
+
+    Entry(DescribeVaultResult pDescription, long pLoadedAt) {
+      description = pDescription;
+      loadedAt = pLoadedAt;
+    }
+  }
+
+  /**
+   * Constructor for the VaultCache class
+   * @param pLoader
+   * @param pTtl milliseconds a description is kept
+   * @param pFile file persisting the descriptions, null to keep them in memory only
+   */
+  public VaultCache(Loader pLoader, long pTtl, File pFile) {
+    loader = pLoader;
+    ttl = pTtl;
+    file = pFile;
+    hits = MetricsRegistry.DEFAULT.counter("glacier_vault_cache_total", "Vault lookups", "result", "hit");
+    misses = MetricsRegistry.DEFAULT.counter("glacier_vault_cache_total", "Vault lookups", "result", "miss");
+    if (file != null && file.exists()) {
+      try {
+        load();
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Ignoring vault cache " + file + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Returns the description of a vault, describing it if it is not known or too old
+   * @param pVaultName
+   * @return null if the vault does not exist
+   */
+  public DescribeVaultResult get(String pVaultName) {
+    Entry entry = entries.get(pVaultName);
+    if (entry != null && System.currentTimeMillis() - entry.loadedAt < ttl) {
+      hits.increment();
+      return entry.description;
+    }
+    CompletableFuture<Entry> future = new CompletableFuture<Entry>();
+    CompletableFuture<Entry> running = loading.putIfAbsent(pVaultName, future);
+    if (running != null)
+      return await(running).description;
+    misses.increment();
+    try {
+      Entry loaded = new Entry(loader.describe(pVaultName), System.currentTimeMillis());
+      /** The vault was created or deleted meanwhile if the lookup is no longer registered */
+      if (loading.remove(pVaultName, future)) {
+        entries.put(pVaultName, loaded);
+        if (loaded.description != null)
+          save();
+      }
+      future.complete(loaded);
+      return loaded.description;
+    } catch (RuntimeException e) {
+      loading.remove(pVaultName, future);
+      future.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Tells whether a vault exists
+   * @param pVaultName
+   * @return
+   */
+  public boolean exists(String pVaultName) {
+    return get(pVaultName) != null;
+  }
+
+  /**
+   * Drops what is known of a vault, to be called once it is created or deleted
+   * @param pVaultName
+   */
+  public void invalidate(String pVaultName) {
+    loading.remove(pVaultName);
+    if (entries.remove(pVaultName) != null)
+      save();
+  }
+
+  /**
+   * Waits for the lookup made by another thread
+   */
+  private static Entry await(CompletableFuture<Entry> pFuture) {
+    try {
+      return pFuture.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new GlacierException("Interrupted while describing a vault", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new GlacierException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Reads the persisted descriptions which are recent enough, skipping the
+   * ones without a vault name or a load time
+   * @throws IOException
+   */
+  private void load() throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      long now = System.currentTimeMillis();
+      for (JsonNode vault : MAPPER.readTree(in).path("vaults")) {
+        long loadedAt = vault.path("loadedAt").getLongValue();
+        String vaultName = vault.path("vaultName").getTextValue();
+        if (vaultName == null || now - loadedAt >= ttl)
+          continue;
+        DescribeVaultResult description = new DescribeVaultResult()
+            .withVaultName(vaultName)
+            .withVaultARN(vault.path("vaultARN").getTextValue())
+            .withCreationDate(vault.path("creationDate").getTextValue())
+            .withLastInventoryDate(vault.path("lastInventoryDate").getTextValue())
+            .withNumberOfArchives(vault.path("numberOfArchives").getLongValue())
+            .withSizeInBytes(vault.path("sizeInBytes").getLongValue());
+        entries.put(description.getVaultName(), new Entry(description, loadedAt));
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Persists the descriptions, replacing the file atomically
+   */
+  private synchronized void save() {
+    if (file == null)
+      return;
+    List<Map<String, Object>> vaults = new ArrayList<Map<String, Object>>();
+    for (Entry entry : entries.values()) {
+      DescribeVaultResult description = entry.description;
+      if (description == null)
+        continue;
+      Map<String, Object> vault = new LinkedHashMap<String, Object>();
+      vault.put("vaultName", description.getVaultName());
+      vault.put("vaultARN", description.getVaultARN());
+      vault.put("creationDate", description.getCreationDate());
+      vault.put("lastInventoryDate", description.getLastInventoryDate());
+      vault.put("numberOfArchives", description.getNumberOfArchives() == null ? 0 : description.getNumberOfArchives());
+      vault.put("sizeInBytes", description.getSizeInBytes() == null ? 0 : description.getSizeInBytes());
+      vault.put("loadedAt", entry.loadedAt);
+      vaults.add(vault);
+    }
+    Map<String, Object> state = new LinkedHashMap<String, Object>();
+    state.put("vaults", vaults);
+    File temp = new File(file.getPath() + ".tmp");
+    try {
+      FileOutputStream out = new FileOutputStream(temp);
+      try {
+        out.write(MAPPER.writeValueAsBytes(state));
+      } finally {
+        out.close();
+      }
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn("Unable to save vault cache to " + file + ": " + e.getMessage());
+    }
+  }
+}